@@ -812,6 +812,42 @@ public class Base {
 		writer.close();
 	}
 
+	/**
+	 * Put a newly written file in place of another.  Where the new file
+	 * can't simply be renamed over the old one, the old one is moved aside
+	 * to a .bak first and removed once the new one is in place, so it is
+	 * never gone before its replacement is there.  If the new file can't be
+	 * put in place, it is left where it is and the exception says so.
+	 */
+	static public void replaceFile(File temp, File file) throws IOException {
+		if (temp.renameTo(file)) {
+			return;
+		}
+		// some platforms won't rename over an existing or a mapped file
+		File backup = new File(file.getPath() + ".bak");
+		if (backup.exists() && !backup.delete()) {
+			throw new IOException("Couldn't replace " + file.getPath()
+					+ " (" + backup.getName() + " is in the way); the new text is in " + temp.getPath());
+		}
+		if (file.exists() && !file.renameTo(backup)) {
+			throw new IOException("Couldn't replace " + file.getPath()
+					+ "; the new text is in " + temp.getPath());
+		}
+		if (!temp.renameTo(file)) {
+			if (backup.exists() && !backup.renameTo(file)) {
+				throw new IOException("Couldn't replace " + file.getPath()
+						+ "; the new text is in " + temp.getPath()
+						+ " and the old in " + backup.getPath());
+			}
+			throw new IOException("Couldn't replace " + file.getPath()
+					+ "; the new text is in " + temp.getPath());
+		}
+		if (backup.exists() && !backup.delete()) {
+			// a file that is still mapped may not go until it's unmapped
+			logger.fine("Couldn't remove " + backup.getPath());
+		}
+	}
+
 	static public void copyDir(File sourceDir, File targetDir)
 			throws IOException {
 		targetDir.mkdirs();
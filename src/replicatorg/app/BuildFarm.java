@@ -0,0 +1,507 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.model.CompiledGCode;
+import replicatorg.model.CompiledGCodeSource;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileGCodeSource;
+
+/**
+ * Runs several machines from one process, each with its own driver and
+ * serial port, and hands the jobs of a shared queue to them as they become
+ * free.
+ *
+ * A job is a GCode file, and may ask for a particular type of machine (the
+ * name it has in machines.xml).  Jobs are started in the order they were
+ * submitted, each on the first idle machine that can run it; a job that no
+ * idle machine can run doesn't hold up the jobs behind it.
+ *
+ * Each file is compiled once, on a pool of worker threads, and the compiled
+ * program is shared by every job that builds it, for as long as the file
+ * doesn't change.  A program is let go once no queued or running job needs
+ * it, so the farm holds no more programs than it has jobs; a file
+ * submitted again is loaded from its compiled cache on disk.  The same
+ * pool estimates the builds of every machine, rather than each machine
+ * starting threads of its own.
+ */
+public class BuildFarm {
+	/** A file to build, and where it is in the queue. */
+	public static class Job {
+		public enum Status {
+			/** Waiting for a machine, or to be compiled. */
+			QUEUED,
+			/** Being built. */
+			RUNNING,
+			/** Built. */
+			DONE,
+			/** It couldn't be compiled, or the build failed or was stopped. */
+			FAILED,
+			/** Taken off the queue before it was started. */
+			CANCELLED
+		}
+
+		private final String path;
+		private final String machineType;
+		private Status status = Status.QUEUED;
+		private MachineController machine = null;
+		private String error = null;
+		private Future<GCodeSource> source;
+
+		Job(String path, String machineType) {
+			this.path = path;
+			this.machineType = machineType;
+		}
+
+		public String getPath() { return path; }
+
+		/** @return the type of machine the job needs, or null for any */
+		public String getMachineType() { return machineType; }
+
+		public synchronized Status getStatus() { return status; }
+
+		/** @return the machine the job was started on, or null */
+		public synchronized MachineController getMachine() { return machine; }
+
+		/** @return why the job failed, or null */
+		public synchronized String getError() { return error; }
+
+		public synchronized boolean isFinished() {
+			return status == Status.DONE || status == Status.FAILED ||
+				status == Status.CANCELLED;
+		}
+
+		/**
+		 * Wait for the job to be built, to fail or to be cancelled.
+		 */
+		public synchronized void waitFor() throws InterruptedException {
+			while (!isFinished()) {
+				wait();
+			}
+		}
+
+		synchronized void setStatus(Status status, String error) {
+			this.status = status;
+			this.error = error;
+			notifyAll();
+		}
+
+		public String toString() {
+			return path + " (" + getStatus() + ")";
+		}
+	}
+
+	/** Told whenever a job changes state. */
+	public interface Listener {
+		void jobChanged(Job job);
+	}
+
+	// A machine of the farm, and the job it's building
+	private class Station implements MachineListener {
+		final MachineController machine;
+		final String port;
+		Job job = null;
+
+		Station(MachineController machine, String port) {
+			this.machine = machine;
+			this.port = port;
+		}
+
+		boolean canRun(Job j) {
+			return j.getMachineType() == null || j.getMachineType().equals(machine.getName());
+		}
+
+		public void machineStateChanged(MachineStateChangeEvent evt) {
+			MachineState prev = evt.getPreviousState();
+			MachineState current = evt.getState();
+			Job finished = null;
+			synchronized(BuildFarm.this) {
+				if (job != null && prev != null && prev.isBuilding() && !current.isBuilding()) {
+					finished = job;
+					job = null;
+				}
+				BuildFarm.this.notifyAll();
+			}
+			if (finished != null) {
+				if (current.getState() == MachineState.State.READY) {
+					finish(finished, Job.Status.DONE, null);
+				} else {
+					finish(finished, Job.Status.FAILED, "Build failed or was stopped on " + port);
+				}
+			}
+		}
+
+		public void machineProgress(MachineProgressEvent event) {
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+		}
+	}
+
+	// programs, by file; compiled unless they are too big to hold
+	private static class CachedSource {
+		final long length;
+		final long modified;
+		final Future<GCodeSource> source;
+		CachedSource(File file, Future<GCodeSource> source) {
+			this.length = file.length();
+			this.modified = file.lastModified();
+			this.source = source;
+		}
+		boolean isCurrent(File file) {
+			return file.length() == length && file.lastModified() == modified;
+		}
+	}
+
+	private final Vector<Station> stations = new Vector<Station>();
+	private final LinkedList<Job> queue = new LinkedList<Job>();
+	private final Map<String,CachedSource> sources = new HashMap<String,CachedSource>();
+	private final Vector<Listener> listeners = new Vector<Listener>();
+	private final ExecutorService workers;
+	private final int threads;
+	private final Thread dispatcher;
+	private boolean running = true;
+	// jobs submitted and not yet finished
+	private int unfinished = 0;
+
+	/**
+	 * @param threads the number of threads compiling and estimating
+	 */
+	public BuildFarm(int threads) {
+		this.threads = Math.max(1, threads);
+		workers = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Build farm worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		dispatcher = new Thread("Build farm dispatcher") {
+			public void run() { dispatch(); }
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Make a farm with as many workers as the estimator would use.
+	 */
+	public BuildFarm() {
+		this(Base.preferences.getInt("estimator.threads",
+				Runtime.getRuntime().availableProcessors()));
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Add a machine to the farm and start connecting to it.  It is given
+	 * jobs once it's ready.
+	 * @param machineType the name of the machine in machines.xml
+	 * @param port the serial port it's on
+	 * @throws SerialException if the port can't be opened
+	 */
+	public MachineController addMachine(String machineType, String port) throws SerialException {
+		return addMachine(MachineFactory.load(machineType), port);
+	}
+
+	/**
+	 * Add a machine that has been loaded already to the farm, and start
+	 * connecting to it.  The farm disposes of it when it shuts down.
+	 * @param machine a machine that hasn't been connected yet
+	 * @param port the serial port it's on
+	 * @throws SerialException if the port can't be opened
+	 */
+	public MachineController addMachine(MachineController machine, String port) throws SerialException {
+		String machineType = machine.getName();
+		if (!(machine.getDriver() instanceof UsesSerial)) {
+			machine.dispose();
+			throw new IllegalArgumentException("The farm only runs machines on serial ports; " +
+					machineType + " isn't one.");
+		}
+		UsesSerial driver = (UsesSerial)machine.getDriver();
+		driver.setSerial(new Serial(port, driver));
+		machine.setEstimationPool(workers, threads);
+		Station station = new Station(machine, port);
+		stations.add(station);
+		machine.addMachineStateListener(station);
+		machine.connect();
+		Base.logger.info("Added " + machineType + " on " + port + " to the farm.");
+		return machine;
+	}
+
+	/**
+	 * @return the machines of the farm
+	 */
+	public Vector<MachineController> getMachines() {
+		Vector<MachineController> v = new Vector<MachineController>();
+		for (Station s : stations) {
+			v.add(s.machine);
+		}
+		return v;
+	}
+
+	/**
+	 * Queue a file to be built.  It starts compiling right away, if it isn't
+	 * compiled already.
+	 * @param path the GCode file to build
+	 * @param machineType the type of machine to build it on, or null for any
+	 */
+	public Job submit(String path, String machineType) {
+		Job job = new Job(path, machineType);
+		job.source = getSource(path);
+		synchronized(this) {
+			queue.addLast(job);
+			unfinished++;
+			notifyAll();
+		}
+		emit(job);
+		return job;
+	}
+
+	/**
+	 * Take a job off the queue, if it hasn't started.  A running job is
+	 * stopped through its machine.
+	 * @return true if the job was still queued
+	 */
+	public boolean cancel(Job job) {
+		synchronized(this) {
+			if (!queue.remove(job)) { return false; }
+		}
+		finish(job, Job.Status.CANCELLED, null);
+		return true;
+	}
+
+	/**
+	 * @return the jobs still waiting to be started
+	 */
+	public synchronized Vector<Job> getQueue() {
+		return new Vector<Job>(queue);
+	}
+
+	/**
+	 * @return the number of programs held for queued and running jobs
+	 */
+	public synchronized int getProgramCount() {
+		return sources.size();
+	}
+
+	/**
+	 * Wait until every job submitted so far has finished.
+	 */
+	public void waitUntilIdle() throws InterruptedException {
+		synchronized(this) {
+			while (unfinished > 0) {
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * Stop handing out jobs, and let go of the machines.  Builds still
+	 * running are abandoned.
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		dispatcher.interrupt();
+		for (Station s : stations) {
+			s.machine.removeMachineStateListener(s);
+			s.machine.dispose();
+		}
+		workers.shutdownNow();
+	}
+
+	// The program for a file, compiling it if it isn't already and fits.
+	private synchronized Future<GCodeSource> getSource(final String path) {
+		File file = new File(path);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException ioe) {
+			key = file.getAbsolutePath();
+		}
+		CachedSource cached = sources.get(key);
+		if (cached == null || !cached.isCurrent(file)) {
+			FutureTask<GCodeSource> f = new FutureTask<GCodeSource>(
+					new Callable<GCodeSource>() {
+				public GCodeSource call() throws IOException {
+					if (!CompiledGCode.isCompilable(new File(path))) {
+						// too big to hold compiled; stream the text
+						return new MappedFileGCodeSource(path);
+					}
+					return new CompiledGCodeSource(path);
+				}
+			}) {
+				protected void done() {
+					// jobs may be waiting on this
+					synchronized(BuildFarm.this) {
+						BuildFarm.this.notifyAll();
+					}
+				}
+			};
+			workers.execute(f);
+			cached = new CachedSource(file, f);
+			sources.put(key, cached);
+		}
+		return cached.source;
+	}
+
+	// Let go of a finished job's program, unless another job still needs it.
+	private synchronized void release(Job job) {
+		Future<GCodeSource> source = job.source;
+		job.source = null;
+		for (Job j : queue) {
+			if (j.source == source) { return; }
+		}
+		for (Station s : stations) {
+			if (s.job != null && s.job.source == source) { return; }
+		}
+		Iterator<CachedSource> i = sources.values().iterator();
+		while (i.hasNext()) {
+			if (i.next().source == source) { i.remove(); }
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			Job job = null;
+			Station station = null;
+			String error = null;
+			synchronized(this) {
+				while (running && job == null) {
+					Iterator<Job> i = queue.iterator();
+					while (i.hasNext() && job == null) {
+						Job j = i.next();
+						if (!j.source.isDone()) { continue; }
+						error = getCompileError(j);
+						if (error == null) {
+							station = findIdle(j);
+						}
+						if (error != null || station != null) {
+							i.remove();
+							job = j;
+						}
+					}
+					if (job == null) {
+						try {
+							wait();
+						} catch (InterruptedException ie) {
+							// checked on the next pass
+						}
+					}
+				}
+				if (!running) { return; }
+				if (station != null) {
+					station.job = job;
+				}
+			}
+			if (error != null) {
+				finish(job, Job.Status.FAILED, error);
+			} else {
+				start(job, station);
+			}
+		}
+	}
+
+	// Why the job's file couldn't be compiled, or null if it was.
+	private String getCompileError(Job job) {
+		try {
+			job.source.get();
+			return null;
+		} catch (ExecutionException ee) {
+			return "Couldn't read " + job.getPath() + ": " + ee.getCause().getMessage();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return "Interrupted";
+		}
+	}
+
+	// An idle machine that can run the job.  Called with the monitor held.
+	private Station findIdle(Job job) {
+		for (Station s : stations) {
+			if (s.job == null && s.canRun(job) && s.machine.getMachineState().isReady()) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	private void start(Job job, Station station) {
+		GCodeSource source;
+		try {
+			// already compiled, or it wouldn't have been picked
+			source = job.source.get();
+		} catch (Exception e) {
+			synchronized(this) { station.job = null; }
+			finish(job, Job.Status.FAILED, e.getMessage());
+			return;
+		}
+		synchronized(job) {
+			job.machine = station.machine;
+		}
+		job.setStatus(Job.Status.RUNNING, null);
+		emit(job);
+		Base.logger.info("Building " + job.getPath() + " on " + station.port);
+		try {
+			station.machine.setCodeSource(source);
+			station.machine.execute();
+		} catch (RuntimeException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't start " + job.getPath(), e);
+			synchronized(this) {
+				if (station.job == job) { station.job = null; }
+			}
+			finish(job, Job.Status.FAILED, e.getMessage());
+		}
+	}
+
+	private void finish(Job job, Job.Status status, String error) {
+		synchronized(job) {
+			if (job.isFinished()) { return; }
+			job.setStatus(status, error);
+		}
+		release(job);
+		synchronized(this) {
+			unfinished--;
+			notifyAll();
+		}
+		if (error != null) {
+			Base.logger.warning(job.getPath() + ": " + error);
+		}
+		emit(job);
+	}
+
+	private void emit(Job job) {
+		for (Listener l : listeners.toArray(new Listener[0])) {
+			l.jobChanged(job);
+		}
+	}
+}
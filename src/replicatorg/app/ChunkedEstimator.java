@@ -0,0 +1,433 @@
+package replicatorg.app;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.BuildEstimate;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CompiledGCode;
+
+/**
+ * Estimates a large compiled program in chunks, on several threads at once.
+ *
+ * A quick scan over the records follows the few things that carry from one
+ * line to the next: the position, units, positioning mode, feedrates, the
+ * tool selected and the temperatures set.  The program is cut only where
+ * all of that is known exactly, at a G92, a layer change or a move to a
+ * fully specified absolute position, and where no heater is still warming
+ * up for a tool change that comes later.  Each chunk is run through its own
+ * estimator, started in the state the scan found, and the results are added
+ * together.
+ *
+ * The only difference from running the whole program through one estimator
+ * is that the machine is taken to stop at each cut; cutting at layer
+ * changes, where it very nearly stops anyway, keeps that small.  Programs
+ * that use features the scan doesn't follow (arcs are fine, canned cycles
+ * and coordinate offsets aren't) are not cut at all.
+ */
+class ChunkedEstimator {
+	/** Makes the estimator for each chunk, with its machine already set. */
+	interface Factory {
+		EstimationDriver create();
+	}
+
+	// chunks are not made smaller than this many lines
+	private static final int MIN_CHUNK_LINES = 20000;
+
+	// M codes that may share a line with other codes; anything else on a
+	// line with moves or tool changes might fail and take them with it
+	private static final Set<Integer> SAFE_MCODES = new HashSet<Integer>();
+	static {
+		for (int m : new int[] { 0, 1, 2, 6, 101, 102, 103, 104, 105, 106, 107, 108, 109 }) {
+			SAFE_MCODES.add(m);
+		}
+	}
+
+	/** Everything a chunk's estimator needs to start where the last left off. */
+	private static class Boundary {
+		int offset;
+		int line;
+		final GCodeParser.ModalState modes = new GCodeParser.ModalState();
+		final Point3d position = new Point3d();
+		double driverFeedrate;
+		boolean driverFeedrateIsMax;
+		int tool;
+		final Map<Integer,Double> toolTemperatures = new HashMap<Integer,Double>();
+		final Map<Integer,Double> platformTemperatures = new HashMap<Integer,Double>();
+		// tools with a temperature set that no tool change has waited for
+		final Set<Integer> heating = new HashSet<Integer>();
+	}
+
+	private final CompiledGCode code;
+	// which tool numbers the machine has
+	private final boolean[] validTools;
+	private final int initialTool;
+
+	private final List<Boundary> boundaries = new ArrayList<Boundary>();
+
+	private BuildEstimate estimate = null;
+	private Rectangle2D.Double bounds = null;
+
+	/**
+	 * @param machine a model of the machine, used to check tool numbers
+	 */
+	ChunkedEstimator(CompiledGCode code, MachineModel machine) {
+		this.code = code;
+		validTools = new boolean[machine.getTools().size()];
+		for (int i = 0; i < validTools.length; i++) {
+			validTools[i] = (machine.getTools().get(i) != null);
+		}
+		this.initialTool = machine.currentTool().getIndex();
+	}
+
+	/**
+	 * Find where to cut the program into about the given number of chunks.
+	 * @return false if the program can't be cut
+	 */
+	boolean split(int chunks) {
+		int lineCount = code.getLineCount();
+		int chunkLines = Math.max(MIN_CHUNK_LINES, lineCount / Math.max(1, chunks));
+		if (lineCount < 2 * chunkLines) { return false; }
+		if (initialTool >= validTools.length || !validTools[initialTool]) { return false; }
+		Scanner scanner = new Scanner();
+		List<Boundary> candidates = new ArrayList<Boundary>();
+		// the last line that waits for each tool
+		Map<Integer,Integer> lastWait = new HashMap<Integer,Integer>();
+		int next = chunkLines;
+		CompiledGCode.Cursor record = code.cursor();
+		for (int line = 0; record.hasNext(); line++) {
+			int offset = record.getOffset();
+			record.next();
+			if (isTwitterBot(record)) { continue; }
+			if (line >= next && scanner.isCut(record)) {
+				candidates.add(scanner.boundary(offset, line));
+				next = line + chunkLines;
+			}
+			int waited = scanner.scan(record);
+			if (waited >= 0) {
+				lastWait.put(waited, line);
+			}
+			if (scanner.lost) { return false; }
+		}
+		// a cut is no good if a heater still warming there is waited for
+		// later on; the estimate of the wait needs both sides
+		for (Boundary b : candidates) {
+			boolean ok = true;
+			for (int tool : b.heating) {
+				Integer last = lastWait.get(tool);
+				if (last != null && last > b.line) { ok = false; }
+			}
+			if (ok) { boundaries.add(b); }
+		}
+		return !boundaries.isEmpty();
+	}
+
+	/**
+	 * @return true for the TwitterBot M codes, which the estimate skips
+	 */
+	static boolean isTwitterBot(CompiledGCode.Cursor record) {
+		if (!record.hasCode('M')) { return false; }
+		int mCode = (int)record.getCodeValue('M');
+		return mCode == GCodeParser.TB_INIT ||
+			mCode == GCodeParser.TB_MESSAGE ||
+			mCode == GCodeParser.TB_CLEANUP;
+	}
+
+	/**
+	 * Estimate the chunks on the given number of threads.
+	 */
+	void run(Factory factory, int threads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Estimation worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			run(factory, pool);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Estimate the chunks on the given pool, which is left running.
+	 */
+	void run(Factory factory, ExecutorService pool) throws InterruptedException {
+		// the estimators are made here: the machine models are read from a
+		// shared XML tree, which isn't safe to read from several threads
+		List<Callable<EstimationDriver>> chunks = new ArrayList<Callable<EstimationDriver>>();
+		chunks.add(chunk(factory.create(), null, boundaries.get(0).line));
+		for (int i = 0; i < boundaries.size(); i++) {
+			int end = (i + 1 < boundaries.size()) ? boundaries.get(i + 1).line : Integer.MAX_VALUE;
+			chunks.add(chunk(factory.create(), boundaries.get(i), end));
+		}
+		try {
+			List<Future<EstimationDriver>> results = pool.invokeAll(chunks);
+			estimate = new BuildEstimate();
+			bounds = new Rectangle2D.Double();
+			for (Future<EstimationDriver> f : results) {
+				EstimationDriver d = f.get();
+				estimate.add(d.getRawEstimate());
+				bounds.add(d.getBounds());
+			}
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Estimation failed", ee.getCause());
+		}
+	}
+
+	/** @return the estimate before calibration */
+	BuildEstimate getRawEstimate() { return estimate; }
+
+	Rectangle2D.Double getBounds() { return bounds; }
+
+	private Callable<EstimationDriver> chunk(final EstimationDriver estimator,
+			final Boundary start, final int endLine) {
+		return new Callable<EstimationDriver>() {
+			public EstimationDriver call() throws Exception {
+				int line = 0;
+				CompiledGCode.Cursor record = code.cursor();
+				if (start != null) {
+					restore(estimator, start);
+					line = start.line;
+					record = code.cursor(start.offset);
+				}
+				for (; line < endLine && record.hasNext(); line++) {
+					if (Thread.interrupted()) { throw new InterruptedException(); }
+					record.next();
+					if (isTwitterBot(record)) { continue; }
+					estimator.parse(record);
+					estimator.execute();
+				}
+				return estimator;
+			}
+		};
+	}
+
+	private void restore(EstimationDriver estimator, Boundary b) throws RetryException {
+		MachineModel machine = estimator.getMachine();
+		if (b.tool != initialTool) {
+			machine.selectTool(b.tool);
+		}
+		for (Map.Entry<Integer,Double> e : b.toolTemperatures.entrySet()) {
+			machine.getTool(e.getKey()).setTargetTemperature(e.getValue());
+		}
+		for (Map.Entry<Integer,Double> e : b.platformTemperatures.entrySet()) {
+			machine.getTool(e.getKey()).setPlatformTargetTemperature(e.getValue());
+		}
+		estimator.setCurrentPosition(new Point3d(b.position));
+		estimator.setFeedrate(b.driverFeedrateIsMax ?
+				machine.getMaximumFeedrates().x : b.driverFeedrate);
+		estimator.getParser().setModalState(b.modes);
+	}
+
+	/**
+	 * Follows the state GCodeParser and EstimationDriver carry between
+	 * lines, without doing any of the work.  This has to agree with them
+	 * line for line; anything it can't follow sets lost.
+	 */
+	private class Scanner {
+		final GCodeParser.ModalState modes = new GCodeParser.ModalState();
+		final double[] position = new double[3];
+		final boolean[] known = { true, true, true };
+		double driverFeedrate = 0.0;
+		boolean driverFeedrateIsMax = false;
+		int tool = initialTool;
+		final Map<Integer,Double> toolTemperatures = new HashMap<Integer,Double>();
+		final Map<Integer,Double> platformTemperatures = new HashMap<Integer,Double>();
+		final Set<Integer> heating = new HashSet<Integer>();
+		boolean lost = false;
+
+		private int gCodeOf(CompiledGCode.Cursor r) {
+			if (r.hasCode('G')) { return (int)r.getCodeValue('G'); }
+			if (r.hasCode('X') || r.hasCode('Y') || r.hasCode('Z')) { return modes.lastGCode; }
+			return Integer.MIN_VALUE;
+		}
+
+		private double mm(CompiledGCode.Cursor r, char c) {
+			double v = r.getCodeValue(c);
+			return (modes.units == GCodeParser.UNITS_INCHES) ? v * 25.4 : v;
+		}
+
+		/**
+		 * @return true if the program can be cut before this record
+		 */
+		boolean isCut(CompiledGCode.Cursor r) {
+			if (!known[0] || !known[1] || !known[2] || r.hasCode('M')) { return false; }
+			int g = gCodeOf(r);
+			if (g == 92) { return true; }
+			if ((g != 0 && g != 1) || !modes.absoluteMode) { return false; }
+			if (r.hasCode('X') && r.hasCode('Y') && r.hasCode('Z')) { return true; }
+			// a layer change
+			return r.hasCode('Z') && mm(r, 'Z') != position[2];
+		}
+
+		Boundary boundary(int offset, int line) {
+			Boundary b = new Boundary();
+			b.offset = offset;
+			b.line = line;
+			b.modes.units = modes.units;
+			b.modes.absoluteMode = modes.absoluteMode;
+			b.modes.feedrate = modes.feedrate;
+			b.modes.lastGCode = modes.lastGCode;
+			b.modes.tool = modes.tool;
+			b.modes.plane = modes.plane;
+			b.position.set(position[0], position[1], position[2]);
+			b.driverFeedrate = driverFeedrate;
+			b.driverFeedrateIsMax = driverFeedrateIsMax;
+			b.tool = tool;
+			b.toolTemperatures.putAll(toolTemperatures);
+			b.platformTemperatures.putAll(platformTemperatures);
+			b.heating.addAll(heating);
+			return b;
+		}
+
+		private boolean checkTool(int t) {
+			if (t < 0 || t >= validTools.length || !validTools[t]) { lost = true; }
+			return !lost;
+		}
+
+		/**
+		 * Follow one record.
+		 * @return the tool a tool change on this line waits for, or -1
+		 */
+		int scan(CompiledGCode.Cursor r) {
+			int g = gCodeOf(r);
+			int waited = -1;
+			try {
+				if (r.hasCode('M')) {
+					int m = (int)r.getCodeValue('M');
+					boolean others = r.hasCode('G') || r.hasCode('X') || r.hasCode('Y') ||
+						r.hasCode('Z') || r.hasCode('F') || r.hasCode('T');
+					if (!SAFE_MCODES.contains(m)) {
+						// an M code that might fail, taking the rest of the line
+						if (others) { lost = true; }
+						return -1;
+					}
+					if (m == 6) {
+						// the parser gives up on the line without a T
+						if (!r.hasCode('T')) { return -1; }
+						int t = (int)r.getCodeValue('T');
+						if (!checkTool(t)) { return -1; }
+						tool = t;
+						heating.remove(t);
+						waited = t;
+					} else if (m == 104 && r.hasCode('S')) {
+						toolTemperatures.put(tool, r.getCodeValue('S'));
+						heating.add(tool);
+					} else if (m == 109 && r.hasCode('S')) {
+						platformTemperatures.put(tool, r.getCodeValue('S'));
+						heating.add(tool);
+					}
+				}
+				if (!scanGCodes(r, g)) { return waited; }
+				if (r.hasCode('T')) {
+					int t = (int)r.getCodeValue('T');
+					if (t != modes.tool) {
+						if (!checkTool(t)) { return waited; }
+						tool = t;
+					}
+					modes.tool = t;
+				}
+				return waited;
+			} finally {
+				if (g != Integer.MIN_VALUE) { modes.lastGCode = g; }
+			}
+		}
+
+		// @return false where the parser would give up on the rest of the line
+		private boolean scanGCodes(CompiledGCode.Cursor r, int g) {
+			double[] target = position.clone();
+			boolean[] targetKnown = known.clone();
+			char[] axes = { 'X', 'Y', 'Z' };
+			for (int i = 0; i < 3; i++) {
+				if (!r.hasCode(axes[i])) { continue; }
+				if (modes.absoluteMode) {
+					target[i] = mm(r, axes[i]);
+					targetKnown[i] = true;
+				} else {
+					target[i] += mm(r, axes[i]);
+				}
+			}
+			if (r.hasCode('F')) {
+				modes.feedrate = r.getCodeValue('F');
+				driverFeedrate = modes.feedrate;
+				driverFeedrateIsMax = false;
+			}
+			if (g == Integer.MIN_VALUE) { return true; }
+			switch (g) {
+			case 0:
+				driverFeedrateIsMax = true;
+				moveTo(target, targetKnown);
+				break;
+			case 1:
+				driverFeedrate = modes.feedrate;
+				driverFeedrateIsMax = false;
+				moveTo(target, targetKnown);
+				break;
+			case 2:
+			case 3:
+				if (r.hasCode('I') || r.hasCode('J')) {
+					// the arc ends where its last chord does, which is only
+					// close to where it was asked to; the height is exact if
+					// it doesn't change
+					known[0] = known[1] = false;
+					if (target[2] != position[2] || !targetKnown[2]) {
+						known[2] = false;
+					}
+				}
+				break;
+			case 31:
+				moveTo(target, targetKnown);
+				break;
+			case 4: case 28: case 53: case 54: case 55: case 56: case 57: case 58: case 59:
+			case 94: case 97: case 161: case 162:
+				break;
+			case 17: modes.plane = 0; break;
+			case 18: modes.plane = 1; break;
+			case 19: modes.plane = 2; break;
+			case 20: case 70: modes.units = GCodeParser.UNITS_INCHES; break;
+			case 21: case 71: modes.units = GCodeParser.UNITS_MM; break;
+			case 90: modes.absoluteMode = true; break;
+			case 91: modes.absoluteMode = false; break;
+			case 92:
+				for (int i = 0; i < 3; i++) {
+					if (r.hasCode(axes[i])) {
+						position[i] = mm(r, axes[i]);
+						known[i] = true;
+					}
+				}
+				break;
+			case 10: case 32: case 80: case 81: case 82: case 83: case 183:
+				// offsets, probing and canned cycles aren't followed
+				lost = true;
+				return false;
+			default:
+				// an unknown G code; the parser gives up on the line
+				return false;
+			}
+			return true;
+		}
+
+		private void moveTo(double[] target, boolean[] targetKnown) {
+			System.arraycopy(target, 0, position, 0, 3);
+			System.arraycopy(targetKnown, 0, known, 0, 3);
+		}
+	}
+}
@@ -26,9 +26,7 @@ package replicatorg.app;
 import java.lang.reflect.Method;
 
 import java.util.EnumSet;
-import java.util.Hashtable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedList;
 
 import javax.vecmath.Point3d;
 
@@ -42,6 +40,7 @@ import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.RetryException;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.ToolModel;
+import replicatorg.model.CompiledGCode;
 import replicatorg.drivers.PenPlotter;
 
 
@@ -55,13 +54,12 @@ public class GCodeParser {
 	// Pen Plotter Driver 
 	//protected PenPlotter penPlotter;
 
-	// our code data storage guys.
-	protected Hashtable<String, Double> codeValues;
+	// our code data storage guy.
+	protected GCodeTokenizer tokenizer;
 
-	protected Hashtable<String, Boolean> seenCodes;
-
-	static protected String[] codes = { "D", "F", "G", "H", "I", "J", "K", "L",
-			"M", "P", "Q", "R", "S", "T", "X", "Y", "Z" };
+	// the compiled record the current line was loaded from, if any; its
+	// command text is only decoded if someone asks for it.
+	private CompiledGCode.Cursor record = null;
 
 	// our curve section variables.
 	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
@@ -69,6 +67,10 @@ public class GCodeParser {
 
 	protected double curveSection = 0.0;
 
+	// the furthest a chord may stray from the arc it stands for, in mm; if
+	// zero, arcs are cut into pieces of curveSection instead
+	protected double arcTolerance = 0.0;
+
 	// our plane selection variables
 	protected static int XY_PLANE = 0;
 
@@ -109,13 +111,6 @@ public class GCodeParser {
 	// a comment passed in
 	protected String comment = "";
 
-	// pattern matchers.
-	Pattern parenPattern;
-
-	Pattern semiPattern;
-
-	Pattern deleteBlockPattern;
-
 	// unit variables.
 	public static int UNITS_MM = 0;
 
@@ -155,11 +150,6 @@ public class GCodeParser {
 		units = UNITS_MM;
 		curveSection = curveSectionMM;
 
-		// precompile regexes for speed
-		parenPattern = Pattern.compile("\\((.*)\\)");
-		semiPattern = Pattern.compile(";(.*)");
-		deleteBlockPattern = Pattern.compile("^(\\.*)");
-
 		// setup our points.
 //		current = new Point3d();
 //		System.err.println("-CURRENT "+current.toString());
@@ -167,9 +157,8 @@ public class GCodeParser {
 		delta = new Point3d();
 		drillTarget = new Point3d();
 
-		// init our value tables.
-		codeValues = new Hashtable<String, Double>(codes.length, 1);
-		seenCodes = new Hashtable<String, Boolean>(codes.length, 1);
+		// init our value table.
+		tokenizer = new GCodeTokenizer();
 
 		// init our offset
 		currentOffset = new Point3d();
@@ -186,6 +175,31 @@ public class GCodeParser {
 		return driver.getMachine().getMaximumFeedrates().x;
 	}
 
+	/**
+	 * The modes a parser carries from one line to the next.  Used to start
+	 * a parser partway through a program, as if it had read the lines
+	 * before.
+	 */
+	public static class ModalState {
+		public int units = UNITS_MM;
+		public boolean absoluteMode = false;
+		/** in mm/minute */
+		public double feedrate = 0.0;
+		public int lastGCode = -1;
+		public int tool = -1;
+		public int plane = XY_PLANE;
+	}
+
+	public void setModalState(ModalState state) {
+		units = state.units;
+		curveSection = (units == UNITS_INCHES) ? curveSectionInches : curveSectionMM;
+		absoluteMode = state.absoluteMode;
+		feedrate = state.feedrate;
+		lastGCode = state.lastGCode;
+		tool = state.tool;
+		currentPlane = state.plane;
+	}
+
 	/**
 	 * initialize parser with values from the driver
 	 */
@@ -194,6 +208,8 @@ public class GCodeParser {
 		driver = drv;
 		// reload breakout
 		breakoutZMoves = Base.preferences.getBoolean("replicatorg.parser.breakzmoves", false);
+		arcTolerance = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.02);
+		pending = null;
 		// init our offset variables
 		currentOffset = driver.getOffset(0);
 	}
@@ -208,34 +224,45 @@ public class GCodeParser {
 		// get ready for last one.
 		cleanup();
 
-		// save our command
-		command = cmd;
+		// load all codes and comments in one pass
+		tokenizer.tokenize(cmd);
+		command = tokenizer.getCommand();
+		comment = tokenizer.getComment();
 
-		// handle comments.
-		parseComments();
-		stripComments();
+		useLastGCode();
 
-		// load all codes
-		for (int i = 0; i < codes.length; i++) {
-			double value = parseCode(codes[i]);
-			codeValues.put(new String(codes[i]), new Double(value));
-		}
+		return true;
+	}
 
-		// if no command was seen, but parameters were,
-		// then use the last G code as the current command
-		if (!hasCode("G") && (hasCode("X") || hasCode("Y") || hasCode("Z"))) {
-			seenCodes.put(new String("G"), new Boolean(true));
-			codeValues.put(new String("G"), new Double(lastGCode));
-		}
+	/**
+	 * Loads a line of precompiled GCode, sets up the variables, etc.  This
+	 * skips all text parsing.
+	 * 
+	 * @param rec
+	 *            a cursor positioned on the record to load
+	 */
+	public boolean parse(CompiledGCode.Cursor rec) {
+		// get ready for last one.
+		cleanup();
+
+		rec.loadInto(tokenizer);
+		record = rec;
+		command = null;
+		comment = rec.getComment();
+
+		useLastGCode();
 
 		return true;
 	}
 
-	private boolean findCode(String code) {
-		if (command.indexOf(code) >= 0)
-			return true;
-		else
-			return false;
+	/**
+	 * If no command was seen, but parameters were, then use the last G code
+	 * as the current command.
+	 */
+	private void useLastGCode() {
+		if (!hasCode('G') && (hasCode('X') || hasCode('Y') || hasCode('Z'))) {
+			tokenizer.setCode('G', lastGCode);
+		}
 	}
 
 	public double convertToMM(double value, int units) {
@@ -246,12 +273,11 @@ public class GCodeParser {
 	}
 
 	public double getCodeValue(String c) {
-		Double d = (Double) codeValues.get(c);
+		return tokenizer.getCodeValue(c.charAt(0));
+	}
 
-		if (d != null)
-			return d.doubleValue();
-		else
-			return 0.0;
+	public double getCodeValue(char c) {
+		return tokenizer.getCodeValue(c);
 	}
 
 	/**
@@ -262,71 +288,17 @@ public class GCodeParser {
 	 * @return boolean if the code was found or not
 	 */
 	private boolean hasCode(String code) {
-		Boolean b = (Boolean) seenCodes.get(code);
-
-		if (b != null)
-			return b.booleanValue();
-		else
-			return false;
-	}
-
-	/**
-	 * Finds out the value of the code we're looking for
-	 * 
-	 * @param char
-	 *            code the code whose value we're looking up
-	 * @return double the value of the code, -1 if not found.
-	 */
-	private double parseCode(String code) {
-		Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-		Matcher myMatcher = myPattern.matcher(command);
-
-		if (findCode(code)) {
-			seenCodes.put(code, new Boolean(true));
-
-			if (myMatcher.find()) {
-				String match = myMatcher.group(1);
-				double number = Double.parseDouble(match);
-
-				return number;
-			}
-			// send a 0 to that its noted somewhere.
-			else
-				return 0.0;
-		}
-
-		// bail with something relatively harmless
-		return 0.0;
-	}
-
-	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
-
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
-
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
-
-		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
-
-		// echo it?
-		// if (comment.length() > 0)
-		// System.out.println(comment);
+		return tokenizer.hasCode(code.charAt(0));
 	}
 
-	private void stripComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		command = parenMatcher.replaceAll("");
-
-		Matcher semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+	private boolean hasCode(char code) {
+		return tokenizer.hasCode(code);
 	}
 
 	public String getCommand() {
+		if (command == null && record != null) {
+			command = record.getCommand();
+		}
 		return new String(command);
 	}
 
@@ -340,9 +312,15 @@ public class GCodeParser {
 		// if (hasCode("S"))
 		// driver.setSpindleRPM(getCodeValue("S"));
 
-		// execute our other codes
-		executeMCodes();
-		executeGCodes();
+		if (pending != null) {
+			// A RetryException stopped this line partway through a motion;
+			// carry on from the piece that was refused.
+			run(pending);
+		} else {
+			// execute our other codes
+			executeMCodes();
+			executeGCodes();
+		}
 
 		// Select our tool?
 		int tempTool = (int) getCodeValue("T");
@@ -633,7 +611,7 @@ public class GCodeParser {
 			//To do: should be more general purpose
 
                try {
-                   String params[] = command.split(" ");                       
+                   String params[] = getCommand().split(" ");                       
 
                    extClass = Class.forName(params[1]); //class name
                    objExtClass = extClass.newInstance();
@@ -652,8 +630,8 @@ public class GCodeParser {
 				// To do: clean up, should be more flexible
 
                 try {
-                    String params[] = command.split(" "); //method is param[1]
-                    String params2[] = command.split("\\'"); //params to pass are params2[1]
+                    String params[] = getCommand().split(" "); //method is param[1]
+                    String params2[] = getCommand().split("\\'"); //params to pass are params2[1]
 
                     String methParam = params2[1]; //params to pass
                     Method extMethod = extClass.getMethod(params[1], new Class[] {String.class});  //method to call
@@ -736,15 +714,13 @@ public class GCodeParser {
 			// Linear Interpolation
 			// these are basically the same thing.
 			case 0:
-				driver.setFeedrate(getMaxFeedrate());
-				setTarget(temp);
+				run(new Moves().move(getMaxFeedrate(), temp));
 				break;
 
 			// Rapid Positioning
 			case 1:
 				// set our target.
-				driver.setFeedrate(feedrate);
-				setTarget(temp);
+				run(new Moves().move(feedrate, temp));
 				break;
 
 			// Clockwise arc
@@ -864,7 +840,7 @@ public class GCodeParser {
 				Base.logger.warning("Single point probes not yet supported.");
 
 				// set our target.
-				setTarget(temp);
+				run(new Moves().move(driver.getCurrentFeedrate(), temp));
 				// eventually add code to support reading value
 				break;
 
@@ -971,7 +947,7 @@ public class GCodeParser {
 						speedPeck = true;
 				}
 
-				drillingCycle(speedPeck);
+				run(drillingCycle(speedPeck));
 				break;
 
 			// Absolute Positioning
@@ -1027,17 +1003,18 @@ public class GCodeParser {
 	 * drillTarget = new Point3d(); drillRetract = 0.0; drillFeedrate = 0.0;
 	 * drillDwell = 0.0; drillPecksize = 0.0;
 	 */
-	private void drillingCycle(boolean speedPeck) throws RetryException {
+	private Expansion drillingCycle(boolean speedPeck) {
+		Moves moves = new Moves();
+		double maxFeedrate = getMaxFeedrate();
+
 		// Retract to R position if Z is currently below this
 		Point3d current = driver.getCurrentPosition();
 		if (current.z < drillRetract) {
-			driver.setFeedrate(getMaxFeedrate());
-			setTarget(new Point3d(current.x, current.y, drillRetract));
+			moves.move(maxFeedrate, new Point3d(current.x, current.y, drillRetract));
 		}
 
 		// Move to start XY
-		driver.setFeedrate(getMaxFeedrate());
-		setTarget(new Point3d(drillTarget.x, drillTarget.y, current.z));
+		moves.move(maxFeedrate, new Point3d(drillTarget.x, drillTarget.y, current.z));
 
 		// Do the actual drilling
 		double targetZ = drillRetract;
@@ -1049,14 +1026,17 @@ public class GCodeParser {
 		// otherwise do in one pass
 		else
 			deltaZ = drillRetract - drillTarget.z;
+		// a retract plane at or below the bottom of the hole would never
+		// get there; go straight to the bottom
+		if (deltaZ <= 0)
+			deltaZ = Double.POSITIVE_INFINITY;
 
 		do // the drilling
 		{
 			// only move there if we're not at top
 			if (targetZ != drillRetract && !speedPeck) {
 				// TODO: move this to 10% of the bottom.
-				driver.setFeedrate(getMaxFeedrate());
-				setTarget(new Point3d(drillTarget.x, drillTarget.y, targetZ));
+				moves.move(maxFeedrate, new Point3d(drillTarget.x, drillTarget.y, targetZ));
 			}
 
 			// set our plunge depth
@@ -1066,19 +1046,15 @@ public class GCodeParser {
 				targetZ = drillTarget.z;
 
 			// Move with controlled feed rate
-			driver.setFeedrate(drillFeedrate);
-
-			// do it!
-			setTarget(new Point3d(drillTarget.x, drillTarget.y, targetZ));
+			moves.move(drillFeedrate, new Point3d(drillTarget.x, drillTarget.y, targetZ));
 
 			// Dwell if doing a G82
 			if (drillDwell > 0)
-				driver.delay(drillDwell);
+				moves.dwell(drillDwell);
 
 			// Retract unless we're speed pecking.
 			if (!speedPeck) {
-				driver.setFeedrate(getMaxFeedrate());
-				setTarget(new Point3d(drillTarget.x, drillTarget.y,
+				moves.move(maxFeedrate, new Point3d(drillTarget.x, drillTarget.y,
 						drillRetract));
 			}
 
@@ -1086,9 +1062,9 @@ public class GCodeParser {
 
 		// double check for final speedpeck retract
 		if (current.z < drillRetract) {
-			driver.setFeedrate(getMaxFeedrate());
-			setTarget(new Point3d(drillTarget.x, drillTarget.y, drillRetract));
+			moves.move(maxFeedrate, new Point3d(drillTarget.x, drillTarget.y, drillRetract));
 		}
+		return moves;
 	}
 
 	private void drawArc(Point3d center, Point3d endpoint, boolean clockwise) throws RetryException {
@@ -1137,20 +1113,130 @@ public class GCodeParser {
 		radius = Math.sqrt(aX * aX + aY * aY);
 		length = radius * angle;
 
-		// for doing the actual move.
 		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
+		if (arcTolerance > 0 && radius > arcTolerance) {
+			// as few chords as will keep each within the tolerance of the
+			// arc, so that large arcs aren't cut finer than they need be
+			double chordAngle = 2 * Math.acos(1 - arcTolerance / radius);
+			steps = (int) Math.ceil(angle / chordAngle);
+		} else {
+			// Maximum of either 2.4 times the angle in radians
+			// or the length of the curve divided by the curve section constant
+			steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
+		}
+		steps = Math.max(steps, 1);
 
 		// this is the real draw action.
-		Point3d newPoint = new Point3d();
-		double arcStartZ = current.z;
-		for (s = 1; s <= steps; s++) {
+		run(new Arc(center, radius, angleA, angle, steps, clockwise,
+				current.z, endpoint.z, driver.getCurrentFeedrate()));
+	}
+
+	/**
+	 * A motion broken into pieces, such as the chords of an arc or the moves
+	 * of a drilling cycle.  The pieces are run one at a time, so that when
+	 * the machine refuses one with a RetryException, executing the line
+	 * again picks up at that piece instead of planning the whole motion over
+	 * from wherever the machine got to.
+	 */
+	private abstract class Expansion {
+		/** @return true if there are pieces left to run */
+		abstract boolean hasNext();
+
+		/**
+		 * Run the next piece.  The expansion only moves on to the piece
+		 * after if this returns normally.
+		 */
+		abstract void runNext() throws RetryException;
+	}
+
+	// the expansion a RetryException interrupted, if any
+	private Expansion pending = null;
+
+	private void run(Expansion e) throws RetryException {
+		pending = e;
+		while (e.hasNext()) {
+			e.runNext();
+		}
+		pending = null;
+	}
+
+	/** A list of moves and dwells. */
+	private class Moves extends Expansion {
+		private class Piece {
+			final double feedrate;
+			// null for a dwell
+			final Point3d target;
+			final long dwell;
+			Piece(double feedrate, Point3d target, long dwell) {
+				this.feedrate = feedrate;
+				this.target = target;
+				this.dwell = dwell;
+			}
+		}
+
+		private final LinkedList<Piece> pieces = new LinkedList<Piece>();
+
+		Moves move(double feedrate, Point3d target) {
+			pieces.add(new Piece(feedrate, new Point3d(target), 0));
+			return this;
+		}
+
+		Moves dwell(long millis) {
+			pieces.add(new Piece(0, null, millis));
+			return this;
+		}
+
+		boolean hasNext() {
+			return !pieces.isEmpty();
+		}
+
+		void runNext() throws RetryException {
+			Piece p = pieces.getFirst();
+			if (p.target != null) {
+				driver.setFeedrate(p.feedrate);
+				setTarget(p.target);
+			} else {
+				driver.delay(p.dwell);
+			}
+			pieces.removeFirst();
+		}
+	}
+
+	/** The chords of an arc, worked out one at a time. */
+	private class Arc extends Expansion {
+		private final Point3d center;
+		private final double radius;
+		private final double angleA;
+		private final double angle;
+		private final int steps;
+		private final boolean clockwise;
+		private final double startZ;
+		private final double endZ;
+		private final double feedrate;
+		// the next chord
+		private int s = 1;
+		private final Point3d newPoint = new Point3d();
+
+		Arc(Point3d center, double radius, double angleA, double angle, int steps,
+				boolean clockwise, double startZ, double endZ, double feedrate) {
+			this.center = new Point3d(center);
+			this.radius = radius;
+			this.angleA = angleA;
+			this.angle = angle;
+			this.steps = steps;
+			this.clockwise = clockwise;
+			this.startZ = startZ;
+			this.endZ = endZ;
+			this.feedrate = feedrate;
+		}
+
+		boolean hasNext() {
+			return s <= steps;
+		}
+
+		void runNext() throws RetryException {
 			// Forwards for CCW, backwards for CW
+			int step;
 			if (!clockwise)
 				step = s;
 			else
@@ -1161,10 +1247,12 @@ public class GCodeParser {
 					* Math.cos(angleA + angle * ((double) step / steps));
 			newPoint.y = center.y + radius
 					* Math.sin(angleA + angle * ((double) step / steps));
-			newPoint.z = arcStartZ + (endpoint.z - arcStartZ) * s / steps;
+			newPoint.z = startZ + (endZ - startZ) * s / steps;
 
 			// start the move
+			driver.setFeedrate(feedrate);
 			setTarget(newPoint);
+			s++;
 		}
 	}
 
@@ -1286,9 +1374,12 @@ public class GCodeParser {
 		if (hasCode("G"))
 			lastGCode = (int) getCodeValue("G");
 
+		// a new line; anything left of the last one is abandoned
+		pending = null;
+
 		// clear our gcodes.
-		codeValues.clear();
-		seenCodes.clear();
+		tokenizer.clear();
+		record = null;
 
 		// empty comments
 		comment = "";
@@ -0,0 +1,290 @@
+/*
+ GCodeTokenizer.java
+
+ Single-pass tokenizer for lines of GCode.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.app;
+
+/**
+ * Splits a line of GCode into its letter codes in a single pass over the
+ * characters of the line.  Values are kept in a primitive table indexed by
+ * letter, and the letters seen on the line are kept in a bitmask, so
+ * tokenizing a line allocates nothing beyond the stripped command and
+ * comment strings (and those only when the line carries a comment).
+ *
+ * The results match the old regex-based parsing in GCodeParser: a letter
+ * counts as seen if it appears anywhere outside of a comment, and its value
+ * is taken from the first occurrence that is followed by a number.
+ *
+ * A tokenizer is not thread safe; each parser keeps its own.
+ */
+public class GCodeTokenizer {
+	private static final int LETTERS = 26;
+
+	// the letters the regex parser read values for
+	private static final int PARSED_MASK = mask("DFGHIJKLMPQRSTXYZ");
+
+	// values of the codes on the current line, indexed by letter
+	private final double[] values = new double[LETTERS];
+
+	// bit n is set if letter 'A'+n appeared on the current line
+	private int seenMask = 0;
+
+	// bit n is set if letter 'A'+n had a numeric value on the current line
+	private int valueMask = 0;
+
+	// the line with comments removed
+	private String command = "";
+
+	// the comment text, if any
+	private String comment = "";
+
+	/**
+	 * Tokenize a line of GCode, replacing the results of the previous line.
+	 * @param line the line to tokenize
+	 */
+	public void tokenize(String line) {
+		seenMask = 0;
+		valueMask = 0;
+		comment = "";
+		command = stripComments(line);
+
+		final String cmd = command;
+		final int len = cmd.length();
+		int i = 0;
+		while (i < len) {
+			char c = cmd.charAt(i++);
+			if (c < 'A' || c > 'Z') {
+				continue;
+			}
+			int bit = 1 << (c - 'A');
+			seenMask |= bit;
+			int start = i;
+			while (i < len && isNumberChar(cmd.charAt(i))) {
+				i++;
+			}
+			if (i > start && (valueMask & bit) == 0) {
+				try {
+					values[c - 'A'] = parseNumber(cmd, start, i);
+					valueMask |= bit;
+				} catch (NumberFormatException e) {
+					// the old parser never read the other letters, so a
+					// malformed value there mustn't stop the line
+					if ((bit & PARSED_MASK) != 0) {
+						throw e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Strip comments from the given line, recording the comment text.  A
+	 * parenthesized comment runs from the first open paren to the last close
+	 * paren; a semicolon comment runs to the end of the line and takes
+	 * precedence as the reported comment.
+	 */
+	private String stripComments(String line) {
+		int parenStart = line.indexOf('(');
+		int semi = line.indexOf(';');
+		if (parenStart < 0 && semi < 0) {
+			// the common case; no need to copy anything
+			return line;
+		}
+		String stripped = line;
+		if (parenStart >= 0) {
+			int parenEnd = line.lastIndexOf(')');
+			if (parenEnd > parenStart) {
+				comment = line.substring(parenStart + 1, parenEnd);
+				stripped = line.substring(0, parenStart) + line.substring(parenEnd + 1);
+			}
+		}
+		if (semi >= 0) {
+			comment = line.substring(semi + 1);
+			int strippedSemi = stripped.indexOf(';');
+			if (strippedSemi >= 0) {
+				stripped = stripped.substring(0, strippedSemi);
+			}
+		}
+		comment = comment.trim().replace('|', '\n');
+		return stripped;
+	}
+
+	private static int mask(String letters) {
+		int mask = 0;
+		for (int i = 0; i < letters.length(); i++) {
+			mask |= 1 << (letters.charAt(i) - 'A');
+		}
+		return mask;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+	}
+
+	/**
+	 * Parse a decimal number without creating a substring.  Anything that is
+	 * not a plain optionally-signed decimal is handed to Double.parseDouble,
+	 * so malformed numbers are reported the same way they always were.
+	 */
+	private static double parseNumber(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = s.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				// past 15 digits the mantissa is no longer exact as a double
+				if (++digits > 15) {
+					return Double.parseDouble(s.substring(start, end));
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (seenPoint) {
+					fractionDigits++;
+				}
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return Double.parseDouble(s.substring(start, end));
+			}
+		}
+		if (digits == 0) {
+			return Double.parseDouble(s.substring(start, end));
+		}
+		double value = mantissa;
+		if (fractionDigits > 0) {
+			value = value / POWERS_OF_TEN[fractionDigits];
+		}
+		return negative ? -value : value;
+	}
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	private static int indexOf(char code) {
+		if (code >= 'A' && code <= 'Z') {
+			return code - 'A';
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the given letter appeared on the current line
+	 */
+	public boolean hasCode(char code) {
+		int idx = indexOf(code);
+		return idx >= 0 && (seenMask & (1 << idx)) != 0;
+	}
+
+	/**
+	 * @return the value of the given letter on the current line, or 0 if it
+	 * did not appear or had no value
+	 */
+	public double getCodeValue(char code) {
+		int idx = indexOf(code);
+		if (idx >= 0 && (valueMask & (1 << idx)) != 0) {
+			return values[idx];
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Force a code onto the current line, as if it had been present with
+	 * the given value.
+	 */
+	public void setCode(char code, double value) {
+		int idx = indexOf(code);
+		if (idx < 0) {
+			throw new IllegalArgumentException("Not a GCode letter: " + code);
+		}
+		values[idx] = value;
+		seenMask |= 1 << idx;
+		valueMask |= 1 << idx;
+	}
+
+	/**
+	 * @return a bitmask of the letters seen on the current line; bit n
+	 * corresponds to the letter 'A'+n
+	 */
+	public int getSeenMask() {
+		return seenMask;
+	}
+
+	/**
+	 * @return a bitmask of the letters that had a value on the current line;
+	 * bit n corresponds to the letter 'A'+n
+	 */
+	public int getValueMask() {
+		return valueMask;
+	}
+
+	/**
+	 * Load an already tokenized line, as stored by a compiled GCode record.
+	 * @param seen the mask of letters seen on the line
+	 * @param valued the mask of letters that had values
+	 * @param codeValues the values, indexed by letter; only entries whose bit
+	 * is set in the valued mask are read
+	 */
+	public void load(int seen, int valued, double[] codeValues) {
+		seenMask = seen;
+		valueMask = valued;
+		for (int idx = 0; valued != 0; idx++, valued >>>= 1) {
+			if ((valued & 1) != 0) {
+				values[idx] = codeValues[idx];
+			}
+		}
+		command = "";
+		comment = "";
+	}
+
+	/**
+	 * @return the current line with comments removed
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return the comment on the current line, or the empty string
+	 */
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * Forget the current line.
+	 */
+	public void clear() {
+		seenMask = 0;
+		valueMask = 0;
+		command = "";
+		comment = "";
+	}
+}
@@ -0,0 +1,130 @@
+package replicatorg.app;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.exceptions.UnknownSerialPortException;
+
+/**
+ * An in-memory transport connected to a Device running in the same
+ * process: a scripted responder, a firmware emulator, etc.  Whatever the
+ * host writes is handed to the device, and whatever the device sends back
+ * is delivered to the host as if it had arrived over a serial line.
+ *
+ * Devices can be registered under a name, and are then opened by giving
+ * Serial the port name "loopback:name".
+ */
+public class LoopbackSerialTransport implements SerialTransport {
+	public static final String PREFIX = "loopback:";
+
+	/**
+	 * The far end of a loopback connection.
+	 */
+	public interface Device {
+		/**
+		 * Called when the host connects.
+		 * @param port used to send bytes back to the host
+		 */
+		void connected(LoopbackSerialTransport port);
+		/**
+		 * Called, on the writing thread, with each block the host writes.
+		 */
+		void received(byte[] data, int offset, int length);
+		/**
+		 * Called when the host pulses RTS; most devices reset.
+		 */
+		void reset();
+		void disconnected();
+	}
+
+	private static final Map<String,Device> devices = new HashMap<String,Device>();
+
+	/**
+	 * Make a device available as "loopback:name".
+	 */
+	public static synchronized void register(String name, Device device) {
+		devices.put(name, device);
+	}
+
+	public static synchronized void unregister(String name) {
+		devices.remove(name);
+	}
+
+	private static synchronized Device lookup(String name) {
+		return devices.get(name);
+	}
+
+	public static boolean handles(String name) {
+		return name.startsWith(PREFIX);
+	}
+
+	private final String name;
+	private final Device device;
+	private Receiver receiver = null;
+
+	/**
+	 * Connect to a registered device.
+	 * @param name a name of the form "loopback:name"
+	 */
+	public LoopbackSerialTransport(String name) throws SerialException {
+		this.name = name;
+		this.device = lookup(name.substring(PREFIX.length()));
+		if (device == null) {
+			throw new UnknownSerialPortException(name);
+		}
+	}
+
+	public LoopbackSerialTransport(String name, Device device) {
+		this.name = name;
+		this.device = device;
+	}
+
+	public String getName() { return name; }
+
+	public Device getDevice() { return device; }
+
+	public void open(Receiver receiver) {
+		synchronized(this) {
+			this.receiver = receiver;
+		}
+		device.connected(this);
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		synchronized(this) {
+			if (receiver == null) {
+				throw new IOException("Port "+name+" is closed");
+			}
+		}
+		device.received(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Called by the device to send bytes to the host.
+	 */
+	public synchronized void send(byte[] data, int offset, int length) {
+		// Synchronized so that replies from several device threads are
+		// delivered one block at a time.
+		if (receiver != null) {
+			receiver.received(data, offset, length);
+		}
+	}
+
+	public void send(byte[] data) {
+		send(data, 0, data.length);
+	}
+
+	public void pulseRTSLow() {
+		device.reset();
+	}
+
+	public void close() {
+		synchronized(this) {
+			if (receiver == null) { return; }
+			receiver = null;
+		}
+		device.disconnected();
+	}
+}
@@ -19,10 +19,16 @@
 
 package replicatorg.app;
 
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
 import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 
@@ -39,7 +45,10 @@ import replicatorg.app.tools.XML;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.BuildEstimate;
+import replicatorg.drivers.Completion;
 import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.EstimatorCalibration;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
@@ -49,9 +58,14 @@ import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.StatusScheduler;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
+import replicatorg.model.CoalescingGCodeSource;
+import replicatorg.model.CompiledGCode;
+import replicatorg.model.CompiledGCodeSource;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.LayerIndex;
 import replicatorg.model.StringListSource;
 
 /**
@@ -109,6 +123,9 @@ public class MachineController {
 	private int linesProcessed = -1;
 	private int linesTotal = -1;
 	private double startTimeMillis = -1;
+	// time the build has spent paused or waiting at a stop, which the
+	// machine wasn't building
+	private long waitingMillis = 0;
 	
 	/**
 	 * The MachineThread is responsible for communicating with the machine.
@@ -117,24 +134,21 @@ public class MachineController {
 	 * 
 	 */
 	class MachineThread extends Thread {
-		private long lastPolled = 0;
-		private boolean pollingEnabled = false;
-		private long pollIntervalMs = 1000;
-
 		/**
 		 * Start polling the machine for its current status (temperatures, etc.)
 		 * @param interval The interval, in ms, between polls
 		 */
-		synchronized void startStatusPolling(long interval) {
-			pollingEnabled = true;
-			pollIntervalMs = interval;
+		void startStatusPolling(long interval) {
+			if (Base.preferences.getBoolean("build.monitor_temp",false)) {
+				statusScheduler.subscribe(this, StatusScheduler.Query.TEMPERATURE, interval);
+			}
 		}
 
 		/**
 		 * Turn off status polling.
 		 */
-		synchronized void stopStatusPolling() {
-			pollingEnabled = false;
+		void stopStatusPolling() {
+			statusScheduler.unsubscribe(this);
 		}
 		
 		/**
@@ -178,12 +192,28 @@ public class MachineController {
 			// Flush any parser cached data
 			driver.getParser().init(driver);
 			
-			Iterator<String> i = source.iterator();
+			// Precompiled sources are loaded record by record, skipping the
+			// text parser entirely.
+			CompiledGCode code = null;
+			CompiledGCode.Cursor record = null;
+			Iterator<String> i = null;
+			if (source instanceof CompiledGCodeSource) {
+				code = ((CompiledGCodeSource)source).getCode();
+				record = code.cursor();
+			} else {
+				i = source.iterator();
+			}
 			boolean retry = false;
 			// Iterate over all the lines in the gcode source.
-			while (i.hasNext()) {
+			// A refused line is retried even if it is the last.
+			while (retry || (record != null ? record.hasNext() : i.hasNext())) {
 				if (retry == false) {
-					String line = i.next();
+					String line = null;
+					if (record != null) {
+						record.next();
+					} else {
+						line = i.next();
+					}
 					linesProcessed++;
 					if (Thread.currentThread().isInterrupted()) {
 						throw new BuildFailureException("Build was interrupted");
@@ -191,11 +221,19 @@ public class MachineController {
 					
 					if (simulator.isSimulating()) {
 						// Parse a line for the simulator
-						simulator.parse(line);
+						if (record != null) {
+							simulator.parse(record);
+						} else {
+							simulator.parse(line);
+						}
 					}
 					if (!state.isSimulating()) {
 						// Parse a line for the actual machine
-						driver.parse(line); 
+						if (record != null) {
+							driver.parse(record);
+						} else {
+							driver.parse(line);
+						}
 					}
 				}
 				try {
@@ -207,6 +245,7 @@ public class MachineController {
 							state.isBuilding() &&
 							state.isInteractiveTarget()) {
 						JobException e = info.getException(); 
+						long waitStart = System.currentTimeMillis();
 						if (info.isOptional()) {
 							int result = JOptionPane.showConfirmDialog(null, info.getMessage(),
 									"Continue Build?", JOptionPane.YES_NO_OPTION);
@@ -217,6 +256,7 @@ public class MachineController {
 							JOptionPane.showMessageDialog(null, info.getMessage(), 
 									"Build stop", JOptionPane.INFORMATION_MESSAGE);
 						}
+						waitingMillis += System.currentTimeMillis() - waitStart;
 						if (e != null) {
 							throw e;
 						}
@@ -228,7 +268,11 @@ public class MachineController {
 					throw new BuildFailureException("Job cancelled by user.");
 				} catch (JobRewindException e) {
 					// Rewind the job to start of source
-					i = source.iterator();
+					if (record != null) {
+						record = code.cursor();
+					} else {
+						i = source.iterator();
+					}
 					continue;
 				} catch (JobException e) {
 					Base.logger.severe("Unknown job exception emitted");
@@ -271,6 +315,7 @@ public class MachineController {
 				// are we paused?
 				if (state.isPaused()) {
 					// Tell machine to enter pause mode
+					long waitStart = System.currentTimeMillis();
 					if (!state.isSimulating()) driver.pause();
 					while (state.isPaused()) {
 						// Sleep until notified
@@ -278,6 +323,7 @@ public class MachineController {
 					}
 					// Notified; tell machine to wake up.
 					if (!state.isSimulating()) driver.unpause();
+					waitingMillis += System.currentTimeMillis() - waitStart;
 				}
 				
 				// Send a stop command if we're stopping.
@@ -294,13 +340,10 @@ public class MachineController {
 					return false;
 				}
 				
-				// send out updates
-				if (pollingEnabled) {
-					long curMillis = System.currentTimeMillis();
-					if (lastPolled + pollIntervalMs <= curMillis) {
-						lastPolled = curMillis;
-						pollStatus();
-					}
+				// send out updates; a refused command means the machine's
+				// buffer is full, which is the cheapest time to ask
+				if (!state.isSimulating()) {
+					statusScheduler.runDue(retry);
 				}
 				MachineProgressEvent progress = 
 					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
@@ -311,23 +354,22 @@ public class MachineController {
 			}
 			
 			// wait for driver to finish up.
-			if (!state.isSimulating()) while (!driver.isFinished()) {
-				Thread.sleep(100);
+			if (!state.isSimulating()) {
+				Completion done = driver.whenFinished();
+				try {
+					done.get();
+				} catch (ExecutionException e) {
+					throw new BuildFailureException("Lost track of the machine: " +
+							e.getCause().getMessage());
+				} finally {
+					done.cancel(true);
+				}
 			}
 			return true;
 		}
 
 		public boolean isReady() { return state.isReady(); }
 
-		public void pollStatus() {
-			if (state.isBuilding() && !state.isSimulating()) {
-				if (Base.preferences.getBoolean("build.monitor_temp",false)) {
-					driver.readTemperature();
-					emitToolStatus(driver.getMachine().currentTool());
-				}
-			}
-		}
-		
 		// Enter the reset state
 		public void reset() {
 			setState(new MachineState(MachineState.State.RESET));
@@ -344,11 +386,17 @@ public class MachineController {
 		// 
 		private void buildInternal(GCodeSource source) {
 			startTimeMillis = System.currentTimeMillis();
+			waitingMillis = 0;
 			linesProcessed = 0;
 			linesTotal = warmupCommands.size() + 
 				cooldownCommands.size() +
 				source.getLineCount();
 			startStatusPolling(1000); // Will not send commands if temp mon. turned off
+			// the scheduler leaves the driver to us until the build is done
+			boolean building = !state.isSimulating();
+			if (building) {
+				statusScheduler.setBuilding(true);
+			}
 			try {
 				if (!state.isSimulating()) {
 					driver.getCurrentPosition(); // reconcile position
@@ -359,6 +407,13 @@ public class MachineController {
 				runCooldownCommands();
 				if (!state.isSimulating()) {
 					driver.invalidatePosition();
+					// only a real machine's time says anything about the
+					// estimate; files and uploads go as fast as the disk
+					if (rawEstimate != null &&
+							state.getTarget() == MachineState.Target.MACHINE) {
+						EstimatorCalibration.record(rawEstimate,
+								System.currentTimeMillis() - startTimeMillis - waitingMillis);
+					}
 				}
 				setState(new MachineState(MachineState.State.READY));
 			} catch (BuildFailureException e) {
@@ -371,6 +426,9 @@ public class MachineController {
 				Base.logger.warning("MachineController interrupted");
 			} finally {
 				stopStatusPolling();
+				if (building) {
+					statusScheduler.setBuilding(false);
+				}
 			}
 		}
 
@@ -612,6 +670,12 @@ public class MachineController {
 	
 	// Our driver object. Null when no driver is selected.
 	public Driver driver = null;
+	// shared with other machines, if set; see setEstimationPool()
+	private ExecutorService estimationPool = null;
+	private int estimationThreads = 1;
+
+	// runs the status queries everyone wants of the driver
+	private final StatusScheduler statusScheduler = new StatusScheduler();
 	
 	// the simulator driver
 	protected SimulationDriver simulator;
@@ -622,6 +686,16 @@ public class MachineController {
 	// estimated build time in millis
 	protected double estimatedBuildTime = 0;
 
+	// the breakdown of the last estimate, and the same before calibration
+	protected BuildEstimate buildEstimate = null;
+	protected BuildEstimate rawEstimate = null;
+
+	// the program of the last build started, and its layer index, which is
+	// built in the background
+	protected CompiledGCodeSource lastBuild = null;
+	protected LayerIndex layerIndex = null;
+	private Thread indexer = null;
+
 	// our warmup/cooldown commands
 	protected Vector<String> warmupCommands;
 
@@ -640,6 +714,13 @@ public class MachineController {
 		// load our various objects
 		loadDriver();
 		loadExtraPrefs();
+		statusScheduler.addListener(new StatusScheduler.Listener() {
+			public void statusUpdated(StatusScheduler.Query query, StatusScheduler.Sample sample) {
+				if (query == StatusScheduler.Query.TEMPERATURE) {
+					emitToolStatus(driver.getMachine().currentTool());
+				}
+			}
+		});
 		machineThread = new MachineThread();
 		machineThread.start();
 	}
@@ -718,22 +799,163 @@ public class MachineController {
 		return true;
 	}
 	
+	/**
+	 * Get a compiled snapshot of the current source, so that the estimate
+	 * and the build that follows it share a single parse.  Short collinear
+	 * moves are merged first, if that's turned on.  A source too big to
+	 * hold compiled is left as it is, and streamed from its text.
+	 */
+	private GCodeSource compileSource() {
+		return compileSource(source);
+	}
+
+	private GCodeSource compileSource(GCodeSource source) {
+		if (source == null || source instanceof CompiledGCodeSource) {
+			return source;
+		}
+		GCodeSource s = source;
+		if (CoalescingGCodeSource.isEnabled()) {
+			s = new CoalescingGCodeSource(s, CoalescingGCodeSource.getDefaultTolerance());
+		}
+		if (!CompiledGCode.isCompilable(source)) {
+			Base.logger.info("Program is too big to compile; it will be read as it is built");
+			return s;
+		}
+		return new CompiledGCodeSource(s);
+	}
+
 	/**
 	 * Begin running a job.
 	 */
 	public boolean execute() {
+		GCodeSource compiled = compileSource();
+		if (compiled instanceof CompiledGCodeSource) {
+			startIndexing((CompiledGCodeSource)compiled);
+		}
+		startBuild(compiled);
+		return true;
+	}
+
+	/**
+	 * Begin running the last job started from the given layer of its index,
+	 * for example after the build failed partway.  The program's start code
+	 * is run first, then the temperatures, tool and position the program
+	 * had set up by that layer are restored.
+	 * @return false if there is no such layer
+	 */
+	public boolean executeFromLayer(int layer) {
+		LayerIndex index = getLayerIndex();
+		if (index == null || layer < 0 || layer >= index.size()) {
+			return false;
+		}
+		GCodeSource resumed;
+		try {
+			resumed = index.resumeFrom(lastBuild, layer);
+		} catch (IOException ioe) {
+			Base.logger.log(Level.SEVERE, "Couldn't reopen the build to resume it", ioe);
+			return false;
+		}
+		Base.logger.info("Resuming build at layer " + layer + ", line " + (index.get(layer).line + 1));
+		startBuild(compileSource(resumed));
+		return true;
+	}
+
+	/**
+	 * Begin running the given GCode file from the given layer, using the
+	 * layer index saved next to it (building it first if there isn't one).
+	 * Unlike executeFromLayer(int), this doesn't need the job to have been
+	 * run since ReplicatorG started, nor to have been small enough to
+	 * compile.
+	 * @return false if there is no such layer, or the file can't be read
+	 */
+	public boolean executeFromLayer(File file, int layer) {
+		GCodeSource resumed;
+		LayerIndex index;
+		try {
+			index = LayerIndex.forFile(file);
+			if (index == null || layer < 0 || layer >= index.size()) {
+				return false;
+			}
+			resumed = index.resumeFrom(file, layer);
+		} catch (IOException ioe) {
+			Base.logger.log(Level.SEVERE, "Couldn't read " + file.getPath() + " to resume it", ioe);
+			return false;
+		}
+		Base.logger.info("Resuming " + file.getName() + " at layer " + layer
+				+ ", line " + (index.get(layer).line + 1));
+		startBuild(compileSource(resumed));
+		return true;
+	}
+
+	/**
+	 * @return the layer index of the last job started, waiting for it to be
+	 * built if need be; null if there isn't one
+	 */
+	public LayerIndex getLayerIndex() {
+		Thread t;
+		synchronized(this) {
+			t = indexer;
+		}
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		synchronized(this) {
+			return layerIndex;
+		}
+	}
+
+	// Index the given program in the background, for resuming it later.
+	private synchronized void startIndexing(final CompiledGCodeSource source) {
+		if (indexer != null) {
+			indexer.interrupt();
+		}
+		lastBuild = source;
+		layerIndex = null;
+		indexer = new Thread("Layer indexer") {
+			public void run() {
+				LayerIndex index = null;
+				try {
+					if (source.getPath() != null) {
+						index = LayerIndex.forFile(new File(source.getPath()), source.getCode());
+					} else {
+						index = LayerIndex.build(source.getCode());
+					}
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Couldn't index the layers of the build", ioe);
+				}
+				synchronized(MachineController.this) {
+					if (indexer == this) {
+						layerIndex = index;
+						indexer = null;
+						if (index != null) {
+							Base.logger.fine("Indexed " + index.size() + " layers.");
+						}
+					}
+				}
+			}
+		};
+		indexer.setDaemon(true);
+		indexer.setPriority(Thread.MIN_PRIORITY);
+		indexer.start();
+	}
+
+	private void startBuild(GCodeSource compiled) {
 		// start simulator
 		if (simulator != null && Base.preferences.getBoolean("build.showSimulator",false))
 			simulator.createWindow();
 
 		// estimate build time.
 		Base.logger.info("Estimating build time...");
-		estimate();
+		estimate(compiled);
 
 		// do that build!
 		Base.logger.info("Beginning build.");
-		machineThread.build(source);
-		return true;
+		machineThread.build(compiled);
 	}
 
 	public boolean simulate() {
@@ -741,23 +963,108 @@ public class MachineController {
 		if (simulator != null)
 			simulator.createWindow();
 
+		GCodeSource compiled = compileSource();
+
 		// estimate build time.
 		Base.logger.info("Estimating build time...");
-		estimate();
+		estimate(compiled);
 
 		// do that build!
 		Base.logger.info("Beginning simulation.");
-		machineThread.simulate(source);
+		machineThread.simulate(compiled);
 		return true;
 	}
 
 
 	public void estimate() {
+		estimate(compileSource());
+	}
+
+	/**
+	 * Estimate on the given pool instead of starting threads for each
+	 * estimate, as when several machines are run from one process.
+	 * @param pool the pool to use, or null to go back to making one
+	 * @param threads the number of threads in the pool
+	 */
+	public void setEstimationPool(ExecutorService pool, int threads) {
+		estimationPool = pool;
+		estimationThreads = threads;
+	}
+
+	private void estimate(GCodeSource source) {
 		if (source == null) { return; }
 		try {
-			EstimationDriver estimator = new EstimationDriver();
-			estimator.setMachine(loadModel());
+			BuildEstimate raw = null;
+			Rectangle2D.Double bounds = null;
+
+			int threads = (estimationPool != null) ? estimationThreads :
+				Base.preferences.getInt("estimator.threads",
+					Runtime.getRuntime().availableProcessors());
+			if (threads > 1 && source instanceof CompiledGCodeSource) {
+				// big programs are cut into chunks and estimated in parallel
+				ChunkedEstimator chunked = new ChunkedEstimator(
+						((CompiledGCodeSource)source).getCode(), loadModel());
+				if (chunked.split(threads * 2)) {
+					ChunkedEstimator.Factory factory = new ChunkedEstimator.Factory() {
+						public EstimationDriver create() {
+							EstimationDriver estimator = createEstimator();
+							estimator.setMachine(loadModel());
+							return estimator;
+						}
+					};
+					if (estimationPool != null) {
+						chunked.run(factory, estimationPool);
+					} else {
+						chunked.run(factory, threads);
+					}
+					raw = chunked.getRawEstimate();
+					bounds = chunked.getBounds();
+				}
+			}
+
+			if (raw == null) {
+				EstimationDriver estimator = createEstimator();
+				estimator.setMachine(loadModel());
+				runEstimator(estimator, source);
+				raw = estimator.getRawEstimate();
+				bounds = estimator.getBounds();
+			}
 
+			if (simulator != null) {
+				simulator.setSimulationBounds(bounds);
+			}
+			// oh, how this needs to be cleaned up...
+			if (driver instanceof SimulationDriver) {
+				((SimulationDriver)driver).setSimulationBounds(bounds);
+			}
+			rawEstimate = raw;
+			buildEstimate = EstimatorCalibration.apply(raw);
+			estimatedBuildTime = buildEstimate.getTotal();
+			Base.logger.info("Estimated build time is: "
+					+ EstimationDriver.getBuildTimeString(estimatedBuildTime));
+		} catch (InterruptedException e) {
+			// the estimate was cancelled
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run every line of the source through the given estimator.
+	 */
+	private void runEstimator(EstimationDriver estimator, GCodeSource source)
+		throws InterruptedException {
+		if (source instanceof CompiledGCodeSource) {
+			// run each record through the estimator
+			CompiledGCode.Cursor record = ((CompiledGCodeSource)source).getCode().cursor();
+			while (record.hasNext()) {
+				record.next();
+				// parse only if line is NOT a Twitterbot M code
+				if (!ChunkedEstimator.isTwitterBot(record)) {
+					estimator.parse(record);
+					estimator.execute();
+				}
+			}
+		} else {
 			// run each line through the estimator
 			for (String line : source) {
 				// parse only if line is NOT a Twitterbot M code
@@ -769,21 +1076,31 @@ public class MachineController {
 					estimator.execute();
 				}
 			}
+		}
+	}
 
-			if (simulator != null) {
-				simulator.setSimulationBounds(estimator.getBounds());
-			}
-			// oh, how this needs to be cleaned up...
-			if (driver instanceof SimulationDriver) {
-				((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
+	/**
+	 * The estimator can be replaced by naming a subclass of EstimationDriver
+	 * in the "estimator.class" preference.
+	 */
+	private EstimationDriver createEstimator() {
+		String className = Base.preferences.get("estimator.class", null);
+		if (className != null && className.length() > 0) {
+			try {
+				return (EstimationDriver)Class.forName(className).newInstance();
+			} catch (Exception e) {
+				Base.logger.warning("Couldn't create estimator "+className+"; using the default. ("+e+")");
 			}
-			estimatedBuildTime = estimator.getBuildTime();
-			Base.logger.info("Estimated build time is: "
-					+ EstimationDriver.getBuildTimeString(estimatedBuildTime));
-		} catch (InterruptedException e) {
-			assert (false);
-			// Should never happen
 		}
+		return new EstimationDriver();
+	}
+
+	/**
+	 * @return the breakdown of the last build time estimate, or null if
+	 * nothing has been estimated
+	 */
+	public BuildEstimate getBuildEstimate() {
+		return buildEstimate;
 	}
 
 	private MachineModel loadModel() {
@@ -810,10 +1127,19 @@ public class MachineController {
 		}
 		driver = DriverFactory.factory(driverXml);
 		driver.setMachine(getModel());
+		statusScheduler.setDriver(driver);
 		// Initialization is now handled by the machine thread when it
 		// is placed in a connecting state.
 	}
 
+	/**
+	 * @return the scheduler through which to ask for the machine's status,
+	 * rather than querying the driver directly
+	 */
+	public StatusScheduler getStatusScheduler() {
+		return statusScheduler;
+	}
+
 	private void loadExtraPrefs() {
 		String[] commands = null;
 		String command = null;
@@ -901,6 +1227,7 @@ public class MachineController {
 	}
 	
 	public void dispose() {
+		statusScheduler.shutdown();
 		if (machineThread != null) {
 			machineThread.shutdown();
 			try {
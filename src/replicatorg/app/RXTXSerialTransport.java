@@ -0,0 +1,142 @@
+package replicatorg.app;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.exceptions.UnknownSerialPortException;
+
+/**
+ * A transport on a real serial port, by way of RXTX.
+ */
+public class RXTXSerialTransport implements SerialTransport, SerialPortEventListener {
+	private final String name;
+	private int rate;
+	private int parity;
+	private int data;
+	private int stop;
+
+	private SerialPort port;
+	private InputStream input;
+	private OutputStream output;
+	private Receiver receiver;
+
+	// scratch space for the serial event thread
+	private final byte[] eventBuffer = new byte[4096];
+
+	public RXTXSerialTransport(String name, int rate, char parity, int data, float stop) {
+		this.name = name;
+		this.rate = rate;
+		this.parity = SerialPort.PARITY_NONE;
+		if (parity == 'E')
+			this.parity = SerialPort.PARITY_EVEN;
+		if (parity == 'O')
+			this.parity = SerialPort.PARITY_ODD;
+		this.data = data;
+		this.stop = (int)stop;
+		if (stop == 1.5f)
+			this.stop = SerialPort.STOPBITS_1_5;
+		if (stop == 2)
+			this.stop = SerialPort.STOPBITS_2;
+	}
+
+	public String getName() { return name; }
+
+	private CommPortIdentifier findPortIdentifier(String name) {
+		Enumeration<?> portList = CommPortIdentifier.getPortIdentifiers();
+		while (portList.hasMoreElements()) {
+			CommPortIdentifier id = (CommPortIdentifier)portList.nextElement();
+			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL && 
+					id.getName().equals(name)) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	public void open(Receiver receiver) throws SerialException {
+		this.receiver = receiver;
+		// Attempt to find the port identifier for the designated name
+		CommPortIdentifier portId = findPortIdentifier(name);
+		if (portId == null) {
+			throw new UnknownSerialPortException(name);
+		}
+		// Attempt to open the given port
+		try {
+			port = (SerialPort)portId.open("replicatorG", 2000);
+			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
+
+			input = port.getInputStream();
+			output = port.getOutputStream();
+			port.addEventListener(this);
+			port.notifyOnDataAvailable(true);
+		} catch (PortInUseException e) {
+			throw new SerialException(
+					"Serial port '"
+					+ name
+					+ "' already in use.  Try quiting any programs that may be using it.");
+		} catch (Exception e) {
+			throw new SerialException("Error opening serial port '" + name
+					+ "'.", e);
+		}
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		output.write(bytes);
+		output.flush(); // Reconsider?
+	}
+
+	public void pulseRTSLow() {
+		port.setDTR(false);
+		port.setRTS(false);
+		try {
+			Thread.sleep(100);
+		} catch (java.lang.InterruptedException ie) {
+		}
+		port.setDTR(true);
+		port.setRTS(true);
+	}
+
+	public synchronized void close() {
+		if (port != null) port.removeEventListener();
+		if (input != null)
+			try {
+				input.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		input = null;
+		if (output != null)
+			try {
+				output.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		output = null;
+		if (port != null) port.close();
+		port = null;
+	}
+
+	public void serialEvent(SerialPortEvent event) {
+		try {
+			int available;
+			while ((available = input.available()) > 0) {
+				int n = input.read(eventBuffer, 0, Math.min(available, eventBuffer.length));
+				if (n <= 0) { break; }
+				receiver.received(eventBuffer, 0, n);
+			}
+		} catch (IOException e) {
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.
+			receiver.disconnected();
+		}
+	}
+}
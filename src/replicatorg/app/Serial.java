@@ -25,27 +25,21 @@
 package replicatorg.app;
 
 import gnu.io.CommPortIdentifier;
-import gnu.io.PortInUseException;
-import gnu.io.SerialPort;
-import gnu.io.SerialPortEvent;
-import gnu.io.SerialPortEventListener;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import replicatorg.app.exceptions.SerialException;
-import replicatorg.app.exceptions.UnknownSerialPortException;
 import replicatorg.drivers.UsesSerial;
 
-public class Serial implements SerialPortEventListener {
+public class Serial {
 	/**
 	 * Serial.Name objects are simple compact objects that hold the name
 	 * of a serial port, along with the port's current availability.
@@ -162,17 +156,10 @@ public class Serial implements SerialPortEventListener {
 	// Properties can be passed in for default values.
 	// Otherwise, we default to 9600 N81
 
-	private SerialPort port;
+	private SerialTransport transport;
 	private String name;
-	private int rate;
-	private int parity;
-	private int data;
-	private int stop;
 
 	public String getName() { return name; }
-	
-	private InputStream input;
-	private OutputStream output;
 
 	public Serial(String name, int rate, char parity, int data, float stop) throws SerialException {
 		init(name, rate, parity, data, stop);
@@ -187,56 +174,44 @@ public class Serial implements SerialPortEventListener {
 		init(name,38400,'N',8,1);
 	}
 
-	private CommPortIdentifier findPortIdentifier(String name) {
-		Enumeration<?> portList = CommPortIdentifier.getPortIdentifiers();
-		while (portList.hasMoreElements()) {
-			CommPortIdentifier id = (CommPortIdentifier)portList.nextElement();
-			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL && 
-					id.getName().equals(name)) {
-				return id;
-			}
-		}
-		return null;
+	/**
+	 * Open a port on the given transport.
+	 */
+	public Serial(SerialTransport transport) throws SerialException {
+		open(transport);
 	}
 
 	private void init(String name, int rate, char parity, int data, float stop) throws SerialException {
-		// Prepare parameters
-		this.name = name;
-		this.rate = rate;
-		this.parity = SerialPort.PARITY_NONE;
-		if (parity == 'E')
-			this.parity = SerialPort.PARITY_EVEN;
-		if (parity == 'O')
-			this.parity = SerialPort.PARITY_ODD;
-		this.data = data;
-		this.stop = (int)stop;
-		if (stop == 1.5f)
-			this.stop = SerialPort.STOPBITS_1_5;
-		if (stop == 2)
-			this.stop = SerialPort.STOPBITS_2;
-		// Attempt to find the port identifier for the designated name
-		CommPortIdentifier portId = findPortIdentifier(name);
-		if (portId == null) {
-			throw new UnknownSerialPortException(name);
-		}
-		// Attempt to open the given port
-		try {
-			port = (SerialPort)portId.open("replicatorG", 2000);
-			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
-
-			input = port.getInputStream();
-			output = port.getOutputStream();
-			port.addEventListener(this);
-			port.notifyOnDataAvailable(true);
-		} catch (PortInUseException e) {
-			throw new SerialException(
-					"Serial port '"
-					+ name
-					+ "' already in use.  Try quiting any programs that may be using it.");
-		} catch (Exception e) {
-			throw new SerialException("Error opening serial port '" + name
-					+ "'.", e);
+		// Port names with a known prefix pick a transport other than RXTX.
+		SerialTransport t;
+		if (SocketSerialTransport.handles(name)) {
+			t = new SocketSerialTransport(name);
+		} else if (LoopbackSerialTransport.handles(name)) {
+			t = new LoopbackSerialTransport(name);
+		} else {
+			t = new RXTXSerialTransport(name, rate, parity, data, stop);
 		}
+		open(t);
+	}
+
+	private void open(SerialTransport t) throws SerialException {
+		this.transport = t;
+		this.name = t.getName();
+		t.open(new SerialTransport.Receiver() {
+			public void received(byte[] data, int offset, int length) {
+				if (readRing.offer(data, offset, length) < length) {
+					Base.logger.warning("Serial input overflowed; "+name+" is sending faster than we read.");
+				}
+			}
+			public void disconnected() {
+				// An unplugged connection will just flood the console with
+				// stack traces, and give us zero useful information.  Until
+				// we have a plan for how to respond to the user when the
+				// connection drops, we'll just let this silently fail, and set
+				// a fail bit.
+				Serial.this.disconnected = true;
+			}
+		});
 		portsInUse.add(this);
 	}
 
@@ -244,24 +219,9 @@ public class Serial implements SerialPortEventListener {
 	 * Unregister and close the port.
 	 */
 	public synchronized void dispose() {
-		if (port != null) port.removeEventListener();
-		if (input != null)
-			try {
-				input.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		input = null;
-		if (output != null)
-			try {
-				output.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		output = null;
-		if (port != null) port.close();
+		if (transport != null) transport.close();
 		portsInUse.remove(this);
-		port = null;
+		transport = null;
 	}
 
 	/**
@@ -269,69 +229,127 @@ public class Serial implements SerialPortEventListener {
 	 * device.
 	 */
 	public void pulseRTSLow() {
-		port.setDTR(false);
-		port.setRTS(false);
-		try {
-			Thread.sleep(100);
-		} catch (java.lang.InterruptedException ie) {
-		}
-		port.setDTR(true);
-		port.setRTS(true);
+		transport.pulseRTSLow();
 	}
 	
 	/**
-	 * Non-growable FIFO.  In theory we only need enough space for a single
-	 * packet.  Currently set at 1K.
-	 * @author phooky
-	 *
+	 * Single-producer, single-consumer byte ring.  The transport's receiving
+	 * thread is the only producer and the thread reading responses is the
+	 * only consumer, so no locking is needed: each side owns one index and
+	 * publishes it through a volatile write.  A consumer waiting for data
+	 * parks, and the producer unparks it after publishing new bytes.
 	 */
-	class ByteFifo {
-		final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
-		private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-		private int head = 0; 
-		private int tail = 0;
-		final private int moduloLength(int value) {
-			value = value % buffer.length;
-			if (value < 0) value += buffer.length;
-			return value;
-		}
-		public void enqueue(byte b) {
-			buffer[tail++] = b;
-			tail = moduloLength(tail);
+	static class ByteRing {
+		final static int CAPACITY = 64 * 1024; // must be a power of two
+		private final byte[] buffer = new byte[CAPACITY];
+		private final int mask = CAPACITY - 1;
+		// next position to read; written only by the consumer
+		private volatile long head = 0;
+		// next position to write; written only by the producer
+		private volatile long tail = 0;
+		// the consumer, while it is parked waiting for data
+		private volatile Thread waiter = null;
+
+		public int size() { return (int)(tail - head); }
+
+		/**
+		 * Producer: add as many of the given bytes as there is room for.
+		 * @return the number of bytes added
+		 */
+		public int offer(byte[] src, int off, int len) {
+			long t = tail;
+			int n = Math.min(len, CAPACITY - (int)(t - head));
+			int pos = (int)t & mask;
+			int first = Math.min(n, CAPACITY - pos);
+			System.arraycopy(src, off, buffer, pos, first);
+			System.arraycopy(src, off + first, buffer, 0, n - first);
+			tail = t + n;
+			Thread w = waiter;
+			if (w != null) { LockSupport.unpark(w); }
+			return n;
 		}
-		public void clear() { head = tail = 0; }
-		public int size() { return moduloLength(tail-head); }
-		public byte dequeue() {
-			byte b = buffer[head++];
-			head = moduloLength(head);
+
+		/**
+		 * Consumer: remove a single byte.  The ring must not be empty.
+		 */
+		public int poll() {
+			long h = head;
+			int b = buffer[(int)h & mask] & 0xff;
+			head = h + 1;
 			return b;
 		}
+
+		/**
+		 * Consumer: remove up to len bytes.
+		 * @return the number of bytes removed
+		 */
+		public int poll(byte[] dst, int off, int len) {
+			long h = head;
+			int n = Math.min(len, (int)(tail - h));
+			int pos = (int)h & mask;
+			int first = Math.min(n, CAPACITY - pos);
+			System.arraycopy(buffer, pos, dst, off, first);
+			System.arraycopy(buffer, 0, dst, off + first, n - first);
+			head = h + n;
+			return n;
+		}
+
+		/**
+		 * Consumer: discard everything in the ring.
+		 * @return the number of bytes discarded
+		 */
+		public int skipAll() {
+			long t = tail;
+			int n = (int)(t - head);
+			head = t;
+			return n;
+		}
+
+		/**
+		 * Consumer: park until the ring holds data, the deadline (in
+		 * System.nanoTime() terms) passes, or the thread is interrupted.
+		 * @return true if data is available
+		 */
+		public boolean await(long deadline) {
+			if (tail != head) { return true; }
+			waiter = Thread.currentThread();
+			try {
+				// The producer writes tail before reading waiter, and we write
+				// waiter before reading tail, so a wakeup can't be missed.
+				while (tail == head) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+						return false;
+					}
+					LockSupport.parkNanos(remaining);
+				}
+				return true;
+			} finally {
+				waiter = null;
+			}
+		}
 	}
 	
-	private ByteFifo readFifo = new ByteFifo();
+	private final ByteRing readRing = new ByteRing();
+
+	private long deadline() {
+		return System.nanoTime() + timeoutMillis * 1000000L;
+	}
 	
 	/**
 	 * Attempt to read a single byte.
 	 * @return the byte read, or -1 to indicate a timeout.
 	 */
 	public int read() {
-		synchronized(readFifo) {
-			try {
-				if (readFifo.size() == 0) readFifo.wait(timeoutMillis);
-			} catch (InterruptedException e) {
-				// We are most likely amidst a shutdown.  Propagate the interrupt
-				// status.
-				Thread.currentThread().interrupt();
-				return -1;
-			}
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
+		if (!readRing.await(deadline())) {
+			// If we were interrupted we are most likely amidst a shutdown;
+			// the interrupt status is left set.
+			if (!Thread.currentThread().isInterrupted()) {
 				Base.logger.warning("Read timed out.");
-				return -1;
 			}
+			return -1;
 		}
+		return readRing.poll();
 	}
 
 	/**
@@ -343,27 +361,40 @@ public class Serial implements SerialPortEventListener {
 	 * @return the number of characters read.
 	 */
  	public int read(byte bytes[]) {
-		synchronized(readFifo) {
-			try {
-				if (readFifo.size() == 0) readFifo.wait(timeoutMillis);
-			} catch (InterruptedException e) {
-				// We are most likely amidst a shutdown.  Propagate the interrupt
-				// status.
-				Thread.currentThread().interrupt();
-				return -1;
-			}
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
+ 		return read(bytes, 0, bytes.length);
+ 	}
+
+	/**
+	 * Wait for input as read(byte[]) does, then copy up to len bytes of it
+	 * into the given buffer.
+	 * @return the number of bytes read, 0 on a timeout, or -1 if the thread
+	 * was interrupted.
+	 */
+	public int read(byte bytes[], int off, int len) {
+		if (!readRing.await(deadline())) {
+			return Thread.currentThread().isInterrupted() ? -1 : 0;
 		}
+		return readRing.poll(bytes, off, len);
+	}
+
+	/**
+	 * Read exactly len bytes, unless the read timeout passes first.  The
+	 * timeout covers the whole read rather than each byte.
+	 * @return the number of bytes read, which is less than len only on a
+	 * timeout or interrupt.
+	 */
+	public int readFully(byte bytes[], int off, int len) {
+		long deadline = deadline();
+		int count = 0;
+		while (count < len && readRing.await(deadline)) {
+			count += readRing.poll(bytes, off + count, len - count);
+		}
+		return count;
 	}
 
 	public void write(byte bytes[]) {
 		try {
-			output.write(bytes);
-			output.flush(); // Reconsider?
+			transport.write(bytes);
 
 		} catch (Exception e) { // null pointer or serial port dead
 			e.printStackTrace();
@@ -406,33 +437,21 @@ public class Serial implements SerialPortEventListener {
 		throw new RuntimeException("Error inside Serial." + where + "()");
 	}
 
+	// How long the line must stay quiet before clear() returns.
+	private static final long CLEAR_QUIET_NANOS = 2 * 1000000L;
+
+	/**
+	 * Discard any received input, along with anything that is still arriving.
+	 */
 	public void clear() {
-		synchronized (readFifo) {
-			// If we're eating more than 255 characters, then there's a serious error:
-			// Either the machine is jabbering, or there's a problem with our serial
-			// connection.
-			int maxEats = 255;
-			
-			try {
-				while (input.available() > 0 && maxEats > 0) {
-					input.read();
-					Thread.sleep(1);
-					maxEats--;
-				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				disconnected = true;
-			} catch (InterruptedException e) {
-			}
-			readFifo.clear();
-			readFifo.notifyAll();
-			if (maxEats == 0) {
+		// If we're eating more than 255 characters, then there's a serious error:
+		// Either the machine is jabbering, or there's a problem with our serial
+		// connection.
+		readRing.skipAll();
+		int eaten = 0;
+		while (readRing.await(System.nanoTime() + CLEAR_QUIET_NANOS)) {
+			eaten += readRing.skipAll();
+			if (eaten > 255) {
 				throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
 			}
 		}
@@ -443,29 +462,4 @@ public class Serial implements SerialPortEventListener {
 	 * Indicates if we've received 
 	 */
 	public boolean isDisconnected() { return disconnected; }
-	
-	public void serialEvent(SerialPortEvent event) {
-		synchronized (readFifo) {
-			boolean readAny = false;
-			try {
-				while (input.available() > 0) {
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						readAny = true;
-					}
-				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				disconnected = true;
-			}
-			if (readAny) readFifo.notify();
-		}
-	}
 }
@@ -0,0 +1,46 @@
+package replicatorg.app;
+
+import java.io.IOException;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * The byte stream underneath a Serial object.  The usual transport is an
+ * RXTX serial port, but a Serial can just as well sit on a TCP socket or on
+ * an emulated machine running in the same process, which lets the drivers
+ * be exercised without a board attached.
+ *
+ * Transports push what they receive to a Receiver rather than being polled.
+ * The Receiver may be called from any thread, but calls are never made
+ * concurrently for a single transport.
+ */
+public interface SerialTransport {
+	/**
+	 * Handed the bytes a transport receives.
+	 */
+	public interface Receiver {
+		void received(byte[] data, int offset, int length);
+		/** Called if the connection is lost. */
+		void disconnected();
+	}
+
+	/**
+	 * @return the name of the port, as shown to the user
+	 */
+	String getName();
+
+	/**
+	 * Open the connection and start delivering received bytes.
+	 */
+	void open(Receiver receiver) throws SerialException;
+
+	void write(byte[] bytes) throws IOException;
+
+	/**
+	 * Briefly pulse the RTS line low, resetting the machine if the transport
+	 * has such a thing.
+	 */
+	void pulseRTSLow();
+
+	void close();
+}
@@ -11,19 +11,25 @@ import org.apache.commons.cli.PosixParser;
 import replicatorg.app.exceptions.SerialException;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.UsesSerial;
+import replicatorg.drivers.gen3.S3GEmulator;
 import replicatorg.machine.MachineListener;
 import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
 import replicatorg.model.BuildModel;
-import replicatorg.model.FileGCodeSource;
+import replicatorg.model.CompiledGCode;
+import replicatorg.model.CompiledGCodeSource;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileGCodeSource;
 import replicatorg.model.StringListSource;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.Vector;
 import java.util.logging.Level;
 
 /**
@@ -35,6 +41,7 @@ import java.util.logging.Level;
 public class ShellMode {
   private static Options opts = null;
   private static CommandLine cmd;
+  private S3GEmulator emulator = null;
 		
   public ShellMode(String cmdargs[]) {
     /* Set this to only show severe errors, because otherwise
@@ -47,13 +54,21 @@ public class ShellMode {
 
       if (cmd.hasOption("help")) {
         usage();
+      } else if (cmd.hasOption("farm")) {
+        farm(cmd.getOptionValue("farm"));
       } else if (cmd.hasOption("build")) {
         System.out.println("Building your object.");
         String machineName = Base.preferences.get("machine.name", null);
         String serialPort = cmd.hasOption("serial") ? 
                             cmd.getOptionValue("serial") : 
                             Base.preferences.get("serial.last_selected", null);
+        if (cmd.hasOption("emulate")) {
+          serialPort = startEmulator();
+        }
         build(machineName, serialPort);
+        if (emulator != null) {
+          emulator.printReport(System.out);
+        }
       } else {
         usage();
       }
@@ -93,21 +108,41 @@ public class ShellMode {
     MachineController mc = connectToMachine(machineName, serialPort);
     mc.reset();
 
-    try {
-      mc.getDriver().disableDrives();
-      waitForKeypress();
-    } catch (RetryException e) {
-      System.err.println("Unable to disengage drives. Hit enter to continue, or Ctrl-C to exit.");
-      waitForKeypress();
+    if (emulator == null) {
+      try {
+        mc.getDriver().disableDrives();
+        waitForKeypress();
+      } catch (RetryException e) {
+        System.err.println("Unable to disengage drives. Hit enter to continue, or Ctrl-C to exit.");
+        waitForKeypress();
+      }
+    } else {
+      // only measure the build itself
+      emulator.resetStatistics();
     }
 
     int repeat = 1;
     if (cmd.hasOption("repeat")) repeat = new Integer(cmd.getOptionValue("repeat"));
 
     mc.addMachineStateListener(new EchoProgressMachineListener());
-    for (int i=0; i<repeat; i++) {
-      mc.setCodeSource(getCodeSource());
-      mc.execute();
+    if (cmd.hasOption("layer")) {
+      /* Resume from the file's saved layer index; layers count from 1. */
+      int layer = new Integer(cmd.getOptionValue("layer"));
+      if (!cmd.hasOption("file")) {
+        System.err.println("You must select a file to build.");
+        usage();
+      }
+      File file = new File(cmd.getOptionValue("file"));
+      if (!mc.executeFromLayer(file, layer - 1)) {
+        System.err.println("Unable to resume " + file.getName() + " at layer " + layer + ".");
+        System.exit(-1);
+      }
+    } else {
+      GCodeSource source = getCodeSource();
+      for (int i=0; i<repeat; i++) {
+        mc.setCodeSource(source);
+        mc.execute();
+      }
     }
 
     while (mc.getMachineState().isBuilding()) {
@@ -120,14 +155,118 @@ public class ShellMode {
   }
 
   /**
-   *  Get the GCode source for this build.
+   *  Run several machines at once, building the given files on whichever
+   *  machine is free.  Each line of the farm file gives the serial port of
+   *  a machine and then its name, e.g., '/dev/ttyUSB0 Cupcake CNC'; lines
+   *  starting with '#' are skipped.
+   *
+   *  @param farmFile The file listing the machines of the farm.
+   */
+  public void farm(String farmFile) {
+    String[] files = cmd.getOptionValues("file");
+    if (files == null || files.length == 0) {
+      System.err.println("You must select a file to build.");
+      usage();
+    }
+    int repeat = 1;
+    if (cmd.hasOption("repeat")) repeat = new Integer(cmd.getOptionValue("repeat"));
+
+    BuildFarm farm = new BuildFarm();
+    Vector<S3GEmulator> emulators = new Vector<S3GEmulator>();
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(farmFile));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) continue;
+          String[] parts = line.split("\\s+", 2);
+          if (parts.length < 2) {
+            System.err.println("Expected a port and a machine name: " + line);
+            continue;
+          }
+          String port = parts[0];
+          if (cmd.hasOption("emulate")) {
+            port = startEmulator("emulator" + emulators.size());
+            emulators.add(emulator);
+          }
+          try {
+            farm.addMachine(parts[1], port);
+          } catch (SerialException e) {
+            System.err.println("Unable to connect to " + parts[1] + " on serial port " + port);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to read " + farmFile + ": " + e.getMessage());
+      usage();
+    }
+    if (farm.getMachines().isEmpty()) {
+      System.err.println("There are no machines in the farm.");
+      System.exit(-1);
+    }
+
+    farm.addListener(new BuildFarm.Listener() {
+      public void jobChanged(BuildFarm.Job job) {
+        MachineController machine = job.getMachine();
+        System.out.println(job + (machine != null ? " on " + machine.getName() : "") +
+                           (job.getError() != null ? ": " + job.getError() : ""));
+      }
+    });
+    long start = System.currentTimeMillis();
+    for (int i=0; i<repeat; i++) {
+      for (String file : files) {
+        farm.submit(file, null);
+      }
+    }
+    try {
+      farm.waitUntilIdle();
+    } catch (InterruptedException e) {
+      ;
+    }
+    System.out.println("Farm finished in " + (System.currentTimeMillis() - start) / 1000.0 + "s.");
+    for (S3GEmulator e : emulators) {
+      e.printReport(System.out);
+    }
+    farm.shutdown();
+  }
+
+  /**
+   *  Start an emulated Sanguino3G motherboard to build on, for
+   *  benchmarking without hardware.
+   *
+   *  @return the name of the serial port the emulator listens on.
+   */
+  private String startEmulator() {
+    return startEmulator("emulator");
+  }
+
+  private String startEmulator(String name) {
+    int bufferSize = Base.preferences.getInt("emulator.buffer_size", 512);
+    int baud = Base.preferences.getInt("emulator.baud", 38400);
+    emulator = new S3GEmulator(bufferSize, baud);
+    LoopbackSerialTransport.register(name, emulator);
+    System.out.println("Building on an emulated machine (" + bufferSize +
+                       " byte buffer, " + baud + " baud).");
+    return LoopbackSerialTransport.PREFIX + name;
+  }
+
+  /**
+   *  Get the GCode source for this build.  The file is compiled once (or
+   *  loaded from its compiled cache) and reused for every repeat, unless
+   *  it is too big to hold compiled, in which case its text is streamed.
    */
   private GCodeSource getCodeSource() {
     if (cmd.hasOption("file")) {
       String path = cmd.getOptionValue("file");
       if (path.endsWith(".gcode")) {
         try {
-          return new FileGCodeSource(path);
+          if (!CompiledGCode.isCompilable(new File(path))) {
+            return new MappedFileGCodeSource(path);
+          }
+          return new CompiledGCodeSource(path);
         } catch (IOException e) {
           System.err.println("Unable to open " + path + ": " + e.getMessage());
           usage();
@@ -211,7 +350,23 @@ public class ShellMode {
                      .withDescription("The number of times to print the object. " +
                                       "Good for automated build platform users.")
                      .create("r"));
+      opts.addOption(OptionBuilder
+                     .hasArg()
+                     .withArgName("FARMFILE")
+                     .withLongOpt("farm")
+                     .withDescription("Build the files on the machines listed in FARMFILE, " +
+                                      "each on whichever machine is free.")
+                     .create());
+      opts.addOption(OptionBuilder
+                     .hasArg()
+                     .withArgName("LAYER")
+                     .withLongOpt("layer")
+                     .withDescription("Start the build at LAYER of the file, counting from 1, " +
+                                      "to resume a build that failed partway.")
+                     .create("l"));
       opts.addOption(new Option("b", "build", false, "Build a model."));
+      opts.addOption(new Option("e", "emulate", false,
+                                "Build on an emulated Sanguino3G machine and report throughput."));
       opts.addOption(new Option("h", "help", false, "Show usage summary."));
     }
     return opts;
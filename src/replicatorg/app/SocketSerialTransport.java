@@ -0,0 +1,109 @@
+package replicatorg.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A transport on a TCP connection, named "tcp:host:port".  This reaches
+ * firmware emulators running as separate processes, and machines behind
+ * serial-to-network bridges.  A pseudo-terminal can be reached the same
+ * way by bridging it to a socket (for example with
+ * "socat pty,link=/tmp/ttyV0,raw tcp-listen:7000").
+ */
+public class SocketSerialTransport implements SerialTransport {
+	public static final String PREFIX = "tcp:";
+
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+
+	private final String name;
+	private final String host;
+	private final int port;
+
+	private Socket socket;
+	private OutputStream output;
+	private Thread reader;
+
+	/**
+	 * @param name a name of the form "tcp:host:port"
+	 */
+	public SocketSerialTransport(String name) throws SerialException {
+		this.name = name;
+		String address = name.substring(PREFIX.length());
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new SerialException("Expected tcp:host:port, got '"+name+"'");
+		}
+		host = address.substring(0, colon);
+		try {
+			port = Integer.parseInt(address.substring(colon + 1));
+		} catch (NumberFormatException nfe) {
+			throw new SerialException("Bad port number in '"+name+"'");
+		}
+	}
+
+	public static boolean handles(String name) {
+		return name.startsWith(PREFIX);
+	}
+
+	public String getName() { return name; }
+
+	public void open(final Receiver receiver) throws SerialException {
+		try {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+			output = socket.getOutputStream();
+		} catch (IOException ioe) {
+			throw new SerialException("Couldn't connect to '"+name+"'.", ioe);
+		}
+		final InputStream input;
+		try {
+			input = socket.getInputStream();
+		} catch (IOException ioe) {
+			throw new SerialException("Couldn't connect to '"+name+"'.", ioe);
+		}
+		reader = new Thread("Socket reader for "+name) {
+			public void run() {
+				byte[] buffer = new byte[4096];
+				try {
+					int n;
+					while ((n = input.read(buffer)) > 0) {
+						receiver.received(buffer, 0, n);
+					}
+				} catch (IOException ioe) {
+					// closed or dropped; reported below
+				}
+				if (!socket.isClosed()) {
+					receiver.disconnected();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		output.write(bytes);
+		output.flush();
+	}
+
+	public void pulseRTSLow() {
+		// no control lines on a socket
+	}
+
+	public synchronized void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			socket = null;
+		}
+	}
+}
@@ -578,8 +578,11 @@ public class JEditTextArea extends JComponent
     int segmentOffset = lineSegment.offset;
     int x = horizontalOffset;
 
-    /* If syntax coloring is disabled, do simple translation */
-    if(tokenMarker == null)
+    Token tokens = lineTokens(tokenMarker,line);
+
+    /* If syntax coloring is disabled, or the line isn't colored yet,
+     * do simple translation */
+    if(tokens == null)
       {
         lineSegment.count = offset;
         return x + Utilities.getTabbedTextWidth(lineSegment,
@@ -589,17 +592,6 @@ public class JEditTextArea extends JComponent
      * tokens can vary in width */
     else
       {
-        Token tokens;
-        if(painter.currentLineIndex == line
-           && painter.currentLineTokens != null)
-          tokens = painter.currentLineTokens;
-        else
-          {
-            painter.currentLineIndex = line;
-            tokens = painter.currentLineTokens
-              = tokenMarker.markTokens(lineSegment,line);
-          }
-
         Font defaultFont = painter.getFont();
         SyntaxStyle[] styles = painter.getStyles();
 
@@ -636,6 +628,20 @@ public class JEditTextArea extends JComponent
       }
   }
 
+  // The tokens of the line in lineSegment, from the painter's cache if
+  // it's the line last painted; null if it isn't colored.
+  private Token lineTokens(TokenMarker tokenMarker, int line)
+  {
+    if(tokenMarker == null)
+      return null;
+    if(painter.currentLineIndex == line
+       && painter.currentLineTokens != null)
+      return painter.currentLineTokens;
+    painter.currentLineIndex = line;
+    return painter.currentLineTokens
+      = document.getLineTokens(line,lineSegment);
+  }
+
   /**
    * Converts an x co-ordinate to an offset within a line.
    * @param line The line
@@ -656,7 +662,9 @@ public class JEditTextArea extends JComponent
 
     int width = horizontalOffset;
 
-    if(tokenMarker == null)
+    Token tokens = lineTokens(tokenMarker,line);
+
+    if(tokens == null)
       {
         for(int i = 0; i < segmentCount; i++)
           {
@@ -686,17 +694,6 @@ public class JEditTextArea extends JComponent
       }
     else
       {
-        Token tokens;
-        if(painter.currentLineIndex == line && painter
-           .currentLineTokens != null)
-          tokens = painter.currentLineTokens;
-        else
-          {
-            painter.currentLineIndex = line;
-            tokens = painter.currentLineTokens
-              = tokenMarker.markTokens(lineSegment,line);
-          }
-
         int offset = 0;
         Font defaultFont = painter.getFont();
         SyntaxStyle[] styles = painter.getStyles();
@@ -2031,6 +2028,12 @@ public class JEditTextArea extends JComponent
 
     public void changedUpdate(DocumentEvent evt)
     {
+      // lines tokenized in the background can be colored now
+      int first = Math.max(firstLine,getLineOfOffset(evt.getOffset()));
+      int last = Math.min(firstLine + visibleLines,
+                          getLineOfOffset(evt.getOffset() + evt.getLength()));
+      if(first <= last)
+        painter.invalidateLineRange(first,last);
     }
   }
 
@@ -0,0 +1,78 @@
+package replicatorg.app.syntax;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+
+/**
+ * The root element of a document that keeps its own index of where lines
+ * start, rather than an element and two positions for each.  Line elements
+ * are made when asked for and not kept, so they're only good until the
+ * document next changes.
+ */
+abstract class LineRoot implements Element {
+	private final Document document;
+
+	LineRoot(Document document) {
+		this.document = document;
+	}
+
+	/** @return the number of lines; there is always at least one */
+	abstract int getLineCount();
+
+	abstract int getLineStart(int line);
+
+	/** @return the line holding the given offset */
+	abstract int getLineOf(int offset);
+
+	public Document getDocument() { return document; }
+	public Element getParentElement() { return null; }
+	public String getName() { return AbstractDocument.ParagraphElementName; }
+	public AttributeSet getAttributes() { return SimpleAttributeSet.EMPTY; }
+	public int getStartOffset() { return 0; }
+	public int getEndOffset() { return document.getLength() + 1; }
+	public int getElementIndex(int offset) {
+		return getLineOf(Math.max(0, Math.min(offset, document.getLength())));
+	}
+	public int getElementCount() { return getLineCount(); }
+	public Element getElement(int index) {
+		if (index < 0 || index >= getLineCount()) { return null; }
+		return new Line(index);
+	}
+	public boolean isLeaf() { return false; }
+
+	/**
+	 * @return the given lines, for a DocumentEvent.ElementChange
+	 */
+	Element[] getLines(int first, int count) {
+		Element[] e = new Element[count];
+		for (int i = 0; i < count; i++) {
+			e[i] = new Line(first + i);
+		}
+		return e;
+	}
+
+	private class Line implements Element {
+		private final int line;
+		Line(int line) { this.line = line; }
+		public Document getDocument() { return document; }
+		public Element getParentElement() { return LineRoot.this; }
+		public String getName() { return AbstractDocument.ContentElementName; }
+		public AttributeSet getAttributes() { return SimpleAttributeSet.EMPTY; }
+		public int getStartOffset() { return getLineStart(line); }
+		public int getEndOffset() {
+			return (line + 1 < getLineCount()) ? getLineStart(line + 1) : document.getLength() + 1;
+		}
+		public int getElementIndex(int offset) { return -1; }
+		public int getElementCount() { return 0; }
+		public Element getElement(int index) { return null; }
+		public boolean isLeaf() { return true; }
+		public boolean equals(Object o) {
+			return (o instanceof Line) && ((Line)o).line == line
+				&& ((Line)o).getParentElement() == getParentElement();
+		}
+		public int hashCode() { return line; }
+	}
+}
@@ -0,0 +1,123 @@
+package replicatorg.app.syntax;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+
+/**
+ * The offset at which each line of a document starts, kept in an int array
+ * with a gap in it, so that a large document costs four bytes a line
+ * instead of an element and two positions.
+ *
+ * Starts before the gap are kept as they are; starts after it are kept as
+ * their distance from the end of the text, so that inserting or removing
+ * text at the gap moves every later line without touching them.  Edits
+ * move the gap to where they happen first, which is cheap as long as
+ * edits happen near each other, as they do.
+ */
+class LineStarts {
+	private int[] starts = new int[16];
+	private int gapStart = 1;
+	private int gapEnd = 16;
+	// the length of the text, not counting the newline at the end
+	private int length = 0;
+
+	LineStarts() {
+		// the first line starts at 0, whatever happens
+		starts[0] = 0;
+	}
+
+	int getLineCount() {
+		return starts.length - (gapEnd - gapStart);
+	}
+
+	int getStart(int line) {
+		return (line < gapStart) ? starts[line] : starts[line + gapEnd - gapStart] + length;
+	}
+
+	/**
+	 * @return the line holding the given offset
+	 */
+	int getLineOf(int offset) {
+		int lo = 0;
+		int hi = getLineCount() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (getStart(mid) <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Account for text inserted into the content, which must already hold
+	 * it.
+	 * @return the number of lines added
+	 */
+	int insert(AbstractDocument.Content content, int offset, int len) {
+		moveGap(getLineOf(offset) + 1);
+		length += len;
+		int added = 0;
+		Segment s = new Segment();
+		final int chunk = 64 * 1024;
+		for (int done = 0; done < len; done += chunk) {
+			int n = Math.min(chunk, len - done);
+			try {
+				content.getChars(offset + done, n, s);
+			} catch (BadLocationException ble) {
+				throw new IllegalStateException("Line starts out of step with the text", ble);
+			}
+			for (int i = 0; i < n; i++) {
+				if (s.array[s.offset + i] == '\n') {
+					if (gapStart == gapEnd) { grow(); }
+					starts[gapStart++] = offset + done + i + 1;
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Account for text about to be removed.
+	 * @return the number of lines removed
+	 */
+	int remove(int offset, int len) {
+		moveGap(getLineOf(offset) + 1);
+		int removed = 0;
+		// the lines starting inside the removed text, or just after its
+		// last newline, go
+		while (gapEnd < starts.length && starts[gapEnd] + length <= offset + len) {
+			gapEnd++;
+			removed++;
+		}
+		length -= len;
+		return removed;
+	}
+
+	// Put the gap before the given line.
+	private void moveGap(int line) {
+		while (line < gapStart) {
+			gapStart--;
+			gapEnd--;
+			starts[gapEnd] = starts[gapStart] - length;
+		}
+		while (line > gapStart) {
+			starts[gapStart] = starts[gapEnd] + length;
+			gapStart++;
+			gapEnd++;
+		}
+	}
+
+	private void grow() {
+		int[] s = new int[starts.length * 2];
+		int tail = starts.length - gapEnd;
+		System.arraycopy(starts, 0, s, 0, gapStart);
+		System.arraycopy(starts, gapEnd, s, s.length - tail, tail);
+		gapEnd = s.length - tail;
+		starts = s;
+	}
+}
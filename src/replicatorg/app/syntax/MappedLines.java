@@ -0,0 +1,233 @@
+package replicatorg.app.syntax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.swing.text.Segment;
+
+/**
+ * The lines of a memory-mapped file, for viewing it without reading it in.
+ *
+ * Opening the file makes one pass over it to count its lines, noting where
+ * every BLOCK_LINES'th one starts, so the index stays a few hundred
+ * kilobytes however big the file is.  Blocks of lines are decoded (a byte to
+ * a character, as ISO-8859-1) when they're first looked at, with the starts
+ * of the lines in them, and the most recently used are kept; a viewer only
+ * ever looks at a screenful of lines at a time, so that's all that is ever
+ * decoded.
+ *
+ * Lines end with '\n', as in a Swing document, and there is a newline after
+ * the last one that isn't in the file.
+ */
+class MappedLines {
+	static final int BLOCK_LINES = 256;
+	private static final int MAX_BLOCKS = 64;
+	// for finding newlines a word at a time: each byte of a word xored with
+	// NEWLINES is zero where there was a newline, and the expression in the
+	// constructor turns zero bytes into 0x80 and the rest into 0
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+
+	// a decoded block of lines
+	private static class Block {
+		final int start;
+		final char[] text;
+		// the start of each line in the block, relative to the block's start
+		final int[] lineStarts;
+		Block(int start, char[] text, int[] lineStarts) {
+			this.start = start;
+			this.text = text;
+			this.lineStarts = lineStarts;
+		}
+	}
+
+	private final ByteBuffer bytes;
+	private final int length;
+	private final int lineCount;
+	// where line (i * BLOCK_LINES) starts
+	private final int[] blockStarts;
+
+	private final Map<Integer,Block> blocks = new LinkedHashMap<Integer,Block>(MAX_BLOCKS, 0.75f, true) {
+		private static final long serialVersionUID = 4592158767733266128L;
+
+		protected boolean removeEldestEntry(Map.Entry<Integer,Block> eldest) {
+			return size() > MAX_BLOCKS;
+		}
+	};
+
+	/**
+	 * Map the given file and count its lines.
+	 * @throws IOException if it can't be read, or is too big to be a
+	 * document (2GB)
+	 */
+	MappedLines(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size >= Integer.MAX_VALUE - 1) {
+				throw new IOException(file.getName() + " is too large to view.");
+			}
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			length = (int)size;
+		} finally {
+			// the mapping stays valid once the file is closed
+			in.close();
+		}
+		int[] starts = new int[16];
+		int count = 1;
+		ByteBuffer b = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int words = length & ~7;
+		int i = 0;
+		while (i < length) {
+			if (i < words) {
+				// count the newlines eight bytes at a time, and only look
+				// at the bytes one by one when a block starts among them
+				long v = b.getLong(i) ^ NEWLINES;
+				long found = ~(((v & LOW7) + LOW7) | v | LOW7);
+				int k = Long.bitCount(found);
+				if (k == 0 || (count - 1) / BLOCK_LINES == (count + k - 1) / BLOCK_LINES) {
+					count += k;
+					i += 8;
+					continue;
+				}
+			}
+			int end = (i < words) ? i + 8 : length;
+			for (; i < end; i++) {
+				if (b.get(i) != '\n') { continue; }
+				if (count % BLOCK_LINES == 0) {
+					int block = count / BLOCK_LINES;
+					if (block == starts.length) {
+						int[] grown = new int[block * 2];
+						System.arraycopy(starts, 0, grown, 0, block);
+						starts = grown;
+					}
+					starts[block] = i + 1;
+				}
+				count++;
+			}
+		}
+		lineCount = count;
+		blockStarts = starts;
+	}
+
+	/**
+	 * @return the length of the text, not counting the newline at the end
+	 */
+	int getLength() {
+		return length;
+	}
+
+	int getLineCount() {
+		return lineCount;
+	}
+
+	int getLineStart(int line) {
+		Block b = block(line / BLOCK_LINES);
+		return b.start + b.lineStarts[line % BLOCK_LINES];
+	}
+
+	/**
+	 * @return the offset just past the newline ending the given line
+	 */
+	int getLineEnd(int line) {
+		return (line + 1 < lineCount) ? getLineStart(line + 1) : length + 1;
+	}
+
+	/**
+	 * @return the line holding the given offset
+	 */
+	int getLineOf(int offset) {
+		int lo = 0;
+		int hi = (lineCount - 1) / BLOCK_LINES;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (blockStarts[mid] <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		Block b = block(lo);
+		int first = lo * BLOCK_LINES;
+		int rel = offset - b.start;
+		int l = 0;
+		int h = Math.min(BLOCK_LINES, lineCount - first) - 1;
+		while (l < h) {
+			int mid = (l + h + 1) >>> 1;
+			if (b.lineStarts[mid] <= rel) {
+				l = mid;
+			} else {
+				h = mid - 1;
+			}
+		}
+		return first + l;
+	}
+
+	/**
+	 * Fetch text.  A range within one block is handed out as the block's own
+	 * array, which the caller must not change, as with GapContent.
+	 */
+	void getChars(int where, int len, Segment txt) {
+		int line = getLineOf(where);
+		Block b = block(line / BLOCK_LINES);
+		if (where + len <= b.start + b.text.length) {
+			txt.array = b.text;
+			txt.offset = where - b.start;
+			txt.count = len;
+			return;
+		}
+		char[] chars = new char[len];
+		int done = 0;
+		while (done < len) {
+			int from = where + done - b.start;
+			int n = Math.min(b.text.length - from, len - done);
+			System.arraycopy(b.text, from, chars, done, n);
+			done += n;
+			if (done < len) {
+				b = block(getLineOf(where + done) / BLOCK_LINES);
+			}
+		}
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	// Decode a block of lines, or get it from the cache.
+	private synchronized Block block(int index) {
+		Block b = blocks.get(index);
+		if (b != null) { return b; }
+		int start = blockStarts[index];
+		int end = ((index + 1) * BLOCK_LINES < lineCount) ? blockStarts[index + 1] : length + 1;
+		char[] text = new char[end - start];
+		int fileEnd = Math.min(end, length);
+		byte[] raw = new byte[fileEnd - start];
+		ByteBuffer buf = bytes.duplicate();
+		buf.position(start);
+		buf.get(raw);
+		for (int i = 0; i < raw.length; i++) {
+			text[i] = (char)(raw[i] & 0xff);
+		}
+		if (end > length) {
+			// the newline that ends the document
+			text[text.length - 1] = '\n';
+		}
+		int lines = Math.min(BLOCK_LINES, lineCount - index * BLOCK_LINES);
+		int[] lineStarts = new int[lines];
+		int l = 1;
+		for (int i = 0; i < text.length && l < lines; i++) {
+			if (text[i] == '\n') {
+				lineStarts[l++] = i + 1;
+			}
+		}
+		b = new Block(start, text, lineStarts);
+		blocks.put(index, b);
+		return b;
+	}
+}
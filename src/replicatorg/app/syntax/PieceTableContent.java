@@ -0,0 +1,351 @@
+package replicatorg.app.syntax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Document content kept as a piece table: the text is a list of pieces, each
+ * a run of either the original file, which is memory mapped and never
+ * copied, or of a buffer that inserted text is appended to.  Inserting and
+ * removing text only splits and rearranges pieces, so editing a file of
+ * hundreds of megabytes costs about as much as editing a small one, and
+ * undo information is just the pieces that were taken out.
+ *
+ * The file is read a byte to a character (as ISO-8859-1), which is all
+ * GCode needs; text typed in that doesn't fit in a byte is written back as
+ * '?'.  Like GapContent, the content ends with a newline that isn't part of
+ * the document.
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+	// a run of one of the two buffers
+	private static class Piece {
+		final boolean added;
+		final int start;
+		final int length;
+		Piece(boolean added, int start, int length) {
+			this.added = added;
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	private static class Mark implements Position {
+		int offset;
+		Mark(int offset) { this.offset = offset; }
+		public int getOffset() { return offset; }
+	}
+
+	// the original text, or null if there isn't a file
+	private final ByteBuffer original;
+	// the text that has been inserted, in the order it was typed
+	private final StringBuilder added = new StringBuilder();
+	private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+	// the length of the text, not counting the newline at the end
+	private int length;
+	private final List<WeakReference<Mark>> marks = new ArrayList<WeakReference<Mark>>();
+
+	// the piece the last lookup found, and where it starts
+	private int cachedPiece = 0;
+	private int cachedStart = 0;
+
+	/**
+	 * Map the given file.
+	 * @throws IOException if it can't be read, or is too big to be a
+	 * document (2GB)
+	 */
+	public PieceTableContent(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size >= Integer.MAX_VALUE - 1) {
+				throw new IOException(file.getName() + " is too large to edit.");
+			}
+			original = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			length = (int)size;
+		} finally {
+			// the mapping stays valid once the file is closed
+			in.close();
+		}
+		if (length > 0) {
+			pieces.add(new Piece(false, 0, length));
+		}
+	}
+
+	/**
+	 * Start out empty.
+	 */
+	public PieceTableContent() {
+		original = null;
+		length = 0;
+	}
+
+	public synchronized int length() {
+		return length + 1;
+	}
+
+	/**
+	 * @return the number of pieces the text is made of; 1 for an unedited
+	 * file
+	 */
+	public synchronized int getPieceCount() {
+		return pieces.size();
+	}
+
+	public Position createPosition(int offset) throws BadLocationException {
+		// the newline at the end can be pointed at too
+		if (offset < 0 || offset > length + 1) {
+			throw new BadLocationException("Invalid position", offset);
+		}
+		Mark m = new Mark(offset);
+		synchronized(marks) {
+			marks.add(new WeakReference<Mark>(m));
+		}
+		return m;
+	}
+
+	public synchronized UndoableEdit insertString(int where, String str) throws BadLocationException {
+		if (where < 0 || where > length) {
+			throw new BadLocationException("Invalid insert", where);
+		}
+		if (str.length() == 0) { return null; }
+		int start = added.length();
+		added.append(str);
+		List<Piece> inserted = new ArrayList<Piece>(1);
+		inserted.add(new Piece(true, start, str.length()));
+		insertPieces(where, inserted);
+		return new Edit(where, str.length(), null);
+	}
+
+	public synchronized UndoableEdit remove(int where, int nitems) throws BadLocationException {
+		if (where < 0 || nitems < 0 || where + nitems > length) {
+			throw new BadLocationException("Invalid remove", where + nitems);
+		}
+		if (nitems == 0) { return null; }
+		return new Edit(where, nitems, removePieces(where, nitems));
+	}
+
+	public String getString(int where, int len) throws BadLocationException {
+		Segment s = new Segment();
+		getChars(where, len, s);
+		return new String(s.array, s.offset, s.count);
+	}
+
+	public synchronized void getChars(int where, int len, Segment txt) throws BadLocationException {
+		if (where < 0 || len < 0 || where + len > length + 1) {
+			throw new BadLocationException("Invalid range", where + len);
+		}
+		// a segment's array may belong to some other content, so it isn't
+		// written into
+		char[] chars = new char[len];
+		copy(where, len, chars, 0);
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	/**
+	 * Write the text to the given stream, a byte per character.
+	 */
+	public synchronized void writeTo(OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		for (Piece p : pieces) {
+			int done = 0;
+			while (done < p.length) {
+				int n = Math.min(buffer.length, p.length - done);
+				if (p.added) {
+					for (int i = 0; i < n; i++) {
+						char c = added.charAt(p.start + done + i);
+						buffer[i] = (c < 256) ? (byte)c : (byte)'?';
+					}
+				} else {
+					ByteBuffer b = original.duplicate();
+					b.position(p.start + done);
+					b.get(buffer, 0, n);
+				}
+				out.write(buffer, 0, n);
+				done += n;
+			}
+		}
+	}
+
+	// Copy text into the array, with the newline at the end if asked for.
+	private void copy(int where, int len, char[] chars, int offset) {
+		int end = where + len;
+		if (end > length) {
+			chars[offset + length - where] = '\n';
+			end = length;
+		}
+		if (where >= end) { return; }
+		int i = findPiece(where);
+		int pieceStart = cachedStart;
+		byte[] bytes = null;
+		while (where < end) {
+			Piece p = pieces.get(i);
+			int from = where - pieceStart;
+			int n = Math.min(p.length - from, end - where);
+			if (p.added) {
+				added.getChars(p.start + from, p.start + from + n, chars, offset);
+			} else {
+				if (bytes == null || bytes.length < n) { bytes = new byte[n]; }
+				ByteBuffer b = original.duplicate();
+				b.position(p.start + from);
+				b.get(bytes, 0, n);
+				for (int k = 0; k < n; k++) {
+					chars[offset + k] = (char)(bytes[k] & 0xff);
+				}
+			}
+			offset += n;
+			where += n;
+			pieceStart += p.length;
+			i++;
+		}
+	}
+
+	// The index of the piece holding the given offset, which must be less
+	// than the length; its start is left in cachedStart.
+	private int findPiece(int offset) {
+		int i = cachedPiece;
+		int start = cachedStart;
+		if (i >= pieces.size() || offset < start) {
+			i = 0;
+			start = 0;
+		}
+		while (offset >= start + pieces.get(i).length) {
+			start += pieces.get(i).length;
+			i++;
+		}
+		cachedPiece = i;
+		cachedStart = start;
+		return i;
+	}
+
+	// Make sure a piece starts at the given offset, and return its index
+	// (the number of pieces if the offset is the end).
+	private int split(int offset) {
+		if (offset == length) { return pieces.size(); }
+		int i = findPiece(offset);
+		if (offset == cachedStart) { return i; }
+		Piece p = pieces.get(i);
+		int head = offset - cachedStart;
+		pieces.set(i, new Piece(p.added, p.start, head));
+		pieces.add(i + 1, new Piece(p.added, p.start + head, p.length - head));
+		cachedPiece = i + 1;
+		cachedStart = offset;
+		return i + 1;
+	}
+
+	private synchronized void insertPieces(int where, List<Piece> inserted) {
+		int n = 0;
+		for (Piece p : inserted) { n += p.length; }
+		int i = split(where);
+		// typing extends the last piece typed rather than adding one
+		if (inserted.size() == 1 && i > 0) {
+			Piece prev = pieces.get(i - 1);
+			Piece p = inserted.get(0);
+			if (prev.added && p.added && prev.start + prev.length == p.start) {
+				pieces.set(i - 1, new Piece(true, prev.start, prev.length + p.length));
+				inserted = new ArrayList<Piece>(0);
+			}
+		}
+		pieces.addAll(i, inserted);
+		length += n;
+		resetCache();
+		synchronized(marks) {
+			Iterator<WeakReference<Mark>> it = marks.iterator();
+			while (it.hasNext()) {
+				Mark m = it.next().get();
+				if (m == null) { it.remove(); continue; }
+				if (m.offset > where || (m.offset == where && where != 0)) {
+					m.offset += n;
+				}
+			}
+		}
+	}
+
+	private synchronized List<Piece> removePieces(int where, int n) {
+		int i = split(where);
+		int j = split(where + n);
+		List<Piece> sub = pieces.subList(i, j);
+		List<Piece> removed = new ArrayList<Piece>(sub);
+		sub.clear();
+		length -= n;
+		resetCache();
+		synchronized(marks) {
+			Iterator<WeakReference<Mark>> it = marks.iterator();
+			while (it.hasNext()) {
+				Mark m = it.next().get();
+				if (m == null) { it.remove(); continue; }
+				if (m.offset >= where + n) {
+					m.offset -= n;
+				} else if (m.offset > where) {
+					m.offset = where;
+				}
+			}
+		}
+		return removed;
+	}
+
+	private void resetCache() {
+		cachedPiece = 0;
+		cachedStart = 0;
+	}
+
+	/**
+	 * Undoes an insert or a remove by taking the pieces out or putting them
+	 * back; no text is copied either way.
+	 */
+	class Edit extends AbstractUndoableEdit {
+		private static final long serialVersionUID = 2868701775049779693L;
+
+		private final int where;
+		private final int length;
+		// the pieces that are out of the text: for a remove, until it is
+		// undone; for an insert, once it is
+		private List<Piece> out;
+		private final boolean insert;
+
+		Edit(int where, int length, List<Piece> removed) {
+			this.where = where;
+			this.length = length;
+			this.out = removed;
+			this.insert = (removed == null);
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			toggle(insert);
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			toggle(!insert);
+		}
+
+		private void toggle(boolean takeOut) {
+			if (takeOut) {
+				out = removePieces(where, length);
+			} else {
+				insertPieces(where, out);
+				out = null;
+			}
+		}
+	}
+}
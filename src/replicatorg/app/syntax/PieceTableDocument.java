@@ -0,0 +1,162 @@
+package replicatorg.app.syntax;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.Element;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import replicatorg.app.Base;
+
+/**
+ * A document for files too big to read into memory: the text is a
+ * PieceTableContent over the mapped file, and the lines are a LineStarts
+ * instead of an element and two positions each.
+ *
+ * Lines are tokenized as they are painted rather than in the background
+ * when the token marker is set, so opening a file costs one pass to find
+ * where its lines start, whatever its size.  A token that runs over several lines
+ * (a C comment) is only carried from one line to the next once the first
+ * has been painted, which GCode, whose comments end with the line, never
+ * notices.
+ */
+public class PieceTableDocument extends SyntaxDocument {
+	private static final long serialVersionUID = 6818360165625293029L;
+
+	private final PieceTableContent content;
+	private final LineStarts lines = new LineStarts();
+	private final LineRoot root = new LineRoot(this) {
+		int getLineCount() { return lines.getLineCount(); }
+		int getLineStart(int line) { return lines.getStart(line); }
+		int getLineOf(int offset) { return lines.getLineOf(offset); }
+	};
+
+	/**
+	 * Open the given file.
+	 * @throws IOException if it can't be read
+	 */
+	public PieceTableDocument(File file) throws IOException {
+		this(new PieceTableContent(file));
+	}
+
+	private PieceTableDocument(PieceTableContent content) {
+		super(content);
+		this.content = content;
+		lines.insert(content, 0, content.length() - 1);
+	}
+
+	public Element getDefaultRootElement() {
+		return root;
+	}
+
+	/**
+	 * Lines are tokenized when painted, rather than in the background,
+	 * which would keep a LineInfo for every line.
+	 */
+	protected boolean isTokenizedInBackground() {
+		return false;
+	}
+
+	/**
+	 * @return the number of pieces the text is made of; see
+	 * PieceTableContent.getPieceCount()
+	 */
+	public int getPieceCount() {
+		return content.getPieceCount();
+	}
+
+	/**
+	 * Write the text to the given file.  The text is written to a temporary
+	 * file next to it first, which then replaces it, since the file may
+	 * well be the one being read from.  If it can't replace it, the
+	 * temporary file is kept, and the exception names it.
+	 */
+	public void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+		readLock();
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				content.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe) {
+			temp.delete();
+			throw ioe;
+		} finally {
+			readUnlock();
+		}
+		Base.replaceFile(temp, file);
+	}
+
+	protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+		int line = lines.getLineOf(chng.getOffset());
+		LinesEdit edit = new LinesEdit(line, chng.getOffset(), chng.getLength(), true);
+		edit.apply(true);
+		chng.addEdit(edit);
+	}
+
+	protected void removeUpdate(DefaultDocumentEvent chng) {
+		int line = lines.getLineOf(chng.getOffset());
+		LinesEdit edit = new LinesEdit(line, chng.getOffset(), chng.getLength(), false);
+		edit.apply(false);
+		chng.addEdit(edit);
+	}
+
+	/**
+	 * Keeps the line starts in step with an insert or a remove as it is
+	 * done, undone and redone, and tells listeners how many lines came and
+	 * went.  The line that was changed counts as removed and added again,
+	 * as with PlainDocument.
+	 */
+	private class LinesEdit extends AbstractUndoableEdit implements DocumentEvent.ElementChange {
+		private static final long serialVersionUID = 8171162506165133988L;
+
+		private final int line;
+		private final int offset;
+		private final int length;
+		private final boolean insert;
+		private int added;
+		private int removed;
+
+		LinesEdit(int line, int offset, int length, boolean insert) {
+			this.line = line;
+			this.offset = offset;
+			this.length = length;
+			this.insert = insert;
+		}
+
+		// Insert or remove the text's lines.  An insert is applied after the
+		// text has gone in, and a remove before it comes out.
+		void apply(boolean inserting) {
+			int n = inserting ? lines.insert(content, offset, length)
+				: lines.remove(offset, length);
+			added = 1 + (inserting ? n : 0);
+			removed = 1 + (inserting ? 0 : n);
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			apply(!insert);
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			apply(insert);
+		}
+
+		public Element getElement() { return root; }
+		public int getIndex() { return line; }
+		public Element[] getChildrenAdded() { return root.getLines(line, added); }
+		public Element[] getChildrenRemoved() { return root.getLines(line, removed); }
+	}
+}
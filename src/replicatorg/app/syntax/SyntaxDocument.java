@@ -9,7 +9,9 @@
 
 package replicatorg.app.syntax;
 
+import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
+import javax.swing.text.AbstractDocument;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
 import javax.swing.text.PlainDocument;
@@ -25,6 +27,24 @@ import javax.swing.undo.UndoableEdit;
  */
 public class SyntaxDocument extends PlainDocument
 {
+        /**
+         * Creates an empty document.
+         */
+        public SyntaxDocument()
+        {
+                super();
+        }
+
+        /**
+         * Creates a document kept in the given content, for subclasses
+         * that keep text somewhere other than a gap buffer.
+         * @param c The content
+         */
+        protected SyntaxDocument(AbstractDocument.Content c)
+        {
+                super(c);
+        }
+
         /**
          * Returns the token marker that is to be used to split lines
          * of this document up into tokens. May return null if this
@@ -64,35 +84,137 @@ public class SyntaxDocument extends PlainDocument
         /**
          * Reparses the document, by passing the specified lines to the
          * token marker. This should be called after a large quantity of
-         * text is first inserted.
+         * text is first inserted.<p>
+         *
+         * The lines are only marked as changed here; they are tokenized
+         * in the background, with the lines after them whose tokens
+         * that changes, a few milliseconds' worth at a time, and the
+         * document fires a change event for the lines done after each.
          * @param start The first line to parse
          * @param len The number of lines, after the first one to parse
          */
         public void tokenizeLines(int start, int len)
         {
-                if(tokenMarker == null || !tokenMarker.supportsMultilineTokens())
+                if(tokenMarker == null)
                         return;
 
-                Segment lineSegment = new Segment();
-                Element map = getDefaultRootElement();
+                tokenMarker.invalidateLines(start,len);
+                if(isTokenizedInBackground() && tokenMarker.supportsMultilineTokens())
+                        Tokenizer.schedule(this);
+        }
+
+        /**
+         * Returns the tokens of a line, for painting, or null if the
+         * line should be painted plain: there is no token marker, or
+         * the lines before it haven't been tokenized yet, and a token
+         * running over several lines may change its colors.
+         * @param line The line number
+         * @param text The text of the line
+         */
+        public Token getLineTokens(int line, Segment text)
+        {
+                TokenMarker tm = tokenMarker;
+                if(tm == null)
+                        return null;
+
+                synchronized(tm)
+                {
+                        if(line >= tm.getLineCount())
+                                return null;
+                        boolean background = isTokenizedInBackground()
+                                && tm.supportsMultilineTokens();
+                        if(background && tm.getFirstDirtyLine() < line)
+                                return null;
+
+                        Token tokens = tm.getTokens(text,line);
+                        // tokenizing this line may have changed where the
+                        // next one starts
+                        if(background && tm.getFirstDirtyLine() < tm.getLineCount())
+                                Tokenizer.schedule(this);
+                        return tokens;
+                }
+        }
 
-                len += start;
+        /**
+         * Returns true if lines are tokenized in the background, in
+         * order, so that a token that runs over several lines is always
+         * colored right. Subclasses for documents too big for that may
+         * return false, and lines are then tokenized only when painted.
+         */
+        protected boolean isTokenizedInBackground()
+        {
+                return true;
+        }
+
+        /**
+         * Tokenizes the dirty lines, in order, for a few milliseconds.
+         * Called by the background tokenizer.
+         * @return true if there are dirty lines left
+         */
+        boolean tokenizeBatch()
+        {
+                final TokenMarker tm = tokenMarker;
+                if(tm == null || !tm.supportsMultilineTokens())
+                        return false;
 
-                try
+                // the first and last lines tokenized, and whether there
+                // are more
+                final int[] done = { -1, -1, 0 };
+                // hold the document still, so the lines match the token
+                // marker's
+                render(new Runnable()
                 {
-                        for(int i = start; i < len; i++)
+                        public void run()
                         {
-                                Element lineElement = map.getElement(i);
-                                int lineStart = lineElement.getStartOffset();
-                                getText(lineStart,lineElement.getEndOffset()
-                                        - lineStart - 1,lineSegment);
-                                tokenMarker.markTokens(lineSegment,i);
+                                synchronized(tm)
+                                {
+                                        if(tm != tokenMarker)
+                                                return;
+                                        Segment lineSegment = new Segment();
+                                        Element map = getDefaultRootElement();
+                                        long end = System.nanoTime() + BATCH_NANOS;
+                                        int line;
+                                        while((line = tm.getFirstDirtyLine()) < tm.getLineCount())
+                                        {
+                                                if(System.nanoTime() > end)
+                                                {
+                                                        done[2] = 1;
+                                                        break;
+                                                }
+                                                try
+                                                {
+                                                        Element lineElement = map.getElement(line);
+                                                        int lineStart = lineElement.getStartOffset();
+                                                        getText(lineStart,lineElement.getEndOffset()
+                                                                - lineStart - 1,lineSegment);
+                                                }
+                                                catch(BadLocationException bl)
+                                                {
+                                                        bl.printStackTrace();
+                                                        return;
+                                                }
+                                                tm.markTokens(lineSegment,line);
+                                                if(done[0] == -1 || line < done[0])
+                                                        done[0] = line;
+                                                done[1] = Math.max(done[1],line);
+                                        }
+                                }
                         }
-                }
-                catch(BadLocationException bl)
+                });
+
+                if(done[0] != -1)
                 {
-                        bl.printStackTrace();
+                        final int first = done[0];
+                        final int last = done[1];
+                        SwingUtilities.invokeLater(new Runnable()
+                        {
+                                public void run()
+                                {
+                                        fireTokensChanged(first,last);
+                                }
+                        });
                 }
+                return done[2] != 0;
         }
 
         /**
@@ -123,6 +245,26 @@ public class SyntaxDocument extends PlainDocument
         // protected members
         protected TokenMarker tokenMarker;
 
+        // how long the background tokenizer holds the document at a time
+        private static final long BATCH_NANOS = 5000000L;
+
+        // Tell listeners that lines have been tokenized, so they can be
+        // painted again, as a change event for the text they hold.  The
+        // lines may have moved since, in which case the edit that moved
+        // them has had them painted again anyway.
+        private void fireTokensChanged(int first, int last)
+        {
+                Element map = getDefaultRootElement();
+                int count = map.getElementCount();
+                if(first >= count)
+                        return;
+                int start = map.getElement(first).getStartOffset();
+                int end = Math.min(map.getElement(Math.min(last,count - 1))
+                        .getEndOffset() - 1,getLength());
+                fireChangedUpdate(new DefaultDocumentEvent(start,
+                        Math.max(0,end - start),DocumentEvent.EventType.CHANGE));
+        }
+
         /**
          * We overwrite this method to update the token marker
          * state immediately so that any event listeners get a
@@ -139,6 +281,13 @@ public class SyntaxDocument extends PlainDocument
                                 tokenMarker.insertLines(ch.getIndex() + 1,
                                         ch.getChildrenAdded().length -
                                         ch.getChildrenRemoved().length);
+                                tokenizeLines(ch.getIndex(),
+                                        ch.getChildrenAdded().length);
+                        }
+                        else
+                        {
+                                tokenizeLines(getDefaultRootElement()
+                                        .getElementIndex(evt.getOffset()),1);
                         }
                 }
 
@@ -161,6 +310,13 @@ public class SyntaxDocument extends PlainDocument
                                 tokenMarker.deleteLines(ch.getIndex() + 1,
                                         ch.getChildrenRemoved().length -
                                         ch.getChildrenAdded().length);
+                                tokenizeLines(ch.getIndex(),
+                                        ch.getChildrenAdded().length);
+                        }
+                        else
+                        {
+                                tokenizeLines(getDefaultRootElement()
+                                        .getElementIndex(evt.getOffset()),1);
                         }
                 }
 
@@ -626,8 +626,14 @@ public void setFont(Font font)
                                  Color defaultColor, int x, int y)
   {
     textArea.getLineText(currentLineIndex,currentLine);
-    currentLineTokens = tokenMarker.markTokens(currentLine,
-                                               currentLineIndex);
+    currentLineTokens = textArea.getDocument().getLineTokens(currentLineIndex,
+                                                             currentLine);
+    // lines are painted plain until the document has tokenized those
+    // before them
+    if (currentLineTokens == null) {
+      paintPlainLine(gfx,line,defaultFont,defaultColor,x,y);
+      return;
+    }
 
     paintHighlight(gfx,line,y);
 
@@ -9,6 +9,8 @@
 
 package replicatorg.app.syntax;
 
+import java.util.Arrays;
+
 import javax.swing.text.Segment;
 
 /**
@@ -19,7 +21,12 @@ import javax.swing.text.Segment;
  * For performance reasons, the linked list of tokens is reused after each
  * line is tokenized. Therefore, the return value of <code>markTokens</code>
  * should only be used for immediate painting. Notably, it cannot be
- * cached.
+ * cached. <code>getTokens</code> returns a list of the line's own, which
+ * is kept until the line changes or too many others have been asked for.<p>
+ *
+ * A token marker may be used from more than one thread (the document's
+ * background tokenizer and the painter), so the methods that touch the
+ * line info are synchronized on it.
  *
  * @author Slava Pestov
  * @version $Id: TokenMarker.java 85 2006-01-12 23:24:12Z mellis $
@@ -34,7 +41,7 @@ public abstract class TokenMarker
          * @param line The line
          * @param lineIndex The line number
          */
-        public Token markTokens(Segment line, int lineIndex)
+        public synchronized Token markTokens(Segment line, int lineIndex)
         {
                 if(lineIndex >= length)
                 {
@@ -44,18 +51,42 @@ public abstract class TokenMarker
 
                 lastToken = null;
 
-                LineInfo info = lineInfo[lineIndex];
+                // line info is only made for lines that get tokenized,
+                // so that huge documents don't pay for lines never shown
+                LineInfo info = getLineInfo(lineIndex);
+                boolean fresh = (info == null);
+                if(fresh)
+                {
+                        info = new LineInfo();
+                        setLineInfo(lineIndex,info);
+                }
                 LineInfo prev;
                 if(lineIndex == 0)
                         prev = null;
                 else
-                        prev = lineInfo[lineIndex - 1];
+                        prev = getLineInfo(lineIndex - 1);
 
                 byte oldToken = info.token;
                 byte token = markTokensImpl(prev == null ?
                         Token.NULL : prev.token,line,lineIndex);
 
                 info.token = token;
+                info.dirty = false;
+                info.tokens = null;
+
+                // the next line starts where this one ends, so if that
+                // has changed (or was never known), so may its tokens
+                if((fresh || oldToken != token) && lineIndex + 1 < length)
+                {
+                        LineInfo next = getLineInfo(lineIndex + 1);
+                        if(next != null)
+                        {
+                                next.dirty = true;
+                                next.tokens = null;
+                        }
+                        if(firstDirty > lineIndex + 1)
+                                firstDirty = lineIndex + 1;
+                }
 
                 /*
                  * This is a foul hack. It stops nextLineRequested
@@ -105,6 +136,41 @@ public abstract class TokenMarker
                 return firstToken;
         }
 
+        /**
+         * Returns the tokens of a line, tokenizing it only if it has
+         * changed since they were last asked for. Unlike the list that
+         * <code>markTokens</code> returns, this one is the line's own
+         * and isn't changed afterwards, so it may be held on to.
+         * @param line The line
+         * @param lineIndex The line number
+         */
+        public synchronized Token getTokens(Segment line, int lineIndex)
+        {
+                LineInfo info = (lineIndex < length) ? getLineInfo(lineIndex) : null;
+                if(info != null && !info.dirty && info.tokens != null)
+                        return info.tokens;
+
+                markTokens(line,lineIndex);
+
+                // copy the list, and keep the copy for a while
+                Token first = new Token(firstToken.length,firstToken.id);
+                Token last = first;
+                for(Token t = firstToken; t.id != Token.END; )
+                {
+                        t = t.next;
+                        last.next = new Token(t.length,t.id);
+                        last = last.next;
+                }
+                info = getLineInfo(lineIndex);
+                info.tokens = first;
+                LineInfo evicted = cached[nextCached];
+                if(evicted != null)
+                        evicted.tokens = null;
+                cached[nextCached] = info;
+                nextCached = (nextCached + 1) % cached.length;
+                return first;
+        }
+
         /**
          * An abstract method that splits a line up into tokens. It
          * should parse the line, and call <code>addToken()</code> to
@@ -146,20 +212,17 @@ public abstract class TokenMarker
          * @param index The first line number
          * @param lines The number of lines
          */
-        public void insertLines(int index, int lines)
+        public synchronized void insertLines(int index, int lines)
         {
                 if(lines <= 0)
                         return;
+                ensureCapacity(length + lines - 1);
+                moveGap(index);
+                // the gap is all nulls, so the new lines have no info yet
+                gapStart += lines;
                 length += lines;
-                ensureCapacity(length);
-                int len = index + lines;
-                System.arraycopy(lineInfo,index,lineInfo,len,
-                        lineInfo.length - len);
-
-                for(int i = index + lines - 1; i >= index; i--)
-                {
-                        lineInfo[i] = new LineInfo();
-                }
+                if(firstDirty > index)
+                        firstDirty = index;
         }
 
         /**
@@ -169,20 +232,61 @@ public abstract class TokenMarker
          * @param index The first line number
          * @param lines The number of lines
          */
-        public void deleteLines(int index, int lines)
+        public synchronized void deleteLines(int index, int lines)
         {
                 if (lines <= 0)
                         return;
-                int len = index + lines;
+                moveGap(index);
+                Arrays.fill(lineInfo,gapEnd,gapEnd + lines,null);
+                gapEnd += lines;
                 length -= lines;
-                System.arraycopy(lineInfo,len,lineInfo,
-                        index,lineInfo.length - len);
+                if(firstDirty > index)
+                        firstDirty = index;
+        }
+
+        /**
+         * Informs the token marker that the text of lines has changed,
+         * so they need to be tokenized again.
+         * @param index The first line number
+         * @param lines The number of lines
+         */
+        public synchronized void invalidateLines(int index, int lines)
+        {
+                int end = Math.min(index + lines,length);
+                for(int i = index; i < end; i++)
+                {
+                        LineInfo info = getLineInfo(i);
+                        if(info != null)
+                        {
+                                info.dirty = true;
+                                info.tokens = null;
+                        }
+                }
+                if(firstDirty > index)
+                        firstDirty = index;
+        }
+
+        /**
+         * Returns the first line that has changed, or not been
+         * tokenized at all, since it was last tokenized; every line
+         * before it is known. Returns the line count if there is none.
+         */
+        public synchronized int getFirstDirtyLine()
+        {
+                while(firstDirty < length)
+                {
+                        LineInfo info = getLineInfo(firstDirty);
+                        if(info == null || info.dirty)
+                                break;
+                        firstDirty++;
+                }
+                return firstDirty;
         }
 
         /**
          * Returns the number of lines in this token marker.
          */
-        public int getLineCount()
+        public synchronized int getLineCount()
         {
                 return length;
         }
@@ -212,12 +316,28 @@ public abstract class TokenMarker
         protected Token lastToken;
 
         /**
-         * An array for storing information about lines. It is enlarged and
-         * shrunk automatically by the <code>insertLines()</code> and
-         * <code>deleteLines()</code> methods.
+         * An array for storing information about lines. It is enlarged
+         * automatically by the <code>insertLines()</code> method. It is a
+         * gap buffer: the lines before <code>gapStart</code> come first,
+         * and the rest are at the end, from <code>gapEnd</code>, so that
+         * inserting and deleting lines only moves those between the
+         * last edit and this one. Use <code>getLineInfo()</code> to read
+         * it by line number.
          */
         protected LineInfo[] lineInfo;
 
+        /**
+         * Where the gap in the <code>lineInfo</code> array starts, which
+         * is the number of lines before it.
+         */
+        protected int gapStart;
+
+        /**
+         * Where the lines after the gap in the <code>lineInfo</code>
+         * array start.
+         */
+        protected int gapEnd;
+
         /**
          * The number of lines in the model being tokenized. This can be
          * less than the length of the <code>lineInfo</code> array.
@@ -234,6 +354,20 @@ public abstract class TokenMarker
          */
         protected boolean nextLineRequested;
 
+        /**
+         * No line before this one is dirty; see
+         * <code>getFirstDirtyLine()</code>.
+         */
+        protected int firstDirty;
+
+        /**
+         * The lines whose token lists are being kept, oldest first from
+         * <code>nextCached</code>. Keeping them all would cost several
+         * times the text of the document.
+         */
+        private final LineInfo[] cached = new LineInfo[512];
+        private int nextCached;
+
         /**
          * Creates a new <code>TokenMarker</code>. This DOES NOT create
          * a lineInfo array; an initial call to <code>insertLines()</code>
@@ -257,14 +391,59 @@ public abstract class TokenMarker
          */
         protected void ensureCapacity(int index)
         {
-                if(lineInfo == null)
-                        lineInfo = new LineInfo[index + 1];
-                else if(lineInfo.length <= index)
+                int size = (lineInfo == null) ? 0 : lineInfo.length;
+                if(size > index)
+                        return;
+                // an eighth to spare, rather than double, since a huge
+                // document is a long array already
+                LineInfo[] lineInfoN = new LineInfo[index + 1 + (index >> 3) + 16];
+                int after = size - gapEnd;
+                if(lineInfo != null)
+                {
+                        System.arraycopy(lineInfo,0,lineInfoN,0,gapStart);
+                        System.arraycopy(lineInfo,gapEnd,lineInfoN,
+                                lineInfoN.length - after,after);
+                }
+                gapEnd = lineInfoN.length - after;
+                lineInfo = lineInfoN;
+        }
+
+        /**
+         * Returns the information about a line, or null if it hasn't
+         * been tokenized.
+         * @param lineIndex The line number
+         */
+        protected LineInfo getLineInfo(int lineIndex)
+        {
+                return lineInfo[lineIndex < gapStart ? lineIndex
+                        : lineIndex + gapEnd - gapStart];
+        }
+
+        private void setLineInfo(int lineIndex, LineInfo info)
+        {
+                lineInfo[lineIndex < gapStart ? lineIndex
+                        : lineIndex + gapEnd - gapStart] = info;
+        }
+
+        // Move the gap in the line info array to just before the given
+        // line, clearing what it leaves behind.
+        private void moveGap(int index)
+        {
+                if(index < gapStart)
+                {
+                        int n = gapStart - index;
+                        System.arraycopy(lineInfo,index,lineInfo,gapEnd - n,n);
+                        Arrays.fill(lineInfo,index,Math.min(gapStart,gapEnd - n),null);
+                        gapStart = index;
+                        gapEnd -= n;
+                }
+                else if(index > gapStart)
                 {
-                        LineInfo[] lineInfoN = new LineInfo[(index + 1) * 2];
-                        System.arraycopy(lineInfo,0,lineInfoN,0,
-                                         lineInfo.length);
-                        lineInfo = lineInfoN;
+                        int n = index - gapStart;
+                        System.arraycopy(lineInfo,gapEnd,lineInfo,gapStart,n);
+                        Arrays.fill(lineInfo,Math.max(gapEnd,index),gapEnd + n,null);
+                        gapStart = index;
+                        gapEnd += n;
                 }
         }
 
@@ -341,6 +520,18 @@ public abstract class TokenMarker
                  */
                 public byte token;
 
+                /**
+                 * True if the line has changed, or the line before it
+                 * has changed how it ends, since it was tokenized.
+                 */
+                public boolean dirty;
+
+                /**
+                 * The line's tokens, as returned by <code>getTokens()</code>,
+                 * or null if they aren't being kept.
+                 */
+                public Token tokens;
+
                 /**
                  * This is for use by the token marker implementations
                  * themselves. It can be used to store anything that
@@ -0,0 +1,66 @@
+package replicatorg.app.syntax;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * The thread that tokenizes documents in the background, shared by all of
+ * them.  Documents with lines to tokenize are queued, and each is given a
+ * batch of a few milliseconds in turn (see SyntaxDocument.tokenizeBatch())
+ * until it has none left, so that loading a big file or pasting a long
+ * block doesn't hold up painting while every line after it is tokenized.
+ */
+class Tokenizer {
+	// documents waiting for a batch, in the order they asked
+	private static final Set<SyntaxDocument> queue = new LinkedHashSet<SyntaxDocument>();
+	private static Thread thread = null;
+
+	/**
+	 * Queue the document for tokenizing, if it isn't already.
+	 */
+	static synchronized void schedule(SyntaxDocument doc) {
+		if (!queue.add(doc)) return;
+		if (thread == null) {
+			thread = new Thread("Syntax tokenizer") {
+				public void run() {
+					while (true) {
+						SyntaxDocument next;
+						try {
+							next = take();
+						} catch (InterruptedException ie) {
+							return;
+						}
+						boolean more = false;
+						try {
+							more = next.tokenizeBatch();
+						} catch (RuntimeException e) {
+							Base.logger.log(Level.WARNING, "Couldn't tokenize document", e);
+						}
+						if (more) {
+							schedule(next);
+						}
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.start();
+		} else {
+			Tokenizer.class.notify();
+		}
+	}
+
+	private static synchronized SyntaxDocument take() throws InterruptedException {
+		while (queue.isEmpty()) {
+			Tokenizer.class.wait();
+		}
+		Iterator<SyntaxDocument> i = queue.iterator();
+		SyntaxDocument doc = i.next();
+		i.remove();
+		return doc;
+	}
+}
@@ -0,0 +1,112 @@
+package replicatorg.app.syntax;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.UIManager;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * A read-only document for viewing files too big to edit.  The text area
+ * paints it a screenful of lines at a time from a MappedLines, so opening a
+ * file costs one pass to count its lines and the heap holds only the lines
+ * lately shown, whatever the size of the file.
+ *
+ * Viewed files aren't colored, since a token marker keeps state for every
+ * line of its document.  Edits are refused with a beep.
+ */
+public class ViewerDocument extends SyntaxDocument {
+	private static final long serialVersionUID = -5730657471461632881L;
+
+	private final MappedLines lines;
+	private final LineRoot root;
+
+	/**
+	 * Open the given file.
+	 * @throws IOException if it can't be read
+	 */
+	public ViewerDocument(File file) throws IOException {
+		this(new MappedLines(file));
+	}
+
+	private ViewerDocument(final MappedLines lines) {
+		super(new MappedContent(lines));
+		this.lines = lines;
+		this.root = new LineRoot(this) {
+			int getLineCount() { return lines.getLineCount(); }
+			int getLineStart(int line) { return lines.getLineStart(line); }
+			int getLineOf(int offset) { return lines.getLineOf(offset); }
+		};
+	}
+
+	public Element getDefaultRootElement() {
+		return root;
+	}
+
+	/**
+	 * Does nothing; see above.
+	 */
+	public void setTokenMarker(TokenMarker tm) {
+	}
+
+	public void tokenizeLines(int start, int len) {
+	}
+
+	public void insertString(int offs, String str, AttributeSet a) {
+		UIManager.getLookAndFeel().provideErrorFeedback(null);
+	}
+
+	public void remove(int offs, int len) {
+		UIManager.getLookAndFeel().provideErrorFeedback(null);
+	}
+
+	// The text of a MappedLines.  Since it never changes, positions don't
+	// need to be tracked.
+	private static class MappedContent implements AbstractDocument.Content {
+		private final MappedLines lines;
+
+		MappedContent(MappedLines lines) {
+			this.lines = lines;
+		}
+
+		public Position createPosition(final int offset) throws BadLocationException {
+			if (offset < 0 || offset > lines.getLength() + 1) {
+				throw new BadLocationException("Invalid position", offset);
+			}
+			return new Position() {
+				public int getOffset() { return offset; }
+			};
+		}
+
+		public int length() {
+			return lines.getLength() + 1;
+		}
+
+		public UndoableEdit insertString(int where, String str) throws BadLocationException {
+			throw new BadLocationException("Document is read-only", where);
+		}
+
+		public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+			throw new BadLocationException("Document is read-only", where);
+		}
+
+		public String getString(int where, int len) throws BadLocationException {
+			Segment s = new Segment();
+			getChars(where, len, s);
+			return new String(s.array, s.offset, s.count);
+		}
+
+		public void getChars(int where, int len, Segment txt) throws BadLocationException {
+			if (where < 0 || len < 0 || where + len > length()) {
+				throw new BadLocationException("Invalid range", where + len);
+			}
+			lines.getChars(where, len, txt);
+		}
+	}
+}
@@ -6,6 +6,26 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	/**
+	 * The CRC of every possible byte, for updating a byte at a time instead
+	 * of a bit at a time.
+	 */
+	private static final byte[] TABLE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x01) != 0) {
+					crc = (crc >>> 1) ^ 0x8c;
+				} else {
+					crc = crc >>> 1;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +44,29 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Update the CRC with a run of sequential data.
+	 */
+	public void update(byte[] data, int offset, int length) {
+		crc = compute(crc, data, offset, length);
+	}
+
+	/**
+	 * Compute the CRC of a run of data in one go.
+	 */
+	public static byte compute(byte[] data, int offset, int length) {
+		return (byte) compute(0, data, offset, length);
+	}
+
+	private static int compute(int crc, byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			crc = TABLE[(crc ^ data[i]) & 0xff] & 0xff;
 		}
+		return crc;
 	}
 
 	/**
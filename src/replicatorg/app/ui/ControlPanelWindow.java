@@ -65,6 +65,7 @@ import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.StatusScheduler;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.ToolModel;
@@ -87,8 +88,6 @@ public class ControlPanelWindow extends JFrame implements
 
 	protected UpdateThread updateThread;
 
-	protected PollThread pollThread;
-
 	private static ControlPanelWindow instance = null;
 
 	public static synchronized ControlPanelWindow getControlPanel(MachineController m) {
@@ -136,8 +135,11 @@ public class ControlPanelWindow extends JFrame implements
 		// start our various threads.
 		updateThread = new UpdateThread(this);
 		updateThread.start();
-		pollThread = new PollThread(driver);
-		pollThread.start();
+		// the panels show what the scheduler last heard from the machine
+		StatusScheduler scheduler = machine.getStatusScheduler();
+		scheduler.subscribe(this, StatusScheduler.Query.TEMPERATURE, 1000);
+		scheduler.subscribe(this, StatusScheduler.Query.PLATFORM_TEMPERATURE, 1000);
+		scheduler.subscribe(this, StatusScheduler.Query.POSITION, 1000);
 	}
 
 	private JMenuItem makeHomeItem(String name,final EnumSet<Axis> set,final boolean positive) {
@@ -277,7 +279,7 @@ public class ControlPanelWindow extends JFrame implements
 	
 	public void windowClosing(WindowEvent e) {
 		updateThread.interrupt();
-		pollThread.interrupt();
+		machine.getStatusScheduler().unsubscribe(this);
 	}
 
 	public void windowClosed(WindowEvent e) {
@@ -304,27 +306,6 @@ public class ControlPanelWindow extends JFrame implements
 	public void windowDeactivated(WindowEvent e) {
 	}
 
-	class PollThread extends Thread {
-		Driver driver;
-
-		public PollThread(Driver d) {
-			super("Control Panel Poll Thread");
-
-			driver = d;
-		}
-
-		public void run() {
-			// we'll break on interrupts
-			try {
-				while (true) {
-					// driver.readTemperature();
-					Thread.sleep(1000);
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
 	class UpdateThread extends Thread {
 		ControlPanelWindow window;
 
@@ -360,7 +341,7 @@ public class ControlPanelWindow extends JFrame implements
 		if (state.isBuilding() || !state.isConnected() || 
 				state.getState() == MachineState.State.RESET) {
 			if (updateThread != null) { updateThread.interrupt(); }
-			if (pollThread != null) { pollThread.interrupt(); }
+			machine.getStatusScheduler().unsubscribe(this);
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					dispose();
@@ -34,16 +34,34 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.logging.Level;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import javax.swing.text.Document;
 
 import replicatorg.app.Base;
+import replicatorg.model.BuildCode;
+import replicatorg.model.TextSearch;
+import replicatorg.model.TrigramIndex;
 
 /**
  * Find & Replace window for the Processing editor. <p/> One major annoyance in
@@ -219,6 +237,8 @@ public class FindReplace extends JFrame implements ActionListener {
 			public void windowActivated(WindowEvent e) {
 				findField.requestFocusInWindow();
 				findField.selectAll();
+				// large files are indexed while the search is typed
+				startIndexing();
 			}
 		});
 	}
@@ -272,6 +292,15 @@ public class FindReplace extends JFrame implements ActionListener {
 		if (search.length() == 0)
 			return;
 
+		// int selectionStart = editor.textarea.getSelectionStart();
+		int selectionEnd = editor.textarea.getSelectionEnd();
+
+		BuildCode code = editor.build.getCode();
+		if (code != null && code.isLarge()) {
+			findLarge(search, selectionEnd, wrap);
+			return;
+		}
+
 		String text = editor.textarea.getText();
 
 		if (ignoreCase) {
@@ -279,28 +308,56 @@ public class FindReplace extends JFrame implements ActionListener {
 			text = text.toLowerCase();
 		}
 
-		// int selectionStart = editor.textarea.getSelectionStart();
-		int selectionEnd = editor.textarea.getSelectionEnd();
-
 		int nextIndex = text.indexOf(search, selectionEnd);
-		if (nextIndex == -1) {
-			if (wrap) {
-				// if wrapping, a second chance is ok, start from beginning
-				nextIndex = text.indexOf(search, 0);
-			}
+		if (nextIndex == -1 && wrap) {
+			// if wrapping, a second chance is ok, start from beginning
+			nextIndex = text.indexOf(search, 0);
+		}
+		showFound(nextIndex, search.length());
+	}
 
-			if (nextIndex == -1) {
-				found = false;
-				replaceButton.setEnabled(false);
-				replaceFindButton.setEnabled(false);
-				// Toolkit.getDefaultToolkit().beep();
-				return;
-			}
+	// select what was found, if anything was
+	private void showFound(int index, int length) {
+		if (index == -1) {
+			found = false;
+			replaceButton.setEnabled(false);
+			replaceFindButton.setEnabled(false);
+			// Toolkit.getDefaultToolkit().beep();
+			return;
 		}
 		found = true;
-		replaceButton.setEnabled(true);
-		replaceFindButton.setEnabled(true);
-		editor.textarea.select(nextIndex, nextIndex + search.length());
+		// a read-only file can be searched but not changed
+		replaceButton.setEnabled(editor.textarea.isEditable());
+		replaceFindButton.setEnabled(editor.textarea.isEditable());
+		editor.textarea.select(index, index + length);
+	}
+
+	// Search a large file in the background, a chunk at a time, using the
+	// file's index if it has one and hasn't been edited since.
+	private void findLarge(String search, final int from, final boolean wrap) {
+		final BuildCode code = editor.build.getCode();
+		final TextSearch ts = new TextSearch(search, ignoreCase);
+		final TrigramIndex idx = currentIndex(code);
+		final Document doc = editor.textarea.getDocument();
+		startIndexing();
+		runInBackground("Searching " + code.file.getName() + "...", new Job() {
+			public Object run(TextSearch.Progress progress) throws Exception {
+				long at = find(from, progress);
+				if (at == -1 && wrap && from > 0) {
+					at = find(0, progress);
+				}
+				return at;
+			}
+			private long find(int from, TextSearch.Progress progress) throws Exception {
+				if (idx != null) {
+					return ts.find(idx.getFile(), from, idx, progress);
+				}
+				return ts.find(doc, from, progress);
+			}
+			public void done(Object result) {
+				showFound((int)((Long)result).longValue(), ts.getText().length());
+			}
+		});
 	}
 
 	/**
@@ -308,8 +365,8 @@ public class FindReplace extends JFrame implements ActionListener {
 	 * field.
 	 */
 	public void replace() {
-		if (!found)
-			return; // don't replace if nothing found
+		if (!found || !editor.textarea.isEditable())
+			return; // don't replace if nothing found, or if read-only
 
 		// check to see if the document has wrapped around
 		// otherwise this will cause an infinite loop
@@ -336,6 +393,12 @@ public class FindReplace extends JFrame implements ActionListener {
 	 * until nothing more found.
 	 */
 	public void replaceAll() {
+		BuildCode code = editor.build.getCode();
+		if (code != null && code.isLarge()) {
+			replaceAllLarge();
+			return;
+		}
+
 		// move to the beginning
 		editor.textarea.select(0, 0);
 
@@ -344,4 +407,228 @@ public class FindReplace extends JFrame implements ActionListener {
 			replace();
 		} while (found);
 	}
+
+	// Replace everything in a large file by rewriting it, a chunk at a
+	// time, rather than by editing the document, and then open it again.
+	private void replaceAllLarge() {
+		final BuildCode code = editor.build.getCode();
+		String search = findField.getText();
+		if (search.length() == 0) return;
+		int answer = JOptionPane.showConfirmDialog(this,
+				"Replacing in a file this large rewrites " + code.file.getName() + "\n"
+				+ "and opens it again, so it can't be undone.  Go ahead?",
+				"Replace All", JOptionPane.OK_CANCEL_OPTION);
+		if (answer != JOptionPane.OK_OPTION) return;
+
+		final TextSearch ts = new TextSearch(search, ignoreCase);
+		final String replacement = replaceField.getText();
+		final File file = code.file;
+		// an edited document is read from; otherwise the file is
+		final Document doc = code.isModified() ? editor.textarea.getDocument() : null;
+		final boolean wasEditable = editor.textarea.isEditable();
+		// the document mustn't change while it's read
+		editor.textarea.setEditable(false);
+		runInBackground("Replacing in " + file.getName() + "...", new Job() {
+			public Object run(TextSearch.Progress progress) throws Exception {
+				File dir = file.getAbsoluteFile().getParentFile();
+				File temp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+				// once the original may be touched, the rewritten copy stays
+				boolean keep = false;
+				try {
+					Reader in = (doc != null) ? new TextSearch.DocumentReader(doc)
+						: new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "ISO-8859-1");
+					Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "ISO-8859-1"));
+					long count;
+					try {
+						long total = (doc != null) ? doc.getLength() : file.length();
+						count = ts.replaceAll(in, out, replacement, total, progress);
+					} finally {
+						in.close();
+						out.close();
+					}
+					if (count == 0) {
+						return new Object[] { count, null };
+					}
+					keep = true;
+					return new Object[] { count, replaceFile(temp, file) };
+				} finally {
+					if (!keep) {
+						temp.delete();
+					}
+				}
+			}
+			public void done(Object result) {
+				editor.textarea.setEditable(wasEditable);
+				Object[] r = (Object[])result;
+				long count = (Long)r[0];
+				Base.logger.info("Replaced " + count + " occurrences of \"" + ts.getText() + "\".");
+				if (r[1] != null) {
+					editor.handleOpen2(((File)r[1]).getPath());
+				}
+			}
+			public void failed() {
+				editor.textarea.setEditable(wasEditable);
+			}
+		});
+	}
+
+	// Put the rewritten file in place of the original, and return where it
+	// ended up.  Some platforms won't replace a file that is mapped, as a
+	// large file being viewed is; then the result is put next to it, and
+	// the original is left alone.  If even that fails, the rewritten file
+	// stays where it was written, and the exception names it.
+	private static File replaceFile(File temp, File file) throws IOException {
+		try {
+			Base.replaceFile(temp, file);
+			return file;
+		} catch (IOException ioe) {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			String base = (dot > 0) ? name.substring(0, dot) : name;
+			String suffix = (dot > 0) ? name.substring(dot) : "";
+			for (int i = 1; i < 100; i++) {
+				File other = new File(temp.getParentFile(), base + "-replaced" + (i > 1 ? "-" + i : "") + suffix);
+				if (!other.exists() && temp.renameTo(other)) {
+					Base.logger.warning("Couldn't replace " + name + "; the result is in " + other.getName());
+					return other;
+				}
+			}
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Work that runs off the event thread while a progress monitor is
+	 * shown.  Cancelling the monitor interrupts the thread.
+	 */
+	private abstract static class Job {
+		/** Runs on its own thread; throws InterruptedException if cancelled. */
+		abstract Object run(TextSearch.Progress progress) throws Exception;
+		/** Runs on the event thread afterwards, unless cancelled or failed. */
+		abstract void done(Object result);
+		/** Runs on the event thread instead of done(), if it isn't run. */
+		void failed() {}
+	}
+
+	private void runInBackground(String note, final Job job) {
+		final ProgressMonitor monitor = new ProgressMonitor(this, note, null, 0, 1000);
+		monitor.setMillisToDecideToPopup(250);
+		setBusy(true);
+		Thread t = new Thread("Find and replace") {
+			public void run() {
+				final TextSearch.Progress progress = new TextSearch.Progress() {
+					int shown = -1;
+					public void progress(long done, long total) {
+						if (monitor.isCanceled()) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						final int permille = (total > 0) ? (int)Math.min(1000, done * 1000 / total) : 0;
+						if (permille != shown) {
+							shown = permille;
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() { monitor.setProgress(permille); }
+							});
+						}
+					}
+				};
+				Object result = null;
+				Exception failure = null;
+				boolean cancelled = false;
+				try {
+					result = job.run(progress);
+				} catch (InterruptedException ie) {
+					cancelled = true;
+				} catch (Exception e) {
+					failure = e;
+				}
+				final Object r = result;
+				final Exception f = failure;
+				final boolean c = cancelled;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						monitor.close();
+						setBusy(false);
+						if (f != null) {
+							Base.showWarning("Find", "Couldn't finish: " + f.getMessage(), f);
+						} else if (c) {
+							Base.logger.info("Cancelled.");
+						} else {
+							job.done(r);
+							return;
+						}
+						job.failed();
+					}
+				});
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void setBusy(boolean busy) {
+		findButton.setEnabled(!busy);
+		replaceAllButton.setEnabled(!busy);
+		if (busy) {
+			replaceButton.setEnabled(false);
+			replaceFindButton.setEnabled(false);
+		}
+	}
+
+	// the index of the last large file searched, and the thread indexing one
+	private static TrigramIndex index = null;
+	private static Thread indexer = null;
+	private static File indexing = null;
+
+	/**
+	 * Start indexing the file of the code being edited in the background,
+	 * if it's large and hasn't been already, so that later searches can skip
+	 * most of it.
+	 */
+	void startIndexing() {
+		if (editor.build == null) return;
+		BuildCode code = editor.build.getCode();
+		if (code == null || code.file == null || !code.isLarge()) return;
+		final File file = code.file;
+		synchronized(FindReplace.class) {
+			if (index != null && index.isCurrent(file)) return;
+			if (indexer != null) {
+				if (file.equals(indexing)) return;
+				indexer.interrupt();
+			}
+			indexing = file;
+			indexer = new Thread("Search indexer") {
+				public void run() {
+					TrigramIndex built = null;
+					try {
+						built = TrigramIndex.build(file, null);
+					} catch (IOException ioe) {
+						Base.logger.log(Level.WARNING, "Couldn't index " + file.getName() + " for searching", ioe);
+					}
+					synchronized(FindReplace.class) {
+						if (indexer == this) {
+							if (built != null) { index = built; }
+							indexer = null;
+							indexing = null;
+						}
+					}
+				}
+			};
+			indexer.setDaemon(true);
+			indexer.setPriority(Thread.MIN_PRIORITY);
+			indexer.start();
+		}
+	}
+
+	// The index of the code's file, if it's built and the text is still
+	// that of the file.
+	private static TrigramIndex currentIndex(BuildCode code) {
+		synchronized(FindReplace.class) {
+			if (index != null && code.file != null && !code.isModified()
+					&& index.isCurrent(code.file)) {
+				return index;
+			}
+			return null;
+		}
+	}
 }
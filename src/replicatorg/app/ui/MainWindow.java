@@ -87,7 +87,9 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JRadioButtonMenuItem;
+import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
+import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.TransferHandler;
@@ -123,6 +125,7 @@ import replicatorg.app.syntax.TextAreaPainter;
 import replicatorg.app.ui.modeling.PreviewPanel;
 import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.SwingPythonSelector;
+import replicatorg.drivers.BuildEstimate;
 import replicatorg.drivers.EstimationDriver;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -139,6 +142,7 @@ import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.LayerIndex;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
 import replicatorg.plugin.toolpath.ToolpathGeneratorThread;
@@ -227,6 +231,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	JMenuItem pauseItem;
 	JMenuItem controlPanelItem;
 	JMenuItem buildMenuItem;
+	JMenuItem buildFromLayerItem;
 
 	JMenu machineMenu;
 	MachineMenuListener machineMenuListener;
@@ -739,6 +744,14 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		});
 		menu.add(buildMenuItem);
 
+		buildFromLayerItem = new JMenuItem("Build from Layer...");
+		buildFromLayerItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleBuildFromLayer();
+			}
+		});
+		menu.add(buildFromLayerItem);
+
 		pauseItem = newJMenuItem("Pause", 'E');
 		pauseItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -1067,6 +1080,24 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		});
 		menu.add(item);
 
+		menu.addSeparator();
+
+		item = newJMenuItem("Go to Line...", 'J');
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleGoToLine();
+			}
+		});
+		menu.add(item);
+
+		item = newJMenuItem("Go to Layer...", 'J', true);
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleGoToLayer();
+			}
+		});
+		menu.add(item);
+
 		return menu;
 	}
 
@@ -1324,17 +1355,24 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	 */
 	public void setCode(BuildCode code) {
 		if (code == null) return;
-		if (code.document == null) { // this document not yet inited
-			code.document = new SyntaxDocument();
+		// large files come with a document of their own, but not yet inited
+		if (code.document == null
+				|| code.document.getUndoableEditListeners().length == 0) {
+			boolean fresh = (code.document == null);
+			if (fresh) {
+				code.document = new SyntaxDocument();
+			}
 
 			// turn on syntax highlighting
 			code.document.setTokenMarker(new PdeKeywords());
 
 			// insert the program text into the document object
-			try {
-				code.document.insertString(0, code.program, null);
-			} catch (BadLocationException bl) {
-				bl.printStackTrace();
+			if (fresh) {
+				try {
+					code.document.insertString(0, code.program, null);
+				} catch (BadLocationException bl) {
+					bl.printStackTrace();
+				}
 			}
 
 			final UndoManager undo = code.getUndoManager();
@@ -1355,6 +1393,11 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		// update the document object that's in use
 		textarea.setDocument(code.document, code.selectionStart,
 				code.selectionStop, code.scrollPosition);
+		textarea.setEditable(!code.isReadOnly()
+				&& !Base.preferences.getBoolean("editor.external",false));
+		if (code.isReadOnly()) {
+			Base.logger.info(code.name + " is too large to edit, and is open read-only.");
+		}
 
 		textarea.requestFocus(); // get the caret blinking
 	}
@@ -1616,6 +1659,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		controlPanelItem.setEnabled(evt.getState().isReady());
 		// enable the build menu item when the machine is ready and there is gcode in the editor
 		buildMenuItem.setEnabled(hasGcode && evt.getState().isReady());
+		buildFromLayerItem.setEnabled(hasGcode && evt.getState().isReady());
 		onboardParamsItem.setVisible(showParams);
 		extruderParamsItem.setVisible(showParams);
 		boolean showIndexing = 
@@ -1751,6 +1795,19 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		// stopItem.setEnabled(false);
 		// pauseItem.setEnabled(false);
 		//buttons.clear();
+		final BuildEstimate estimate = machine.getBuildEstimate();
+		if (estimate == null || Thread.currentThread().isInterrupted()) return;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				message("Estimated build time is "
+						+ EstimationDriver.getBuildTimeString(estimate.getTotal()));
+				JTextArea text = new JTextArea(estimate.describe(), 16, 32);
+				text.setEditable(false);
+				text.setCaretPosition(0);
+				JOptionPane.showMessageDialog(MainWindow.this, new JScrollPane(text),
+						"Build Estimate", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
 
 	/**
@@ -2202,55 +2259,164 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		}
 	}
 
-	public void highlightLine(int lnum) {
-		if (lnum < 0) {
-			textarea.select(0, 0);
+	/**
+	 * Ask for a line number, and move to that line.
+	 */
+	public void handleGoToLine() {
+		String answer = JOptionPane.showInputDialog(this,
+				"Line (1 - " + textarea.getLineCount() + "):",
+				"Go to Line", JOptionPane.QUESTION_MESSAGE);
+		if (answer == null) return;
+		try {
+			goToLine(Integer.parseInt(answer.trim()) - 1);
+		} catch (NumberFormatException nfe) {
+			Toolkit.getDefaultToolkit().beep();
+		}
+	}
+
+	private void goToLine(int line) {
+		line = Math.max(0, Math.min(line, textarea.getLineCount() - 1));
+		int start = textarea.getLineStartOffset(line);
+		textarea.select(start, start);
+		textarea.requestFocus();
+	}
+
+	// the layers of the saved gcode, and the file they were found in
+	private LayerIndex layers = null;
+	private File layersFile = null;
+	private long layersModified = 0;
+
+	// Something to do with a layer picked from those of the saved gcode.
+	private interface LayerChoice {
+		void picked(File file, LayerIndex index, int layer);
+	}
+
+	/**
+	 * Offer the layers of the gcode, and move to the one picked.  The
+	 * layers are those of the saved file, so the file must be saved first;
+	 * finding them takes a while the first time for a big file, and is done
+	 * in the background.
+	 */
+	public void handleGoToLayer() {
+		pickLayer("Go to Layer", new LayerChoice() {
+			public void picked(File file, LayerIndex index, int layer) {
+				goToLine(index.get(layer).line);
+			}
+		});
+	}
+
+	/**
+	 * Offer the layers of the gcode, and build from the one picked, as
+	 * after a build failed partway.  The program's start code is run
+	 * first, and then the state it had set up by that layer is restored.
+	 */
+	public void handleBuildFromLayer() {
+		if (building || simulating)
+			return;
+		if (machine == null) {
+			Base.logger.severe("Not ready to build yet.");
 			return;
 		}
-		// System.out.println(lnum);
-		String s = textarea.getText();
-		int len = s.length();
-		int st = -1;
-		int ii = 0;
-		int end = -1;
-		int lc = 0;
-		if (lnum == 0)
-			st = 0;
-		for (int i = 0; i < len; i++) {
-			ii++;
-			// if ((s.charAt(i) == '\n') || (s.charAt(i) == '\r')) {
-			boolean newline = false;
-			if (s.charAt(i) == '\r') {
-				if ((i != len - 1) && (s.charAt(i + 1) == '\n')) {
-					i++; // ii--;
+		pickLayer("Build from Layer", new LayerChoice() {
+			public void picked(File file, LayerIndex index, int layer) {
+				if (building || simulating || machine == null)
+					return;
+				building = true;
+				setEditorBusy(true);
+				message("Building from layer " + (layer + 1) + "...");
+				buildStart = new Date();
+				if (!machine.executeFromLayer(file, layer)) {
+					Base.logger.severe("Couldn't build " + file.getName() + " from layer " + (layer + 1) + ".");
+					buildingOver();
 				}
-				lc++;
-				newline = true;
-			} else if (s.charAt(i) == '\n') {
-				lc++;
-				newline = true;
-			}
-			if (newline) {
-				if (lc == lnum)
-					st = ii;
-				else if (lc == lnum + 1) {
-					// end = ii;
-					// to avoid selecting entire, because doing so puts the
-					// cursor on the next line [0090]
-					end = ii - 1;
-					break;
+			}
+		});
+	}
+
+	// Find the layers of the saved gcode, in the background if they aren't
+	// known yet, and let the user pick one.
+	private void pickLayer(final String title, final LayerChoice choice) {
+		final BuildCode code = (build == null) ? null : build.getCode();
+		if (code == null || code.file == null || code.isModified()) {
+			Base.showMessage(title,
+					"Layers are found in the saved file, so save it first.");
+			return;
+		}
+		final File file = code.file;
+		synchronized(this) {
+			if (layers != null && file.equals(layersFile)
+					&& file.lastModified() == layersModified) {
+				pickLayer(title, file, layers, choice);
+				return;
+			}
+		}
+		Base.logger.info("Finding the layers of " + file.getName() + "...");
+		Thread t = new Thread("Layer finder") {
+			public void run() {
+				final LayerIndex index;
+				try {
+					index = LayerIndex.forFile(file);
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Couldn't find the layers of " + file.getName(), ioe);
+					return;
+				}
+				if (index == null) return;
+				synchronized(MainWindow.this) {
+					layers = index;
+					layersFile = file;
+					layersModified = file.lastModified();
 				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						// unless another build was opened meanwhile
+						if (build != null && build.getCode() == code) {
+							pickLayer(title, file, index, choice);
+						}
+					}
+				});
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void pickLayer(String title, File file, LayerIndex index, LayerChoice choice) {
+		if (index.size() == 0) {
+			Base.showMessage(title, "No layers were found in this file.");
+			return;
+		}
+		String[] choices = new String[index.size()];
+		for (int i = 0; i < choices.length; i++) {
+			choices[i] = "Layer " + (i + 1) + ": Z " + index.get(i).z;
+		}
+		Object picked = JOptionPane.showInputDialog(this, "Layer:", title,
+				JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+		if (picked == null) return;
+		for (int i = 0; i < choices.length; i++) {
+			if (choices[i] == picked) {
+				choice.picked(file, index, i);
+				return;
 			}
 		}
-		if (end == -1)
-			end = len;
+	}
 
+	public void highlightLine(int lnum) {
+		if (lnum < 0) {
+			textarea.select(0, 0);
+			return;
+		}
 		// sometimes KJC claims that the line it found an error in is
 		// the last line in the file + 1. Just highlight the last line
 		// in this case. [dmose]
-		if (st == -1)
-			st = len;
-
+		if (lnum >= textarea.getLineCount()) {
+			int len = textarea.getDocumentLength();
+			textarea.select(len, len);
+			return;
+		}
+		int st = textarea.getLineStartOffset(lnum);
+		// to avoid selecting entire, because doing so puts the
+		// cursor on the next line [0090]
+		int end = textarea.getLineEndOffset(lnum) - 1;
 		textarea.select(st, end);
 	}
 
@@ -178,6 +178,32 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 				}
 			});
 		}
+
+		{
+			content.add(new JLabel("Arc tolerance (in mm): "),"split");
+			double value = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.02);
+			JFormattedTextField arcToleranceField = new JFormattedTextField(new Double(value));
+			content.add(arcToleranceField,"wrap");
+			String arcToleranceHelp = "<html><small><em>" +
+				"The furthest a segment of an arc may stray from the true curve.  Arcs are broken into <br>"+
+				"as few segments as this allows; set it to 0 to use the arc resolution instead." +
+				"</em></small></html>";
+			content.add(new JLabel(arcToleranceHelp),"growx,wrap");
+			arcToleranceField.setColumns(10);
+			arcToleranceField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Double v = (Double)evt.getNewValue();
+							if (v == null) return;
+							Base.preferences.putDouble("replicatorg.parser.arc_tolerance_mm", v.doubleValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
 		
 		{
 			content.add(new JLabel("Debugging level (default INFO):"),"split");
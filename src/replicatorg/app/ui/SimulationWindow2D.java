@@ -38,15 +38,14 @@ import java.awt.LayoutManager;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Rectangle2D;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Vector;
 
 import javax.swing.JComponent;
+import javax.swing.Timer;
 import javax.vecmath.Point3d;
 
 public class SimulationWindow2D extends SimulationWindow implements
@@ -391,7 +390,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 
 		private Point3d current;
 
-		private double currentZ;
+		private float currentZ;
 
 		private int mouseX = 0;
 
@@ -399,7 +398,21 @@ public class SimulationWindow2D extends SimulationWindow implements
 
 		private double ratio = 1.0;
 
-		private Vector<Point3d> points;
+		private Toolpath points;
+
+		// points are drawn a frame at a time, rather than as they come
+		private static final int FRAME_MILLIS = 40;
+
+		private volatile boolean changed = false;
+
+		private final Timer frames = new Timer(FRAME_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (changed) {
+					changed = false;
+					repaint();
+				}
+			}
+		});
 
 		public BuildView() {
 			// setup our listeners.
@@ -408,10 +421,19 @@ public class SimulationWindow2D extends SimulationWindow implements
 			// init our bounds.
 			minimum = new Point3d();
 			maximum = new Point3d();
-			currentZ = 0.0;
+			currentZ = 0;
+
+			points = new Toolpath();
+		}
 
-			// initialize our vector
-			points = new Vector<Point3d>();
+		public void addNotify() {
+			super.addNotify();
+			frames.start();
+		}
+
+		public void removeNotify() {
+			frames.stop();
+			super.removeNotify();
 		}
 
 		public void mouseMoved(MouseEvent e) {
@@ -461,13 +483,11 @@ public class SimulationWindow2D extends SimulationWindow implements
 			if (point.z > maximum.z)
 				maximum.z = point.z;
 
-			Point3d myPoint = new Point3d(point);
 			synchronized (points) {
-				points.addElement(myPoint);
+				points.add(point);
+				currentZ = points.getZ(points.size() - 1);
 			}
 
-			currentZ = point.z;
-
 			calculateRatio();
 
 			// set our machine position
@@ -476,7 +496,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 			SimulationWindow2D.vRuler
 					.setMachinePosition(convertRealYToPointY(point.y));
 
-			buildView.repaint();
+			changed = true;
 		}
 
 		public void paint(Graphics g) {
@@ -520,12 +540,14 @@ public class SimulationWindow2D extends SimulationWindow implements
 			Color belowColor = new Color(0, 0, 255);
 
 			synchronized (points) {
-				List<Point3d> lastPoints = getLastPoints(1000);
-				Point3d start;
-				Point3d end;
+				// the last thousand points
+				int first = Math.max(0, points.size() - 1000);
+				int count = points.size();
+				int start;
+				int end;
 
-				double belowZ = currentZ;
-				double aboveZ = currentZ;
+				float belowZ = currentZ;
+				float aboveZ = currentZ;
 
 				// color coding.
 				int aboveTotal = 0;
@@ -536,58 +558,58 @@ public class SimulationWindow2D extends SimulationWindow implements
 				int currentCount = 0;
 
 				// draw our toolpaths.
-				if (lastPoints.size() > 0) {
-					start = (Point3d) lastPoints.get(0);
+				if (count > first) {
+					start = first;
 
 					// start from the most recent line backwards to find the
 					// above/below layers.
-					for (int i = lastPoints.size() - 1; i >= 0; i--) {
-						end = (Point3d) lastPoints.get(i);
+					for (int i = count - 1; i >= first; i--) {
+						end = i;
+						float endZ = points.getZ(end);
 
-						if (!start.equals(end)) {
+						if (!points.same(start, end)) {
 							// line below current plane
-							if (end.z < currentZ) {
+							if (endZ < currentZ) {
 								// we only want one layer up/down
-								if (end.z < belowZ && belowZ != currentZ)
+								if (endZ < belowZ && belowZ != currentZ)
 									continue;
 
-								belowZ = end.z;
+								belowZ = endZ;
 								belowTotal++;
 							}
 							// line above current plane
-							else if (end.z > currentZ) {
+							else if (endZ > currentZ) {
 								// we only want one layer up/down
-								if (end.z > aboveZ && aboveZ != currentZ)
+								if (endZ > aboveZ && aboveZ != currentZ)
 									continue;
 
-								aboveZ = end.z;
+								aboveZ = endZ;
 								aboveTotal++;
 							}
 							// current line.
-							else if (end.z == currentZ) {
+							else if (endZ == currentZ) {
 								currentTotal++;
 							} else
 								continue;
 
-							start = new Point3d(end);
+							start = end;
 						}
 					}
 
 					// draw all our lines now!
-					for (ListIterator<Point3d> li = lastPoints.listIterator(); li
-							.hasNext();) {
-						end = li.next();
-
+					for (end = first; end < count; end++) {
 						// we have to move somewhere!
-						if (!start.equals(end)) {
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
+						if (!points.same(start, end)) {
+							int startX = convertRealXToPointX(points.getX(start));
+							int startY = convertRealYToPointY(points.getY(start));
+							int endX = convertRealXToPointX(points.getX(end));
+							int endY = convertRealYToPointY(points.getY(end));
+							float startZ = points.getZ(start);
+							float endZ = points.getZ(end);
 							int colorValue;
 
 							// line below current plane
-							if (end.z < currentZ && end.z >= belowZ) {
+							if (endZ < currentZ && endZ >= belowZ) {
 								belowCount++;
 
 								colorValue = 255 - 3 * (belowTotal - belowCount);
@@ -598,7 +620,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 								g.setColor(belowColor);
 							}
 							// line above current plane
-							if (end.z > currentZ && end.z <= aboveZ) {
+							if (endZ > currentZ && endZ <= aboveZ) {
 								aboveCount++;
 
 								colorValue = 255 - 3 * (aboveTotal - aboveCount);
@@ -609,7 +631,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 								g.setColor(aboveColor);
 							}
 							// line in current plane
-							else if (end.z == currentZ) {
+							else if (endZ == currentZ) {
 								currentCount++;
 
 								colorValue = 255 - 3 * (currentTotal - currentCount);
@@ -624,7 +646,7 @@ public class SimulationWindow2D extends SimulationWindow implements
 								continue;
 
 							// draw up arrow
-							if (end.z > start.z) {
+							if (endZ > startZ) {
 								g.setColor(Color.red);
 								g.drawOval(startX - 5, startY - 5, 10, 10);
 								g.drawLine(startX - 5, startY, startX + 5,
@@ -633,18 +655,18 @@ public class SimulationWindow2D extends SimulationWindow implements
 										startY + 5);
 							}
 							// draw down arrow
-							else if (end.z < start.z) {
+							else if (endZ < startZ) {
 								g.setColor(Color.blue);
 								g.drawOval(startX - 5, startY - 5, 10, 10);
 								g.drawOval(startX - 1, startY - 1, 2, 2);
 							}
 							// normal XY line - only draw lines on current layer
 							// or above.
-							else if (end.z >= currentZ) {
+							else if (endZ >= currentZ) {
 								g.drawLine(startX, startY, endX, endY);
 							}
 
-							start = new Point3d(end);
+							start = end;
 						}
 					}
 
@@ -658,84 +680,47 @@ public class SimulationWindow2D extends SimulationWindow implements
 			}
 		}
 
-		private List<Point3d> getLastPoints(int count) {
-			synchronized (points) {
-				int index = Math.max(0, points.size() - count);
-
-				List<Point3d> mypoints = points.subList(index, points.size());
-
-				return mypoints;
-			}
-		}
-
 		@SuppressWarnings("unused")
 		private void drawToolpaths(Graphics g) {
-			Vector<Vector<Point3d>> toolpaths = getLayerPaths(currentZ);
-			Point3d start = new Point3d();
-			Point3d end = new Point3d();
+			synchronized (points) {
+				// each run of points on our layer is a path
+				int[] toolpaths = getLayerPaths(currentZ);
 
-			// System.out.println("toolpaths:" + toolpaths.size());
+				// System.out.println("toolpaths:" + toolpaths.length / 2);
 
-			// draw our toolpaths.
-			if (toolpaths.size() > 0) {
-				for (Enumeration<Vector<Point3d>> e = toolpaths.elements(); e.hasMoreElements();) {
-					Vector<Point3d> path = e.nextElement();
-					// System.out.println("path points:" + path.size());
+				// draw our toolpaths.
+				for (int i = 0; i < toolpaths.length; i += 2) {
+					int first = toolpaths[i];
+					int last = toolpaths[i + 1];
+					// System.out.println("path points:" + (last - first));
 
-					if (path.size() > 1) {
+					if (last - first > 1) {
 						g.setColor(Color.black);
-						start = (Point3d) path.firstElement();
+						int startX = convertRealXToPointX(points.getX(first));
+						int startY = convertRealYToPointY(points.getY(first));
 
-						for (Enumeration<Point3d> e2 = path.elements(); e2
-								.hasMoreElements();) {
-							end = (Point3d) e2.nextElement();
-
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
+						for (int j = first + 1; j < last; j++) {
+							int endX = convertRealXToPointX(points.getX(j));
+							int endY = convertRealYToPointY(points.getY(j));
 
 							// System.out.println("line from: " + startX + ", "
 							// + startY + " to " + endX + ", " + endY);
 							g.drawLine(startX, startY, endX, endY);
 
-							start = new Point3d(end);
+							startX = endX;
+							startY = endY;
 						}
 					}
 				}
 			}
 		}
 
-		private Vector<Vector<Point3d>> getLayerPaths(double layerZ) {
-			Vector<Vector<Point3d>> paths = new Vector<Vector<Point3d>>();
-			Vector<Point3d> path = new Vector<Point3d>();
-			Point3d p;
-
-			synchronized (points) {
-				for (Enumeration<Point3d> e = points.elements(); e
-						.hasMoreElements();) {
-					p = e.nextElement();
-
-					// is this on our current layer?
-					if (p.z == layerZ) {
-						path.addElement(p);
-						// System.out.println("added: " + p.toString());
-					}
-					// okay, not on layer... did we find a path?
-					else if (path.size() > 0) {
-						// System.out.println("added path of size " +
-						// path.size());
-						paths.addElement(path);
-						path = new Vector<Point3d>();
-					}
-				}
-			}
-
-			// did we end on our current path?
-			if (path.size() > 0)
-				paths.addElement(path);
-
-			return paths;
+		/**
+		 * @return the paths on the given layer, as pairs of the first and
+		 * one past the last point of each
+		 */
+		private int[] getLayerPaths(float layerZ) {
+			return points.getLayerRuns(layerZ);
 		}
 
 		private void calculateRatio() {
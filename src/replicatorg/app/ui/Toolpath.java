@@ -0,0 +1,116 @@
+package replicatorg.app.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.vecmath.Point3d;
+
+/**
+ * The points a simulated build has moved through, kept as columns of
+ * floats rather than a Point3d each, which makes a point 12 bytes instead
+ * of 50 or so.  Floats are exact to a micron or better over the size of
+ * any build platform, which is all drawing needs.
+ *
+ * Points are indexed by layer as they're added: each height keeps the runs
+ * of consecutive points at that height, so the paths of a layer are found
+ * without looking at the points of any other.
+ *
+ * Points are only ever added, from the build's thread, while the window
+ * paints them on the event thread; all access is synchronized on the
+ * toolpath.
+ */
+public class Toolpath {
+	private float[] x = new float[1024];
+	private float[] y = new float[1024];
+	private float[] z = new float[1024];
+	private int size = 0;
+
+	// runs of points at one height, as pairs of start (inclusive) and end
+	// (exclusive) indices, in the order they were added
+	private static class Layer {
+		int[] runs = new int[8];
+		int count = 0;
+	}
+
+	private final Map<Float,Layer> layers = new HashMap<Float,Layer>();
+	// the layer of the last point added
+	private Layer last = null;
+
+	public synchronized void add(Point3d p) {
+		if (size == x.length) {
+			int capacity = size + (size >> 1);
+			x = grow(x, capacity);
+			y = grow(y, capacity);
+			z = grow(z, capacity);
+		}
+		// -0 and 0 are the same height, but not the same key
+		float pz = (p.z == 0) ? 0f : (float)p.z;
+		x[size] = (float)p.x;
+		y[size] = (float)p.y;
+		z[size] = pz;
+		if (last != null && size > 0 && z[size - 1] == pz) {
+			// still on the same run
+			last.runs[last.count * 2 - 1] = size + 1;
+		} else {
+			Layer layer = layers.get(pz);
+			if (layer == null) {
+				layer = new Layer();
+				layers.put(pz, layer);
+			}
+			if (layer.count * 2 == layer.runs.length) {
+				int[] runs = new int[layer.runs.length * 2];
+				System.arraycopy(layer.runs, 0, runs, 0, layer.runs.length);
+				layer.runs = runs;
+			}
+			layer.runs[layer.count * 2] = size;
+			layer.runs[layer.count * 2 + 1] = size + 1;
+			layer.count++;
+			last = layer;
+		}
+		size++;
+	}
+
+	private static float[] grow(float[] a, int capacity) {
+		float[] b = new float[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized float getX(int i) {
+		return x[i];
+	}
+
+	public synchronized float getY(int i) {
+		return y[i];
+	}
+
+	public synchronized float getZ(int i) {
+		return z[i];
+	}
+
+	/**
+	 * @return true if the two points are in the same place
+	 */
+	public synchronized boolean same(int i, int j) {
+		return x[i] == x[j] && y[i] == y[j] && z[i] == z[j];
+	}
+
+	/**
+	 * @return the runs of consecutive points at the given height, as pairs
+	 * of start (inclusive) and end (exclusive) indices; empty if there are
+	 * none
+	 */
+	public synchronized int[] getLayerRuns(float height) {
+		Layer layer = layers.get((height == 0) ? 0f : height);
+		if (layer == null) {
+			return new int[0];
+		}
+		int[] runs = new int[layer.count * 2];
+		System.arraycopy(layer.runs, 0, runs, 0, runs.length);
+		return runs;
+	}
+}
@@ -47,6 +47,7 @@ import replicatorg.app.Base;
 import replicatorg.app.MachineController;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.RetryException;
+import replicatorg.machine.StatusScheduler;
 import replicatorg.machine.model.ToolModel;
 
 public class ExtruderPanel extends JPanel implements FocusListener, ActionListener, ItemListener {
@@ -395,14 +396,17 @@ public class ExtruderPanel extends JPanel implements FocusListener, ActionListen
 
 	synchronized public void updateStatus() { // FIXME sync
 		Second second = new Second(new Date(System.currentTimeMillis() - startMillis));
-		if (machine.getModel().currentTool() == toolModel && toolModel.hasHeater()) {
-			double temperature = machine.getDriver().getTemperature();
+		StatusScheduler scheduler = machine.getStatusScheduler();
+		StatusScheduler.Sample sample = scheduler.get(StatusScheduler.Query.TEMPERATURE);
+		if (sample != null && machine.getModel().currentTool() == toolModel && toolModel.hasHeater()) {
+			double temperature = sample.doubleValue();
 			currentTempField.setText(Double.toString(temperature));
 			measuredDataset.add(second, temperature,"a");
 			targetDataset.add(second, targetTemperature,"a");
 		}
-		if (machine.getModel().currentTool() == toolModel && toolModel.hasHeatedPlatform()) {
-			double temperature = machine.getDriver().getPlatformTemperature();
+		sample = scheduler.get(StatusScheduler.Query.PLATFORM_TEMPERATURE);
+		if (sample != null && machine.getModel().currentTool() == toolModel && toolModel.hasHeatedPlatform()) {
+			double temperature = sample.doubleValue();
 			platformCurrentTempField.setText(Double.toString(temperature));
 			measuredPlatformDataset.add(second, temperature,"a");
 			targetPlatformDataset.add(second, targetPlatformTemperature,"a");
@@ -25,6 +25,7 @@ import replicatorg.app.Base;
 import replicatorg.app.MachineController;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.RetryException;
+import replicatorg.machine.StatusScheduler;
 
 public class Jog3AxisPanel extends JPanel implements ActionListener, ChangeListener, FocusListener
 {
@@ -211,7 +212,10 @@ public class Jog3AxisPanel extends JPanel implements ActionListener, ChangeListe
 	DecimalFormat positionFormatter = new DecimalFormat("###.#");
 
 	synchronized public void updateStatus() {
-		Point3d current = driver.getCurrentPosition();
+		StatusScheduler.Sample sample =
+			machine.getStatusScheduler().get(StatusScheduler.Query.POSITION);
+		if (sample == null) { return; }
+		Point3d current = (Point3d)sample.value;
 
 		xPosField.setText(positionFormatter.format(current.x));
 		yPosField.setText(positionFormatter.format(current.y));
@@ -0,0 +1,156 @@
+package replicatorg.drivers;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The estimated time of a build, in milliseconds, broken down by what the
+ * machine is doing, by layer and by tool.
+ *
+ * Layers are keyed by the height of the nozzle, in mm; time spent heating
+ * or homing is counted against the layer the machine is on at the time.
+ */
+public class BuildEstimate {
+	public enum Category {
+		/** moving, including accelerating and slowing down */
+		MOTION,
+		/** dwells (G4) */
+		DWELL,
+		/** waiting for tools and the platform to come up to temperature */
+		HEATING,
+		/** homing (G28, G161, G162) */
+		HOMING
+	}
+
+	private final double[] byCategory = new double[Category.values().length];
+	private final SortedMap<Double,Double> byLayer = new TreeMap<Double,Double>();
+	private final SortedMap<Integer,Double> byTool = new TreeMap<Integer,Double>();
+
+	/**
+	 * Count some time.
+	 * @param z the height of the layer the time is spent on, in mm
+	 * @param tool the index of the tool in use
+	 */
+	public void add(Category category, double millis, double z, int tool) {
+		if (millis <= 0) { return; }
+		byCategory[category.ordinal()] += millis;
+		addTo(byLayer, layerOf(z), millis);
+		addTo(byTool, tool, millis);
+	}
+
+	/**
+	 * Count all the time in another estimate, for example one for a later
+	 * part of the same build.
+	 */
+	public void add(BuildEstimate other) {
+		for (int i = 0; i < byCategory.length; i++) {
+			byCategory[i] += other.byCategory[i];
+		}
+		for (Map.Entry<Double,Double> e : other.byLayer.entrySet()) {
+			addTo(byLayer, e.getKey(), e.getValue());
+		}
+		for (Map.Entry<Integer,Double> e : other.byTool.entrySet()) {
+			addTo(byTool, e.getKey(), e.getValue());
+		}
+	}
+
+	private static <K> void addTo(Map<K,Double> map, K key, double millis) {
+		Double old = map.get(key);
+		map.put(key, (old == null) ? millis : old + millis);
+	}
+
+	// heights are rounded to the micron, so that layers computed by
+	// repeated addition still land in the same place
+	private static Double layerOf(double z) {
+		return Math.round(z * 1000.0) / 1000.0;
+	}
+
+	public double getTotal() {
+		double total = 0;
+		for (double t : byCategory) { total += t; }
+		return total;
+	}
+
+	public double get(Category category) {
+		return byCategory[category.ordinal()];
+	}
+
+	/** @return the time spent moving */
+	public double getMotionTime() {
+		return get(Category.MOTION);
+	}
+
+	/** @return the time spent doing anything but moving */
+	public double getOverheadTime() {
+		return getTotal() - getMotionTime();
+	}
+
+	/** @return the time spent on each layer, by height in mm */
+	public SortedMap<Double,Double> getLayerTimes() {
+		return Collections.unmodifiableSortedMap(byLayer);
+	}
+
+	/** @return the time spent with each tool, by tool index */
+	public SortedMap<Integer,Double> getToolTimes() {
+		return Collections.unmodifiableSortedMap(byTool);
+	}
+
+	/**
+	 * @return the estimate as text: the total, then the time spent on each
+	 * category, with each tool, and on each layer, one to a line
+	 */
+	public String describe() {
+		StringBuilder s = new StringBuilder();
+		s.append("Total: ").append(time(getTotal())).append('\n');
+		for (Category c : Category.values()) {
+			if (get(c) > 0) {
+				String name = c.name().charAt(0) + c.name().substring(1).toLowerCase();
+				s.append(name).append(": ").append(time(get(c))).append('\n');
+			}
+		}
+		if (byTool.size() > 1) {
+			s.append('\n');
+			for (Map.Entry<Integer,Double> e : byTool.entrySet()) {
+				s.append("Tool ").append(e.getKey()).append(": ").append(time(e.getValue())).append('\n');
+			}
+		}
+		if (!byLayer.isEmpty()) {
+			s.append('\n');
+			int layer = 1;
+			for (Map.Entry<Double,Double> e : byLayer.entrySet()) {
+				s.append("Layer ").append(layer++).append(" (Z ").append(e.getKey()).append("): ")
+					.append(time(e.getValue())).append('\n');
+			}
+		}
+		return s.toString();
+	}
+
+	private static String time(double millis) {
+		return EstimationDriver.getBuildTimeString(millis, true);
+	}
+
+	/**
+	 * @return a copy of this estimate with the motion and overhead times
+	 * multiplied by the given factors
+	 */
+	public BuildEstimate scaled(double motionFactor, double overheadFactor) {
+		BuildEstimate scaled = new BuildEstimate();
+		for (Category c : Category.values()) {
+			double f = (c == Category.MOTION) ? motionFactor : overheadFactor;
+			scaled.byCategory[c.ordinal()] = byCategory[c.ordinal()] * f;
+		}
+		// the breakdowns don't keep the categories apart, so they are
+		// scaled by the overall change
+		double total = getTotal();
+		double factor = (total > 0) ? scaled.getTotal() / total : 1.0;
+		for (Map.Entry<Double,Double> e : byLayer.entrySet()) {
+			scaled.byLayer.put(e.getKey(), e.getValue() * factor);
+		}
+		for (Map.Entry<Integer,Double> e : byTool.entrySet()) {
+			scaled.byTool.put(e.getKey(), e.getValue() * factor);
+		}
+		return scaled;
+	}
+}
@@ -0,0 +1,275 @@
+package replicatorg.drivers;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * A bounded ring of ready-to-send driver commands, drained by a dedicated
+ * I/O thread.  The build thread hands commands to the pipeline and goes on
+ * planning the next ones (interpolating arcs, computing feedrates, etc.)
+ * while the I/O thread waits out the serial round trips, so the machine's
+ * own queue is kept full during CPU-heavy stretches of the build.
+ *
+ * Back-pressure works the way it always has.  When the machine reports that
+ * its buffer is full, the sink throws a RetryException; the I/O thread
+ * waits a moment and resends the same command.  Meanwhile the ring fills, and
+ * once it is full offer() throws a RetryException back at the build thread,
+ * which retries the line after checking for pauses and stops.
+ *
+ * @param <T> the type of command; a packet, a line of text, etc.
+ */
+public class CommandPipeline<T> {
+	/**
+	 * Where commands are sent.  Called only from the I/O thread.
+	 */
+	public interface Sink<T> {
+		/**
+		 * Send a single command to the machine.
+		 * @throws RetryException if the machine could not accept the
+		 * command yet; it will be sent again shortly
+		 */
+		void send(T command) throws RetryException;
+	}
+
+	/**
+	 * Notified when the I/O thread fails to send a command.
+	 */
+	public interface ErrorHandler {
+		void pipelineError(String message);
+	}
+
+	// how long to wait before resending a refused command
+	private static final long RETRY_DELAY_MS = 5;
+
+	// how long offer() waits for room before refusing a command
+	private static final long OFFER_WAIT_MS = 100;
+
+	private final Object[] ring;
+	private int head = 0;
+	private int count = 0;
+	// tasks to run before the next command is sent
+	private final LinkedList<Between> between = new LinkedList<Between>();
+	// true while the I/O thread is sending the command at the head
+	private boolean sending = false;
+	private boolean running = true;
+
+	private final Sink<T> sink;
+	private final ErrorHandler errorHandler;
+	private final Thread ioThread;
+
+	/**
+	 * Create a pipeline and start its I/O thread.
+	 * @param name the name of the I/O thread
+	 * @param depth the number of commands that may be waiting to be sent
+	 */
+	public CommandPipeline(String name, int depth, Sink<T> sink, ErrorHandler errorHandler) {
+		this.ring = new Object[depth];
+		this.sink = sink;
+		this.errorHandler = errorHandler;
+		ioThread = new Thread(name) {
+			public void run() { drainLoop(); }
+		};
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/**
+	 * Queue a command to be sent.  If the ring stays full for a short while
+	 * the command is refused.
+	 * @throws RetryException if there was no room for the command
+	 */
+	public synchronized void offer(T command) throws RetryException {
+		if (count == ring.length) {
+			try {
+				wait(OFFER_WAIT_MS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			if (count == ring.length) {
+				throw new RetryException();
+			}
+		}
+		ring[(head + count) % ring.length] = command;
+		count++;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every queued command has been sent.
+	 */
+	public synchronized void drain() {
+		while (running && (count > 0 || sending)) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run a task on the I/O thread as soon as the command being sent, if
+	 * any, has gone, ahead of the commands still waiting.  This is for
+	 * queries that don't depend on the waiting commands having been sent,
+	 * like reading a temperature, so that they needn't wait for the whole
+	 * ring to drain.  Waits for the task to finish; anything it throws is
+	 * thrown here.
+	 */
+	public void runBetween(Runnable task) {
+		if (Thread.currentThread() == ioThread) {
+			task.run();
+			return;
+		}
+		Between b = new Between(task);
+		synchronized(this) {
+			if (running) {
+				between.addLast(b);
+				notifyAll();
+				while (running && !b.done) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if (!b.done) {
+					between.remove(b);
+					if (running) { return; }
+				}
+			}
+		}
+		if (!b.done) {
+			// the I/O thread has stopped, so nothing else is being sent
+			task.run();
+		} else if (b.thrown != null) {
+			throw b.thrown;
+		}
+	}
+
+	// A task for runBetween, which records how it went.
+	private class Between implements Runnable {
+		final Runnable task;
+		boolean done = false;
+		RuntimeException thrown = null;
+		Between(Runnable task) {
+			this.task = task;
+		}
+		public void run() {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				thrown = e;
+			} finally {
+				synchronized(CommandPipeline.this) {
+					done = true;
+					CommandPipeline.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if no commands are waiting or being sent
+	 */
+	public synchronized boolean isEmpty() {
+		return count == 0 && !sending;
+	}
+
+	/**
+	 * Discard any commands that have not been sent yet.  A command that is
+	 * in the middle of being sent is allowed to finish.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < count; i++) {
+			ring[(head + i) % ring.length] = null;
+		}
+		count = 0;
+		notifyAll();
+		while (sending) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop the I/O thread, discarding anything not yet sent.
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		ioThread.interrupt();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void drainLoop() {
+		while (true) {
+			T command;
+			Between task = null;
+			synchronized(this) {
+				while (running && count == 0 && between.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						// checked below
+					}
+				}
+				if (!running) {
+					return;
+				}
+				if (!between.isEmpty()) {
+					task = between.removeFirst();
+				}
+			}
+			if (task != null) {
+				task.run();
+				continue;
+			}
+			synchronized(this) {
+				if (!running) {
+					return;
+				}
+				if (count == 0) {
+					continue;
+				}
+				command = (T)ring[head];
+				sending = true;
+			}
+			boolean sent = false;
+			try {
+				sink.send(command);
+				sent = true;
+			} catch (RetryException re) {
+				// The machine's buffer is full; try the same command again.
+				try {
+					Thread.sleep(RETRY_DELAY_MS);
+				} catch (InterruptedException ie) {
+					// checked on the next pass
+				}
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE,"Error sending queued command",e);
+				errorHandler.pipelineError(e.getMessage() == null ? e.toString() : e.getMessage());
+				sent = true; // drop it and keep going; the build will be stopped
+			}
+			synchronized(this) {
+				sending = false;
+				// clear() may have emptied the ring while we were sending
+				if (sent && count > 0 && ring[head] == command) {
+					ring[head] = null;
+					head = (head + 1) % ring.length;
+					count--;
+				}
+				notifyAll();
+			}
+		}
+	}
+}
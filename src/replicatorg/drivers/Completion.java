@@ -0,0 +1,171 @@
+package replicatorg.drivers;
+
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Watches for a driver to finish everything it has been sent, so that a
+ * caller can wait for the end of a job, or be told of it, without asking
+ * the machine over and over.
+ *
+ * The machine isn't asked at all while the driver expects queued motion to
+ * still be running (see Driver.getQueuedMotionMillis()).  Once that time is
+ * up it is asked whether it's finished, soon at first and then less and
+ * less often, since a machine that isn't done when the motion ought to be
+ * is usually waiting on something slow, like a heater.
+ *
+ * The watching is done on a thread of its own, so it should only be
+ * started when nothing else is talking to the driver, as at the end of a
+ * build.
+ */
+public class Completion implements Future<Void> {
+	// the first and the longest wait between asking the machine, in ms
+	private static final long MIN_POLL_MS = 25;
+	private static final long MAX_POLL_MS = 1000;
+
+	private final Driver driver;
+	private final Vector<Runnable> callbacks = new Vector<Runnable>();
+	private Thread thread = null;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private Throwable failure = null;
+	// how many times the machine was asked
+	private int queries = 0;
+
+	public Completion(Driver driver) {
+		this.driver = driver;
+	}
+
+	/**
+	 * Start watching the driver.  Does nothing if already started.
+	 * @return this completion
+	 */
+	public synchronized Completion start() {
+		if (thread == null && !done) {
+			thread = new Thread("Completion watcher") {
+				public void run() { watch(); }
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Run the given callback once the driver is finished, on the watching
+	 * thread, or right away on this one if it already is.  A callback is
+	 * also run when watching is cancelled or fails.
+	 */
+	public void addCallback(Runnable callback) {
+		synchronized(this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	/**
+	 * @return the number of times the machine was asked if it was finished
+	 */
+	public synchronized int getQueryCount() {
+		return queries;
+	}
+
+	private void watch() {
+		long poll = MIN_POLL_MS;
+		try {
+			while (!isCancelled()) {
+				long queued = driver.getQueuedMotionMillis();
+				if (queued > 0) {
+					// nothing to ask until the motion we know of is done
+					Thread.sleep(queued);
+					poll = MIN_POLL_MS;
+					continue;
+				}
+				synchronized(this) { queries++; }
+				if (driver.isFinished()) { break; }
+				Thread.sleep(poll);
+				poll = Math.min(poll * 2, MAX_POLL_MS);
+			}
+			finish(null);
+		} catch (InterruptedException ie) {
+			// cancelled
+			finish(null);
+		} catch (RuntimeException e) {
+			finish(e);
+		}
+	}
+
+	private void finish(Throwable t) {
+		Runnable[] toRun;
+		synchronized(this) {
+			if (done) { return; }
+			done = true;
+			failure = t;
+			notifyAll();
+			toRun = callbacks.toArray(new Runnable[0]);
+			callbacks.clear();
+		}
+		for (Runnable r : toRun) {
+			r.run();
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Thread t;
+		synchronized(this) {
+			if (done) { return false; }
+			cancelled = true;
+			t = thread;
+		}
+		if (t != null && mayInterruptIfRunning) {
+			t.interrupt();
+		} else {
+			finish(null);
+		}
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized Void get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized Void get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) { throw new TimeoutException(); }
+			wait(left);
+		}
+		return result();
+	}
+
+	// called with the monitor held, once done
+	private Void result() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return null;
+	}
+}
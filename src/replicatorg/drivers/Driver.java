@@ -34,6 +34,7 @@ import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CompiledGCode;
 
 // import org.xml.sax.*;
 // import org.xml.sax.helpers.XMLReaderFactory;
@@ -54,6 +55,11 @@ public interface Driver {
 	 */
 	public void parse(String cmd);
 
+	/**
+	 * load a precompiled command. usually passes it through to the parser.
+	 */
+	public void parse(CompiledGCode.Cursor record);
+
 	/**
 	 * get our parser object
 	 */
@@ -64,6 +70,20 @@ public interface Driver {
 	 */
 	public boolean isFinished();
 
+	/**
+	 * Start watching for the machine to finish everything it has been
+	 * sent, without asking it more often than needed.
+	 * @return a completion that is done when isFinished() would be true
+	 */
+	public Completion whenFinished();
+
+	/**
+	 * @return about how long, in milliseconds, the machine will take to
+	 * finish the motion it has been sent, or 0 if it should be done or the
+	 * driver doesn't know
+	 */
+	public long getQueuedMotionMillis();
+
 	/**
 	 * Is our buffer empty? If don't have a buffer, its always true.
 	 */
@@ -35,6 +35,7 @@ import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CompiledGCode;
 
 public class DriverBaseImplementation implements Driver {
 	// our gcode parser
@@ -65,6 +66,9 @@ public class DriverBaseImplementation implements Driver {
 	// how fast are we moving in mm/minute
 	private double currentFeedrate;
 
+	// when the motion sent to the machine should be done, in ms
+	private long motionEndsAt = 0;
+
 	// what is our mode of positioning?
 	protected int positioningMode = 0;
 
@@ -144,6 +148,13 @@ public class DriverBaseImplementation implements Driver {
 		parser.parse(cmd);
 	}
 
+	public void parse(CompiledGCode.Cursor record) {
+		// reset our values.
+		moveLength = 0.0;
+
+		parser.parse(record);
+	}
+
 	public GCodeParser getParser() {
 		return parser;
 	}
@@ -157,6 +168,29 @@ public class DriverBaseImplementation implements Driver {
 		return true;
 	}
 
+	public Completion whenFinished() {
+		return new Completion(this).start();
+	}
+
+	public synchronized long getQueuedMotionMillis() {
+		return Math.max(0, motionEndsAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * Note that the machine has been sent motion that will take the given
+	 * time once it gets to it, after whatever it was sent before.
+	 */
+	protected synchronized void addQueuedMotion(long millis) {
+		motionEndsAt = Math.max(motionEndsAt, System.currentTimeMillis()) + millis;
+	}
+
+	/**
+	 * Forget about queued motion, as when the machine is stopped.
+	 */
+	protected synchronized void clearQueuedMotion() {
+		motionEndsAt = 0;
+	}
+
 	/***************************************************************************
 	 * Firmware information functions
 	 **************************************************************************/
@@ -172,12 +206,14 @@ public class DriverBaseImplementation implements Driver {
 	 * Wait until we've finished all commands.
 	 */
 	public void waitUntilBufferEmpty() {
-		// sleep until we're empty.
+		// sleep until we're empty, asking less often the longer it takes
+		long poll = 10;
 		while (!isBufferEmpty()) {
 			try {
-				Thread.sleep(50);
+				Thread.sleep(Math.max(poll, getQueuedMotionMillis()));
 			} catch (Exception e) {
 			}
+			poll = Math.min(poll * 2, 200);
 		}
 	}
 
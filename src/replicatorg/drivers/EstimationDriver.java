@@ -24,26 +24,63 @@
 package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 
-import replicatorg.app.exceptions.GCodeException;
 import javax.vecmath.Point3d;
 
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.GCodeException;
+import replicatorg.machine.model.Axis;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+
+/**
+ * Estimates how long a build will take by replaying its commands against a
+ * model of the machine.
+ *
+ * Moves go through the same MotionPlanner the Sanguino3G driver uses, so
+ * acceleration, slowing for corners and the machine's speed limits are all
+ * counted.  Heating is modelled as a steady climb at a set rate from the
+ * moment a temperature is set; the build only waits for it when a tool
+ * change (M6) asks it to.  Homing is counted as a run of the whole length
+ * of the slowest axis homed.  Subclasses can replace any of these models
+ * by overriding heatingMillis() and homingMillis().
+ *
+ * The estimate is broken down by layer and by tool, and corrected by the
+ * EstimatorCalibration fitted to earlier builds.
+ */
 public class EstimationDriver extends DriverBaseImplementation {
-	// build time in milliseconds
-	private double buildTime = 0.0;
+	// assumed starting temperature of every heater, in degrees C
+	private static final double AMBIENT_TEMPERATURE = 20.0;
+
+	private final BuildEstimate estimate = new BuildEstimate();
+	// elapsed build time, in milliseconds; the clock heaters are timed by
+	private double clock = 0.0;
+
+	private MotionPlanner planner = null;
+
+	// when each tool's heater and platform reach their targets, by tool index
+	private final Map<Integer,Double> heaterReady = new HashMap<Integer,Double>();
+	private final Map<Integer,Double> platformReady = new HashMap<Integer,Double>();
 
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
 	
 	public EstimationDriver() {
 		super();
+	}
 
-		buildTime = 0.0;
+	public void setMachine(MachineModel m) {
+		super.setMachine(m);
+		int lookahead = Math.max(1, Base.preferences.getInt("build.lookahead",16));
+		planner = new MotionPlanner(m, lookahead);
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		count(BuildEstimate.Category.DWELL, (double) millis);
 	}
 
 	protected Point3d reconcilePosition() {
@@ -62,23 +99,154 @@ public class EstimationDriver extends DriverBaseImplementation {
 	}
 
 	protected void queuePoint(Point3d p, Double feedrate) {
-		// our speed is feedrate * distance * 60000 (milliseconds in 1 minute)
-		// feedrate is mm per minute
-		double millis = getMoveLength() / feedrate * 60000.0;
-
 		bounds.add(p.x,p.y);
-		
-		// add it in!
-		if (millis > 0) {
-			buildTime = buildTime + millis;
-			// System.out.println(getMoveLength() + "mm at " + feedrate + "
-			// takes " + Math.round(millis) + " millis (" + buildTime + "
-			// total).");
+		planner.add(getCurrentPosition(), p, feedrate);
+		countSegments();
+	}
+
+	// Count the time of the segments the planner has finished.
+	private void countSegments() {
+		int tool = currentToolIndex();
+		MotionPlanner.Segment s;
+		while ((s = planner.removeSegment()) != null) {
+			// feedrate is mm per minute
+			double millis = s.from.distance(s.to) / s.feedrate * 60000.0;
+			clock += millis;
+			estimate.add(BuildEstimate.Category.MOTION, millis, s.to.z, tool);
 		}
 	}
 
+	// Finish the moves held by the planner; the machine stops before
+	// anything that isn't a move.
+	private void flushMoves() {
+		if (planner != null && !planner.isEmpty()) {
+			planner.flush();
+			countSegments();
+		}
+	}
+
+	// Count time spent doing something other than moving.
+	private void count(BuildEstimate.Category category, double millis) {
+		flushMoves();
+		if (millis <= 0) { return; }
+		clock += millis;
+		estimate.add(category, millis, getCurrentPosition().z, currentToolIndex());
+	}
+
+	private int currentToolIndex() {
+		ToolModel tool = machine.currentTool();
+		return (tool != null) ? tool.getIndex() : 0;
+	}
+
+	public void setCurrentPosition(Point3d p) throws RetryException {
+		flushMoves();
+		super.setCurrentPosition(p);
+	}
+
+	public void homeAxes(EnumSet<Axis> axes, boolean positive, double feedrate) throws RetryException {
+		count(BuildEstimate.Category.HOMING, homingMillis(axes, feedrate));
+	}
+
+	/**
+	 * @return how long homing the given axes takes, in milliseconds
+	 * @param feedrate the requested feedrate, or 0 for the fastest
+	 */
+	protected double homingMillis(EnumSet<Axis> axes, double feedrate) {
+		Point3d maxFeedrates = machine.getMaximumFeedrates();
+		Point3d lengths = machine.getAxisLengths();
+		if (feedrate <= 0) {
+			feedrate = Math.max(maxFeedrates.x, Math.max(maxFeedrates.y, maxFeedrates.z));
+		}
+		// the axes home together at the speed of the slowest; the distance
+		// to the endstops isn't known, so count the whole length of travel
+		double travel = 0;
+		if (axes.contains(Axis.X)) {
+			feedrate = Math.min(feedrate, maxFeedrates.x);
+			travel = Math.max(travel, lengths.x);
+		}
+		if (axes.contains(Axis.Y)) {
+			feedrate = Math.min(feedrate, maxFeedrates.y);
+			travel = Math.max(travel, lengths.y);
+		}
+		if (axes.contains(Axis.Z)) {
+			feedrate = Math.min(feedrate, maxFeedrates.z);
+			travel = Math.max(travel, lengths.z);
+		}
+		if (feedrate <= 0) { return 0; }
+		return travel / feedrate * 60000.0;
+	}
+
+	public void setTemperature(double temperature) throws RetryException {
+		flushMoves();
+		ToolModel tool = machine.currentTool();
+		double from = Math.max(AMBIENT_TEMPERATURE, tool.getTargetTemperature());
+		double rate = Base.preferences.getDouble("estimator.heat_rate", 2.0);
+		heaterReady.put(tool.getIndex(), clock + heatingMillis(from, temperature, rate));
+		super.setTemperature(temperature);
+	}
+
+	public void setPlatformTemperature(double temperature) throws RetryException {
+		flushMoves();
+		ToolModel tool = machine.currentTool();
+		double from = Math.max(AMBIENT_TEMPERATURE, tool.getPlatformTargetTemperature());
+		double rate = Base.preferences.getDouble("estimator.platform_heat_rate", 0.5);
+		platformReady.put(tool.getIndex(), clock + heatingMillis(from, temperature, rate));
+		super.setPlatformTemperature(temperature);
+	}
+
+	/**
+	 * @return how long a heater takes to go from one temperature to
+	 * another, in milliseconds
+	 * @param rate the rate at which the heater warms, in degrees C per second
+	 */
+	protected double heatingMillis(double from, double to, double rate) {
+		// cooling isn't waited for
+		if (to <= from || rate <= 0) { return 0; }
+		return (to - from) / rate * 1000.0;
+	}
+
+	public void requestToolChange(int toolIndex, int timeout) throws RetryException {
+		flushMoves();
+		super.requestToolChange(toolIndex, timeout);
+		// wait for the tool, and its platform, to come up to temperature
+		double ready = clock;
+		Double heater = heaterReady.get(toolIndex);
+		if (heater != null) { ready = Math.max(ready, heater); }
+		Double platform = platformReady.get(toolIndex);
+		if (platform != null && machine.getTool(toolIndex).hasHeatedPlatform()) {
+			ready = Math.max(ready, platform);
+		}
+		// the timeout is in seconds
+		double wait = Math.min(ready - clock, timeout * 1000.0);
+		count(BuildEstimate.Category.HEATING, wait);
+	}
+
+	public void selectTool(int toolIndex) throws RetryException {
+		// moves already made are counted against the old tool
+		flushMoves();
+		super.selectTool(toolIndex);
+	}
+
+	/**
+	 * @return the estimate, corrected by the calibration from earlier builds
+	 */
+	public BuildEstimate getEstimate() {
+		return EstimatorCalibration.apply(getRawEstimate());
+	}
+
+	/**
+	 * @return the estimate from the machine model alone
+	 */
+	public BuildEstimate getRawEstimate() {
+		flushMoves();
+		return estimate;
+	}
+
+	/**
+	 * @return the estimated build time in milliseconds
+	 */
 	public double getBuildTime() {
-		return buildTime;
+		return getEstimate().getTotal();
 	}
 
 	static public String getBuildTimeString(double tempTime) {
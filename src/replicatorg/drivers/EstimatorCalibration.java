@@ -0,0 +1,112 @@
+package replicatorg.drivers;
+
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * Corrects build time estimates using the times real builds took.
+ *
+ * After each finished build the raw estimate and the actual duration are
+ * recorded.  Two factors are fitted by least squares over every build
+ * recorded so far: one for the time spent moving and one for everything
+ * else, so that a machine that moves slower than its settings suggest and
+ * one that heats up slower than expected are told apart.  The fit
+ * minimizes the relative error, so long builds don't drown out short ones.
+ * Until the builds recorded are different enough to tell the two apart, a
+ * single factor is used for both.
+ *
+ * The sums behind the fit are kept in the preferences, so calibration
+ * carries over between sessions.
+ */
+public class EstimatorCalibration {
+	private static final String PREFIX = "estimator.calibration.";
+
+	// factors are kept within these bounds; anything outside them is more
+	// likely a bad record than a real machine
+	private static final double MIN_FACTOR = 0.25;
+	private static final double MAX_FACTOR = 4.0;
+
+	/**
+	 * @return true if estimates should be corrected and builds recorded
+	 */
+	public static boolean isEnabled() {
+		return Base.preferences.getBoolean("estimator.calibrate", true);
+	}
+
+	/**
+	 * @return the given raw estimate corrected by the calibration so far
+	 */
+	public static BuildEstimate apply(BuildEstimate raw) {
+		if (!isEnabled()) { return raw; }
+		double[] f = getFactors();
+		return raw.scaled(f[0], f[1]);
+	}
+
+	/**
+	 * Record the actual duration of a build.
+	 * @param raw the uncorrected estimate made for the build
+	 * @param actualMillis how long the build took, in milliseconds
+	 */
+	public static synchronized void record(BuildEstimate raw, double actualMillis) {
+		if (!isEnabled() || actualMillis <= 0 || raw.getTotal() <= 0) { return; }
+		double m = raw.getMotionTime() / actualMillis;
+		double o = raw.getOverheadTime() / actualMillis;
+		// each build is weighted by 1/actual^2, so these are the sums of the
+		// normal equations for the relative error
+		add("count", 1);
+		add("mm", m * m);
+		add("mo", m * o);
+		add("oo", o * o);
+		add("m", m);
+		add("o", o);
+		if (Base.logger.isLoggable(Level.INFO)) {
+			double[] f = getFactors();
+			Base.logger.info("Build took " + EstimationDriver.getBuildTimeString(actualMillis, true) +
+					", estimated " + EstimationDriver.getBuildTimeString(raw.getTotal(), true) +
+					"; calibration is now " + f[0] + " for motion, " + f[1] + " for the rest.");
+		}
+	}
+
+	/**
+	 * Forget every build recorded.
+	 */
+	public static synchronized void reset() {
+		for (String key : new String[] { "count", "mm", "mo", "oo", "m", "o" }) {
+			Base.preferences.remove(PREFIX + key);
+		}
+	}
+
+	/**
+	 * @return the motion and overhead factors, in that order
+	 */
+	public static synchronized double[] getFactors() {
+		if (get("count") < 1) { return new double[] { 1.0, 1.0 }; }
+		double mm = get("mm"), mo = get("mo"), oo = get("oo");
+		double m = get("m"), o = get("o");
+		double det = mm * oo - mo * mo;
+		double motion, overhead;
+		if (det > 1e-6 * mm * oo) {
+			motion = (m * oo - o * mo) / det;
+			overhead = (o * mm - m * mo) / det;
+		} else {
+			// not enough to tell them apart; fit one factor to the totals
+			double ee = mm + 2 * mo + oo;
+			motion = overhead = (ee > 0) ? (m + o) / ee : 1.0;
+		}
+		return new double[] { clamp(motion), clamp(overhead) };
+	}
+
+	private static double clamp(double f) {
+		if (Double.isNaN(f)) { return 1.0; }
+		return Math.max(MIN_FACTOR, Math.min(MAX_FACTOR, f));
+	}
+
+	private static double get(String key) {
+		return Base.preferences.getDouble(PREFIX + key, 0);
+	}
+
+	private static void add(String key, double value) {
+		Base.preferences.putDouble(PREFIX + key, get(key) + value);
+	}
+}
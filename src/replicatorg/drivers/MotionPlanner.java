@@ -0,0 +1,298 @@
+package replicatorg.drivers;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Plans the speed of straight moves ahead of time, so that the machine can
+ * carry its speed through gentle corners and slow down before sharp ones
+ * instead of starting and stopping every move at full speed.
+ *
+ * The model is the usual one for stepper machines.  Each axis has a maximum
+ * acceleration (mm/s/s) and a maximum jerk: the largest change in speed
+ * (mm/s) it can take without accelerating.  A move's acceleration is the
+ * largest that keeps every axis within its limit.  The speed through the
+ * junction between two moves is limited by the jerk of each axis, given how
+ * much that axis' share of the speed changes at the corner, and by the
+ * nominal speed of both moves.  An axis with an acceleration limit but no
+ * jerk limit may not change speed instantly at all; an axis with neither is
+ * not limited.
+ *
+ * Moves are held in a window of the last few moves.  Every time a move is
+ * added, the junction speeds in the window are recomputed: a backward pass
+ * from a stop at the end of the window makes sure every move can slow down
+ * in time, and a forward pass makes sure every move can reach the speed it
+ * is asked to leave at.  Once the window is full the oldest move is
+ * finished: its speeds can't change any more, whatever comes next.
+ *
+ * The firmware runs each move at a constant speed, so a finished move is
+ * handed out as a trapezoid approximated by a few constant-speed pieces:
+ * some stepping up to speed, a cruise, and some stepping down again.
+ */
+public class MotionPlanner {
+	/** A straight piece of a planned move, to be run at a constant speed. */
+	public static class Segment {
+		public final Point3d from;
+		public final Point3d to;
+		/** in mm per minute */
+		public final double feedrate;
+		Segment(Point3d from, Point3d to, double feedrate) {
+			this.from = from;
+			this.to = to;
+			this.feedrate = feedrate;
+		}
+	}
+
+	private static class Move {
+		final Point3d from;
+		final Point3d to;
+		final double length;
+		// unit direction
+		final double ux, uy, uz;
+		// in mm/s and mm/s/s
+		final double nominalSpeed;
+		double acceleration;
+		// the fastest the move may start, given the move before it
+		double maxEntrySpeed;
+		double entrySpeed;
+		double exitSpeed;
+		Move(Point3d from, Point3d to, double length, double nominalSpeed) {
+			this.from = from;
+			this.to = to;
+			this.length = length;
+			this.ux = (to.x - from.x) / length;
+			this.uy = (to.y - from.y) / length;
+			this.uz = (to.z - from.z) / length;
+			this.nominalSpeed = nominalSpeed;
+		}
+	}
+
+	// ramps are split into at most this many pieces...
+	private static final int MAX_RAMP_PIECES = 4;
+	// ...none of them shorter than this, in mm
+	private static final double MIN_RAMP_PIECE = 0.5;
+	// no piece is run slower than this, in mm/s
+	private static final double MIN_SPEED = 0.5;
+
+	private final Point3d accelerations;
+	private final Point3d jerks;
+	private final int windowSize;
+
+	private final ArrayList<Move> moves = new ArrayList<Move>();
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	/**
+	 * @param machine the machine whose limits to plan with
+	 * @param windowSize the number of moves to look ahead
+	 */
+	public MotionPlanner(MachineModel machine, int windowSize) {
+		this.accelerations = new Point3d(machine.getMaximumAccelerations());
+		this.jerks = new Point3d(machine.getMaximumJerks());
+		this.windowSize = Math.max(1, windowSize);
+	}
+
+	/**
+	 * Add a straight move.  Moves too short to matter are dropped.
+	 * @param feedrate in mm per minute
+	 */
+	public synchronized void add(Point3d from, Point3d to, double feedrate) {
+		double length = from.distance(to);
+		if (length < 1e-9 || feedrate <= 0) { return; }
+		Move m = new Move(new Point3d(from), new Point3d(to), length, feedrate / 60.0);
+		m.acceleration = accelerationOf(m);
+		if (moves.isEmpty()) {
+			// starting from a stop: the previous move, if any, was finished
+			// with a stop at its end
+			m.maxEntrySpeed = Math.min(m.nominalSpeed, startSpeedOf(m));
+			m.entrySpeed = m.maxEntrySpeed;
+		} else {
+			Move prev = moves.get(moves.size() - 1);
+			m.maxEntrySpeed = junctionSpeed(prev, m);
+		}
+		moves.add(m);
+		plan();
+		while (moves.size() > windowSize) {
+			finishOldest();
+		}
+	}
+
+	/**
+	 * Finish every move held, coming to a stop at the end of the last.
+	 */
+	public synchronized void flush() {
+		plan();
+		while (!moves.isEmpty()) {
+			finishOldest();
+		}
+	}
+
+	/**
+	 * @return true if no moves are held and no segments are waiting
+	 */
+	public synchronized boolean isEmpty() {
+		return moves.isEmpty() && segments.isEmpty();
+	}
+
+	/**
+	 * @return true if there are planned segments waiting to be taken
+	 */
+	public synchronized boolean hasSegments() {
+		return !segments.isEmpty();
+	}
+
+	/** @return the next planned segment, or null if there isn't one */
+	public synchronized Segment peekSegment() {
+		return segments.peek();
+	}
+
+	/** @return and remove the next planned segment, or null if there isn't one */
+	public synchronized Segment removeSegment() {
+		return segments.poll();
+	}
+
+	/**
+	 * Forget every held move and planned segment, for example on abort.
+	 */
+	public synchronized void clear() {
+		moves.clear();
+		segments.clear();
+	}
+
+	// the most the move can accelerate while keeping each axis in its limit
+	private double accelerationOf(Move m) {
+		double a = Double.POSITIVE_INFINITY;
+		a = Math.min(a, axisLimit(accelerations.x, m.ux));
+		a = Math.min(a, axisLimit(accelerations.y, m.uy));
+		a = Math.min(a, axisLimit(accelerations.z, m.uz));
+		return a;
+	}
+
+	private static double axisLimit(double limit, double component) {
+		component = Math.abs(component);
+		if (limit <= 0 || component < 1e-12) { return Double.POSITIVE_INFINITY; }
+		return limit / component;
+	}
+
+	// the speed at which an axis may change by the given fraction of the
+	// speed; jumps are not allowed on axes that have an acceleration limit
+	// and no jerk limit
+	private static double jerkLimit(double acceleration, double jerk, double change) {
+		change = Math.abs(change);
+		if (acceleration <= 0 || change < 1e-12) { return Double.POSITIVE_INFINITY; }
+		if (jerk <= 0) { return 0; }
+		return jerk / change;
+	}
+
+	private double startSpeedOf(Move m) {
+		double v = Double.POSITIVE_INFINITY;
+		v = Math.min(v, jerkLimit(accelerations.x, jerks.x, m.ux));
+		v = Math.min(v, jerkLimit(accelerations.y, jerks.y, m.uy));
+		v = Math.min(v, jerkLimit(accelerations.z, jerks.z, m.uz));
+		return v;
+	}
+
+	private double junctionSpeed(Move prev, Move next) {
+		double v = Math.min(prev.nominalSpeed, next.nominalSpeed);
+		v = Math.min(v, jerkLimit(accelerations.x, jerks.x, next.ux - prev.ux));
+		v = Math.min(v, jerkLimit(accelerations.y, jerks.y, next.uy - prev.uy));
+		v = Math.min(v, jerkLimit(accelerations.z, jerks.z, next.uz - prev.uz));
+		return v;
+	}
+
+	private static double reachable(double speed, double acceleration, double length) {
+		if (Double.isInfinite(acceleration)) { return Double.POSITIVE_INFINITY; }
+		return Math.sqrt(speed * speed + 2 * acceleration * length);
+	}
+
+	// Recompute the junction speeds in the window, assuming a stop after the
+	// last move.  The first move's entry speed is already fixed.
+	private void plan() {
+		int n = moves.size();
+		if (n == 0) { return; }
+		// backward: every move must be able to slow to its exit speed
+		Move last = moves.get(n - 1);
+		double exit = Math.min(last.nominalSpeed, startSpeedOf(last));
+		for (int i = n - 1; i >= 0; i--) {
+			Move m = moves.get(i);
+			m.exitSpeed = exit;
+			if (i > 0) {
+				m.entrySpeed = Math.min(m.maxEntrySpeed, reachable(exit, m.acceleration, m.length));
+			}
+			exit = m.entrySpeed;
+		}
+		// forward: every move must be able to reach its exit speed
+		for (int i = 0; i < n; i++) {
+			Move m = moves.get(i);
+			m.exitSpeed = Math.min(m.exitSpeed, reachable(m.entrySpeed, m.acceleration, m.length));
+			if (i + 1 < n) {
+				moves.get(i + 1).entrySpeed = m.exitSpeed;
+			}
+		}
+	}
+
+	// Finish the oldest move in the window, splitting it into segments.
+	private void finishOldest() {
+		Move m = moves.remove(0);
+		if (!moves.isEmpty()) {
+			// the next move now starts at a speed that can't change
+			Move next = moves.get(0);
+			next.entrySpeed = m.exitSpeed;
+			next.maxEntrySpeed = m.exitSpeed;
+		}
+		double v = m.nominalSpeed;
+		double a = m.acceleration;
+		if (Double.isInfinite(a)) {
+			addSegment(m, 0, m.length, v);
+			return;
+		}
+		double e = m.entrySpeed;
+		double x = m.exitSpeed;
+		double accelLength = Math.max(0, (v * v - e * e) / (2 * a));
+		double decelLength = Math.max(0, (v * v - x * x) / (2 * a));
+		if (accelLength + decelLength > m.length) {
+			// never reaches full speed
+			v = Math.sqrt((2 * a * m.length + e * e + x * x) / 2);
+			v = Math.max(v, Math.max(e, x));
+			accelLength = Math.min(m.length, Math.max(0, (v * v - e * e) / (2 * a)));
+			decelLength = Math.max(0, m.length - accelLength);
+		}
+		double cruiseLength = m.length - accelLength - decelLength;
+		double s = 0;
+		s = addRamp(m, s, accelLength, e, a);
+		if (cruiseLength > 1e-9) {
+			addSegment(m, s, s + cruiseLength, v);
+			s += cruiseLength;
+		}
+		addRamp(m, s, m.length - s, v, -a);
+	}
+
+	// Add a ramp of the given length, starting at the given speed, as a few
+	// constant-speed pieces; returns the distance along the move at its end.
+	private double addRamp(Move m, double start, double length, double speed, double a) {
+		if (length <= 1e-9) { return start; }
+		int pieces = (int)Math.min(MAX_RAMP_PIECES, Math.max(1, Math.floor(length / MIN_RAMP_PIECE)));
+		double pieceLength = length / pieces;
+		double v0 = speed;
+		for (int i = 1; i <= pieces; i++) {
+			double v1 = Math.sqrt(Math.max(0, speed * speed + 2 * a * pieceLength * i));
+			addSegment(m, start + pieceLength * (i - 1), (i == pieces) ? start + length : start + pieceLength * i, (v0 + v1) / 2);
+			v0 = v1;
+		}
+		return start + length;
+	}
+
+	private void addSegment(Move m, double start, double end, double speed) {
+		Point3d from = pointAlong(m, start);
+		Point3d to = (end >= m.length) ? new Point3d(m.to) : pointAlong(m, end);
+		segments.addLast(new Segment(from, to, Math.max(speed, MIN_SPEED) * 60.0));
+	}
+
+	private static Point3d pointAlong(Move m, double s) {
+		if (s <= 0) { return new Point3d(m.from); }
+		return new Point3d(m.from.x + m.ux * s, m.from.y + m.uy * s, m.from.z + m.uz * s);
+	}
+}
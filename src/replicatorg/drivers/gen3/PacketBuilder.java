@@ -9,13 +9,19 @@ public class PacketBuilder implements PacketConstants {
 	 * A class for building a new packet to send down the wire to the
 	 * Sanguino3G.
 	 */
-	byte[] data = new byte[MAX_PACKET_LENGTH];
+	byte[] data;
 
 	// current end of packet. Bytes 0 and 1 are reserved for start byte
 	// and packet payload length.
 	int idx = 2;
 
-	IButtonCrc crc = new IButtonCrc();
+	/**
+	 * @return the length of a complete packet with the given payload length
+	 */
+	static int packetLength(int payloadLength) {
+		// start byte, length byte, payload, crc
+		return payloadLength + 3;
+	}
 
 	/**
 	 * Start building a new command packet.
@@ -26,6 +32,29 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		this(new byte[MAX_PACKET_LENGTH], command);
+	}
+
+	/**
+	 * Start building a new command packet in the given buffer.  If the
+	 * finished packet fills the buffer exactly, getPacket() hands back the
+	 * buffer itself instead of a copy; size it with packetLength().
+	 * 
+	 * @param buffer
+	 *            where to build the packet.
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	PacketBuilder(byte[] buffer, int command) {
+		data = buffer;
+		reset(command);
+	}
+
+	/**
+	 * Discard the packet built so far and start a new one in the same
+	 * buffer.
+	 */
+	void reset(int command) {
 		idx = 2;
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
@@ -40,7 +69,6 @@ public class PacketBuilder implements PacketConstants {
 	 */
 	void add8(int v) {
 		data[idx++] = (byte) v;
-		crc.update((byte) v);
 	}
 
 	/**
@@ -50,8 +78,8 @@ public class PacketBuilder implements PacketConstants {
 	 *            the value to append.
 	 */
 	void add16(int v) {
-		add8((byte) (v & 0xff));
-		add8((byte) ((v >> 8) & 0xff));
+		data[idx++] = (byte) v;
+		data[idx++] = (byte) (v >> 8);
 	}
 
 	/**
@@ -61,8 +89,21 @@ public class PacketBuilder implements PacketConstants {
 	 *            the value to append. Must be long to support unsigned ints.
 	 */
 	void add32(long v) {
-		add16((int) (v & 0xffff));
-		add16((int) ((v >> 16) & 0xffff));
+		data[idx++] = (byte) v;
+		data[idx++] = (byte) (v >> 8);
+		data[idx++] = (byte) (v >> 16);
+		data[idx++] = (byte) (v >> 24);
+	}
+
+	/**
+	 * Complete the packet in place, leaving it at the start of the buffer.
+	 * 
+	 * @return the length of the completed packet.
+	 */
+	int finish() {
+		data[idx] = IButtonCrc.compute(data, 2, idx - 2);
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		return idx + 1;
 	}
 
 	/**
@@ -71,11 +112,12 @@ public class PacketBuilder implements PacketConstants {
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
+		int length = finish();
+		if (length == data.length) {
+			return data;
+		}
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
 		return rv;
 	}
-
 }
@@ -38,7 +38,7 @@ public class PacketProcessor implements PacketConstants {
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	IButtonCrc crc = new IButtonCrc();
 
 	/**
 	 * Reset the packet's state. (The crc is (re-)generated on the length byte
@@ -58,6 +58,20 @@ public class PacketProcessor implements PacketConstants {
 		return pr;
 	}
 
+	/**
+	 * @return the number of bytes that can be read and processed without
+	 * reading past the end of the packet.
+	 */
+	public int bytesWanted() {
+		switch (packetState) {
+		case PAYLOAD:
+			// the rest of the payload, plus the CRC
+			return payloadLength - payloadIdx + 1;
+		default:
+			return 1;
+		}
+	}
+
 	/**
 	 * Process the next byte in an incoming packet.
 	 * 
@@ -92,7 +106,7 @@ public class PacketProcessor implements PacketConstants {
 
 			payloadLength = ((int) b) & 0xFF;
 			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			crc.reset();
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -0,0 +1,441 @@
+package replicatorg.drivers.gen3;
+
+import java.util.LinkedList;
+
+import replicatorg.app.Base;
+import replicatorg.app.Serial;
+import replicatorg.drivers.CommandPipeline;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * Keeps several command packets in flight at once instead of waiting for
+ * each response before sending the next packet.  Packets are written by the
+ * caller's thread; a reader thread runs a PacketProcessor over the incoming
+ * bytes and matches each response, in order, to the oldest outstanding
+ * packet.
+ *
+ * The Sanguino3G protocol has no sequence numbers, so the only way to keep
+ * the commands in order is to never let the firmware take a packet out of
+ * turn.  To keep refusals rare the window tracks the free space in the
+ * firmware's command buffer: it asks for it with GET_BUFFER_SIZE, deducts
+ * the payload of every packet sent since, and only sends while the packet
+ * fits.  When a packet is refused anyway (buffer overflow, or a CRC
+ * mismatch on the firmware's side) the window goes back to it: the packets
+ * already in flight behind it must be refused too, and once they have been
+ * answered the refused packets are resent in their original order before
+ * anything new goes out.
+ *
+ * Anything that leaves the firmware's state unknown fails the window
+ * instead: a packet behind a refused one being accepted, a lost or corrupt
+ * response (the packet may or may not have been taken, so resending it
+ * could run a move twice), or a packet refused more times than the retry
+ * limit.  The failure is passed to the error handler, send() throws from
+ * then on, and nothing more is sent until clear() is called.
+ *
+ * Only buffered commands should be sent through the window.  Anything that
+ * needs its response must be sent between beginExclusive() and
+ * endExclusive(), which wait for the window to empty and keep it closed
+ * while the caller talks to the port directly.
+ */
+public class PacketWindow {
+	/** An outstanding packet. */
+	private static class Entry {
+		final byte[] packet;
+		int retries;
+		final boolean bufferQuery;
+		// total payload bytes sent before this packet
+		final long sentBefore;
+		Entry(byte[] packet, int retries, boolean bufferQuery, long sentBefore) {
+			this.packet = packet;
+			this.retries = retries;
+			this.bufferQuery = bufferQuery;
+			this.sentBefore = sentBefore;
+		}
+		int getPayloadLength() {
+			return packet[1] & 0xff;
+		}
+	}
+
+	// how long to wait before asking again when the firmware buffer is full
+	private static final long FULL_BUFFER_POLL_MS = 10;
+
+	private final Serial serial;
+	private final int size;
+	private final int retries;
+	private final CommandPipeline.ErrorHandler errorHandler;
+
+	private final LinkedList<Entry> outstanding = new LinkedList<Entry>();
+	// refused packets waiting to be resent, in their original order
+	private final LinkedList<Entry> refused = new LinkedList<Entry>();
+	// the number of packets at the front of outstanding that were sent after
+	// the first refused packet; they are answered before anything is resent
+	private int stale = 0;
+	// where in refused the next of those goes if it is refused too
+	private int staleInsert = 0;
+	private boolean exclusive = false;
+	private boolean running = true;
+
+	// why the window failed, or null; nothing is sent until clear()
+	private String failure = null;
+	// a failure the error handler hasn't been told about yet
+	private String unreported = null;
+
+	// total payload bytes sent through the window
+	private long payloadSent = 0;
+	// the firmware's free buffer space, as of the last answered query, less
+	// everything sent since then
+	private long credit = 0;
+	private boolean bufferQueryOutstanding = false;
+	private boolean bufferWasFull = false;
+
+	// statistics
+	private long packetsSent = 0;
+	private long packetsResent = 0;
+
+	private final Thread reader;
+	// read buffer for the reader thread
+	private final byte[] buffer = new byte[256];
+
+	/**
+	 * @param serial the port to talk over
+	 * @param size the maximum number of packets in flight
+	 * @param retries the number of times a refused packet is sent before
+	 * the window fails
+	 * @param errorHandler told when the window fails; may be null
+	 */
+	public PacketWindow(Serial serial, int size, int retries, CommandPipeline.ErrorHandler errorHandler) {
+		this.serial = serial;
+		this.size = size;
+		this.retries = retries;
+		this.errorHandler = errorHandler;
+		reader = new Thread("Sanguino3G response reader") {
+			public void run() { readLoop(); }
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public Serial getSerial() {
+		return serial;
+	}
+
+	/**
+	 * Send a command packet, waiting first for room in the window and in the
+	 * firmware's buffer.  Returns once the packet is written; its response is
+	 * handled by the reader thread.  If the thread is interrupted or the
+	 * window shut down while waiting, the packet isn't sent.
+	 * @throws RuntimeException if the window has failed
+	 */
+	public void send(byte[] packet) {
+		int payloadLength = packet[1] & 0xff;
+		synchronized(this) {
+			if (!waitForRoom(payloadLength)) {
+				if (failure != null) {
+					throw new RuntimeException(failure);
+				}
+				return;
+			}
+			credit -= payloadLength;
+			outstanding.addLast(new Entry(packet, retries, false, payloadSent));
+			payloadSent += payloadLength;
+			packetsSent++;
+			notifyAll();
+		}
+		serial.write(packet);
+	}
+
+	/**
+	 * Wait until a packet of the given payload length can go out, resending
+	 * any refused packets first.  Called with the monitor held.
+	 * @return false if the window failed or was shut down, or the thread was
+	 * interrupted, first
+	 */
+	private boolean waitForRoom(int payloadLength) {
+		while (true) {
+			if (failure != null || !running) {
+				return false;
+			}
+			if (exclusive || outstanding.size() >= size || stale > 0) {
+				if (!waitQuietly(0)) { return false; }
+				continue;
+			}
+			// nothing new goes out until the refused packets are back in line
+			Entry next = refused.isEmpty() ? null : refused.getFirst();
+			int wanted = (next == null) ? payloadLength : next.getPayloadLength();
+			if (credit < wanted) {
+				if (bufferQueryOutstanding) {
+					if (!waitQuietly(0)) { return false; }
+				} else if (bufferWasFull) {
+					bufferWasFull = false;
+					if (!waitQuietly(FULL_BUFFER_POLL_MS)) { return false; }
+				} else {
+					queryBufferSize();
+				}
+			} else if (next != null) {
+				resend(refused.removeFirst());
+			} else {
+				return true;
+			}
+		}
+	}
+
+	// Called with the monitor held.
+	private void queryBufferSize() {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		byte[] packet = pb.getPacket();
+		bufferQueryOutstanding = true;
+		outstanding.addLast(new Entry(packet, retries, true, payloadSent));
+		notifyAll();
+		serial.write(packet);
+	}
+
+	// Called with the monitor held.
+	private void resend(Entry e) {
+		credit -= e.getPayloadLength();
+		payloadSent += e.getPayloadLength();
+		outstanding.addLast(e);
+		packetsResent++;
+		notifyAll();
+		serial.write(e.packet);
+	}
+
+	/**
+	 * @return false if the thread was interrupted; the interrupt is kept for
+	 * the caller to see
+	 */
+	private boolean waitQuietly(long millis) {
+		try {
+			wait(millis);
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Wait until every packet sent through the window has been answered, and
+	 * keep the window closed until endExclusive() is called.  A failed
+	 * window still lets the caller through, so that the machine can be
+	 * stopped.
+	 * @return false if the thread was interrupted while waiting, in which
+	 * case the window isn't closed and endExclusive() mustn't be called
+	 */
+	public synchronized boolean beginExclusive() {
+		while (running) {
+			if (exclusive || (failure != null && !outstanding.isEmpty())) {
+				if (!waitQuietly(0)) { return false; }
+			} else if (failure == null && (stale > 0 || !refused.isEmpty())) {
+				// the refused packets go before whatever the caller sends
+				if (!waitForRoom(0) && Thread.currentThread().isInterrupted()) {
+					return false;
+				}
+			} else if (!outstanding.isEmpty()) {
+				if (!waitQuietly(0)) { return false; }
+			} else {
+				break;
+			}
+		}
+		exclusive = true;
+		return true;
+	}
+
+	public synchronized void endExclusive() {
+		exclusive = false;
+		// whatever the caller did may have changed the firmware's buffer
+		credit = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Drop any refused packets waiting to be resent and clear a failure, for
+	 * example before an abort.  Packets already in flight are still
+	 * answered, so this waits for their responses to be read, unless the
+	 * thread is interrupted.
+	 */
+	public synchronized void clear() {
+		refused.clear();
+		stale = 0;
+		failure = null;
+		unreported = null;
+		credit = 0;
+		notifyAll();
+		while (running && !outstanding.isEmpty()) {
+			if (!waitQuietly(0)) { return; }
+		}
+	}
+
+	public void shutdown() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		reader.interrupt();
+	}
+
+	public synchronized long getPacketsSent() { return packetsSent; }
+
+	public synchronized long getPacketsResent() { return packetsResent; }
+
+	/**
+	 * @return why the window failed, or null if it hasn't
+	 */
+	public synchronized String getFailure() { return failure; }
+
+	private void readLoop() {
+		PacketProcessor pp = new PacketProcessor();
+		while (true) {
+			synchronized(this) {
+				while (running && (outstanding.isEmpty() || exclusive)) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						// checked below
+					}
+				}
+				if (!running) { return; }
+			}
+			int n = serial.readFully(buffer, 0, pp.bytesWanted());
+			if (n <= 0) {
+				if (Thread.currentThread().isInterrupted()) { return; }
+				// The rest of the responses are lost.  A buffer query can
+				// simply be asked again, but nothing tells us whether the
+				// commands were taken.
+				synchronized(this) {
+					int commands = 0;
+					while (!outstanding.isEmpty()) {
+						Entry e = outstanding.removeFirst();
+						if (e.bufferQuery) {
+							bufferQueryOutstanding = false;
+							credit = 0;
+						} else {
+							commands++;
+						}
+					}
+					stale = 0;
+					if (commands > 0) {
+						fail("Lost the responses to "+commands+" packets; the machine may or may not have run them");
+					}
+					notifyAll();
+				}
+				report();
+				pp = new PacketProcessor();
+				continue;
+			}
+			try {
+				boolean completed = false;
+				for (int i = 0; i < n && !completed; i++) {
+					completed = pp.processByte(buffer[i]);
+				}
+				if (!completed) { continue; }
+			} catch (CRCException e) {
+				synchronized(this) {
+					if (!outstanding.isEmpty()) {
+						Entry lost = next();
+						if (lost.bufferQuery) {
+							bufferQueryOutstanding = false;
+							credit = 0;
+						} else {
+							fail("Bad CRC received; the machine may or may not have run the packet");
+						}
+					}
+					notifyAll();
+				}
+				report();
+				pp = new PacketProcessor();
+				continue;
+			}
+			PacketResponse pr = pp.getResponse();
+			pp = new PacketProcessor();
+			synchronized(this) {
+				if (!outstanding.isEmpty()) {
+					boolean wasStale = stale > 0;
+					handleResponse(next(), pr, wasStale);
+				}
+				notifyAll();
+			}
+			report();
+		}
+	}
+
+	// Take the oldest outstanding packet.  Called with the monitor held.
+	private Entry next() {
+		if (stale > 0) { stale--; }
+		return outstanding.removeFirst();
+	}
+
+	// Called with the monitor held.
+	private void handleResponse(Entry e, PacketResponse pr, boolean wasStale) {
+		if (e.bufferQuery) {
+			bufferQueryOutstanding = false;
+			if (pr.isOK()) {
+				long free = pr.get32() & 0xffffffffL;
+				credit = free - (payloadSent - e.sentBefore);
+				bufferWasFull = (credit <= 0);
+			} else {
+				credit = 0;
+			}
+			return;
+		}
+		if (failure != null) {
+			// nothing more is resent; the rest is just read off the port
+			return;
+		}
+		PacketResponse.ResponseCode code = pr.getResponseCode();
+		if (code == PacketResponse.ResponseCode.OK) {
+			if (wasStale) {
+				fail("A packet was taken after an earlier one was refused; the commands would run out of order");
+			}
+			return;
+		}
+		if (code == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+			// our idea of the buffer was off; start over
+			credit = 0;
+			refuse(e, false, wasStale);
+		} else {
+			pr.printDebug();
+			refuse(e, true, wasStale);
+		}
+	}
+
+	// Called with the monitor held.
+	private void refuse(Entry e, boolean countRetry, boolean wasStale) {
+		if (countRetry && --e.retries <= 0) {
+			fail("Packet refused "+retries+" times");
+			return;
+		}
+		if (wasStale) {
+			// behind the refused packet it followed
+			refused.add(staleInsert++, e);
+		} else {
+			// Anything refused is behind this packet, and everything still
+			// in flight was sent after it and has to be answered first.
+			refused.addFirst(e);
+			staleInsert = 1;
+			stale = outstanding.size();
+		}
+	}
+
+	// Called with the monitor held.
+	private void fail(String message) {
+		if (failure != null) { return; }
+		Base.logger.severe(message);
+		failure = message;
+		unreported = message;
+		refused.clear();
+		stale = 0;
+		notifyAll();
+	}
+
+	// Pass a new failure to the error handler, without the monitor held.
+	private void report() {
+		String message;
+		synchronized(this) {
+			message = unreported;
+			unreported = null;
+		}
+		if (message != null && errorHandler != null) {
+			errorHandler.pipelineError(message);
+		}
+	}
+}
@@ -0,0 +1,497 @@
+package replicatorg.drivers.gen3;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * An emulated Sanguino3G motherboard, for running builds through the
+ * Sanguino3G driver without hardware.  Attach it to a Serial through a
+ * LoopbackSerialTransport.
+ *
+ * The emulator answers the motherboard and tool queries the driver makes
+ * during a build, and models the parts of the firmware that limit
+ * throughput:
+ * <ul>
+ * <li>a finite command buffer.  Buffered commands take up their payload
+ * length in the buffer until the machine starts executing them, and a
+ * command that doesn't fit is refused with BUFFER_OVERFLOW;</li>
+ * <li>execution time.  Moves take as long as their step count and step
+ * delay say they should, and delays take as long as they ask for;</li>
+ * <li>the serial line.  Every byte, in either direction, takes ten bit
+ * times at the configured baud rate.</li>
+ * </ul>
+ * Everything else (temperatures, endstops, EEPROM) is answered with fixed
+ * or trivially tracked values.  Positions are reported as of the end of
+ * the last queued move.
+ *
+ * Statistics are kept for benchmarking: commands accepted and refused,
+ * queries answered, bytes moved, and the buffer's occupancy over time.
+ *
+ * Time is read from a Clock.  The real clock makes the emulator take as
+ * long as the machine would; a VirtualClock skips the waiting, so that a
+ * test can compare how long two runs would take on the machine without
+ * timing them.
+ */
+public class S3GEmulator implements LoopbackSerialTransport.Device {
+	/** Where the emulator gets the time from, in nanoseconds. */
+	public interface Clock {
+		long nanoTime();
+		/** Return once the time is at least the given one. */
+		void waitUntil(long nanos);
+	}
+
+	/** The system's clock: waiting takes as long as it says. */
+	public static final Clock REAL_TIME = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+		public void waitUntil(long nanos) {
+			long remaining;
+			while ((remaining = nanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+		}
+	};
+
+	/**
+	 * A clock that stands still until it is waited on, and then jumps
+	 * straight to the time waited for.  The emulator's time then counts
+	 * only the time the line and the machine would take, however long the
+	 * host takes to answer.
+	 */
+	public static class VirtualClock implements Clock {
+		private long now = 0;
+		public synchronized long nanoTime() {
+			return now;
+		}
+		public synchronized void waitUntil(long nanos) {
+			now = Math.max(now, nanos);
+		}
+	}
+
+	/** Firmware version reported by the emulated boards, as major*100+minor. */
+	private static final int FIRMWARE_VERSION = 200;
+
+	private static final String BUILD_NAME = "Emulator";
+
+	// response codes
+	private static final int RC_GENERIC_ERROR = 0;
+	private static final int RC_OK = 1;
+	private static final int RC_BUFFER_OVERFLOW = 2;
+	private static final int RC_CRC_MISMATCH = 3;
+	private static final int RC_UNSUPPORTED = 5;
+
+	// don't record occupancy more often than this
+	private static final long SAMPLE_INTERVAL_NANOS = 10 * 1000000L;
+	private static final int MAX_SAMPLES = 100000;
+
+	/** A block of bytes in transit from the host. */
+	private static class Chunk {
+		final byte[] data;
+		final long arrival;
+		Chunk(byte[] data, long arrival) {
+			this.data = data;
+			this.arrival = arrival;
+		}
+	}
+
+	/** A command waiting in the buffer. */
+	private static class Queued {
+		final int length;
+		final long start;
+		Queued(int length, long start) {
+			this.length = length;
+			this.start = start;
+		}
+	}
+
+	private final int bufferSize;
+	// time to move one byte over the line, in nanoseconds
+	private final long byteNanos;
+	private final Clock clock;
+
+	private LoopbackSerialTransport port = null;
+
+	// responses are built here, on the worker thread
+	private final PacketBuilder response = new PacketBuilder(RC_OK);
+
+	private final LinkedList<Chunk> inbound = new LinkedList<Chunk>();
+	// when the host-to-device line next goes idle
+	private long inboundFree = 0;
+	private Thread worker = null;
+	private boolean running = false;
+
+	// the command buffer, accessed only by the worker thread
+	private final LinkedList<Queued> queue = new LinkedList<Queued>();
+	private int bufferUsed = 0;
+	// when the last queued command finishes executing
+	private long motionEnd = 0;
+	private final long[] position = new long[3];
+	private final int[] toolTemperature = new int[256];
+	private final int[] platformTemperature = new int[256];
+	private final byte[] eeprom = new byte[512];
+
+	// statistics
+	private long startTime;
+	private long commands = 0;
+	private long overflows = 0;
+	private long queries = 0;
+	private long crcErrors = 0;
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+	private long occupancyIntegral = 0;
+	private long lastOccupancyChange;
+	private int maxOccupancy = 0;
+	private final List<long[]> samples = new ArrayList<long[]>();
+	private long lastSample = 0;
+
+	/**
+	 * @param bufferSize the size of the command buffer, in bytes
+	 * @param baud the speed of the emulated serial line, or 0 for an
+	 * infinitely fast line
+	 */
+	public S3GEmulator(int bufferSize, int baud) {
+		this(bufferSize, baud, REAL_TIME);
+	}
+
+	/**
+	 * @param bufferSize the size of the command buffer, in bytes
+	 * @param baud the speed of the emulated serial line, or 0 for an
+	 * infinitely fast line
+	 * @param clock where the time comes from
+	 */
+	public S3GEmulator(int bufferSize, int baud, Clock clock) {
+		this.bufferSize = bufferSize;
+		this.byteNanos = (baud > 0) ? 10L * 1000000000L / baud : 0;
+		this.clock = clock;
+		resetStatistics();
+	}
+
+	public synchronized void connected(LoopbackSerialTransport port) {
+		this.port = port;
+		if (worker == null) {
+			running = true;
+			worker = new Thread("S3G emulator") {
+				public void run() { workLoop(); }
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	public synchronized void disconnected() {
+		running = false;
+		port = null;
+		notifyAll();
+		worker = null;
+	}
+
+	public void reset() {
+		// handled on the worker thread, like the RESET command
+		synchronized(this) {
+			inbound.clear();
+			inbound.add(new Chunk(null, clock.nanoTime()));
+			notifyAll();
+		}
+	}
+
+	public void received(byte[] data, int offset, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(data, offset, copy, 0, length);
+		synchronized(this) {
+			long now = clock.nanoTime();
+			inboundFree = Math.max(now, inboundFree) + length * byteNanos;
+			inbound.add(new Chunk(copy, inboundFree));
+			bytesIn += length;
+			notifyAll();
+		}
+	}
+
+	private void workLoop() {
+		PacketProcessor pp = new PacketProcessor();
+		while (true) {
+			Chunk chunk;
+			LoopbackSerialTransport out;
+			synchronized(this) {
+				while (running && inbound.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+				if (!running) { return; }
+				chunk = inbound.removeFirst();
+				out = port;
+			}
+			clock.waitUntil(chunk.arrival);
+			if (chunk.data == null) {
+				clearBuffer();
+				pp = new PacketProcessor();
+				continue;
+			}
+			for (int i = 0; i < chunk.data.length; i++) {
+				try {
+					if (!pp.processByte(chunk.data[i])) { continue; }
+					handlePacket(pp.getResponse().getPayload());
+				} catch (CRCException e) {
+					synchronized(this) { crcErrors++; }
+					response.reset(RC_CRC_MISMATCH);
+				}
+				pp = new PacketProcessor();
+				int length = response.finish();
+				// the response takes time to go out, too
+				clock.waitUntil(clock.nanoTime() + length * byteNanos);
+				synchronized(this) { bytesOut += length; }
+				if (out != null) {
+					out.send(response.data, 0, length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the commands the machine has started executing from the buffer.
+	 */
+	private void retire(long now) {
+		while (!queue.isEmpty() && queue.getFirst().start <= now) {
+			setOccupancy(bufferUsed - queue.removeFirst().length, now);
+		}
+	}
+
+	private void clearBuffer() {
+		long now = clock.nanoTime();
+		queue.clear();
+		setOccupancy(0, now);
+		motionEnd = now;
+	}
+
+	private synchronized void setOccupancy(int used, long now) {
+		occupancyIntegral += (long)bufferUsed * (now - lastOccupancyChange);
+		lastOccupancyChange = now;
+		bufferUsed = used;
+		maxOccupancy = Math.max(maxOccupancy, used);
+		if (now - lastSample >= SAMPLE_INTERVAL_NANOS && samples.size() < MAX_SAMPLES) {
+			samples.add(new long[] { now - startTime, used });
+			lastSample = now;
+		}
+	}
+
+	private static int get8(byte[] p, int at) {
+		return p[at] & 0xff;
+	}
+
+	private static int get16(byte[] p, int at) {
+		return get8(p, at) | (get8(p, at + 1) << 8);
+	}
+
+	private static int get32(byte[] p, int at) {
+		return get16(p, at) | (get16(p, at + 2) << 16);
+	}
+
+	/**
+	 * Handle a packet and build its response in the response builder.
+	 */
+	private void handlePacket(byte[] payload) {
+		int code = get8(payload, 0);
+		long now = clock.nanoTime();
+		retire(now);
+		if ((code & 0x80) != 0) {
+			handleCommand(code, payload, now);
+			return;
+		}
+		synchronized(this) { queries++; }
+		PacketBuilder pb = response;
+		pb.reset(RC_OK);
+		if (code == MotherboardCommandCode.VERSION.getCode()) {
+			pb.add16(FIRMWARE_VERSION);
+		} else if (code == MotherboardCommandCode.GET_BUILD_NAME.getCode()) {
+			addString(pb, BUILD_NAME);
+		} else if (code == MotherboardCommandCode.INIT.getCode() ||
+				code == MotherboardCommandCode.PAUSE.getCode()) {
+			// nothing to report
+		} else if (code == MotherboardCommandCode.GET_BUFFER_SIZE.getCode()) {
+			pb.add32(bufferSize - bufferUsed);
+		} else if (code == MotherboardCommandCode.CLEAR_BUFFER.getCode() ||
+				code == MotherboardCommandCode.ABORT.getCode() ||
+				code == MotherboardCommandCode.RESET.getCode()) {
+			clearBuffer();
+		} else if (code == MotherboardCommandCode.GET_POSITION.getCode()) {
+			pb.add32(position[0]);
+			pb.add32(position[1]);
+			pb.add32(position[2]);
+			pb.add8(0); // endstops
+		} else if (code == MotherboardCommandCode.IS_FINISHED.getCode()) {
+			pb.add8((now >= motionEnd) ? 1 : 0);
+		} else if (code == MotherboardCommandCode.READ_EEPROM.getCode()) {
+			int offset = get16(payload, 1);
+			int len = get8(payload, 3);
+			for (int i = 0; i < len; i++) {
+				pb.add8((offset + i < eeprom.length) ? eeprom[offset + i] : 0);
+			}
+		} else if (code == MotherboardCommandCode.WRITE_EEPROM.getCode()) {
+			int offset = get16(payload, 1);
+			int len = get8(payload, 3);
+			for (int i = 0; i < len && offset + i < eeprom.length; i++) {
+				eeprom[offset + i] = payload[4 + i];
+			}
+			pb.add8(len);
+		} else if (code == MotherboardCommandCode.TOOL_QUERY.getCode()) {
+			handleToolQuery(get8(payload, 1), get8(payload, 2));
+		} else {
+			response.reset(RC_UNSUPPORTED);
+		}
+	}
+
+	private void handleToolQuery(int tool, int code) {
+		PacketBuilder pb = response;
+		pb.reset(RC_OK);
+		if (code == ToolCommandCode.VERSION.getCode()) {
+			pb.add16(FIRMWARE_VERSION);
+		} else if (code == ToolCommandCode.GET_BUILD_NAME.getCode()) {
+			addString(pb, BUILD_NAME);
+		} else if (code == ToolCommandCode.GET_TEMP.getCode() ||
+				code == ToolCommandCode.GET_SP.getCode()) {
+			// heaters reach their setpoints instantly
+			pb.add16(toolTemperature[tool]);
+		} else if (code == ToolCommandCode.GET_PLATFORM_TEMP.getCode() ||
+				code == ToolCommandCode.GET_PLATFORM_SP.getCode()) {
+			pb.add16(platformTemperature[tool]);
+		} else if (code == ToolCommandCode.IS_TOOL_READY.getCode() ||
+				code == ToolCommandCode.IS_PLATFORM_READY.getCode()) {
+			pb.add8(1);
+		} else if (code == ToolCommandCode.GET_MOTOR_1_PWM.getCode() ||
+				code == ToolCommandCode.GET_MOTOR_2_PWM.getCode()) {
+			pb.add8(0);
+		} else if (code == ToolCommandCode.GET_MOTOR_1_RPM.getCode() ||
+				code == ToolCommandCode.GET_MOTOR_2_RPM.getCode()) {
+			pb.add32(0);
+		} else if (code == ToolCommandCode.READ_FROM_EEPROM.getCode()) {
+			// tool EEPROMs read as blank
+			pb.add8(0);
+		} else {
+			response.reset(RC_UNSUPPORTED);
+		}
+	}
+
+	private static void addString(PacketBuilder pb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			pb.add8(s.charAt(i));
+		}
+	}
+
+	private void handleCommand(int code, byte[] payload, long now) {
+		if (bufferUsed + payload.length > bufferSize) {
+			synchronized(this) { overflows++; }
+			response.reset(RC_BUFFER_OVERFLOW);
+			return;
+		}
+		long duration = 0;
+		if (code == MotherboardCommandCode.QUEUE_POINT_ABS.getCode()) {
+			long steps = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				long target = get32(payload, 1 + axis * 4);
+				steps = Math.max(steps, Math.abs(target - position[axis]));
+				position[axis] = target;
+			}
+			long stepMicros = get32(payload, 13) & 0xffffffffL;
+			duration = steps * stepMicros * 1000L;
+		} else if (code == MotherboardCommandCode.SET_POSITION.getCode()) {
+			for (int axis = 0; axis < 3; axis++) {
+				position[axis] = get32(payload, 1 + axis * 4);
+			}
+		} else if (code == MotherboardCommandCode.DELAY.getCode()) {
+			duration = (get32(payload, 1) & 0xffffffffL) * 1000000L;
+		} else if (code == MotherboardCommandCode.TOOL_COMMAND.getCode()) {
+			int tool = get8(payload, 1);
+			int toolCode = get8(payload, 2);
+			if (toolCode == ToolCommandCode.SET_TEMP.getCode()) {
+				toolTemperature[tool] = get16(payload, 4);
+			} else if (toolCode == ToolCommandCode.SET_PLATFORM_TEMP.getCode()) {
+				platformTemperature[tool] = get16(payload, 4);
+			}
+		} else if (!isKnownCommand(code)) {
+			response.reset(RC_GENERIC_ERROR);
+			return;
+		}
+		long start = Math.max(now, motionEnd);
+		motionEnd = start + duration;
+		queue.addLast(new Queued(payload.length, start));
+		setOccupancy(bufferUsed + payload.length, now);
+		// commands that start at once leave the buffer at once
+		retire(now);
+		synchronized(this) { commands++; }
+		response.reset(RC_OK);
+	}
+
+	private static boolean isKnownCommand(int code) {
+		for (MotherboardCommandCode c : MotherboardCommandCode.values()) {
+			if (c.getCode() == code) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Zero the statistics, for example once the machine has connected and
+	 * the build proper is about to start.
+	 */
+	public synchronized void resetStatistics() {
+		startTime = clock.nanoTime();
+		lastOccupancyChange = startTime;
+		lastSample = 0;
+		commands = overflows = queries = crcErrors = 0;
+		bytesIn = bytesOut = 0;
+		occupancyIntegral = 0;
+		maxOccupancy = bufferUsed;
+		samples.clear();
+	}
+
+	/**
+	 * @return the time since the statistics were reset, in nanoseconds on
+	 * the emulator's clock
+	 */
+	public synchronized long getElapsedTime() {
+		return clock.nanoTime() - startTime;
+	}
+
+	public synchronized long getCommandCount() { return commands; }
+
+	public synchronized long getOverflowCount() { return overflows; }
+
+	public synchronized long getQueryCount() { return queries; }
+
+	public synchronized long getCRCErrorCount() { return crcErrors; }
+
+	/**
+	 * @return the samples of buffer occupancy taken so far, each an array of
+	 * nanoseconds since the statistics were reset and bytes in use
+	 */
+	public synchronized List<long[]> getOccupancyHistory() {
+		return new ArrayList<long[]>(samples);
+	}
+
+	/**
+	 * Print a summary of the statistics.
+	 */
+	public synchronized void printReport(PrintStream out) {
+		long now = clock.nanoTime();
+		double seconds = (now - startTime) / 1e9;
+		long integral = occupancyIntegral + (long)bufferUsed * (now - lastOccupancyChange);
+		long attempts = commands + overflows;
+		out.println("Elapsed:          " + String.format("%.2f s", seconds));
+		out.println("Commands:         " + commands + String.format(" (%.1f/s)", commands / seconds));
+		out.println("Queries:          " + queries + String.format(" (%.1f/s)", queries / seconds));
+		out.println("Buffer overflows: " + overflows +
+				String.format(" (%.1f%% of command packets)", attempts == 0 ? 0.0 : 100.0 * overflows / attempts));
+		out.println("CRC errors:       " + crcErrors);
+		out.println("Bytes in/out:     " + bytesIn + " / " + bytesOut);
+		out.println("Buffer occupancy: " + String.format("%.1f", integral / (double)(now - startTime)) +
+				" bytes average, " + maxOccupancy + " peak, of " + bufferSize);
+	}
+}
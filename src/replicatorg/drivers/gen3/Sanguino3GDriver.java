@@ -40,6 +40,8 @@ import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
 import replicatorg.drivers.BadFirmwareVersionException;
+import replicatorg.drivers.CommandPipeline;
+import replicatorg.drivers.MotionPlanner;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.PenPlotter;
@@ -58,6 +60,39 @@ public class Sanguino3GDriver extends SerialDriver
 	protected final static int DEFAULT_RETRIES = 5;
 	
 	Version toolVersion = new Version(0,0);
+
+	/**
+	 * Buffered commands are handed to this pipeline and sent by its I/O
+	 * thread, so that the build thread can plan ahead while packets are in
+	 * transit.  Null if pipelining is turned off, as it is unless the
+	 * build.pipeline_depth preference is set.
+	 */
+	private CommandPipeline<byte[]> pipeline = null;
+
+	/**
+	 * When windowing is on, the pipeline's I/O thread sends commands through
+	 * this window, keeping several packets in flight instead of waiting for
+	 * each response.  Null if windowing is turned off; it is only used
+	 * when the pipeline is on.
+	 */
+	private PacketWindow window = null;
+
+	/**
+	 * When the machine gives acceleration limits, moves are held here and
+	 * sent as planned segments that ramp the speed up and down.  Null if
+	 * look-ahead is turned off.
+	 */
+	private MotionPlanner planner = null;
+	private boolean plannerChecked = false;
+	// where the last planned segment sent ends
+	private Point3d plannedPosition = null;
+	// set while planned segments are being sent, so that they don't flush
+	// the planner
+	private boolean sendingPlanned = false;
+
+	// Responses are read into this buffer; only used while holding the
+	// serial port's lock.
+	private final byte[] responseBuffer = new byte[256];
 	
 	public Sanguino3GDriver() {
 		super();
@@ -182,6 +217,113 @@ public class Sanguino3GDriver extends SerialDriver
 	protected PacketResponse runQuery(byte[] packet) {
 		return runQuery(packet,1);
 	}
+
+	/**
+	 * Run a query immediately, without waiting for queued commands to be
+	 * sent first.  For commands like pause and abort that must jump the
+	 * queue.
+	 */
+	protected PacketResponse runImmediateQuery(byte[] packet) {
+		try {
+			return sendExclusive(packet,1);
+		} catch (RetryException re) {
+			throw new RuntimeException("Queries can not have valid retries!");
+		}
+	}
+
+	/**
+	 * Run a query that doesn't depend on the commands queued before it, such
+	 * as a temperature reading.  If commands are waiting in the pipeline the
+	 * query goes out in the next gap between them, instead of waiting for
+	 * all of them to be sent.
+	 * @return the response, which is empty if the query couldn't be run
+	 */
+	protected PacketResponse runStatusQuery(final byte[] packet) {
+		CommandPipeline<byte[]> p = pipeline;
+		if (p == null || fileCaptureOstream != null || serial == null || p.isEmpty()) {
+			return runQuery(packet);
+		}
+		final PacketResponse[] response = { new PacketResponse() };
+		p.runBetween(new Runnable() {
+			public void run() {
+				response[0] = runImmediateQuery(packet);
+			}
+		});
+		return response[0];
+	}
+
+	private CommandPipeline<byte[]> getPipeline() {
+		if (pipeline == null) {
+			int depth = Base.preferences.getInt("build.pipeline_depth",0);
+			if (depth <= 0) { return null; }
+			pipeline = new CommandPipeline<byte[]>("Sanguino3G I/O", depth,
+				new CommandPipeline.Sink<byte[]>() {
+					public void send(byte[] packet) throws RetryException {
+						PacketWindow w = getWindow();
+						if (w != null) {
+							w.send(packet);
+						} else {
+							sendPacket(packet,DEFAULT_RETRIES);
+						}
+					}
+				},
+				new CommandPipeline.ErrorHandler() {
+					public void pipelineError(String message) {
+						setError(message);
+					}
+				});
+		}
+		return pipeline;
+	}
+
+	/**
+	 * The window is tied to the port it was opened on, so a new one is made
+	 * if the port has changed.
+	 */
+	private synchronized PacketWindow getWindow() {
+		if (window != null && window.getSerial() != serial) {
+			window.shutdown();
+			window = null;
+		}
+		if (window == null && serial != null) {
+			int size = Base.preferences.getInt("build.packet_window",1);
+			if (size <= 1) { return null; }
+			window = new PacketWindow(serial, size, DEFAULT_RETRIES,
+				new CommandPipeline.ErrorHandler() {
+					public void pipelineError(String message) {
+						setError(message);
+					}
+				});
+		}
+		return window;
+	}
+
+	private void clearWindow() {
+		PacketWindow w;
+		synchronized(this) { w = window; }
+		if (w != null) { w.clear(); }
+	}
+
+	/**
+	 * Send a packet and wait for its response, first waiting for any packets
+	 * in flight in the window to be answered.
+	 */
+	private PacketResponse sendExclusive(byte[] packet, int retries) throws RetryException {
+		PacketWindow w;
+		synchronized(this) { w = window; }
+		if (w == null) {
+			return sendPacket(packet, retries);
+		}
+		if (!w.beginExclusive()) {
+			// interrupted while waiting, as sendPacket would have been
+			return new PacketResponse();
+		}
+		try {
+			return sendPacket(packet, retries);
+		} finally {
+			w.endExclusive();
+		}
+	}
 	
 	void printDebugData(String title, byte[] data) {
 		if (Base.logger.isLoggable(Level.FINER)) {
@@ -203,12 +345,42 @@ public class Sanguino3GDriver extends SerialDriver
 	 * If the specified number of retries is negative, the packet will be tried -N times, and
 	 * no logging message will be displayed when the packet times out.  This is for "unreliable"
 	 * packets (ordinarily, when scanning for toolheads).
+	 * 
+	 * When pipelining is on, buffered commands are queued for the I/O thread
+	 * and an OK response is returned at once; a full queue raises the retry
+	 * exception.  Queries wait for the queue to empty, so that they see the
+	 * effects of every command issued before them.
 	 * @param packet
 	 * @param retries
 	 * @return
 	 * @throws RetryException
 	 */
 	protected PacketResponse runCommand(byte[] packet, int retries) throws RetryException {
+		if (planner != null && !sendingPlanned && packet != null && packet.length >= 4 &&
+				(packet[2] & 0xff) != MotherboardCommandCode.TOOL_QUERY.getCode()) {
+			// everything but a tool query has to come after the moves held
+			flushPlanner((packet[2] & 0x80) != 0);
+		}
+		if (fileCaptureOstream == null && serial != null &&
+				packet != null && packet.length >= 4) {
+			CommandPipeline<byte[]> p = getPipeline();
+			if (p != null) {
+				boolean isCommand = (packet[2] & 0x80) != 0;
+				if (isCommand) {
+					p.offer(packet);
+					return PacketResponse.okResponse();
+				}
+				p.drain();
+			}
+		}
+		return sendExclusive(packet, retries);
+	}
+
+	/**
+	 * Write a packet and wait for its response.  See runCommand for the
+	 * meaning of the arguments.
+	 */
+	private PacketResponse sendPacket(byte[] packet, int retries) throws RetryException {
 		if (retries == 0) {
 			Base.logger.severe("Packet timed out!");
 			return PacketResponse.timeoutResponse();
@@ -269,9 +441,9 @@ public class Sanguino3GDriver extends SerialDriver
 			// Read entire response packet
 			boolean completed = false;
 			while (!completed) {
-				// Dump out if interrupted
-				int b = serial.read();
-				if (b == -1) {
+				// Read as much of the packet as we know is coming
+				int n = serial.readFully(responseBuffer, 0, pp.bytesWanted());
+				if (n <= 0) {
 					if (Thread.currentThread().isInterrupted()) {
 						break;
 					}
@@ -283,15 +455,17 @@ public class Sanguino3GDriver extends SerialDriver
 						return PacketResponse.timeoutResponse();
 					}
 					else if (retries < 0) {
-						return runCommand(packet, retries+1);
+						return sendPacket(packet, retries+1);
 					}
-					return runCommand(packet,retries-1);
+					return sendPacket(packet,retries-1);
 				}
 				try {
-					completed = pp.processByte((byte) b);
+					for (int i = 0; i < n && !completed; i++) {
+						completed = pp.processByte(responseBuffer[i]);
+					}
 				} catch (CRCException e) {
 					Base.logger.severe("Bad CRC received; retries remaining: "+Integer.toString(retries));
-					return runCommand(packet,retries-1);
+					return sendPacket(packet,retries-1);
 				}
 			}
 			pr = pp.getResponse();
@@ -305,7 +479,7 @@ public class Sanguino3GDriver extends SerialDriver
 				// Other random error
 				printDebugData("Unknown error sending, retry",packet);
 				if (retries > 1) {
-					return runCommand(packet,retries-1);
+					return sendPacket(packet,retries-1);
 				}
 			}
 		}
@@ -315,7 +489,10 @@ public class Sanguino3GDriver extends SerialDriver
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
-		if (fileCaptureOstream != null) { return true; }  // always done instantly if writing to file
+		// done instantly if writing to file, once the held moves are written
+		if (fileCaptureOstream != null) { return flushCapturedPlanner(); }
+		// no need to ask while commands are still queued for sending
+		if (pipeline != null && !pipeline.isEmpty()) { return false; }
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.IS_FINISHED.getCode());
 		PacketResponse pr = runQuery(pb.getPacket());
 		if (!pr.isOK()) { return false; }
@@ -328,11 +505,23 @@ public class Sanguino3GDriver extends SerialDriver
 			return true;
 		}
 		boolean finished = (v != 0);
+		// the machine knows better than our estimate
+		if (finished) { clearQueuedMotion(); }
 		Base.logger.log(Level.FINE,"Is finished: " + Boolean.toString(finished));
 		return finished;
 	}
 
 	public void dispose() {
+		if (pipeline != null) {
+			pipeline.shutdown();
+			pipeline = null;
+		}
+		synchronized(this) {
+			if (window != null) {
+				window.shutdown();
+				window = null;
+			}
+		}
 		super.dispose();
 	}
 
@@ -437,30 +626,142 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Queued point " + p);
 
 		// is this point even step-worthy?
-		Point3d deltaSteps = getAbsDeltaSteps(getCurrentPosition(), p);
+		Point3d current = getCurrentPosition();
+		Point3d deltaSteps = getAbsDeltaSteps(current, p);
 		double masterSteps = getLongestLength(deltaSteps);
 
 		// okay, we need at least one step.
 		if (masterSteps > 0.0) {
-			// where we going?
-			Point3d steps = machine.mmToSteps(p);
-			
 			Point3d delta = getDelta(p);
 			double feedrate = getSafeFeedrate(delta);
+
+			MotionPlanner mp = getPlanner();
+			if (mp != null) {
+				synchronized(mp) {
+					// segments left over from the last move go first; if they
+					// still don't fit, this point is retried
+					sendPlannedSegments(mp);
+					if (plannedPosition == null) {
+						plannedPosition = new Point3d(current);
+					}
+					mp.add(current, p, feedrate);
+					try {
+						sendPlannedSegments(mp);
+					} catch (RetryException re) {
+						// the point is taken; the rest goes with the next command
+					}
+				}
+				super.queuePoint(p);
+				return;
+			}
+
+			// where we going?
+			Point3d steps = machine.mmToSteps(p);
 			
 			// how fast are we doing it?
-			long micros = convertFeedrateToMicros(getCurrentPosition(),
-					p, feedrate);
+			long micros = convertFeedrateToMicros(current, p, feedrate);
 
 			//System.err.println("Steps :"+steps.toString()+" micros "+Long.toString(micros));
 
 			// okay, send it off!
 			queueAbsolutePoint(steps, micros);
+			noteMove(current, p, feedrate);
 
 			super.queuePoint(p);
 		}
 	}
 
+	/**
+	 * The planner is only used if the machine gives acceleration limits and
+	 * look-ahead hasn't been turned off.
+	 */
+	private MotionPlanner getPlanner() {
+		if (!plannerChecked) {
+			plannerChecked = true;
+			int lookahead = Base.preferences.getInt("build.lookahead",16);
+			if (lookahead > 0 && machine.hasAccelerationLimits()) {
+				planner = new MotionPlanner(machine, lookahead);
+			}
+		}
+		return planner;
+	}
+
+	/**
+	 * Send the planned segments waiting in the planner.  A segment too short
+	 * to take a step is folded into the next one.
+	 */
+	private void sendPlannedSegments(MotionPlanner mp) throws RetryException {
+		MotionPlanner.Segment s;
+		while ((s = mp.peekSegment()) != null) {
+			Point3d from = (plannedPosition != null) ? plannedPosition : s.from;
+			if (getLongestLength(getAbsDeltaSteps(from, s.to)) >= 1.0) {
+				long micros = convertFeedrateToMicros(from, s.to, s.feedrate);
+				sendingPlanned = true;
+				try {
+					queueAbsolutePoint(machine.mmToSteps(s.to), micros);
+				} finally {
+					sendingPlanned = false;
+				}
+				noteMove(from, s.to, s.feedrate);
+				plannedPosition = s.to;
+			}
+			mp.removeSegment();
+		}
+	}
+
+	/**
+	 * Plan every held move to a stop and send it, before a command that
+	 * must follow the moves.  A command gets a RetryException if the
+	 * segments don't fit; a query waits for them.
+	 */
+	private void flushPlanner(boolean isCommand) throws RetryException {
+		synchronized(planner) {
+			if (planner.isEmpty()) { return; }
+			planner.flush();
+			while (true) {
+				try {
+					sendPlannedSegments(planner);
+					// the machine has stopped where the last move ends; the
+					// next move starts from wherever we are then
+					plannedPosition = null;
+					return;
+				} catch (RetryException re) {
+					if (isCommand) { throw re; }
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the moves still held in the planner to the capture file.
+	 * @return true if none are left
+	 */
+	private boolean flushCapturedPlanner() {
+		if (planner == null) { return true; }
+		try {
+			flushPlanner(false);
+		} catch (RetryException re) {
+			// only thrown for commands; flushing for a query waits instead
+		}
+		synchronized(planner) {
+			return planner.isEmpty();
+		}
+	}
+
+	private void clearPlanner() {
+		if (planner == null) { return; }
+		synchronized(planner) {
+			planner.clear();
+			plannedPosition = null;
+		}
+	}
+
 	//public Point3d getPosition() {
 	//	return new Point3d();
 	//}
@@ -492,8 +793,23 @@ public class Sanguino3GDriver extends SerialDriver
 	 * //send this segment queueIncrementalPoint(pb, segmentSteps, ticks); } }
 	 */
 
+	// command code, three positions and a step delay
+	private static final int QUEUE_POINT_ABS_LENGTH = PacketBuilder.packetLength(1 + 4 * 4);
+
+	/**
+	 * Note how long a move that has been sent will take, so that we know
+	 * not to ask whether the machine is finished before then.
+	 */
+	private void noteMove(Point3d from, Point3d to, double feedrate) {
+		if (fileCaptureOstream != null || feedrate <= 0) { return; }
+		addQueuedMotion(Math.round(from.distance(to) / feedrate * 60000.0));
+	}
+
 	private void queueAbsolutePoint(Point3d steps, long micros) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
+		// Built straight into a packet of the right size, since these are
+		// by far the most common packets.
+		PacketBuilder pb = new PacketBuilder(new byte[QUEUE_POINT_ABS_LENGTH],
+				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -583,6 +899,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.DELAY.getCode());
 		pb.add32(millis);
 		runCommand(pb.getPacket());
+		if (fileCaptureOstream == null) { addQueuedMotion(millis); }
 	}
 
 	public void openClamp(int clampIndex) {
@@ -938,7 +1255,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_TEMP.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runStatusQuery(pb.getPacket());
 		if (pr.isEmpty()) return;
 		int temp = pr.get16();
 		machine.currentTool().setCurrentTemperature(temp);
@@ -974,7 +1291,7 @@ public class Sanguino3GDriver extends SerialDriver
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.GET_PLATFORM_TEMP.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runStatusQuery(pb.getPacket());
 		if (pr.isEmpty()) return;
 		int temp = pr.get16();
 		machine.currentTool().setPlatformCurrentTemperature(temp);
@@ -1099,7 +1416,7 @@ public class Sanguino3GDriver extends SerialDriver
 	public void pause() {
 		Base.logger.log(Level.FINE,"Sending asynch pause command");
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE.getCode());
-		runQuery(pb.getPacket());
+		runImmediateQuery(pb.getPacket());
 	}
 
 	public void unpause() {
@@ -1107,7 +1424,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// There is no explicit unpause command on the Sanguino3G; instead we
 		// use the pause command to toggle the pause state.
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE.getCode());
-		runQuery(pb.getPacket());
+		runImmediateQuery(pb.getPacket());
 	}
 
 	/***************************************************************************
@@ -1192,7 +1509,12 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.warning("Stop.");
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.ABORT.getCode());
 		Thread.interrupted(); // Clear interrupted status
-		PacketResponse pr = runQuery(pb.getPacket());
+		// anything still queued is abandoned
+		if (pipeline != null) { pipeline.clear(); }
+		clearWindow();
+		clearPlanner();
+		clearQueuedMotion();
+		PacketResponse pr = runImmediateQuery(pb.getPacket());
 		// invalidate position, force reconciliation.
 		invalidatePosition();
 	}
@@ -1215,7 +1537,11 @@ public class Sanguino3GDriver extends SerialDriver
 			// WDT reset introduced in version 1.4 firmware
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.RESET.getCode());
 			Thread.interrupted(); // Clear interrupted status
-			PacketResponse pr = runQuery(pb.getPacket());
+			if (pipeline != null) { pipeline.clear(); }
+			clearWindow();
+			clearPlanner();
+			clearQueuedMotion();
+			PacketResponse pr = runImmediateQuery(pb.getPacket());
 			// invalidate position, force reconciliation.
 			invalidatePosition();
 		}
@@ -1509,6 +1835,8 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 	
 	public void endFileCapture() throws IOException {
+		// the moves held at the end of the program belong in the file too
+		flushCapturedPlanner();
 		fileCaptureOstream.close();
 		fileCaptureOstream = null;
 	}
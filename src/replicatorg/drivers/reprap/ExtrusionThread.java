@@ -93,9 +93,7 @@ public class ExtrusionThread extends Thread {
 				 * keep the command queue full. */
 				while(isExtruding.get() == true)
 				{
-					synchronized (driver.commands) {
-						queueSize = driver.commands.size();
-					}
+					queueSize = driver.getOutstandingCommandCount();
 					if (queueSize < 6)
 					{
 						// Send extrude command
@@ -0,0 +1,300 @@
+package replicatorg.drivers.reprap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.Serial;
+
+/**
+ * Streams lines of GCode to firmware that acknowledges each line with "ok",
+ * keeping the firmware's receive buffer as full as it will go.
+ *
+ * The streamer counts characters: it knows how big the firmware's receive
+ * buffer is, adds up the length of every line sent but not yet
+ * acknowledged, and sends the next line as soon as it fits.  A reader
+ * thread takes the responses off the port; each "ok" frees the space held
+ * by the oldest outstanding line and lets more lines out.  On a fast link
+ * this keeps several lines in the firmware at once, where waiting for each
+ * "ok" would leave the link idle for a round trip per line.
+ *
+ * Outstanding lines are kept so that they can be resent when the firmware
+ * asks for one again with "Resend: N" (or "rs N").  The firmware discards
+ * every line after a bad one, so everything from line N onward is resent.
+ * Each discarded line is still answered with a resend request and an "ok";
+ * repeated requests are ignored until the lines that were in flight when
+ * the first one arrived have all been acknowledged.
+ *
+ * Every line received, "ok" included, is passed to the Listener.
+ */
+public class GCodeStreamer {
+	/**
+	 * Told about each line received from the firmware.  Called on the
+	 * reader thread.
+	 */
+	public interface Listener {
+		void lineReceived(String line);
+	}
+
+	private final Serial serial;
+	private final int rxBufferSize;
+	private final Listener listener;
+
+	// Outstanding lines, oldest first, in a ring.  Each line takes at least
+	// one character of the firmware's buffer, so there can never be more
+	// of them than there are characters.
+	private final String[] texts;
+	private final int[] lengths;
+	private final int[] numbers;
+	private final long[] sequences;
+	private int head = 0;
+	private int count = 0;
+	// characters held by the outstanding lines
+	private int used = 0;
+	// sequence number of the next line to be written
+	private long nextSequence = 0;
+	// resend requests are ignored until the line with this sequence number
+	// is the oldest outstanding
+	private long resendMarker = -1;
+
+	// lines waiting for room in the firmware's buffer; resends go first
+	private final LinkedList<String> pending = new LinkedList<String>();
+
+	private boolean running = true;
+	private final Thread reader;
+
+	/**
+	 * @param serial the port to stream over
+	 * @param rxBufferSize the size of the firmware's receive buffer
+	 */
+	public GCodeStreamer(Serial serial, int rxBufferSize, Listener listener) {
+		this.serial = serial;
+		this.rxBufferSize = rxBufferSize;
+		this.listener = listener;
+		texts = new String[rxBufferSize];
+		lengths = new int[rxBufferSize];
+		numbers = new int[rxBufferSize];
+		sequences = new long[rxBufferSize];
+		reader = new Thread("RepRap response reader") {
+			public void run() { readLoop(); }
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public Serial getSerial() {
+		return serial;
+	}
+
+	/**
+	 * Send a line, without its newline.  Waits only until the line is next
+	 * in line to go out, not until the firmware has room for it.
+	 */
+	public synchronized void send(String line) {
+		while (running && !pending.isEmpty()) {
+			waitQuietly();
+		}
+		pending.addLast(line);
+		pump();
+	}
+
+	/**
+	 * @return true if every line sent has been acknowledged
+	 */
+	public synchronized boolean isEmpty() {
+		return count == 0 && pending.isEmpty();
+	}
+
+	/**
+	 * @return the number of lines sent or waiting to be sent that haven't
+	 * been acknowledged
+	 */
+	public synchronized int getOutstandingCount() {
+		return count + pending.size();
+	}
+
+	/**
+	 * Wait until every line sent has been acknowledged.
+	 */
+	public synchronized void drain() {
+		while (running && !(count == 0 && pending.isEmpty())) {
+			waitQuietly();
+		}
+	}
+
+	/**
+	 * Forget all outstanding and waiting lines, for example after the
+	 * firmware has been reset.
+	 */
+	public synchronized void clear() {
+		pending.clear();
+		for (int i = 0; i < count; i++) {
+			texts[(head + i) % texts.length] = null;
+		}
+		count = 0;
+		used = 0;
+		resendMarker = -1;
+		notifyAll();
+	}
+
+	public void shutdown() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		reader.interrupt();
+	}
+
+	private void waitQuietly() {
+		try {
+			wait();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	// Write as many waiting lines as there is room for.  Called with the
+	// monitor held.
+	private void pump() {
+		while (!pending.isEmpty()) {
+			String line = pending.getFirst();
+			int length = line.length() + 1;
+			// a line too long for the buffer still goes once the buffer is empty
+			if (count > 0 && (used + length > rxBufferSize || count == texts.length)) {
+				break;
+			}
+			pending.removeFirst();
+			int slot = (head + count) % texts.length;
+			texts[slot] = line;
+			lengths[slot] = length;
+			numbers[slot] = lineNumberOf(line);
+			sequences[slot] = nextSequence++;
+			count++;
+			used += length;
+			serial.write(line + "\n");
+			if (Base.logger.isLoggable(Level.FINE)) {
+				Base.logger.fine("Sent: " + line);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the number after a leading "N", or -1 if there isn't one
+	 */
+	private static int lineNumberOf(String line) {
+		if (line.length() < 2 || line.charAt(0) != 'N') { return -1; }
+		int n = 0;
+		int i = 1;
+		for (; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') { break; }
+			n = n * 10 + (c - '0');
+		}
+		return (i > 1) ? n : -1;
+	}
+
+	/**
+	 * @return the first number in the given text, or -1 if there isn't one
+	 */
+	private static int firstNumberIn(String text) {
+		int n = -1;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				n = ((n < 0) ? 0 : n * 10) + (c - '0');
+			} else if (n >= 0) {
+				break;
+			}
+		}
+		return n;
+	}
+
+	private void readLoop() {
+		byte[] buffer = new byte[512];
+		// the line being assembled
+		byte[] line = new byte[256];
+		int lineLength = 0;
+		while (true) {
+			synchronized(this) {
+				if (!running) { return; }
+			}
+			int n = serial.read(buffer, 0, buffer.length);
+			if (n < 0) {
+				// interrupted; we're being shut down
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				byte b = buffer[i];
+				if (b == '\n') {
+					String text = decode(line, lineLength).trim();
+					lineLength = 0;
+					if (text.length() > 0) {
+						handleLine(text);
+					}
+				} else {
+					if (lineLength == line.length) {
+						byte[] grown = new byte[line.length * 2];
+						System.arraycopy(line, 0, grown, 0, lineLength);
+						line = grown;
+					}
+					line[lineLength++] = b;
+				}
+			}
+		}
+	}
+
+	private static String decode(byte[] bytes, int length) {
+		try {
+			return new String(bytes, 0, length, "US-ASCII");
+		} catch (UnsupportedEncodingException uee) {
+			// US-ASCII is always supported.
+			throw new RuntimeException(uee);
+		}
+	}
+
+	private void handleLine(String text) {
+		if (text.startsWith("ok")) {
+			synchronized(this) {
+				if (count > 0) {
+					texts[head] = null;
+					used -= lengths[head];
+					head = (head + 1) % texts.length;
+					count--;
+				}
+				pump();
+			}
+		} else if (text.startsWith("Resend:") || text.startsWith("rs ")) {
+			Base.logger.severe(text);
+			resend(firstNumberIn(text));
+		}
+		listener.lineReceived(text);
+	}
+
+	private synchronized void resend(int number) {
+		if (count > 0 && sequences[head] < resendMarker) {
+			// the lines sent before our last resend are still being refused
+			return;
+		}
+		int from = -1;
+		for (int i = 0; i < count; i++) {
+			if (numbers[(head + i) % texts.length] == number) {
+				from = i;
+				break;
+			}
+		}
+		if (from < 0) {
+			Base.logger.warning("Resend requested for line " + number + ", which is no longer held; ignoring.");
+			return;
+		}
+		// put the requested line and everything after it back in front of
+		// the waiting lines, in order
+		for (int i = count - 1; i >= from; i--) {
+			pending.addFirst(texts[(head + i) % texts.length]);
+		}
+		resendMarker = nextSequence;
+		pump();
+	}
+}
@@ -27,12 +27,9 @@
  */
 package replicatorg.drivers.reprap;
 
-import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,6 +38,7 @@ import javax.vecmath.Point3d;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SerialDriver;
 import replicatorg.drivers.reprap.ExtrusionThread.Direction;
@@ -49,7 +47,6 @@ import replicatorg.machine.model.ToolModel;
 
 public class RepRap5DDriver extends SerialDriver {
 	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
-	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
 	private static Pattern gcodeLineNumberPattern = Pattern.compile("N([0-9]+)");
 	
 	
@@ -61,43 +58,23 @@ public class RepRap5DDriver extends SerialDriver {
 	private final ExtrusionThread extrusionThread = new ExtrusionThread(this);
 
 	/**
-	 * To keep track of outstanding commands
-	 */
-	protected Queue<Integer> commands;
-
-	/**
-	 * the size of the buffer on the GCode host
+	 * the size of the receive buffer on the GCode host
 	 */
 	private int maxBufferSize = 128;
 
 	/**
-	 * the amount of data we've sent and is in the buffer.
-	 */
-	private int bufferSize = 0;
-	
-	/**
-	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
-	 * if there is a checksum problem.
-	 */
-	private LinkedList<String> buffer = new LinkedList<String>();
-
-	/**
-	 * What did we get back from serial?
+	 * Streams our commands to the firmware, and reads its responses.
 	 */
-	private String result = "";
+	private GCodeStreamer streamer = null;
 
 	protected DecimalFormat df;
 
-	private byte[] responsebuffer = new byte[512];
-
 	private int lineNumber = 0;
 
 	public RepRap5DDriver() {
 		super();
 
 		// init our variables.
-		commands = new LinkedList<Integer>();
-		bufferSize = 0;
 		setInitialized(false);
 
 		df = new DecimalFormat("#.######");
@@ -105,6 +82,28 @@ public class RepRap5DDriver extends SerialDriver {
 
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
+		if (XML.hasChildNode(xml, "rxbuffer")) {
+			maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "rxbuffer"));
+		}
+	}
+
+	/**
+	 * The streamer reads from the port it was created on, so a new one is
+	 * made if the port has changed.
+	 */
+	private synchronized GCodeStreamer getStreamer() {
+		if (streamer != null && streamer.getSerial() != serial) {
+			streamer.shutdown();
+			streamer = null;
+		}
+		if (streamer == null && serial != null) {
+			streamer = new GCodeStreamer(serial, maxBufferSize, new GCodeStreamer.Listener() {
+				public void lineReceived(String line) {
+					handleResponse(line);
+				}
+			});
+		}
+		return streamer;
 	}
 
 	public void initialize() {
@@ -137,7 +136,8 @@ public class RepRap5DDriver extends SerialDriver {
 				Base.logger.info("Initializing Serial.");
 //				serial.clear();
 				while (!isInitialized()) {
-					readResponse();
+					// the streamer's reader thread marks us initialized
+					Thread.sleep(50);
 
 /// Recover:
 //					Base.logger.warning("No connection; trying to pulse RTS to reset device.");
@@ -190,32 +190,20 @@ public class RepRap5DDriver extends SerialDriver {
 		next = fix(next); // make it compatible with older versions of the GCode interpeter
 
 		// skip empty commands.
-		if (next.length() == 0)
+		if (next.length() == 0) {
+			serialWriteLock.unlock();
 			return;
+		}
 
 		next = applyChecksum(next);
 
 		
-		// Block until we can fit the command on the Arduino
-		while (bufferSize + next.length() + 1 > maxBufferSize) {
-			readResponse();
+		// Blocks only until the command is next to go out; the streamer
+		// sends it once it fits in the firmware's buffer.
+		GCodeStreamer st = getStreamer();
+		if (st != null) {
+			st.send(next);
 		}
-
-		synchronized (serial) {
-			// do the actual send.
-			serial.write(next + "\n");
-		}
-
-		// record it in our buffer tracker.
-		int cmdlen = next.length() + 1;
-		commands.add(cmdlen);
-		bufferSize += cmdlen;
-		buffer.addFirst(next);
-
-		// debug... let us know whts up!
-		System.out.println("Sent: " + next);
-		// System.out.println("Buffer: " + bufferSize + " (" + bufferLength + "
-		// commands)");
 		serialWriteLock.unlock();
 	}
 
@@ -305,130 +293,82 @@ public class RepRap5DDriver extends SerialDriver {
 		return gcode+'*'+checksum;
 	}
 	
-	public void readResponse() {
-		assert (serial != null);
-		synchronized (serial) {
-			try {
-				int numread = serial.read(responsebuffer);
-				// 0 is now an acceptable value; it merely means that we timed out
-				// waiting for input
-				if (numread < 0) {
-					// This signifies EOF. FIXME: How do we handle this?
-					Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
-					return;
-				} else {
-					result += new String(responsebuffer, 0, numread, "US-ASCII");
-
-					// System.out.println("got: " + c);
-					// System.out.println("current: " + result);
-					int index;
-					while ((index = result.indexOf('\n')) >= 0) {
-						String line = result.substring(0, index).trim(); // trim
-																			// to
-																			// remove
-																			// any
-																			// trailing
-						Base.logger.info(line);											// \r
-						result = result.substring(index + 1);
-						if (line.length() == 0)
-							continue;
-						if (line.startsWith("ok")) {
-							setInitialized(true);
-							bufferSize -= commands.remove();
-							buffer.removeLast();
-							Base.logger.info(line);
-							if (line.startsWith("ok T:")) {
-								Pattern r = Pattern.compile("^ok T:([0-9\\.]+)");
-							    Matcher m = r.matcher(line);
-							    if (m.find( )) {
-							    	String temp = m.group(1);
-									
-									machine.currentTool().setCurrentTemperature(
-											Double.parseDouble(temp));
-							    }
-								r = Pattern.compile("^ok.*B:([0-9\\.]+)$");
-							    m = r.matcher(line);
-							    if (m.find( )) {
-							    	String bedTemp = m.group(1);
-									machine.currentTool().setPlatformCurrentTemperature(
-											Double.parseDouble(bedTemp));
-							    }
-							}
-
-						}
-						// old arduino firmware sends "start"
-						else if (line.startsWith("start")) {
-							// todo: set version
-							// TODO: check if this was supposed to happen, otherwise report unexpected reset! 
-							setInitialized(true);
-							Base.logger.info(line);
-							lineNumber = -1;
-						} else if (line.startsWith("Extruder Fail")) {
-							setError("Extruder failed:  cannot extrude as this rate.");
-						} else if (line.startsWith("Resend:")||line.startsWith("rs ")) {
-							Base.logger.severe(line);
-							// Bad checksum, resend requested
-							String bufferedLine = buffer.removeLast();
-							int bufferedLineNumber = Integer.parseInt( 
-									gcodeLineNumberPattern.matcher(bufferedLine).group(1) );
-
-							Matcher badLineMatch = resendLinePattern.matcher(line);
-							if (badLineMatch.find())
-							{
-								int badLineNumber = Integer.parseInt(
-										badLineMatch.group(1) );
-
-								if (bufferedLineNumber != badLineNumber)
-								{
-									Base.logger.warning("unexpected line number, resetting line number");
-									// reset the line number if it does not match the buffered line
-									 this.sendCommand("N"+(bufferedLineNumber-1)+" M110");
-								}
-							}
-							else
-							{
-								// Malformed resend line request received. Resetting the line number
-								Base.logger.warning("malformed line resend request, "
-										+"resetting line number. Malformed Data: \n"+line);
-								this.sendCommand("N"+(bufferedLineNumber-1)+" M110");
-							}
-
-							// resend the line
-							this.sendCommand(bufferedLine);
-						} else {
-							Base.logger.severe("Unknown: " + line);
-						}
-					}
-				}
-			} catch (IOException e) {
-				Base.logger.severe("inputstream.read() failed: " + e.toString());
-				// FIXME: Shut down communication somehow.
+	/**
+	 * Handle a line received from the firmware.  Called on the streamer's
+	 * reader thread; the streamer has already dealt with acknowledgements
+	 * and resend requests.
+	 */
+	private void handleResponse(String line) {
+		Base.logger.info(line);
+		if (line.startsWith("ok")) {
+			setInitialized(true);
+			if (line.startsWith("ok T:")) {
+				Pattern r = Pattern.compile("^ok T:([0-9\\.]+)");
+			    Matcher m = r.matcher(line);
+			    if (m.find( )) {
+			    	String temp = m.group(1);
+					
+					machine.currentTool().setCurrentTemperature(
+							Double.parseDouble(temp));
+			    }
+				r = Pattern.compile("^ok.*B:([0-9\\.]+)$");
+			    m = r.matcher(line);
+			    if (m.find( )) {
+			    	String bedTemp = m.group(1);
+					machine.currentTool().setPlatformCurrentTemperature(
+							Double.parseDouble(bedTemp));
+			    }
 			}
 		}
+		// old arduino firmware sends "start"
+		else if (line.startsWith("start")) {
+			// todo: set version
+			// TODO: check if this was supposed to happen, otherwise report unexpected reset! 
+			setInitialized(true);
+			lineNumber = -1;
+		} else if (line.startsWith("Extruder Fail")) {
+			setError("Extruder failed:  cannot extrude as this rate.");
+		} else if (line.startsWith("Resend:")||line.startsWith("rs ")) {
+			// handled by the streamer
+		} else {
+			Base.logger.severe("Unknown: " + line);
+		}
 	}
 
 	public boolean isFinished() {
 		return isBufferEmpty();
 	}
 
+	/**
+	 * @return the number of commands not yet acknowledged by the firmware
+	 */
+	int getOutstandingCommandCount() {
+		GCodeStreamer st;
+		synchronized(this) { st = streamer; }
+		return (st == null) ? 0 : st.getOutstandingCount();
+	}
+
 	/**
 	 * Is our buffer empty? If don't have a buffer, its always true.
 	 */
 	public boolean isBufferEmpty() {
-		try {
-			readResponse();
-		} catch (Exception e) {
-		}
-		return (bufferSize == 0);
+		GCodeStreamer st;
+		synchronized(this) { st = streamer; }
+		return (st == null || st.isEmpty());
 	}
 
 	public void dispose() {
+		synchronized(this) {
+			if (streamer != null) {
+				streamer.shutdown();
+				streamer = null;
+			}
+		}
 		super.dispose();
 
 		if (serial != null)
 			serial.dispose();
 		serial = null;
-		commands = null;
 	}
 
 	/***************************************************************************
@@ -705,9 +645,10 @@ public class RepRap5DDriver extends SerialDriver {
 	public synchronized void reset() {
 		Base.logger.info("Reset.");
 		setInitialized(false);
-		// resetting the serial port + command queue
-		//this.serial.clear();
-		//commands = null;
+		// the firmware forgets anything we had in flight
+		if (streamer != null) {
+			streamer.clear();
+		}
 
 		initialize();
 	}
@@ -0,0 +1,308 @@
+package replicatorg.machine;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+
+/**
+ * Runs the status queries for a machine (temperatures, position, whether
+ * it's finished) on behalf of everything that wants to know, so that
+ * several windows showing the same temperature cost one query, not one
+ * each.
+ *
+ * Consumers subscribe to a query with the interval at which they want it
+ * refreshed; each query is run at the shortest interval any subscriber
+ * asked for, and the result is cached with the time it was taken.
+ * Consumers read the cache, or are told of new results as a Listener.
+ *
+ * Between builds, queries are run on the scheduler's own thread.  During a
+ * build the scheduler's thread stands aside, and the build thread calls
+ * runDue() between commands, which runs a temperature query when one is
+ * due and the machine is too busy to take more commands anyway.  Position
+ * and finished queries aren't run during builds: the position is the
+ * host's own until the build ends, and a build is never finished midway.
+ */
+public class StatusScheduler {
+	public enum Query {
+		TEMPERATURE,
+		PLATFORM_TEMPERATURE,
+		POSITION,
+		FINISHED
+	}
+
+	/** The result of a query, and when it was taken. */
+	public static class Sample {
+		/**
+		 * A Double for temperatures, a Point3d for the position, a
+		 * Boolean for finished.
+		 */
+		public final Object value;
+		/** in milliseconds, as System.currentTimeMillis() */
+		public final long timestamp;
+		Sample(Object value, long timestamp) {
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+		public double doubleValue() {
+			return ((Number)value).doubleValue();
+		}
+		/** @return how long ago the sample was taken, in milliseconds */
+		public long getAge() {
+			return System.currentTimeMillis() - timestamp;
+		}
+	}
+
+	/** Told of every new sample.  Called on whichever thread ran the query. */
+	public interface Listener {
+		void statusUpdated(Query query, Sample sample);
+	}
+
+	// the interval each consumer asked for, by query
+	private final Map<Query,Map<Object,Long>> subscriptions =
+		new EnumMap<Query,Map<Object,Long>>(Query.class);
+	private final Map<Query,Sample> samples = new EnumMap<Query,Sample>(Query.class);
+	// when each query was last run, or 0 if never
+	private final Map<Query,Long> lastRun = new EnumMap<Query,Long>(Query.class);
+	private final Vector<Listener> listeners = new Vector<Listener>();
+
+	private Driver driver = null;
+	private boolean building = false;
+	// true while the scheduler's thread is running a query
+	private boolean querying = false;
+	private boolean running = true;
+	private Thread thread = null;
+
+	public StatusScheduler() {
+		for (Query q : Query.values()) {
+			subscriptions.put(q, new HashMap<Object,Long>());
+			lastRun.put(q, 0L);
+		}
+	}
+
+	/**
+	 * Set the driver to query.  The cache is cleared.
+	 */
+	public synchronized void setDriver(Driver driver) {
+		this.driver = driver;
+		samples.clear();
+		for (Query q : Query.values()) {
+			lastRun.put(q, 0L);
+		}
+		notifyAll();
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Ask for a query to be run at least every so often.  Subscribing again
+	 * to the same query changes the interval.
+	 * @param consumer whoever is asking; used to unsubscribe
+	 * @param intervalMs how often to run the query, in milliseconds
+	 */
+	public synchronized void subscribe(Object consumer, Query query, long intervalMs) {
+		subscriptions.get(query).put(consumer, intervalMs);
+		if (thread == null && running) {
+			thread = new Thread("Status scheduler") {
+				public void run() { schedule(); }
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stop running a query for the given consumer.
+	 */
+	public synchronized void unsubscribe(Object consumer, Query query) {
+		subscriptions.get(query).remove(consumer);
+	}
+
+	/**
+	 * Stop running any query for the given consumer.
+	 */
+	public synchronized void unsubscribe(Object consumer) {
+		for (Map<Object,Long> m : subscriptions.values()) {
+			m.remove(consumer);
+		}
+	}
+
+	/**
+	 * @return the last result of the query, or null if it hasn't been run
+	 */
+	public synchronized Sample get(Query query) {
+		return samples.get(query);
+	}
+
+	/**
+	 * Tell the scheduler that a build has started or ended.  While building
+	 * the scheduler's thread runs no queries, and waits for the one it is
+	 * running to finish before returning.
+	 */
+	public synchronized void setBuilding(boolean building) {
+		this.building = building;
+		notifyAll();
+		while (building && querying) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Run at most one query that is due, from the build thread.  When the
+	 * machine has room for more commands, a query is only run once it is
+	 * overdue by a whole interval, so that motion isn't held up for it.
+	 * @param busy true if the machine just refused a command because its
+	 * buffer was full, which makes this a good time for a query
+	 * @return true if a query was run
+	 */
+	public boolean runDue(boolean busy) {
+		Query due;
+		synchronized(this) {
+			due = nextDue(System.currentTimeMillis(), busy ? 0 : 1, true);
+			if (due == null) { return false; }
+			lastRun.put(due, System.currentTimeMillis());
+		}
+		run(due);
+		return true;
+	}
+
+	public void shutdown() {
+		Thread t;
+		synchronized(this) {
+			running = false;
+			t = thread;
+			notifyAll();
+		}
+		if (t != null) { t.interrupt(); }
+	}
+
+	// the shortest interval asked for, or -1 if nobody wants the query
+	private long intervalOf(Query q) {
+		long interval = -1;
+		for (long i : subscriptions.get(q).values()) {
+			if (interval < 0 || i < interval) { interval = i; }
+		}
+		return interval;
+	}
+
+	// The most overdue query, if any is due; a query is due once it's
+	// (1 + slack) intervals old.  Called with the monitor held.
+	private Query nextDue(long now, int slack, boolean buildOnly) {
+		Query best = null;
+		long bestLate = 0;
+		for (Query q : Query.values()) {
+			if (buildOnly && (q == Query.POSITION || q == Query.FINISHED)) { continue; }
+			long interval = intervalOf(q);
+			if (interval < 0) { continue; }
+			long late = now - (lastRun.get(q) + interval * (1 + slack));
+			if (late >= 0 && (best == null || late > bestLate)) {
+				best = q;
+				bestLate = late;
+			}
+		}
+		return best;
+	}
+
+	// how long until the next query is due, or -1 if none is wanted
+	private long timeToNext(long now) {
+		long wait = -1;
+		for (Query q : Query.values()) {
+			long interval = intervalOf(q);
+			if (interval < 0) { continue; }
+			long t = Math.max(0, lastRun.get(q) + interval - now);
+			if (wait < 0 || t < wait) { wait = t; }
+		}
+		return wait;
+	}
+
+	private void schedule() {
+		while (true) {
+			Query due;
+			synchronized(this) {
+				while (true) {
+					if (!running) { return; }
+					long now = System.currentTimeMillis();
+					long wait = -1;
+					if (!building && driver != null && driver.isInitialized()) {
+						due = nextDue(now, 0, false);
+						if (due != null) { break; }
+						wait = timeToNext(now);
+					}
+					try {
+						// wake up now and then to see if the driver is up yet
+						wait((wait < 0) ? 1000 : Math.max(1, wait));
+					} catch (InterruptedException ie) {
+						// checked on the next pass
+					}
+				}
+				lastRun.put(due, System.currentTimeMillis());
+				querying = true;
+			}
+			try {
+				run(due);
+			} finally {
+				synchronized(this) {
+					querying = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	// Run a query and record its result.
+	private void run(Query query) {
+		Driver d;
+		synchronized(this) { d = driver; }
+		if (d == null) { return; }
+		Object value;
+		try {
+			switch (query) {
+			case TEMPERATURE:
+				d.readTemperature();
+				value = d.getMachine().currentTool().getCurrentTemperature();
+				break;
+			case PLATFORM_TEMPERATURE:
+				d.readPlatformTemperature();
+				value = d.getMachine().currentTool().getPlatformCurrentTemperature();
+				break;
+			case POSITION:
+				value = new Point3d(d.getCurrentPosition());
+				break;
+			case FINISHED:
+				value = d.isFinished();
+				break;
+			default:
+				return;
+			}
+		} catch (RuntimeException e) {
+			// most likely the machine went away; the state change will stop us
+			Base.logger.log(Level.FINE, "Status query failed", e);
+			return;
+		}
+		Sample sample = new Sample(value, System.currentTimeMillis());
+		synchronized(this) {
+			samples.put(query, sample);
+		}
+		for (Listener l : listeners.toArray(new Listener[0])) {
+			l.statusUpdated(query, sample);
+		}
+	}
+}
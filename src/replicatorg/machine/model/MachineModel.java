@@ -50,6 +50,10 @@ public class MachineModel
 	//feedrate information
 	private Point3d maximumFeedrates;
 	private Point3d stepsPerMM;
+	// acceleration limits in mm/s/s, and jerk limits (the largest speed
+	// change allowed without accelerating) in mm/s; zero if not given
+	private Point3d maximumAccelerations;
+	private Point3d maximumJerks;
 	
 	//our drive status
 	protected boolean drivesEnabled = true;
@@ -80,6 +84,8 @@ public class MachineModel
 		minimum = new Point3d();
 		maximum = new Point3d();
 		maximumFeedrates = new Point3d();
+		maximumAccelerations = new Point3d();
+		maximumJerks = new Point3d();
 		stepsPerMM = new Point3d(1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool = nullTool;
@@ -118,6 +124,8 @@ public class MachineModel
 					//initialize values
 				 	double length = 0.0;
 				 	double maxFeedrate = 0.0;
+				 	double maxAcceleration = 0.0;
+				 	double maxJerk = 0.0;
 				 	double scale = 1.0;
 				 	Endstops endstops = Endstops.none;
 					
@@ -128,12 +136,21 @@ public class MachineModel
 					 	scale = Double.parseDouble(XML.getAttributeValue(axis, "scale"));
 					 	endstops = Endstops.valueOf(XML.getAttributeValue(axis, "endstops"));
 					} catch (Exception e) {}
+					// acceleration limits are optional
+					try {
+						maxAcceleration = Double.parseDouble(XML.getAttributeValue(axis, "maxacceleration"));
+					} catch (Exception e) {}
+					try {
+						maxJerk = Double.parseDouble(XML.getAttributeValue(axis, "maxjerk"));
+					} catch (Exception e) {}
 					
 					//create the right variables.
 					if (id.toLowerCase().equals("x"))
 					{
 						maximum.x = length;
 						maximumFeedrates.x = maxFeedrate;
+						maximumAccelerations.x = maxAcceleration;
+						maximumJerks.x = maxJerk;
 						stepsPerMM.x = scale;
 						this.endstops.put(Axis.X, endstops);
 					}
@@ -141,6 +158,8 @@ public class MachineModel
 					{
 						maximum.y = length;
 						maximumFeedrates.y = maxFeedrate;
+						maximumAccelerations.y = maxAcceleration;
+						maximumJerks.y = maxJerk;
 						stepsPerMM.y = scale;
 						this.endstops.put(Axis.Y, endstops);
 					}
@@ -148,6 +167,8 @@ public class MachineModel
 					{
 						maximum.z = length;
 						maximumFeedrates.z = maxFeedrate;
+						maximumAccelerations.z = maxAcceleration;
+						maximumJerks.z = maxJerk;
 						stepsPerMM.z = scale;
 						this.endstops.put(Axis.Z, endstops);
 					}
@@ -438,6 +459,26 @@ public class MachineModel
   public Point3d getMaximumFeedrates() {
     return maximumFeedrates;
   }
+
+  /** returns the length of travel of each axis, in mm */
+  public Point3d getAxisLengths() {
+    return maximum;
+  }
+
+  /** returns the per-axis acceleration limits, in mm/s/s; zero where none is given */
+  public Point3d getMaximumAccelerations() {
+    return maximumAccelerations;
+  }
+
+  /** returns the per-axis jerk limits, in mm/s; zero where none is given */
+  public Point3d getMaximumJerks() {
+    return maximumJerks;
+  }
+
+  /** returns true if the machine description gives acceleration limits */
+  public boolean hasAccelerationLimits() {
+    return maximumAccelerations.x > 0 || maximumAccelerations.y > 0 || maximumAccelerations.z > 0;
+  }
   
   /** returns the endstop configuration for the givin axis */
   public Endstops getEndstops(Axis axis)
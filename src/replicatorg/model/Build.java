@@ -175,7 +175,10 @@ public class Build {
 		BuildCode code = getCode();
 		if (code != null) {
 			if (code.isModified()) { 
-				code.program = editor.getText();
+				// large files are saved straight from their document
+				if (!code.isLarge()) {
+					code.program = editor.getText();
+				}
 				code.save();
 			}
 		}
@@ -227,7 +230,7 @@ public class Build {
 		if (code != null) {
 			// grab the contents of the current tab before saving
 			// first get the contents of the editor text area
-			if (code.isModified()) {
+			if (code.isModified() && !code.isLarge()) {
 				code.program = editor.getText();
 			}
 			File newFile = new File(folder, newName+".gcode");
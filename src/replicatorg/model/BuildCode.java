@@ -30,7 +30,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import replicatorg.app.Base;
+import replicatorg.app.syntax.PieceTableDocument;
 import replicatorg.app.syntax.SyntaxDocument;
+import replicatorg.app.syntax.ViewerDocument;
 
 public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	/** Pretty name (no extension), not the full file name */
@@ -39,7 +41,11 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	/** File object for where this code is located */
 	public File file;
 
-	/** Text of the program text for this tab */
+	/**
+	 * Text of the program text for this tab; null if the file is too big to
+	 * read in, in which case the document is a PieceTableDocument or a
+	 * ViewerDocument over it
+	 */
 	public String program;
 
 	/** Document object for this tab; includes undo information, etc. */
@@ -69,12 +75,57 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		if (file == null) {
 			program = "";
 			setModified(true);
+		} else if (file.length() > getViewerFileSize()) {
+			document = new ViewerDocument(file);
+			program = null;
+			setModified(false);
+		} else if (file.length() > getLargeFileSize()) {
+			document = new PieceTableDocument(file);
+			program = null;
+			setModified(false);
 		} else {
 			program = Base.loadFile(file);
 			setModified(false);
 		}
 	}
 
+	/**
+	 * @return the size, in bytes, above which a file is edited in place
+	 * rather than read into memory
+	 */
+	public static long getLargeFileSize() {
+		return Base.preferences.getInt("editor.large_file_mb", 8) * 1024L * 1024L;
+	}
+
+	/**
+	 * @return the size, in bytes, above which a file is opened read-only
+	 */
+	public static long getViewerFileSize() {
+		return Base.preferences.getInt("editor.viewer_file_mb", 256) * 1024L * 1024L;
+	}
+
+	/**
+	 * @return true if this code is edited in place, or only viewed; see
+	 * getLargeFileSize()
+	 */
+	public boolean isLarge() {
+		return document instanceof PieceTableDocument || isReadOnly();
+	}
+
+	/**
+	 * @return true if this code is too big to edit; see getViewerFileSize()
+	 */
+	public boolean isReadOnly() {
+		return document instanceof ViewerDocument;
+	}
+
+	/**
+	 * Code that is only viewed is never modified.
+	 */
+	public void setModified(boolean modified) {
+		super.setModified(modified && !isReadOnly());
+	}
+
 	/**
 	 * Save this piece of code, regardless of whether the modified flag is set
 	 * or not.
@@ -83,7 +134,13 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		// TODO re-enable history
 		// history.record(s, SketchHistory.SAVE);
 
-		Base.saveFile(program, file);
+		if (isReadOnly()) {
+			// there's nothing to save
+		} else if (isLarge()) {
+			((PieceTableDocument)document).save(file);
+		} else {
+			Base.saveFile(program, file);
+		}
 		setModified(false);
 	}
 
@@ -91,7 +148,15 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	 * Save this file to another location, used by Sketch.saveAs()
 	 */
 	public void saveAs(File newFile) throws IOException {
-		Base.saveFile(program, newFile);
+		if (isReadOnly()) {
+			if (!newFile.getCanonicalFile().equals(file.getCanonicalFile())) {
+				Base.copyFile(file, newFile);
+			}
+		} else if (isLarge()) {
+			((PieceTableDocument)document).save(newFile);
+		} else {
+			Base.saveFile(program, newFile);
+		}
 		file = newFile;
 		name = file.getName();
 		// we're still truncating the suffix, for now.
@@ -0,0 +1,308 @@
+package replicatorg.model;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeTokenizer;
+
+/**
+ * A GCode source that merges runs of short, nearly collinear moves into
+ * single moves, so that slicer output made of many tiny segments doesn't
+ * cost a packet round trip per segment.
+ *
+ * A run is a sequence of consecutive G1 moves in absolute mode, from a
+ * known position, that carry nothing but coordinates and a feedrate, all at
+ * the same feedrate.  Anything else on a line between two moves -- a tool
+ * change, the extruder turning on or off, a comment, a dwell -- ends the
+ * run, so the extruder is in the same state throughout.  A run is merged
+ * into one move from its start to its end as long as every point along it
+ * lies within the tolerance of that move, in the order the moves visit them.
+ *
+ * Only 3D code (extruder turned on and off with M101 and M103) is merged.
+ * In 5D code every G1 carries an E word for the filament it feeds, so no
+ * move in it is ever mergeable, and it passes through unchanged.
+ *
+ * The lines merged away are replaced by blank lines, so that the line count
+ * of the source, and the build's progress, are unchanged.
+ */
+public class CoalescingGCodeSource implements GCodeSource {
+	// runs are cut off at this many moves, to bound the work of checking
+	// them and how far the output lags behind the input
+	private static final int MAX_RUN = 100;
+
+	private final GCodeSource parent;
+	private final double tolerance;
+
+	private int savedMoves = 0;
+
+	/**
+	 * @param parent the source to read
+	 * @param tolerance the furthest, in mm, a point of a run may be from the
+	 * move it is merged into
+	 */
+	public CoalescingGCodeSource(GCodeSource parent, double tolerance) {
+		this.parent = parent;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return true if moves should be merged, according to the preferences
+	 */
+	public static boolean isEnabled() {
+		return Base.preferences.getBoolean("build.coalesce", false);
+	}
+
+	/**
+	 * @return the tolerance set in the preferences, in mm
+	 */
+	public static double getDefaultTolerance() {
+		return Base.preferences.getDouble("build.coalesce_tolerance_mm", 0.01);
+	}
+
+	public Iterator<String> iterator() {
+		return new CoalescingIterator(parent.iterator());
+	}
+
+	public int getLineCount() {
+		return parent.getLineCount();
+	}
+
+	/**
+	 * @return the number of moves merged into others by the last complete
+	 * pass over this source; each is a packet that isn't sent
+	 */
+	public int getSavedMoves() {
+		return savedMoves;
+	}
+
+	class CoalescingIterator implements Iterator<String> {
+		private final Iterator<String> lines;
+		private final GCodeTokenizer tokenizer = new GCodeTokenizer();
+		private final DecimalFormat df = new DecimalFormat("#.######",
+				new DecimalFormatSymbols(Locale.US));
+		// lines ready to be handed out
+		private final LinkedList<String> out = new LinkedList<String>();
+		private boolean reported = false;
+
+		// the state of the machine after the last line read, in the units
+		// of the program
+		private final double[] position = new double[3];
+		private final boolean[] known = new boolean[3];
+		private boolean absolute = true;
+		private boolean inches = false;
+		private int lastG = -1;
+		private double feedrate = Double.NaN;
+
+		// the run being gathered: its lines, the point it starts from, and
+		// the point each of its moves ends at
+		private final LinkedList<String> run = new LinkedList<String>();
+		private final double[] start = new double[3];
+		private final double[][] points = new double[MAX_RUN][3];
+		private double runFeedrate;
+
+		// counts for this pass
+		private int merged = 0;
+		private int saved = 0;
+
+		CoalescingIterator(Iterator<String> lines) {
+			this.lines = lines;
+		}
+
+		public boolean hasNext() {
+			fill();
+			return !out.isEmpty();
+		}
+
+		public String next() {
+			fill();
+			if (out.isEmpty()) { throw new NoSuchElementException(); }
+			return out.removeFirst();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void fill() {
+			while (out.isEmpty() && lines.hasNext()) {
+				process(lines.next());
+			}
+			if (out.isEmpty()) {
+				flushRun();
+				if (!reported) {
+					reported = true;
+					savedMoves = saved;
+					if (saved > 0) {
+						Base.logger.info("Merged " + (merged + saved) + " short moves into " +
+								merged + "; saved " + saved + " packets.");
+					}
+				}
+			}
+		}
+
+		private void process(String line) {
+			tokenizer.tokenize(line);
+			// like the parser, a line with coordinates and no G code repeats
+			// the last G code
+			int g = -1;
+			if (tokenizer.hasCode('G')) {
+				g = (int)tokenizer.getCodeValue('G');
+			} else if (hasCoordinates()) {
+				g = lastG;
+			}
+			if (isMergeable(g)) {
+				double lineFeedrate = tokenizer.hasCode('F') ? tokenizer.getCodeValue('F') : feedrate;
+				double[] target = new double[3];
+				for (int axis = 0; axis < 3; axis++) {
+					char code = (char)('X' + axis);
+					target[axis] = tokenizer.hasCode(code) ? tokenizer.getCodeValue(code) : position[axis];
+				}
+				if (!run.isEmpty() && !(sameFeedrate(lineFeedrate, runFeedrate) && fits(target))) {
+					flushRun();
+				}
+				if (run.isEmpty()) {
+					System.arraycopy(position, 0, start, 0, 3);
+					runFeedrate = lineFeedrate;
+				}
+				System.arraycopy(target, 0, points[run.size()], 0, 3);
+				run.addLast(line);
+				System.arraycopy(target, 0, position, 0, 3);
+				feedrate = lineFeedrate;
+				lastG = 1;
+				if (run.size() == MAX_RUN) {
+					flushRun();
+				}
+				return;
+			}
+			flushRun();
+			update(g);
+			out.addLast(line);
+		}
+
+		private boolean hasCoordinates() {
+			return tokenizer.hasCode('X') || tokenizer.hasCode('Y') || tokenizer.hasCode('Z');
+		}
+
+		private boolean isMergeable(int g) {
+			if (g != 1 || !hasCoordinates()) { return false; }
+			if (!absolute || !known[0] || !known[1] || !known[2]) { return false; }
+			final int allowed = bit('G') | bit('N') | bit('X') | bit('Y') | bit('Z') | bit('F');
+			if ((tokenizer.getSeenMask() & ~allowed) != 0) { return false; }
+			// a comment may mark something, like a layer change, that
+			// shouldn't disappear into the middle of a move
+			return tokenizer.getComment().length() == 0;
+		}
+
+		// Would the run still be within the tolerance of a single move if it
+		// ended at the given point?
+		private boolean fits(double[] end) {
+			double tol = inches ? tolerance / 25.4 : tolerance;
+			double dx = end[0] - start[0], dy = end[1] - start[1], dz = end[2] - start[2];
+			double length2 = dx * dx + dy * dy + dz * dz;
+			if (length2 < tol * tol) { return false; }
+			double lastT = 0;
+			for (int i = 0; i < run.size(); i++) {
+				double[] p = points[i];
+				double px = p[0] - start[0], py = p[1] - start[1], pz = p[2] - start[2];
+				double t = (px * dx + py * dy + pz * dz) / length2;
+				// the points must be visited in order along the merged move
+				if (t < lastT || t > 1) { return false; }
+				lastT = t;
+				double ex = px - t * dx, ey = py - t * dy, ez = pz - t * dz;
+				if (ex * ex + ey * ey + ez * ez > tol * tol) { return false; }
+			}
+			return true;
+		}
+
+		private void flushRun() {
+			if (run.isEmpty()) { return; }
+			if (run.size() == 1) {
+				out.addLast(run.removeFirst());
+				return;
+			}
+			double[] end = points[run.size() - 1];
+			StringBuffer merge = new StringBuffer("G1");
+			for (int axis = 0; axis < 3; axis++) {
+				merge.append(' ').append((char)('X' + axis)).append(df.format(end[axis]));
+			}
+			if (!Double.isNaN(runFeedrate)) {
+				merge.append(" F").append(df.format(runFeedrate));
+			}
+			merged++;
+			saved += run.size() - 1;
+			for (int i = 1; i < run.size(); i++) {
+				out.addLast("");
+			}
+			out.addLast(merge.toString());
+			run.clear();
+		}
+
+		// Follow the state of the machine through a line that isn't merged.
+		private void update(int g) {
+			if (tokenizer.hasCode('F')) {
+				feedrate = tokenizer.getCodeValue('F');
+			}
+			if (g < 0) { return; }
+			lastG = g;
+			boolean moves = false;
+			switch (g) {
+				case 0: case 1: case 2: case 3: case 31:
+					moves = true;
+					break;
+				case 4: case 17: case 18: case 19:
+					break;
+				case 20:
+					inches = true;
+					break;
+				case 21:
+					inches = false;
+					break;
+				case 90:
+					absolute = true;
+					break;
+				case 91:
+					absolute = false;
+					break;
+				case 92:
+					for (int axis = 0; axis < 3; axis++) {
+						char code = (char)('X' + axis);
+						if (tokenizer.hasCode(code)) {
+							position[axis] = tokenizer.getCodeValue(code);
+							known[axis] = true;
+						}
+					}
+					break;
+				default:
+					// homing, offsets, canned cycles and anything else we
+					// don't follow leave us unsure where the machine is
+					known[0] = known[1] = known[2] = false;
+			}
+			if (moves) {
+				for (int axis = 0; axis < 3; axis++) {
+					char code = (char)('X' + axis);
+					if (tokenizer.hasCode(code)) {
+						if (absolute) {
+							position[axis] = tokenizer.getCodeValue(code);
+							known[axis] = true;
+						} else {
+							position[axis] += tokenizer.getCodeValue(code);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean sameFeedrate(double a, double b) {
+		return (Double.isNaN(a) && Double.isNaN(b)) || a == b;
+	}
+
+	private static int bit(char code) {
+		return 1 << (code - 'A');
+	}
+}
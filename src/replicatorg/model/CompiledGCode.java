@@ -0,0 +1,334 @@
+package replicatorg.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeTokenizer;
+
+/**
+ * A GCode program that has been tokenized once and stored as a compact
+ * sequence of binary records, one per source line.  Drivers load records
+ * straight into their parsers, so running the same program several times
+ * (estimate, simulate, build, repeated builds) only scans the text once.
+ *
+ * Each record is laid out as:
+ * <pre>
+ *   int    mask of letters seen on the line
+ *   int    mask of letters that carried a value
+ *   double one value per bit set in the value mask, in letter order
+ *   int    length of the command text, followed by its UTF-8 bytes
+ *   int    length of the comment text, followed by its UTF-8 bytes
+ * </pre>
+ * The command text is kept for drivers that pass lines through to the
+ * machine verbatim; it is only decoded into a String when asked for.
+ *
+ * A compiled file can be cached next to its source.  The cache records the
+ * length, modification time and CRC32 of the source, and is rebuilt if any
+ * of them change.
+ */
+public class CompiledGCode {
+	/** "RGC" followed by the format version. */
+	private static final int MAGIC = 0x52474301;
+
+	private static final String CACHE_SUFFIX = ".compiled";
+
+	private static final int LETTERS = 26;
+
+	private static final String ENCODING = "UTF-8";
+
+	// rough sizes of a compiled program, for isCompilable(): a typical
+	// move compiles to about 80 bytes, or nearly three times its text
+	private static final int BYTES_PER_LINE = 80;
+	private static final int BYTES_PER_SOURCE_BYTE = 3;
+
+	private final byte[] data;
+	private final int length;
+	private final int lineCount;
+
+	private CompiledGCode(byte[] data, int length, int lineCount) {
+		this.data = data;
+		this.length = length;
+		this.lineCount = lineCount;
+	}
+
+	/**
+	 * Compile every line of the given source.
+	 */
+	public static CompiledGCode compile(GCodeSource source) {
+		GCodeTokenizer tokenizer = new GCodeTokenizer();
+		long expected = Math.max(32L, (long)source.getLineCount() * 32);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE - 8, expected));
+		DataOutputStream out = new DataOutputStream(bytes);
+		int lines = 0;
+		try {
+			for (String line : source) {
+				tokenizer.tokenize(line);
+				int valueMask = tokenizer.getValueMask();
+				out.writeInt(tokenizer.getSeenMask());
+				out.writeInt(valueMask);
+				for (int idx = 0; idx < LETTERS; idx++) {
+					if ((valueMask & (1 << idx)) != 0) {
+						out.writeDouble(tokenizer.getCodeValue((char)('A' + idx)));
+					}
+				}
+				writeText(out, tokenizer.getCommand());
+				writeText(out, tokenizer.getComment());
+				lines++;
+			}
+			out.flush();
+		} catch (IOException ioe) {
+			// Can't happen when writing to memory.
+			throw new RuntimeException(ioe);
+		}
+		byte[] data = bytes.toByteArray();
+		return new CompiledGCode(data, data.length, lines);
+	}
+
+	/**
+	 * The whole of a compiled program is held on the heap, in a single
+	 * array.  Programs that wouldn't fit in a quarter of the heap, or in an
+	 * array at all, should be streamed from their text instead.
+	 * @return true if the given source is small enough to compile
+	 */
+	public static boolean isCompilable(GCodeSource source) {
+		return fits((long)source.getLineCount() * BYTES_PER_LINE);
+	}
+
+	/**
+	 * @return true if the given GCode file is small enough to compile; see
+	 * isCompilable(GCodeSource)
+	 */
+	public static boolean isCompilable(File file) {
+		return fits(file.length() * BYTES_PER_SOURCE_BYTE);
+	}
+
+	private static boolean fits(long compiledLength) {
+		long limit = Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 4);
+		return compiledLength <= limit;
+	}
+
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		if (text.length() == 0) {
+			out.writeInt(0);
+		} else {
+			byte[] b = text.getBytes(ENCODING);
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	/**
+	 * Get the compiled form of the given GCode file, reading it from the cache
+	 * next to the file if the cache is still valid, and compiling (and
+	 * caching) it otherwise.
+	 */
+	public static CompiledGCode forFile(File file) throws IOException {
+		long sourceLength = file.length();
+		long sourceModified = file.lastModified();
+		long sourceHash = hashFile(file);
+		File cache = getCacheFile(file);
+		if (cache.exists()) {
+			try {
+				CompiledGCode code = readCache(cache, sourceLength, sourceModified, sourceHash);
+				if (code != null) {
+					return code;
+				}
+			} catch (IOException ioe) {
+				Base.logger.log(Level.INFO,"Discarding unreadable compiled cache "+cache.getPath(),ioe);
+			}
+		}
+		CompiledGCode code = compile(new MappedFileGCodeSource(file.getPath()));
+		try {
+			code.writeCache(cache, sourceLength, sourceModified, sourceHash);
+		} catch (IOException ioe) {
+			// Not fatal; we just compile again next time.
+			Base.logger.log(Level.WARNING,"Couldn't write compiled cache "+cache.getPath(),ioe);
+		}
+		return code;
+	}
+
+	/**
+	 * @return the location of the compiled cache for the given GCode file
+	 */
+	public static File getCacheFile(File file) {
+		return new File(file.getPath() + CACHE_SUFFIX);
+	}
+
+	static long hashFile(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				crc.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	private static CompiledGCode readCache(File cache, long sourceLength, long sourceModified, long sourceHash) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+		try {
+			if (in.readInt() != MAGIC ||
+					in.readLong() != sourceLength ||
+					in.readLong() != sourceModified ||
+					in.readLong() != sourceHash) {
+				return null;
+			}
+			int lines = in.readInt();
+			int length = in.readInt();
+			byte[] data = new byte[length];
+			in.readFully(data);
+			return new CompiledGCode(data, length, lines);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeCache(File cache, long sourceLength, long sourceModified, long sourceHash) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeLong(sourceHash);
+			out.writeInt(lineCount);
+			out.writeInt(length);
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return a new cursor positioned before the first record
+	 */
+	public Cursor cursor() {
+		return new Cursor(0);
+	}
+
+	/**
+	 * @return a new cursor positioned before the record at the given offset,
+	 * as returned by Cursor.getOffset()
+	 */
+	public Cursor cursor(int offset) {
+		return new Cursor(offset);
+	}
+
+	/**
+	 * Walks the records of a compiled program in order.  Call next() to move
+	 * to each record, then read it with loadInto() and friends.
+	 */
+	public class Cursor {
+		private final ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+		private int pos;
+
+		private int seenMask;
+		private int valueMask;
+		private final double[] values = new double[LETTERS];
+		private int commandOffset;
+		private int commandLength;
+		private int commentOffset;
+		private int commentLength;
+
+		private Cursor(int offset) {
+			this.pos = offset;
+		}
+
+		/**
+		 * @return the offset of the next record, for starting another cursor
+		 * there
+		 */
+		public int getOffset() {
+			return pos;
+		}
+
+		public boolean hasNext() {
+			return pos < length;
+		}
+
+		/**
+		 * Advance to the next record.
+		 */
+		public void next() {
+			seenMask = buf.getInt(pos);
+			valueMask = buf.getInt(pos + 4);
+			pos += 8;
+			for (int idx = 0, mask = valueMask; mask != 0; idx++, mask >>>= 1) {
+				if ((mask & 1) != 0) {
+					values[idx] = buf.getDouble(pos);
+					pos += 8;
+				}
+			}
+			commandLength = buf.getInt(pos);
+			commandOffset = pos + 4;
+			pos = commandOffset + commandLength;
+			commentLength = buf.getInt(pos);
+			commentOffset = pos + 4;
+			pos = commentOffset + commentLength;
+		}
+
+		/**
+		 * Load the codes of the current record into the given tokenizer.  The
+		 * tokenizer's command and comment are left empty.
+		 */
+		public void loadInto(GCodeTokenizer tokenizer) {
+			tokenizer.load(seenMask, valueMask, values);
+		}
+
+		public boolean hasCode(char code) {
+			return (seenMask & (1 << (code - 'A'))) != 0;
+		}
+
+		public double getCodeValue(char code) {
+			int idx = code - 'A';
+			return ((valueMask & (1 << idx)) != 0) ? values[idx] : 0.0;
+		}
+
+		/**
+		 * @return the command text of the current record, without comments
+		 */
+		public String getCommand() {
+			return decode(commandOffset, commandLength);
+		}
+
+		/**
+		 * @return the comment of the current record, or the empty string
+		 */
+		public String getComment() {
+			return decode(commentOffset, commentLength);
+		}
+
+		private String decode(int offset, int len) {
+			if (len == 0) {
+				return "";
+			}
+			try {
+				return new String(data, offset, len, ENCODING);
+			} catch (UnsupportedEncodingException uee) {
+				// UTF-8 is always supported.
+				throw new RuntimeException(uee);
+			}
+		}
+	}
+}
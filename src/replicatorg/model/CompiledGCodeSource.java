@@ -0,0 +1,64 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A GCode source that carries a compiled copy of its code.  The build loop
+ * and the estimator read the compiled records directly; the plain text is
+ * still available through iterator() for anything that wants lines.
+ */
+public class CompiledGCodeSource implements GCodeSource {
+	private final CompiledGCode code;
+
+	// the text of the program; for files this is only loaded if asked for
+	private GCodeSource text;
+	private final String path;
+
+	/**
+	 * Compile the given source.  The source should not change while this
+	 * object is in use.
+	 */
+	public CompiledGCodeSource(GCodeSource source) {
+		this.text = source;
+		this.path = null;
+		this.code = CompiledGCode.compile(source);
+	}
+
+	/**
+	 * Use the compiled cache for the given file, building it if necessary.
+	 */
+	public CompiledGCodeSource(String path) throws IOException {
+		this.text = null;
+		this.path = path;
+		this.code = CompiledGCode.forFile(new File(path));
+	}
+
+	public CompiledGCode getCode() {
+		return code;
+	}
+
+	/**
+	 * @return the path of the file this source was compiled from, or null
+	 * if it wasn't compiled from a file
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	public synchronized Iterator<String> iterator() {
+		if (text == null) {
+			try {
+				text = new MappedFileGCodeSource(path);
+			} catch (IOException ioe) {
+				throw new RuntimeException("Couldn't reread "+path, ioe);
+			}
+		}
+		return text.iterator();
+	}
+
+	public int getLineCount() {
+		return code.getLineCount();
+	}
+}
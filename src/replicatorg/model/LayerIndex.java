@@ -0,0 +1,721 @@
+package replicatorg.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeTokenizer;
+
+/**
+ * An index of the layers of a compiled program, recording where each layer
+ * starts and the state of the machine at that point: the tool in use, the
+ * temperatures set, the feedrate, the positioning mode and so on.  With it
+ * a build can be started from any layer, by running the program's start
+ * code, restoring the state the program had set up by that layer, and
+ * carrying on from the layer's first line.
+ *
+ * A layer starts at a move to a new height, but only counts once something
+ * is extruded at that height: moves up and down between travels, moves to
+ * a safe height during the start code, and retractions aren't layers.  A
+ * move extrudes if it takes E forward, or, in programs that don't use E,
+ * if the extruder has been turned on with M101.  Everything before the
+ * first layer is taken to be the program's start code.
+ *
+ * The index of a GCode file can be cached next to the file, and is rebuilt
+ * if the file changes, as with the compiled cache.
+ */
+public class LayerIndex {
+	/** "RGL" followed by the format version. */
+	private static final int MAGIC = 0x52474C02;
+
+	private static final String CACHE_SUFFIX = ".layers";
+
+	// heights closer than this, in the program's units, are the same
+	private static final double EPSILON = 1e-6;
+
+	// how often, in lines, the indexer checks whether it's been interrupted
+	private static final int CHECK_INTERVAL = 4096;
+
+	/** Where a layer starts, and the state of the machine at that point. */
+	public static class Layer {
+		/** the zero-based line at which the layer starts */
+		public final int line;
+		/** the byte offset of that line in its file, or -1 if not known */
+		public final long textOffset;
+		/** the offset of the line's compiled record */
+		public final int recordOffset;
+		/** the height of the layer */
+		public final double z;
+		/** the position before the line; NaN where not known */
+		public final double x, y, zBefore;
+		public final int tool;
+		/** the tools that have had temperatures set, and the temperatures */
+		public final int[] tools;
+		public final double[] temperatures;
+		/** NaN if the program hasn't set one */
+		public final double platformTemperature;
+		/** NaN if the program hasn't set one */
+		public final double feedrate;
+		public final boolean absolute;
+		public final boolean inches;
+		/** the extruder position, or NaN if the program hasn't used E */
+		public final double e;
+		/** true after M83, which makes E relative even under G90 */
+		public final boolean relativeE;
+		/** the last G code run, which lines with only coordinates repeat */
+		public final int lastG;
+		/** the last of M101, M102 or M103 */
+		public final int extruderCode;
+		/** 'S' or 'R' for the last M108, or 0 if there wasn't one */
+		public final char motorSpeedCode;
+		public final double motorSpeed;
+		public final boolean fan;
+
+		Layer(int line, long textOffset, int recordOffset, double z,
+				double x, double y, double zBefore, int tool,
+				int[] tools, double[] temperatures, double platformTemperature,
+				double feedrate, boolean absolute, boolean inches, double e,
+				boolean relativeE, int lastG, int extruderCode, char motorSpeedCode,
+				double motorSpeed, boolean fan) {
+			this.line = line;
+			this.textOffset = textOffset;
+			this.recordOffset = recordOffset;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.zBefore = zBefore;
+			this.tool = tool;
+			this.tools = tools;
+			this.temperatures = temperatures;
+			this.platformTemperature = platformTemperature;
+			this.feedrate = feedrate;
+			this.absolute = absolute;
+			this.inches = inches;
+			this.e = e;
+			this.relativeE = relativeE;
+			this.lastG = lastG;
+			this.extruderCode = extruderCode;
+			this.motorSpeedCode = motorSpeedCode;
+			this.motorSpeed = motorSpeed;
+			this.fan = fan;
+		}
+	}
+
+	private final List<Layer> layers;
+
+	private LayerIndex(List<Layer> layers) {
+		this.layers = layers;
+	}
+
+	/** @return the number of layers found */
+	public int size() {
+		return layers.size();
+	}
+
+	public Layer get(int layer) {
+		return layers.get(layer);
+	}
+
+	public List<Layer> getLayers() {
+		return Collections.unmodifiableList(layers);
+	}
+
+	/**
+	 * @return the index of the lowest layer at or above the given height,
+	 * or -1 if there isn't one
+	 */
+	public int findLayer(double z) {
+		for (int i = 0; i < layers.size(); i++) {
+			if (layers.get(i).z >= z - EPSILON) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Index a compiled program.
+	 * @return the index, or null if the thread was interrupted
+	 */
+	public static LayerIndex build(CompiledGCode code) {
+		return build(code, null);
+	}
+
+	/**
+	 * Get the index of the given GCode file without compiling it, reading
+	 * its text a line at a time if the index has to be built, so that files
+	 * of any size can be indexed.  See forFile(File,CompiledGCode).
+	 * @return the index, or null if the thread was interrupted
+	 */
+	public static LayerIndex forFile(File file) throws IOException {
+		return forFile(file, null);
+	}
+
+	/**
+	 * Get the index of the given GCode file, reading it from the cache next
+	 * to the file if the cache is still valid, and building (and caching)
+	 * it otherwise.
+	 * @param code the compiled form of the file, or null to read its text
+	 * @return the index, or null if the thread was interrupted
+	 */
+	public static LayerIndex forFile(File file, CompiledGCode code) throws IOException {
+		long sourceLength = file.length();
+		long sourceModified = file.lastModified();
+		long sourceHash = CompiledGCode.hashFile(file);
+		File cache = getCacheFile(file);
+		if (cache.exists()) {
+			try {
+				LayerIndex index = readCache(cache, sourceLength, sourceModified, sourceHash);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException ioe) {
+				Base.logger.log(Level.INFO,"Discarding unreadable layer index "+cache.getPath(),ioe);
+			}
+		}
+		LayerIndex index = (code != null) ?
+				build(code, new MappedFileGCodeSource(file.getPath())) : build(file);
+		if (index != null) {
+			try {
+				index.writeCache(cache, sourceLength, sourceModified, sourceHash);
+			} catch (IOException ioe) {
+				// Not fatal; we just index again next time.
+				Base.logger.log(Level.WARNING,"Couldn't write layer index "+cache.getPath(),ioe);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the location of the cached index for the given GCode file
+	 */
+	public static File getCacheFile(File file) {
+		return new File(file.getPath() + CACHE_SUFFIX);
+	}
+
+	// The state of the machine as the program has set it up, followed line
+	// by line.
+	private static class State {
+		double x, y, z;
+		boolean xKnown, yKnown, zKnown;
+		// the firmware starts with E at zero
+		double e = 0;
+		boolean eUsed = false;
+		boolean relativeE = false;
+		int tool = 0;
+		final Map<Integer,Double> temperatures = new TreeMap<Integer,Double>();
+		double platformTemperature = Double.NaN;
+		double feedrate = Double.NaN;
+		boolean absolute = true;
+		boolean inches = false;
+		int lastG = -1;
+		int extruderCode = 103;
+		char motorSpeedCode = 0;
+		double motorSpeed = 0;
+		boolean fan = false;
+
+		Layer snapshot(int line, long textOffset, int recordOffset, double layerZ) {
+			int[] tools = new int[temperatures.size()];
+			double[] temps = new double[temperatures.size()];
+			int i = 0;
+			for (Map.Entry<Integer,Double> e : temperatures.entrySet()) {
+				tools[i] = e.getKey();
+				temps[i] = e.getValue();
+				i++;
+			}
+			return new Layer(line, textOffset, recordOffset, layerZ,
+					xKnown ? x : Double.NaN, yKnown ? y : Double.NaN, zKnown ? z : Double.NaN,
+					tool, tools, temps, platformTemperature, feedrate, absolute, inches,
+					eUsed ? e : Double.NaN, relativeE,
+					lastG, extruderCode, motorSpeedCode, motorSpeed, fan);
+		}
+
+		// G91 makes every axis relative, E included
+		boolean isRelativeE() {
+			return relativeE || !absolute;
+		}
+	}
+
+	private static LayerIndex build(CompiledGCode code, MappedFileGCodeSource text) {
+		GCodeTokenizer t = new GCodeTokenizer();
+		Finder finder = new Finder();
+		CompiledGCode.Cursor cursor = code.cursor();
+		for (int line = 0; cursor.hasNext(); line++) {
+			if (line % CHECK_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			int recordOffset = cursor.getOffset();
+			cursor.next();
+			cursor.loadInto(t);
+			finder.line(t, line, (text != null) ? text.getLineOffset(line) : -1, recordOffset);
+		}
+		return new LayerIndex(finder.layers);
+	}
+
+	// Index a file straight from its text, reading it once from start to
+	// end and holding only the line being read.  Lines are split as
+	// MappedFileGCodeSource splits them.  The layers have no record offsets.
+	private static LayerIndex build(File file) throws IOException {
+		GCodeTokenizer t = new GCodeTokenizer();
+		Finder finder = new Finder();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			byte[] text = new byte[256];
+			int length = 0;
+			int line = 0;
+			long lineStart = 0;
+			long offset = 0;
+			boolean lastWasCR = false;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				for (int i = 0; i < n; i++, offset++) {
+					byte b = buf[i];
+					if (b == '\n' && lastWasCR) {
+						// second half of a "\r\n"; the line was already ended
+						lineStart = offset + 1;
+						lastWasCR = false;
+						continue;
+					}
+					lastWasCR = (b == '\r');
+					if (b == '\n' || b == '\r') {
+						if (line % CHECK_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+							return null;
+						}
+						t.tokenize(new String(text, 0, length));
+						finder.line(t, line, lineStart, -1);
+						line++;
+						length = 0;
+						lineStart = offset + 1;
+					} else {
+						if (length == text.length) {
+							byte[] grown = new byte[length * 2];
+							System.arraycopy(text, 0, grown, 0, length);
+							text = grown;
+						}
+						text[length++] = b;
+					}
+				}
+			}
+			if (offset > lineStart) {
+				// last line, without a terminator
+				t.tokenize(new String(text, 0, length));
+				finder.line(t, line, lineStart, -1);
+			}
+		} finally {
+			in.close();
+		}
+		return new LayerIndex(finder.layers);
+	}
+
+	// Finds the layers of a program fed to it line by line.
+	private static class Finder {
+		private final State s = new State();
+		final List<Layer> layers = new ArrayList<Layer>();
+		// the start of a new height, which becomes a layer once something
+		// is extruded there
+		private Layer candidate = null;
+
+		void line(GCodeTokenizer t, int line, long textOffset, int recordOffset) {
+			boolean hasAxis = t.hasCode('X') || t.hasCode('Y') || t.hasCode('Z') || t.hasCode('E');
+			int g = t.hasCode('G') ? (int)t.getCodeValue('G') : (hasAxis ? s.lastG : -1);
+			boolean move = (g == 0 || g == 1 || g == 2 || g == 3);
+			if (move) {
+				double z = s.z;
+				boolean zKnown = s.zKnown;
+				if (t.hasCode('Z')) {
+					if (s.absolute) {
+						z = t.getCodeValue('Z');
+						zKnown = true;
+					} else {
+						z += t.getCodeValue('Z');
+					}
+				}
+				if (zKnown && (!s.zKnown || Math.abs(z - s.z) > EPSILON)) {
+					candidate = s.snapshot(line, textOffset, recordOffset, z);
+				}
+				boolean extruding;
+				if (t.hasCode('E')) {
+					// a retraction, or a move back to where E was, isn't
+					double e = t.getCodeValue('E');
+					extruding = s.isRelativeE() ? e > EPSILON : e > s.e + EPSILON;
+				} else {
+					extruding = !s.eUsed && s.extruderCode == 101;
+				}
+				if (candidate != null && extruding && (t.hasCode('X') || t.hasCode('Y')) &&
+						zKnown && Math.abs(z - candidate.z) <= EPSILON) {
+					if (layers.isEmpty() || Math.abs(candidate.z - layers.get(layers.size() - 1).z) > EPSILON) {
+						layers.add(candidate);
+					}
+					candidate = null;
+				}
+			}
+			update(s, t, g, move);
+		}
+	}
+
+	// Follow the program through a line.
+	private static void update(State s, GCodeTokenizer t, int g, boolean move) {
+		if (t.hasCode('G')) {
+			s.lastG = g;
+		}
+		if (t.hasCode('F')) {
+			s.feedrate = t.getCodeValue('F');
+		}
+		if (move) {
+			if (t.hasCode('X')) {
+				if (s.absolute) { s.x = t.getCodeValue('X'); s.xKnown = true; }
+				else { s.x += t.getCodeValue('X'); }
+			}
+			if (t.hasCode('Y')) {
+				if (s.absolute) { s.y = t.getCodeValue('Y'); s.yKnown = true; }
+				else { s.y += t.getCodeValue('Y'); }
+			}
+			if (t.hasCode('Z')) {
+				if (s.absolute) { s.z = t.getCodeValue('Z'); s.zKnown = true; }
+				else { s.z += t.getCodeValue('Z'); }
+			}
+			if (t.hasCode('E')) {
+				if (s.isRelativeE()) { s.e += t.getCodeValue('E'); }
+				else { s.e = t.getCodeValue('E'); }
+				s.eUsed = true;
+			}
+		}
+		switch (g) {
+		case 20:
+			s.inches = true;
+			break;
+		case 21:
+			s.inches = false;
+			break;
+		case 90:
+			s.absolute = true;
+			break;
+		case 91:
+			s.absolute = false;
+			break;
+		case 92:
+			if (t.hasCode('X')) { s.x = t.getCodeValue('X'); s.xKnown = true; }
+			if (t.hasCode('Y')) { s.y = t.getCodeValue('Y'); s.yKnown = true; }
+			if (t.hasCode('Z')) { s.z = t.getCodeValue('Z'); s.zKnown = true; }
+			if (t.hasCode('E')) { s.e = t.getCodeValue('E'); s.eUsed = true; }
+			break;
+		case 28: case 161: case 162:
+			// homing leaves the axes somewhere the program doesn't say
+			s.xKnown = s.yKnown = s.zKnown = false;
+			break;
+		}
+		if (t.hasCode('M')) {
+			switch ((int)t.getCodeValue('M')) {
+			case 82:
+				s.relativeE = false;
+				break;
+			case 83:
+				s.relativeE = true;
+				break;
+			case 101: case 102: case 103:
+				s.extruderCode = (int)t.getCodeValue('M');
+				break;
+			case 104:
+				if (t.hasCode('S')) {
+					int tool = t.hasCode('T') ? (int)t.getCodeValue('T') : s.tool;
+					s.temperatures.put(tool, t.getCodeValue('S'));
+				}
+				break;
+			case 106:
+				s.fan = true;
+				break;
+			case 107:
+				s.fan = false;
+				break;
+			case 108:
+				if (t.hasCode('S')) {
+					s.motorSpeedCode = 'S';
+					s.motorSpeed = t.getCodeValue('S');
+				} else if (t.hasCode('R')) {
+					s.motorSpeedCode = 'R';
+					s.motorSpeed = t.getCodeValue('R');
+				}
+				break;
+			case 109:
+				if (t.hasCode('S')) {
+					s.platformTemperature = t.getCodeValue('S');
+				}
+				break;
+			}
+		}
+		if (t.hasCode('T')) {
+			s.tool = (int)t.getCodeValue('T');
+		}
+	}
+
+	private static LayerIndex readCache(File cache, long sourceLength, long sourceModified, long sourceHash) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+		try {
+			if (in.readInt() != MAGIC ||
+					in.readLong() != sourceLength ||
+					in.readLong() != sourceModified ||
+					in.readLong() != sourceHash) {
+				return null;
+			}
+			int count = in.readInt();
+			List<Layer> layers = new ArrayList<Layer>(count);
+			for (int i = 0; i < count; i++) {
+				int line = in.readInt();
+				long textOffset = in.readLong();
+				int recordOffset = in.readInt();
+				double z = in.readDouble();
+				double x = in.readDouble();
+				double y = in.readDouble();
+				double zBefore = in.readDouble();
+				int tool = in.readInt();
+				int toolCount = in.readInt();
+				int[] tools = new int[toolCount];
+				double[] temperatures = new double[toolCount];
+				for (int j = 0; j < toolCount; j++) {
+					tools[j] = in.readInt();
+					temperatures[j] = in.readDouble();
+				}
+				double platformTemperature = in.readDouble();
+				double feedrate = in.readDouble();
+				int flags = in.readByte();
+				double e = in.readDouble();
+				int lastG = in.readInt();
+				int extruderCode = in.readInt();
+				char motorSpeedCode = in.readChar();
+				double motorSpeed = in.readDouble();
+				layers.add(new Layer(line, textOffset, recordOffset, z, x, y, zBefore,
+						tool, tools, temperatures, platformTemperature, feedrate,
+						(flags & 1) != 0, (flags & 2) != 0, e, (flags & 8) != 0,
+						lastG, extruderCode, motorSpeedCode, motorSpeed, (flags & 4) != 0));
+			}
+			return new LayerIndex(layers);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeCache(File cache, long sourceLength, long sourceModified, long sourceHash) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeLong(sourceHash);
+			out.writeInt(layers.size());
+			for (Layer l : layers) {
+				out.writeInt(l.line);
+				out.writeLong(l.textOffset);
+				out.writeInt(l.recordOffset);
+				out.writeDouble(l.z);
+				out.writeDouble(l.x);
+				out.writeDouble(l.y);
+				out.writeDouble(l.zBefore);
+				out.writeInt(l.tool);
+				out.writeInt(l.tools.length);
+				for (int j = 0; j < l.tools.length; j++) {
+					out.writeInt(l.tools[j]);
+					out.writeDouble(l.temperatures[j]);
+				}
+				out.writeDouble(l.platformTemperature);
+				out.writeDouble(l.feedrate);
+				out.writeByte((l.absolute ? 1 : 0) | (l.inches ? 2 : 0) | (l.fan ? 4 : 0) |
+						(l.relativeE ? 8 : 0));
+				out.writeDouble(l.e);
+				out.writeInt(l.lastG);
+				out.writeInt(l.extruderCode);
+				out.writeChar(l.motorSpeedCode);
+				out.writeDouble(l.motorSpeed);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the commands that take a machine that has just run the
+	 * program's start code to the state the program had set up at the
+	 * start of the given layer: temperatures, tool, extruder and fan, the
+	 * extruder position, and the position before the layer's first line.
+	 * Heating is waited for with M6 before the machine moves.
+	 */
+	public List<String> getRestoreCommands(int layer) {
+		Layer l = layers.get(layer);
+		Layer first = layers.get(0);
+		DecimalFormat df = new DecimalFormat("#.######", new DecimalFormatSymbols(Locale.US));
+		List<String> commands = new ArrayList<String>();
+		commands.add("(Resuming at layer " + layer + ", Z " + df.format(l.z) + ")");
+		commands.add("M103");
+		commands.add(l.inches ? "G20" : "G21");
+		commands.add("G90");
+		if (!Double.isNaN(l.e)) {
+			// so that the layer's first E carries on from where it was
+			commands.add(l.relativeE ? "M83" : "M82");
+			commands.add("G92 E" + df.format(l.e));
+		}
+		for (int i = 0; i < l.tools.length; i++) {
+			commands.add("T" + l.tools[i]);
+			commands.add("M104 S" + df.format(l.temperatures[i]));
+		}
+		if (!Double.isNaN(l.platformTemperature)) {
+			commands.add("M109 S" + df.format(l.platformTemperature));
+		}
+		commands.add("M6 T" + l.tool);
+		if (l.motorSpeedCode != 0) {
+			commands.add("M108 " + l.motorSpeedCode + df.format(l.motorSpeed));
+		}
+		if (l.fan) {
+			commands.add("M106");
+		}
+
+		// Move over the part at the layer's height: up first if the start
+		// code left the machine below it, and across first otherwise.
+		String feed = Double.isNaN(l.feedrate) ? "" : " F" + df.format(l.feedrate);
+		String g = (l.lastG == 0) ? "G0" : "G1";
+		boolean across = !Double.isNaN(l.x) && !Double.isNaN(l.y);
+		if (!Double.isNaN(first.zBefore) && first.zBefore > l.z) {
+			if (across) {
+				commands.add("G0 X" + df.format(l.x) + " Y" + df.format(l.y));
+			}
+			commands.add(g + " Z" + df.format(l.z) + feed);
+		} else {
+			if (across) {
+				commands.add("G0 Z" + df.format(l.z));
+				commands.add(g + " X" + df.format(l.x) + " Y" + df.format(l.y) + feed);
+			} else {
+				commands.add(g + " Z" + df.format(l.z) + feed);
+			}
+		}
+
+		if (l.extruderCode != 103) {
+			commands.add("M" + l.extruderCode);
+		}
+		if (!l.absolute) {
+			commands.add("G91");
+		}
+		return commands;
+	}
+
+	/**
+	 * @return a source that runs the program's start code, restores the
+	 * state of the given layer, and carries on from the layer's first line
+	 * @param source the compiled program this index was built from
+	 */
+	public GCodeSource resumeFrom(CompiledGCodeSource source, int layer) throws IOException {
+		MappedFileGCodeSource text =
+			(source.getPath() != null) ? new MappedFileGCodeSource(source.getPath()) : null;
+		return resumeFrom(text, source.getCode(), source.getLineCount(), layer);
+	}
+
+	/**
+	 * @return a source that runs the file's start code, restores the state
+	 * of the given layer, and carries on from the layer's first line, read
+	 * from the file's text, so that a program too big to compile, or one
+	 * built before a restart, can be resumed from its index alone
+	 * @param file the file this index was built from
+	 */
+	public GCodeSource resumeFrom(File file, int layer) throws IOException {
+		MappedFileGCodeSource text = new MappedFileGCodeSource(file.getPath());
+		return resumeFrom(text, null, text.getLineCount(), layer);
+	}
+
+	// Resume from the text if there is one, and from the records otherwise.
+	private GCodeSource resumeFrom(final MappedFileGCodeSource text, final CompiledGCode code,
+			int sourceLines, int layer) {
+		final Layer l = layers.get(layer);
+		final int headerLines = layers.get(0).line;
+		final List<String> restore = getRestoreCommands(layer);
+		final int lineCount = headerLines + restore.size() + sourceLines - l.line;
+		return new GCodeSource() {
+			public int getLineCount() {
+				return lineCount;
+			}
+			public Iterator<String> iterator() {
+				Iterator<String> header, rest;
+				if (text != null) {
+					header = new Limit(text.iterator(0), headerLines);
+					rest = text.iterator(l.line);
+				} else {
+					header = new Limit(new RecordText(code.cursor()), headerLines);
+					rest = new RecordText(code.cursor(l.recordOffset));
+				}
+				List<Iterator<String>> parts = new ArrayList<Iterator<String>>();
+				parts.add(header);
+				parts.add(restore.iterator());
+				parts.add(rest);
+				return new Concat(parts);
+			}
+		};
+	}
+
+	// The first few lines of another iterator.
+	private static class Limit implements Iterator<String> {
+		private final Iterator<String> lines;
+		private int left;
+		Limit(Iterator<String> lines, int count) {
+			this.lines = lines;
+			this.left = count;
+		}
+		public boolean hasNext() { return left > 0 && lines.hasNext(); }
+		public String next() {
+			if (left <= 0) { throw new NoSuchElementException(); }
+			left--;
+			return lines.next();
+		}
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+
+	// Several iterators, one after another.
+	private static class Concat implements Iterator<String> {
+		private final List<Iterator<String>> parts;
+		private int part = 0;
+		Concat(List<Iterator<String>> parts) {
+			this.parts = parts;
+		}
+		public boolean hasNext() {
+			while (part < parts.size() && !parts.get(part).hasNext()) { part++; }
+			return part < parts.size();
+		}
+		public String next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			return parts.get(part).next();
+		}
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+
+	// The text of compiled records, for programs that weren't read from a
+	// file.  Comments are put back in parentheses.
+	private static class RecordText implements Iterator<String> {
+		private final CompiledGCode.Cursor cursor;
+		RecordText(CompiledGCode.Cursor cursor) {
+			this.cursor = cursor;
+		}
+		public boolean hasNext() { return cursor.hasNext(); }
+		public String next() {
+			if (!cursor.hasNext()) { throw new NoSuchElementException(); }
+			cursor.next();
+			String comment = cursor.getComment();
+			if (comment.length() == 0) {
+				return cursor.getCommand();
+			}
+			return cursor.getCommand() + " (" + comment.replace('\n', '|') + ")";
+		}
+		public void remove() { throw new UnsupportedOperationException(); }
+	}
+}
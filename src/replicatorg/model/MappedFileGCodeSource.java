@@ -0,0 +1,214 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A GCode source that memory-maps its file instead of reading it into
+ * memory.  Opening the file makes one pass over it to record where each line
+ * starts; lines are only decoded into Strings as they are handed out, so the
+ * heap cost of a source is a few bytes per line no matter how long the lines
+ * are.
+ *
+ * Lines are split the same way FileGCodeSource splits them: on "\n", "\r" or
+ * "\r\n", with trailing blank lines dropped.
+ */
+public class MappedFileGCodeSource implements GCodeSource {
+	// Files are mapped in segments, since a single mapping can't exceed 2GB.
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final String path;
+	private final long fileLength;
+	private final MappedByteBuffer[] segments;
+
+	// Line start offsets.  Files under 2GB use the int table, larger ones
+	// the long table.
+	private int[] intStarts;
+	private long[] longStarts;
+	private int lineCount;
+	// the end of the last line's text
+	private long lastLineEnd;
+
+	public MappedFileGCodeSource(String path) throws IOException {
+		this.path = path;
+		RandomAccessFile raf = new RandomAccessFile(new File(path), "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			fileLength = channel.size();
+			int count = (int)((fileLength + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long)i << SEGMENT_BITS;
+				long size = Math.min(SEGMENT_SIZE, fileLength - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		} finally {
+			// The mappings stay valid after the channel is closed.
+			raf.close();
+		}
+		buildIndex();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Scan the file once, recording the offset at which each line starts.
+	 */
+	private void buildIndex() {
+		boolean small = fileLength <= Integer.MAX_VALUE;
+		int capacity = (int)Math.min(1024, fileLength / 16 + 1);
+		if (small) {
+			intStarts = new int[capacity];
+		} else {
+			longStarts = new long[capacity];
+		}
+		int count = 0;
+		// offset of the end of the last non-blank line
+		long contentEnd = 0;
+		int linesToContentEnd = 0;
+		long lineStart = 0;
+		boolean lastWasCR = false;
+		for (int s = 0; s < segments.length; s++) {
+			MappedByteBuffer seg = segments[s];
+			long base = (long)s << SEGMENT_BITS;
+			int limit = seg.limit();
+			for (int i = 0; i < limit; i++) {
+				byte b = seg.get(i);
+				if (b == '\n' && lastWasCR) {
+					// second half of a "\r\n"; the line was already ended
+					lineStart = base + i + 1;
+					lastWasCR = false;
+					continue;
+				}
+				lastWasCR = (b == '\r');
+				if (b == '\n' || b == '\r') {
+					long offset = base + i;
+					count = addLine(count, lineStart);
+					if (offset > lineStart) {
+						contentEnd = offset;
+						linesToContentEnd = count;
+					}
+					lineStart = offset + 1;
+				}
+			}
+		}
+		if (lineStart < fileLength) {
+			// last line, without a terminator
+			count = addLine(count, lineStart);
+			contentEnd = fileLength;
+			linesToContentEnd = count;
+		}
+		// drop trailing blank lines, as String.split does
+		lineCount = linesToContentEnd;
+		lastLineEnd = contentEnd;
+	}
+
+	private int addLine(int count, long start) {
+		if (intStarts != null) {
+			if (count == intStarts.length) {
+				int[] grown = new int[count * 2];
+				System.arraycopy(intStarts, 0, grown, 0, count);
+				intStarts = grown;
+			}
+			intStarts[count] = (int)start;
+		} else {
+			if (count == longStarts.length) {
+				long[] grown = new long[count * 2];
+				System.arraycopy(longStarts, 0, grown, 0, count);
+				longStarts = grown;
+			}
+			longStarts[count] = start;
+		}
+		return count + 1;
+	}
+
+	private long lineStart(int line) {
+		return (intStarts != null) ? intStarts[line] : longStarts[line];
+	}
+
+	private byte byteAt(long offset) {
+		return segments[(int)(offset >>> SEGMENT_BITS)].get((int)(offset & SEGMENT_MASK));
+	}
+
+	/**
+	 * @return the byte offset in the file at which the given line starts
+	 */
+	public long getLineOffset(int line) {
+		if (line < 0 || line >= lineCount) {
+			throw new IndexOutOfBoundsException("No line " + line + " in " + path);
+		}
+		return lineStart(line);
+	}
+
+	/**
+	 * Decode the given line.
+	 * @param line the zero-based line number
+	 */
+	public String getLine(int line) {
+		return decodeLine(line, new byte[128]);
+	}
+
+	private String decodeLine(int line, byte[] scratch) {
+		long start = getLineOffset(line);
+		long end = (line + 1 < lineCount) ? lineStart(line + 1) : lastLineEnd;
+		// strip the terminator
+		if (end > start && byteAt(end - 1) == '\n') { end--; }
+		if (end > start && byteAt(end - 1) == '\r') { end--; }
+		int len = (int)(end - start);
+		if (len > scratch.length) {
+			scratch = new byte[len];
+		}
+		int segIdx = (int)(start >>> SEGMENT_BITS);
+		int segOffset = (int)(start & SEGMENT_MASK);
+		if (segOffset + len <= segments[segIdx].limit()) {
+			// common case: the line sits in a single segment
+			MappedByteBuffer seg = segments[segIdx];
+			for (int i = 0; i < len; i++) {
+				scratch[i] = seg.get(segOffset + i);
+			}
+		} else {
+			for (int i = 0; i < len; i++) {
+				scratch[i] = byteAt(start + i);
+			}
+		}
+		return new String(scratch, 0, len);
+	}
+
+	public Iterator<String> iterator() {
+		return iterator(0);
+	}
+
+	/**
+	 * Returns an iterator starting at the given line, for resuming a build
+	 * partway through the file.
+	 * @param firstLine the zero-based line to start at
+	 */
+	public Iterator<String> iterator(final int firstLine) {
+		if (firstLine < 0 || firstLine > lineCount) {
+			throw new IndexOutOfBoundsException("No line " + firstLine + " in " + path);
+		}
+		return new Iterator<String>() {
+			int idx = firstLine;
+			byte[] scratch = new byte[256];
+			public boolean hasNext() { return idx < lineCount; }
+			public String next() {
+				if (idx >= lineCount) { throw new NoSuchElementException(); }
+				return decodeLine(idx++, scratch);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+}
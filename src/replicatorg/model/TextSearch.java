@@ -0,0 +1,255 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Finds and replaces text a chunk at a time, so that searching a huge file
+ * doesn't need a copy of its text, or several (as String.indexOf on the
+ * text, lowercased, does).
+ *
+ * Text can be searched for in a document, or in a file as bytes, a byte to
+ * a character as ISO-8859-1, skipping blocks of the file that a
+ * TrigramIndex rules out.  Replacing is done as a rewrite, from a Reader to
+ * a Writer, rather than as edits to a document.
+ *
+ * All of these check for the thread being interrupted between chunks, and
+ * throw InterruptedException if it was; that's how they are cancelled.
+ */
+public class TextSearch {
+	/** Told how far along a search or a rewrite is. */
+	public interface Progress {
+		void progress(long done, long total);
+	}
+
+	private static final int CHUNK = 1 << 16;
+
+	private final String text;
+	private final boolean ignoreCase;
+	// the characters to look for, and the same with the case changed; the
+	// same if case matters
+	private final char[] wanted;
+	private final char[] other;
+
+	public TextSearch(String text, boolean ignoreCase) {
+		if (text.length() == 0) {
+			throw new IllegalArgumentException("Nothing to search for");
+		}
+		this.text = text;
+		this.ignoreCase = ignoreCase;
+		wanted = text.toCharArray();
+		other = text.toCharArray();
+		if (ignoreCase) {
+			for (int i = 0; i < wanted.length; i++) {
+				wanted[i] = Character.toLowerCase(wanted[i]);
+				other[i] = Character.toUpperCase(other[i]);
+			}
+		}
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public boolean isIgnoreCase() {
+		return ignoreCase;
+	}
+
+	/**
+	 * Find the first match in a document at or after the given offset.
+	 * @param progress may be null
+	 * @return the offset of the match, or -1 if there isn't one
+	 */
+	public int find(Document doc, int from, Progress progress) throws InterruptedException {
+		int n = wanted.length;
+		int length = doc.getLength();
+		Segment s = new Segment();
+		// chunks overlap by the length of the text less one, so a match
+		// can't fall between them
+		for (int base = Math.max(0, from); base <= length - n; base += CHUNK - (n - 1)) {
+			checkInterrupted();
+			int count = Math.min(CHUNK, length - base);
+			try {
+				doc.getText(base, count, s);
+			} catch (BadLocationException ble) {
+				// the document changed under us
+				return -1;
+			}
+			for (int i = 0; i + n <= count; i++) {
+				if (matches(s.array, s.offset + i)) {
+					return base + i;
+				}
+			}
+			if (progress != null) { progress.progress(base + count, length); }
+			if (base + count >= length) { break; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the first match in a file at or after the given offset, reading
+	 * only the blocks the index says a match might start in.
+	 * @param index the file's index, or null to read all of it
+	 * @param progress may be null
+	 * @return the offset of the match, or -1 if there isn't one
+	 */
+	public long find(File file, long from, TrigramIndex index, Progress progress)
+			throws IOException, InterruptedException {
+		int n = wanted.length;
+		int[] trigrams = (index == null) ? null : TrigramIndex.trigramsOf(text);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			// the file is matched as bytes; a character outside ISO-8859-1
+			// can't be in it
+			byte[] wantedBytes = new byte[n];
+			byte[] otherBytes = new byte[n];
+			for (int k = 0; k < n; k++) {
+				if (wanted[k] > 255 && other[k] > 255) { return -1; }
+				wantedBytes[k] = (byte)((wanted[k] > 255) ? other[k] : wanted[k]);
+				otherBytes[k] = (byte)((other[k] > 255) ? wanted[k] : other[k]);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(TrigramIndex.BLOCK_SIZE + n - 1);
+			byte[] bytes = buffer.array();
+			from = Math.max(0, from);
+			for (long block = from >> TrigramIndex.BLOCK_BITS; block << TrigramIndex.BLOCK_BITS <= length - n; block++) {
+				checkInterrupted();
+				long start = block << TrigramIndex.BLOCK_BITS;
+				if (progress != null) { progress.progress(start, length); }
+				if (index != null && !index.mayStartIn((int)block, trigrams)) { continue; }
+				buffer.clear();
+				int count = 0;
+				while (buffer.hasRemaining()) {
+					int r = channel.read(buffer, start + count);
+					if (r <= 0) { break; }
+					count += r;
+				}
+				// only matches starting in this block; the rest is overlap
+				int first = (int)Math.max(0, from - start);
+				int last = Math.min(TrigramIndex.BLOCK_SIZE, count - n + 1);
+				byte w0 = wantedBytes[0];
+				byte o0 = otherBytes[0];
+				for (int i = first; i < last; i++) {
+					byte b = bytes[i];
+					if (b != w0 && b != o0) { continue; }
+					int k = 1;
+					while (k < n && (bytes[i + k] == wantedBytes[k] || bytes[i + k] == otherBytes[k])) {
+						k++;
+					}
+					if (k == n) { return start + i; }
+				}
+			}
+			return -1;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copy text from one stream to another, replacing every match.
+	 * @param total the length of the input, for progress; may be a guess
+	 * @param progress may be null
+	 * @return the number of matches replaced
+	 */
+	public long replaceAll(Reader in, Writer out, String replacement, long total, Progress progress)
+			throws IOException, InterruptedException {
+		int n = wanted.length;
+		char[] buffer = new char[Math.max(CHUNK, n * 2)];
+		// the characters in the buffer, and how many have been read in all
+		int len = 0;
+		long read = 0;
+		long replaced = 0;
+		while (true) {
+			checkInterrupted();
+			int r = in.read(buffer, len, buffer.length - len);
+			if (r > 0) {
+				len += r;
+				read += r;
+			}
+			int copied = 0;
+			int i = 0;
+			while (i + n <= len) {
+				if (matches(buffer, i)) {
+					out.write(buffer, copied, i - copied);
+					out.write(replacement);
+					replaced++;
+					i += n;
+					copied = i;
+				} else {
+					i++;
+				}
+			}
+			if (r < 0) {
+				out.write(buffer, copied, len - copied);
+				return replaced;
+			}
+			// what's left is too short to be a match yet; keep it for the
+			// next chunk
+			out.write(buffer, copied, i - copied);
+			System.arraycopy(buffer, i, buffer, 0, len - i);
+			len -= i;
+			if (progress != null) { progress.progress(read, total); }
+		}
+	}
+
+	private boolean matches(char[] chars, int at) {
+		char c0 = chars[at];
+		if (c0 != wanted[0] && c0 != other[0]) {
+			return false;
+		}
+		for (int k = 1; k < wanted.length; k++) {
+			char c = chars[at + k];
+			if (c != wanted[k] && c != other[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Reads the text of a document, a chunk at a time.  The document
+	 * shouldn't change while it's being read.
+	 */
+	public static class DocumentReader extends Reader {
+		private final Document doc;
+		private final Segment segment = new Segment();
+		private int position = 0;
+
+		public DocumentReader(Document doc) {
+			this.doc = doc;
+		}
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int left = doc.getLength() - position;
+			if (left <= 0) { return -1; }
+			int n = Math.min(Math.min(len, left), CHUNK);
+			try {
+				doc.getText(position, n, segment);
+			} catch (BadLocationException ble) {
+				throw new IOException("The document changed while being read");
+			}
+			System.arraycopy(segment.array, segment.offset, cbuf, off, n);
+			position += n;
+			return n;
+		}
+
+		public void close() {
+		}
+	}
+}
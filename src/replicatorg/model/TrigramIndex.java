@@ -0,0 +1,155 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Which runs of three characters (trigrams) occur in each block of a file,
+ * so that searches can skip the blocks that can't hold what they're looking
+ * for.  Each block of BLOCK_SIZE bytes gets a 4096 bit Bloom filter of the
+ * trigrams ending in it, which makes the index 1/128th the size of the
+ * file.  Case is folded, so one index serves searches that ignore case and
+ * searches that don't.
+ *
+ * The index is of the file as it was when indexed; see isCurrent().
+ */
+public class TrigramIndex {
+	public static final int BLOCK_BITS = 16;
+	public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	// each block's filter has 1 << HASH_BITS bits
+	private static final int HASH_BITS = 12;
+	private static final int FILTER_LONGS = (1 << HASH_BITS) / 64;
+
+	private static final char[] FOLD = new char[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			char c = Character.toLowerCase((char)i);
+			FOLD[i] = (c < 256) ? c : (char)i;
+		}
+	}
+
+	private final File file;
+	private final long length;
+	private final long modified;
+	private final long[] filters;
+
+	private TrigramIndex(File file, long length, long modified, long[] filters) {
+		this.file = file;
+		this.length = length;
+		this.modified = modified;
+		this.filters = filters;
+	}
+
+	/**
+	 * Index the given file, a chunk at a time.
+	 * @param progress told of the bytes indexed so far; may be null
+	 * @return the index, or null if the thread was interrupted
+	 */
+	public static TrigramIndex build(File file, TextSearch.Progress progress) throws IOException {
+		long modified = file.lastModified();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			long blocks = (length + BLOCK_SIZE - 1) >> BLOCK_BITS;
+			if (blocks * FILTER_LONGS > Integer.MAX_VALUE) {
+				throw new IOException(file.getName() + " is too large to index.");
+			}
+			long[] filters = new long[(int)blocks * FILTER_LONGS];
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			byte[] bytes = buffer.array();
+			long position = 0;
+			// the last three characters read, folded, one to a byte; a
+			// trigram is filed under the block it ends in, which for a
+			// match starting in a block is that block or the next
+			int key = 0;
+			while (position < length) {
+				if (Thread.interrupted()) { return null; }
+				buffer.clear();
+				int n = 0;
+				// fill whole blocks, so each block is in one chunk
+				while (buffer.hasRemaining()) {
+					int r = channel.read(buffer, position + n);
+					if (r <= 0) { break; }
+					n += r;
+				}
+				if (n == 0) { break; }
+				for (int start = 0; start < n; start += BLOCK_SIZE) {
+					int base = (int)((position + start) >> BLOCK_BITS) * FILTER_LONGS;
+					int end = Math.min(n, start + BLOCK_SIZE);
+					for (int i = start; i < end; i++) {
+						key = ((key << 8) | FOLD[bytes[i] & 0xff]) & 0xffffff;
+						int h = (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+						filters[base + (h >>> 6)] |= 1L << h;
+					}
+				}
+				position += n;
+				if (progress != null) { progress.progress(position, length); }
+			}
+			return new TrigramIndex(file, length, modified, filters);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if the file hasn't changed since it was indexed, as far
+	 * as its size and modification time tell
+	 */
+	public boolean isCurrent(File f) {
+		return f.equals(file) && f.length() == length && f.lastModified() == modified;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the trigrams to look for to find the given text, or null if
+	 * it's too short to have any
+	 */
+	public static int[] trigramsOf(String text) {
+		if (text.length() < 3) { return null; }
+		int[] hashes = new int[text.length() - 2];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = hash(fold(text.charAt(i)), fold(text.charAt(i + 1)), fold(text.charAt(i + 2)));
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return false if no match for the text with the given trigrams can
+	 * start in the given block; a match starting in one block may run into
+	 * the next, so the next block's trigrams count too.  (The first two
+	 * characters of a file make trigrams that don't match anything, which
+	 * does no harm.)
+	 */
+	public boolean mayStartIn(int block, int[] trigrams) {
+		if (trigrams == null) { return true; }
+		int blocks = filters.length / FILTER_LONGS;
+		for (int h : trigrams) {
+			if (!isSet(block, h) && (block + 1 >= blocks || !isSet(block + 1, h))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isSet(int block, int h) {
+		return (filters[block * FILTER_LONGS + (h >>> 6)] & (1L << (h & 63))) != 0;
+	}
+
+	private static int fold(char c) {
+		// characters outside ISO-8859-1 can't be in the file, but they
+		// needn't match anything either
+		return (c < 256) ? FOLD[c] : c & 0xff;
+	}
+
+	// the same hash as build() takes of its key
+	private static int hash(int a, int b, int c) {
+		return (((a << 16) | (b << 8) | c) * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+}
@@ -0,0 +1,24 @@
+package replicatorg.model.transform;
+
+/**
+ * Speeds a program up or slows it down by multiplying every feedrate it
+ * sets by a factor.
+ */
+public class FeedrateOverride extends GCodeTransformer {
+	private final double factor;
+
+	/**
+	 * @param factor the factor to multiply feedrates by; 0.5 runs at half
+	 * speed
+	 */
+	public FeedrateOverride(double factor) {
+		this.factor = factor;
+	}
+
+	public void process(GCodeLine line, Output out) {
+		if (line.hasCode('F') && factor != 1) {
+			line.setCode('F', line.getCodeValue('F') * factor);
+		}
+		out.emit(line);
+	}
+}
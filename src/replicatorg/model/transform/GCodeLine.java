@@ -0,0 +1,208 @@
+package replicatorg.model.transform;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * A line of GCode as a sequence of words, each a letter and a number, plus
+ * any comment.  Words can be read, changed, added and removed by letter;
+ * a line that hasn't been changed turns back into exactly the text it was
+ * made from.
+ *
+ * Words are read the way GCodeTokenizer reads them: a letter followed by
+ * a number, outside of comments.  When a letter appears more than once,
+ * the first occurrence is the one read and changed.
+ */
+public class GCodeLine {
+	private static final DecimalFormat df = new DecimalFormat("#.######",
+			new DecimalFormatSymbols(Locale.US));
+
+	// the text the line was parsed from
+	private final String text;
+	private boolean modified = false;
+	private char[] letters = new char[8];
+	// the text of each word's number, as written
+	private String[] values = new String[8];
+	private int count = 0;
+	private String comment;
+
+	/**
+	 * Parse a line of GCode.
+	 */
+	public GCodeLine(String text) {
+		this.text = text;
+		String command = text;
+		StringBuffer commentText = new StringBuffer();
+		int parenStart = text.indexOf('(');
+		if (parenStart >= 0) {
+			int parenEnd = text.lastIndexOf(')');
+			if (parenEnd > parenStart) {
+				commentText.append(text.substring(parenStart, parenEnd + 1));
+				command = text.substring(0, parenStart) + text.substring(parenEnd + 1);
+			}
+		}
+		int semi = command.indexOf(';');
+		if (semi >= 0) {
+			if (commentText.length() > 0) { commentText.append(' '); }
+			commentText.append(command.substring(semi));
+			command = command.substring(0, semi);
+		}
+		comment = commentText.toString();
+
+		int len = command.length();
+		int i = 0;
+		while (i < len) {
+			char c = command.charAt(i++);
+			if (c < 'A' || c > 'Z') {
+				continue;
+			}
+			int start = i;
+			while (i < len && isNumberChar(command.charAt(i))) {
+				i++;
+			}
+			add(c, command.substring(start, i));
+		}
+	}
+
+	/**
+	 * Make a line from scratch; words are added with setCode().
+	 */
+	public GCodeLine() {
+		this.text = "";
+		this.comment = "";
+		this.modified = true;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+	}
+
+	private void add(char letter, String value) {
+		if (count == letters.length) {
+			char[] l = new char[count * 2];
+			String[] v = new String[count * 2];
+			System.arraycopy(letters, 0, l, 0, count);
+			System.arraycopy(values, 0, v, 0, count);
+			letters = l;
+			values = v;
+		}
+		letters[count] = letter;
+		values[count] = value;
+		count++;
+	}
+
+	private int indexOf(char letter) {
+		for (int i = 0; i < count; i++) {
+			if (letters[i] == letter) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the given letter appears on the line
+	 */
+	public boolean hasCode(char letter) {
+		return indexOf(letter) >= 0;
+	}
+
+	/**
+	 * @return the value of the given letter, or 0 if it doesn't appear or
+	 * has no number
+	 */
+	public double getCodeValue(char letter) {
+		int i = indexOf(letter);
+		if (i < 0 || values[i].length() == 0) { return 0.0; }
+		try {
+			return Double.parseDouble(values[i]);
+		} catch (NumberFormatException nfe) {
+			return 0.0;
+		}
+	}
+
+	/**
+	 * @return the G code of the line, or -1 if it hasn't got one
+	 */
+	public int getGCode() {
+		return hasCode('G') ? (int)getCodeValue('G') : -1;
+	}
+
+	/**
+	 * @return the M code of the line, or -1 if it hasn't got one
+	 */
+	public int getMCode() {
+		return hasCode('M') ? (int)getCodeValue('M') : -1;
+	}
+
+	/**
+	 * Set the value of a letter, adding it to the end of the line if it
+	 * isn't there already.
+	 */
+	public void setCode(char letter, double value) {
+		String formatted;
+		// DecimalFormat isn't thread safe
+		synchronized(df) {
+			formatted = df.format(value);
+		}
+		if ("-0".equals(formatted)) { formatted = "0"; }
+		int i = indexOf(letter);
+		if (i >= 0) {
+			if (formatted.equals(values[i])) { return; }
+			values[i] = formatted;
+		} else {
+			add(letter, formatted);
+		}
+		modified = true;
+	}
+
+	/**
+	 * Remove the first occurrence of a letter from the line.
+	 */
+	public void removeCode(char letter) {
+		int i = indexOf(letter);
+		if (i < 0) { return; }
+		System.arraycopy(letters, i + 1, letters, i, count - i - 1);
+		System.arraycopy(values, i + 1, values, i, count - i - 1);
+		count--;
+		modified = true;
+	}
+
+	/**
+	 * @return the comment on the line as written, delimiters included, or
+	 * the empty string
+	 */
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * @return true if the line has no words, only perhaps a comment
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return true if the line has been changed since it was parsed
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * @return the line as text
+	 */
+	public String toString() {
+		if (!modified) { return text; }
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) { sb.append(' '); }
+			sb.append(letters[i]).append(values[i]);
+		}
+		if (comment.length() > 0) {
+			if (count > 0) { sb.append(' '); }
+			sb.append(comment);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package replicatorg.model.transform;
+
+/**
+ * One stage of a TransformedGCodeSource.  Each line read is handed to
+ * process(), which passes on whatever should take its place: the line
+ * itself, changed or not; nothing, to drop it; or other lines before or
+ * after it.
+ *
+ * A transformer may follow the state of the program as it goes, so it
+ * should be used by one pass over a source at a time; start() is called
+ * before each pass.
+ */
+public abstract class GCodeTransformer {
+	/** Where a transformer passes its lines on to. */
+	public interface Output {
+		void emit(GCodeLine line);
+	}
+
+	/**
+	 * Get ready for a pass over a program.  Transformers that follow the
+	 * program's state should reset it here.
+	 */
+	public void start() {
+	}
+
+	/**
+	 * Handle a line of the program.
+	 * @param line the line, which may be changed and passed on
+	 * @param out where to pass lines on to
+	 */
+	public abstract void process(GCodeLine line, Output out);
+
+	/**
+	 * @return true if this transformer may drop lines or add them, so that
+	 * the transformed program isn't as long as the original
+	 */
+	public boolean changesLineCount() {
+		return false;
+	}
+
+	/**
+	 * Called after the last line of the program, for transformers that
+	 * hold lines back or add lines at the end.
+	 */
+	public void finish(Output out) {
+	}
+}
@@ -0,0 +1,128 @@
+package replicatorg.model.transform;
+
+/**
+ * Keeps only the layers of a program between two heights, for example to
+ * print part of an object again.
+ *
+ * Moves that end outside the range are dropped, along with the dwells and
+ * extruder on and off commands among them; everything else (temperatures,
+ * tool changes, fans and so on) is kept, so the machine is set up as the
+ * program intends when the range begins.  The extruder is turned off while
+ * moves are being dropped.  On the way back into the range the machine is
+ * moved, Z first, to where the program would have left it, and the
+ * extruder is turned back on if the program had it on.  In 5D programs
+ * with absolute E, the extruder axis is set (G92) to where the dropped
+ * moves would have left it, so the first move kept extrudes only its own
+ * filament rather than that of every layer dropped.
+ *
+ * Only moves in absolute positioning are dropped, and nothing is dropped
+ * until the program has said where the machine is.
+ */
+public class LayerRangeTransformer extends GCodeTransformer {
+	// heights are compared with this much slack, in mm
+	private static final double EPSILON = 1e-6;
+
+	private final double minZ;
+	private final double maxZ;
+	private final MotionState state = new MotionState();
+
+	// the last extruder command (M101, M102 or M103) in the program, and in
+	// the output
+	private int extruderCode;
+	private int emittedExtruderCode;
+	private boolean dropping;
+
+	/**
+	 * @param minZ the height of the lowest layer to keep, in mm
+	 * @param maxZ the height of the highest layer to keep, in mm
+	 */
+	public LayerRangeTransformer(double minZ, double maxZ) {
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+	}
+
+	public void start() {
+		state.reset();
+		extruderCode = 103;
+		emittedExtruderCode = 103;
+		dropping = false;
+	}
+
+	public boolean changesLineCount() {
+		return true;
+	}
+
+	public void process(GCodeLine line, Output out) {
+		int m = line.getMCode();
+		boolean isExtruderCode = (m == 101 || m == 102 || m == 103);
+		if (isExtruderCode) {
+			extruderCode = m;
+		}
+		if (state.isMove(line) && state.isAbsolute() && state.isKnown(2)) {
+			double z = line.hasCode('Z') ? line.getCodeValue('Z') : state.getPosition(2);
+			if (state.isInches()) { z *= 25.4; }
+			boolean inRange = z >= minZ - EPSILON && z <= maxZ + EPSILON;
+			if (!inRange) {
+				if (!dropping) {
+					dropping = true;
+					if (emittedExtruderCode != 103) {
+						emitExtruder(103, out);
+					}
+				}
+				state.update(line);
+				return;
+			}
+			if (dropping) {
+				dropping = false;
+				int g = state.effectiveGCode(line);
+				resume(out);
+				if (!line.hasCode('G')) {
+					// the travel just sent changed the modal G code
+					line = new GCodeLine("G" + g + " " + line.toString());
+				}
+			}
+		} else if (dropping && (isExtruderCode || state.effectiveGCode(line) == 4)) {
+			state.update(line);
+			return;
+		}
+		state.update(line);
+		if (isExtruderCode) {
+			emittedExtruderCode = m;
+		}
+		out.emit(line);
+	}
+
+	// Go back to where the program left the machine and pick up where it
+	// left off.
+	private void resume(Output out) {
+		if (state.isKnown(2)) {
+			GCodeLine lift = new GCodeLine();
+			lift.setCode('G', 0);
+			lift.setCode('Z', state.getPosition(2));
+			out.emit(lift);
+		}
+		if (state.isKnown(0) && state.isKnown(1)) {
+			GCodeLine travel = new GCodeLine();
+			travel.setCode('G', 0);
+			travel.setCode('X', state.getPosition(0));
+			travel.setCode('Y', state.getPosition(1));
+			out.emit(travel);
+		}
+		if (state.isEUsed() && !state.isRelativeE()) {
+			GCodeLine reset = new GCodeLine();
+			reset.setCode('G', 92);
+			reset.setCode('E', state.getE());
+			out.emit(reset);
+		}
+		if (extruderCode != 103 && emittedExtruderCode == 103) {
+			emitExtruder(extruderCode, out);
+		}
+	}
+
+	private void emitExtruder(int code, Output out) {
+		GCodeLine line = new GCodeLine();
+		line.setCode('M', code);
+		out.emit(line);
+		emittedExtruderCode = code;
+	}
+}
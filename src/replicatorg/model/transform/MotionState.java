@@ -0,0 +1,180 @@
+package replicatorg.model.transform;
+
+/**
+ * Follows the modal state of a program line by line, the way GCodeParser
+ * does: the units, absolute or relative positioning, the last G code, the
+ * current tool, and where the machine is along each axis, as far as the
+ * program tells.  Positions are in the units of the program.
+ *
+ * The extruder axis (E) of 5D programs is followed too, in absolute (M82)
+ * or relative (M83) mode; relative positioning (G91) makes it relative as
+ * well.
+ */
+public class MotionState {
+	private boolean absolute = true;
+	private boolean inches = false;
+	private int lastG = -1;
+	private int tool = 0;
+	private final double[] position = new double[3];
+	private final boolean[] known = new boolean[3];
+	private double e = 0;
+	private boolean eUsed = false;
+	private boolean relativeE = false;
+
+	public void reset() {
+		absolute = true;
+		inches = false;
+		lastG = -1;
+		tool = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			position[axis] = 0;
+			known[axis] = false;
+		}
+		e = 0;
+		eUsed = false;
+		relativeE = false;
+	}
+
+	/**
+	 * @return the G code the given line runs: its own, or the last one if
+	 * it has only coordinates; -1 if it runs none
+	 */
+	public int effectiveGCode(GCodeLine line) {
+		if (line.hasCode('G')) { return line.getGCode(); }
+		if (line.hasCode('X') || line.hasCode('Y') || line.hasCode('Z') || line.hasCode('E')) {
+			return lastG;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the given line moves the machine to new coordinates
+	 */
+	public boolean isMove(GCodeLine line) {
+		int g = effectiveGCode(line);
+		return g == 0 || g == 1 || g == 2 || g == 3 || g == 31;
+	}
+
+	/**
+	 * Follow the program through a line.  Call this after the line has
+	 * been looked at, with the line as it was read.
+	 */
+	public void update(GCodeLine line) {
+		int g = effectiveGCode(line);
+		if (line.hasCode('G')) {
+			lastG = g;
+		}
+		switch (g) {
+		case 0: case 1: case 2: case 3: case 31:
+			for (int axis = 0; axis < 3; axis++) {
+				char code = (char)('X' + axis);
+				if (line.hasCode(code)) {
+					if (absolute) {
+						position[axis] = line.getCodeValue(code);
+						known[axis] = true;
+					} else {
+						position[axis] += line.getCodeValue(code);
+					}
+				}
+			}
+			if (line.hasCode('E')) {
+				if (isRelativeE()) {
+					e += line.getCodeValue('E');
+				} else {
+					e = line.getCodeValue('E');
+				}
+				eUsed = true;
+			}
+			break;
+		case 20:
+			inches = true;
+			break;
+		case 21:
+			inches = false;
+			break;
+		case 90:
+			absolute = true;
+			break;
+		case 91:
+			absolute = false;
+			break;
+		case 92:
+			for (int axis = 0; axis < 3; axis++) {
+				char code = (char)('X' + axis);
+				if (line.hasCode(code)) {
+					position[axis] = line.getCodeValue(code);
+					known[axis] = true;
+				}
+			}
+			if (line.hasCode('E')) {
+				e = line.getCodeValue('E');
+			}
+			break;
+		case 28: case 161: case 162:
+			// homing leaves the axes somewhere the program doesn't say
+			for (int axis = 0; axis < 3; axis++) {
+				known[axis] = false;
+			}
+			break;
+		}
+		if (line.hasCode('T')) {
+			tool = (int)line.getCodeValue('T');
+		}
+		int m = line.getMCode();
+		if (m == 82) {
+			relativeE = false;
+		} else if (m == 83) {
+			relativeE = true;
+		}
+	}
+
+	public boolean isAbsolute() {
+		return absolute;
+	}
+
+	public boolean isInches() {
+		return inches;
+	}
+
+	public int getTool() {
+		return tool;
+	}
+
+	/**
+	 * @return where the extruder axis is, in the program's terms
+	 */
+	public double getE() {
+		return e;
+	}
+
+	/**
+	 * @return true if a move has used the extruder axis
+	 */
+	public boolean isEUsed() {
+		return eUsed;
+	}
+
+	/**
+	 * @return true if E values are distances rather than positions
+	 */
+	public boolean isRelativeE() {
+		return relativeE || !absolute;
+	}
+
+	/**
+	 * @param axis 0, 1 or 2 for X, Y or Z
+	 * @return the position along the axis, which is only meaningful if
+	 * isKnown() is true for it
+	 */
+	public double getPosition(int axis) {
+		return position[axis];
+	}
+
+	/**
+	 * @return true if the program has said where the machine is along the
+	 * given axis
+	 */
+	public boolean isKnown(int axis) {
+		return known[axis];
+	}
+}
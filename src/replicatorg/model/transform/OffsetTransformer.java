@@ -0,0 +1,66 @@
+package replicatorg.model.transform;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Moves and scales a program: every position it moves to is scaled about
+ * the origin and then offset.  Relative moves and arc centers are only
+ * scaled.  The offset is given in mm and converted for programs in inches.
+ *
+ * G92 is left alone: it says where the machine is rather than where to go,
+ * and start code that sets the origin with it would otherwise cancel the
+ * offset.
+ *
+ * Arcs are only scaled correctly if X and Y are scaled alike, and radius
+ * (R) arcs are scaled by the X factor.
+ */
+public class OffsetTransformer extends GCodeTransformer {
+	private final Point3d offset;
+	private final Point3d scale;
+	private final MotionState state = new MotionState();
+
+	/**
+	 * @param offset the offset in mm
+	 * @param scale the factor for each axis
+	 */
+	public OffsetTransformer(Point3d offset, Point3d scale) {
+		this.offset = new Point3d(offset);
+		this.scale = new Point3d(scale);
+	}
+
+	/**
+	 * @param offset the offset in mm
+	 */
+	public OffsetTransformer(Point3d offset) {
+		this(offset, new Point3d(1, 1, 1));
+	}
+
+	public void start() {
+		state.reset();
+	}
+
+	public void process(GCodeLine line, Output out) {
+		int g = state.effectiveGCode(line);
+		if (state.isMove(line)) {
+			boolean absolute = state.isAbsolute();
+			double units = state.isInches() ? 1 / 25.4 : 1;
+			transform(line, 'X', scale.x, absolute ? offset.x * units : 0);
+			transform(line, 'Y', scale.y, absolute ? offset.y * units : 0);
+			transform(line, 'Z', scale.z, absolute ? offset.z * units : 0);
+			if (g == 2 || g == 3) {
+				transform(line, 'I', scale.x, 0);
+				transform(line, 'J', scale.y, 0);
+				transform(line, 'K', scale.z, 0);
+				transform(line, 'R', scale.x, 0);
+			}
+		}
+		state.update(line);
+		out.emit(line);
+	}
+
+	private static void transform(GCodeLine line, char code, double scale, double offset) {
+		if (!line.hasCode(code)) { return; }
+		if (scale == 1 && offset == 0) { return; }
+		line.setCode(code, line.getCodeValue(code) * scale + offset);
+	}
+}
@@ -0,0 +1,48 @@
+package replicatorg.model.transform;
+
+/**
+ * Replaces the temperature a program sets for a tool (M104) or for the
+ * build platform (M109).  Temperatures of zero, which turn the heater off,
+ * are left alone.
+ */
+public class TemperatureOverride extends GCodeTransformer {
+	/** The tool number that stands for the build platform. */
+	public static final int PLATFORM = -1;
+
+	private final int tool;
+	private final double temperature;
+	private final MotionState state = new MotionState();
+
+	/**
+	 * @param tool the tool to override, or PLATFORM
+	 * @param temperature the temperature to set instead, in degrees C
+	 */
+	public TemperatureOverride(int tool, double temperature) {
+		this.tool = tool;
+		this.temperature = temperature;
+	}
+
+	public void start() {
+		state.reset();
+	}
+
+	public void process(GCodeLine line, Output out) {
+		int m = line.getMCode();
+		if ((m == 104 || m == 109) && line.hasCode('S') && line.getCodeValue('S') != 0) {
+			boolean matches;
+			if (tool == PLATFORM) {
+				matches = (m == 109);
+			} else {
+				// a T code on the line picks the tool on machines that run
+				// several at once; otherwise it's the current tool
+				int target = line.hasCode('T') ? (int)line.getCodeValue('T') : state.getTool();
+				matches = (m == 104 && target == tool);
+			}
+			if (matches) {
+				line.setCode('S', temperature);
+			}
+		}
+		state.update(line);
+		out.emit(line);
+	}
+}
@@ -0,0 +1,134 @@
+package replicatorg.model.transform;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import replicatorg.model.GCodeSource;
+
+/**
+ * A GCode source that runs the lines of another source through a chain of
+ * transformers as they are read.  Nothing is read ahead beyond what the
+ * transformers hold back, so a pass over a file of any size takes a
+ * constant amount of memory.
+ *
+ * For example, to print a program 10mm further along X at 80% speed:
+ * <pre>
+ *   GCodeSource adjusted = new TransformedGCodeSource(source,
+ *       new OffsetTransformer(new Point3d(10, 0, 0)),
+ *       new FeedrateOverride(0.8));
+ * </pre>
+ *
+ * The line count is that of the underlying source, unless a transformer
+ * drops or adds lines (see GCodeTransformer.changesLineCount()); then it
+ * takes a pass over the program, made the first time the count is asked
+ * for.  Since the transformers follow the pass they're in, ask for the
+ * count before reading the program, not while reading it.
+ */
+public class TransformedGCodeSource implements GCodeSource {
+	private final GCodeSource parent;
+	private final GCodeTransformer[] transformers;
+	// the transformed line count, once counted
+	private int lineCount = -1;
+
+	/**
+	 * @param parent the source to read
+	 * @param transformers the transformers to run, in order
+	 */
+	public TransformedGCodeSource(GCodeSource parent, GCodeTransformer... transformers) {
+		this.parent = parent;
+		this.transformers = transformers.clone();
+	}
+
+	/**
+	 * @return a source that runs this one's output through another
+	 * transformer
+	 */
+	public TransformedGCodeSource then(GCodeTransformer transformer) {
+		GCodeTransformer[] chain = new GCodeTransformer[transformers.length + 1];
+		System.arraycopy(transformers, 0, chain, 0, transformers.length);
+		chain[transformers.length] = transformer;
+		return new TransformedGCodeSource(parent, chain);
+	}
+
+	public synchronized int getLineCount() {
+		if (lineCount < 0) {
+			boolean same = true;
+			for (GCodeTransformer t : transformers) {
+				same = same && !t.changesLineCount();
+			}
+			if (same) {
+				return parent.getLineCount();
+			}
+			int count = 0;
+			for (Iterator<String> i = iterator(); i.hasNext(); i.next()) {
+				count++;
+			}
+			lineCount = count;
+		}
+		return lineCount;
+	}
+
+	public Iterator<String> iterator() {
+		return new TransformingIterator(parent.iterator());
+	}
+
+	class TransformingIterator implements Iterator<String> {
+		private final Iterator<String> lines;
+		// the output of the last stage, waiting to be read
+		private final LinkedList<String> ready = new LinkedList<String>();
+		// outputs[i] feeds stage i; the last one fills the ready list
+		private final GCodeTransformer.Output[] outputs;
+		private boolean finished = false;
+
+		TransformingIterator(Iterator<String> lines) {
+			this.lines = lines;
+			outputs = new GCodeTransformer.Output[transformers.length + 1];
+			outputs[transformers.length] = new GCodeTransformer.Output() {
+				public void emit(GCodeLine line) {
+					ready.addLast(line.toString());
+				}
+			};
+			for (int i = transformers.length - 1; i >= 0; i--) {
+				final GCodeTransformer stage = transformers[i];
+				final GCodeTransformer.Output next = outputs[i + 1];
+				outputs[i] = new GCodeTransformer.Output() {
+					public void emit(GCodeLine line) {
+						stage.process(line, next);
+					}
+				};
+			}
+			for (GCodeTransformer t : transformers) {
+				t.start();
+			}
+		}
+
+		private void fill() {
+			while (ready.isEmpty() && lines.hasNext()) {
+				outputs[0].emit(new GCodeLine(lines.next()));
+			}
+			if (ready.isEmpty() && !finished) {
+				finished = true;
+				// each stage's last lines go through the stages after it
+				for (int i = 0; i < transformers.length; i++) {
+					transformers[i].finish(outputs[i + 1]);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			fill();
+			return !ready.isEmpty();
+		}
+
+		public String next() {
+			fill();
+			if (ready.isEmpty()) { throw new NoSuchElementException(); }
+			return ready.removeFirst();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
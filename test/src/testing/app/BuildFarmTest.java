@@ -0,0 +1,159 @@
+package testing.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import replicatorg.app.BuildFarm;
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.app.MachineController;
+import replicatorg.drivers.gen3.S3GEmulator;
+import replicatorg.model.CompiledGCode;
+
+/**
+ * Runs jobs through a farm of emulated Sanguino3G machines, and checks
+ * which machine each job goes to, that a job that can't be read doesn't
+ * hold up the rest, and that the farm lets go of programs no job needs.
+ */
+public class BuildFarmTest {
+	private static int ports = 0;
+
+	private BuildFarm farm;
+	private File file;
+
+	// A Sanguino3G machine with the given name, on an emulated serial port.
+	static MachineController machine(String name) throws Exception {
+		String xml = "<machine><name>" + name + "</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"100\" maxfeedrate=\"5000\" scale=\"11.767463\"/>" +
+			"<axis id=\"y\" length=\"100\" maxfeedrate=\"5000\" scale=\"11.767463\"/>" +
+			"<axis id=\"z\" length=\"100\" maxfeedrate=\"150\" scale=\"320\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"sanguino3g\"><rate>38400</rate></driver>" +
+			"</machine>";
+		Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		return new MachineController(dom.getDocumentElement());
+	}
+
+	MachineController add(String name) throws Exception {
+		String port = "farm" + (ports++);
+		LoopbackSerialTransport.register(port, new S3GEmulator(512, 0));
+		return farm.addMachine(machine(name), LoopbackSerialTransport.PREFIX + port);
+	}
+
+	static void awaitReady(MachineController machine) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (!machine.getMachineState().isReady()) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline, machine.getName() + " never connected");
+			Thread.sleep(10);
+		}
+	}
+
+	static void write(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@BeforeMethod
+	public void createFarm() throws IOException {
+		farm = new BuildFarm(2);
+		file = File.createTempFile("farm", ".gcode");
+		StringBuilder text = new StringBuilder("G21\nG90\nG92 X0 Y0 Z0\n");
+		for (int i = 1; i <= 20; i++) {
+			text.append("G1 X").append(i % 3).append(" Y").append(i % 2).append(" F3000\n");
+		}
+		write(file, text.toString());
+	}
+
+	@AfterMethod
+	public void shutdownFarm() {
+		farm.shutdown();
+		CompiledGCode.getCacheFile(file).delete();
+		file.delete();
+	}
+
+	@Test
+	public void jobsGoToMachinesThatCanRunThem() throws Exception {
+		MachineController a = add("Farm A");
+		MachineController b = add("Farm B");
+		awaitReady(a);
+		awaitReady(b);
+
+		List<BuildFarm.Job> jobs = new ArrayList<BuildFarm.Job>();
+		for (int i = 0; i < 4; i++) {
+			jobs.add(farm.submit(file.getPath(), null));
+		}
+		BuildFarm.Job onB = farm.submit(file.getPath(), "Farm B");
+		BuildFarm.Job nowhere = farm.submit(file.getPath(), "Farm C");
+		for (BuildFarm.Job job : jobs) {
+			job.waitFor();
+			Assert.assertEquals(job.getStatus(), BuildFarm.Job.Status.DONE, String.valueOf(job.getError()));
+			Assert.assertTrue(job.getMachine() == a || job.getMachine() == b);
+		}
+		onB.waitFor();
+		Assert.assertEquals(onB.getStatus(), BuildFarm.Job.Status.DONE);
+		Assert.assertSame(onB.getMachine(), b);
+
+		// no machine can run it, so it waits, holding its program
+		Assert.assertEquals(nowhere.getStatus(), BuildFarm.Job.Status.QUEUED);
+		Assert.assertEquals(farm.getProgramCount(), 1);
+		Assert.assertTrue(farm.cancel(nowhere));
+		Assert.assertEquals(nowhere.getStatus(), BuildFarm.Job.Status.CANCELLED);
+		Assert.assertEquals(farm.getProgramCount(), 0);
+	}
+
+	@Test
+	public void unreadableFileDoesNotHoldUpTheQueue() throws Exception {
+		MachineController a = add("Farm A");
+		awaitReady(a);
+		BuildFarm.Job missing = farm.submit(file.getPath() + ".missing", null);
+		BuildFarm.Job job = farm.submit(file.getPath(), null);
+		farm.waitUntilIdle();
+		Assert.assertEquals(missing.getStatus(), BuildFarm.Job.Status.FAILED);
+		Assert.assertNotNull(missing.getError());
+		Assert.assertEquals(job.getStatus(), BuildFarm.Job.Status.DONE);
+		Assert.assertEquals(farm.getProgramCount(), 0);
+	}
+
+	@Test
+	public void programsAreSharedUntilNoJobNeedsThem() throws Exception {
+		File other = File.createTempFile("farm", ".gcode");
+		try {
+			write(other, "G21\nG90\nG1 X1 Y1 F3000\n");
+			// without machines, jobs stay queued
+			BuildFarm.Job first = farm.submit(file.getPath(), null);
+			BuildFarm.Job second = farm.submit(file.getPath(), null);
+			BuildFarm.Job third = farm.submit(other.getPath(), null);
+			Assert.assertEquals(farm.getProgramCount(), 2);
+
+			Assert.assertTrue(farm.cancel(first));
+			Assert.assertEquals(farm.getProgramCount(), 2, "the second job still needs it");
+			Assert.assertTrue(farm.cancel(third));
+			Assert.assertEquals(farm.getProgramCount(), 1);
+			Assert.assertTrue(farm.cancel(second));
+			Assert.assertEquals(farm.getProgramCount(), 0);
+			Assert.assertFalse(farm.cancel(second));
+			Assert.assertEquals(farm.getQueue().size(), 0);
+		} finally {
+			CompiledGCode.getCacheFile(other).delete();
+			other.delete();
+		}
+	}
+}
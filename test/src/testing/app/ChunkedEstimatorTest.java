@@ -0,0 +1,101 @@
+package testing.app;
+
+import java.io.ByteArrayInputStream;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import replicatorg.app.MachineController;
+import replicatorg.model.CompiledGCodeSource;
+import replicatorg.model.StringListSource;
+
+/**
+ * Estimates a program big enough to be cut into chunks both in one piece
+ * and in chunks, and checks that the two agree on a machine that can change
+ * speed at once, and stay close on one that has to accelerate.
+ */
+public class ChunkedEstimatorTest {
+	private ExecutorService pool;
+	private CompiledGCodeSource program;
+
+	@BeforeClass
+	public void createProgram() {
+		pool = Executors.newFixedThreadPool(4);
+		// 100 layers of a zigzag
+		Vector<String> lines = new Vector<String>();
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G92 X0 Y0 Z0");
+		for (int layer = 1; layer <= 100; layer++) {
+			lines.add("G1 Z" + (layer * 0.3) + " F3000");
+			for (int i = 0; i < 1000; i++) {
+				lines.add("G1 X" + (i % 50) + " Y" + (i % 2) * 10 + " F3000");
+			}
+		}
+		program = new CompiledGCodeSource(new StringListSource(lines));
+	}
+
+	@AfterClass
+	public void shutdownPool() {
+		pool.shutdown();
+	}
+
+	static MachineController machine(String limits) throws Exception {
+		String xml = "<machine><name>Estimator</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"100\" maxfeedrate=\"5000\" scale=\"11.767463\"" + limits + "/>" +
+			"<axis id=\"y\" length=\"100\" maxfeedrate=\"5000\" scale=\"11.767463\"" + limits + "/>" +
+			"<axis id=\"z\" length=\"100\" maxfeedrate=\"150\" scale=\"320\"" + limits + "/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"null\"/>" +
+			"</machine>";
+		Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		return new MachineController(dom.getDocumentElement());
+	}
+
+	// the estimate, in millis, on the given number of threads
+	double estimate(MachineController machine, int threads) {
+		machine.setEstimationPool(pool, threads);
+		machine.setCodeSource(program);
+		machine.estimate();
+		return machine.getBuildEstimate().getTotal();
+	}
+
+	@Test
+	public void chunksAgreeWithoutAcceleration() throws Exception {
+		MachineController machine = machine("");
+		try {
+			double whole = estimate(machine, 1);
+			double chunked = estimate(machine, 4);
+			Assert.assertTrue(whole > 0);
+			Assert.assertEquals(chunked, whole, whole * 1e-9);
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	@Test
+	public void chunksStayCloseWithAcceleration() throws Exception {
+		MachineController machine = machine(" maxacceleration=\"1000\" maxjerk=\"10\"");
+		try {
+			double whole = estimate(machine, 1);
+			double chunked = estimate(machine, 4);
+			// each of the at most 8 cuts ends a chunk as if the machine
+			// stopped there and starts the next from a stop; slowing from
+			// 50mm/s at 1000mm/s/s and back costs well under 100ms
+			Assert.assertTrue(Math.abs(chunked - whole) <= 8 * 100, chunked + " is far from " + whole);
+		} finally {
+			machine.dispose();
+		}
+	}
+}
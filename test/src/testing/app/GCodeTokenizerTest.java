@@ -0,0 +1,142 @@
+package testing.app;
+
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.GCodeTokenizer;
+
+/**
+ * Checks the tokenizer against the regex parsing GCodeParser used before it,
+ * on random lines.
+ */
+public class GCodeTokenizerTest {
+	static final String[] codes = { "D", "F", "G", "H", "I", "J", "K", "L",
+			"M", "P", "Q", "R", "S", "T", "X", "Y", "Z" };
+
+	/**
+	 * The old GCodeParser.parse, kept here to compare against.
+	 */
+	static class RegexParser {
+		Pattern parenPattern = Pattern.compile("\\((.*)\\)");
+		Pattern semiPattern = Pattern.compile(";(.*)");
+		Hashtable<String, Double> codeValues = new Hashtable<String, Double>();
+		Hashtable<String, Boolean> seenCodes = new Hashtable<String, Boolean>();
+		String command;
+		String comment;
+
+		void parse(String cmd) {
+			codeValues.clear();
+			seenCodes.clear();
+			comment = "";
+			command = cmd;
+
+			Matcher parenMatcher = parenPattern.matcher(command);
+			Matcher semiMatcher = semiPattern.matcher(command);
+			if (parenMatcher.find())
+				comment = parenMatcher.group(1);
+			if (semiMatcher.find())
+				comment = semiMatcher.group(1);
+			comment = comment.trim();
+			comment = comment.replace('|', '\n');
+
+			command = parenPattern.matcher(command).replaceAll("");
+			command = semiPattern.matcher(command).replaceAll("");
+
+			for (int i = 0; i < codes.length; i++) {
+				codeValues.put(codes[i], new Double(parseCode(codes[i])));
+			}
+		}
+
+		double parseCode(String code) {
+			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
+			Matcher myMatcher = myPattern.matcher(command);
+			if (command.indexOf(code) >= 0) {
+				seenCodes.put(code, Boolean.TRUE);
+				if (myMatcher.find())
+					return Double.parseDouble(myMatcher.group(1));
+			}
+			return 0.0;
+		}
+
+		boolean hasCode(String code) {
+			Boolean b = seenCodes.get(code);
+			return b != null && b.booleanValue();
+		}
+	}
+
+	static final String PIECES = "GMXYZFESTPQRIJKDHL 0123456789.-+;()|ae \t";
+
+	static String randomLine(Random random) {
+		if (random.nextInt(3) == 0) {
+			// mostly well formed commands, as slicers write them
+			StringBuilder line = new StringBuilder("G1");
+			int n = random.nextInt(5);
+			for (int i = 0; i < n; i++) {
+				line.append(' ').append("XYZEF".charAt(random.nextInt(5)));
+				if (random.nextBoolean()) { line.append('-'); }
+				line.append(random.nextInt(100000) / Math.pow(10, random.nextInt(6)));
+			}
+			if (random.nextBoolean()) { line.append(" (move|on)"); }
+			return line.toString();
+		}
+		int length = random.nextInt(30);
+		StringBuilder line = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			line.append(PIECES.charAt(random.nextInt(PIECES.length())));
+		}
+		return line.toString();
+	}
+
+	@Test
+	public void matchesRegexParsing() {
+		Random random = new Random(1);
+		RegexParser regex = new RegexParser();
+		GCodeTokenizer tokenizer = new GCodeTokenizer();
+		for (int n = 0; n < 100000; n++) {
+			String line = randomLine(random);
+			boolean regexFailed = false, tokenizerFailed = false;
+			try {
+				regex.parse(line);
+			} catch (NumberFormatException e) {
+				regexFailed = true;
+			}
+			try {
+				tokenizer.tokenize(line);
+			} catch (NumberFormatException e) {
+				tokenizerFailed = true;
+			}
+			Assert.assertEquals(tokenizerFailed, regexFailed, line);
+			if (regexFailed) { continue; }
+			Assert.assertEquals(tokenizer.getCommand(), regex.command, line);
+			Assert.assertEquals(tokenizer.getComment(), regex.comment, line);
+			for (String code : codes) {
+				char c = code.charAt(0);
+				Assert.assertEquals(tokenizer.hasCode(c), regex.hasCode(code), code + " in " + line);
+				Assert.assertEquals(tokenizer.getCodeValue(c), regex.codeValues.get(code).doubleValue(),
+						code + " in " + line);
+			}
+		}
+	}
+
+	@Test
+	public void loadRestoresTokenizedLine() {
+		GCodeTokenizer a = new GCodeTokenizer(), b = new GCodeTokenizer();
+		a.tokenize("G1 X10.5 Y-3 Z E2 ; move");
+		double[] values = new double[26];
+		for (int i = 0; i < 26; i++) {
+			values[i] = a.getCodeValue((char) ('A' + i));
+		}
+		b.load(a.getSeenMask(), a.getValueMask(), values);
+		for (char c = 'A'; c <= 'Z'; c++) {
+			Assert.assertEquals(b.hasCode(c), a.hasCode(c), "" + c);
+			Assert.assertEquals(b.getCodeValue(c), a.getCodeValue(c), "" + c);
+		}
+		Assert.assertTrue(b.hasCode('Z'));
+		Assert.assertEquals(b.getCodeValue('Z'), 0.0);
+	}
+}
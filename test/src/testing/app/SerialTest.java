@@ -0,0 +1,115 @@
+package testing.app;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.app.Serial;
+
+/**
+ * Streams bytes into a port from a device thread while the test thread
+ * reads them out, and checks that every byte arrives once and in order.
+ */
+public class SerialTest {
+	// more than the ring holds many times over, so that it wraps
+	static final int TOTAL = 8 * 1024 * 1024;
+	// the most the device sends ahead of the reader; under the ring's size
+	static final int AHEAD = 48 * 1024;
+
+	static byte at(long position) {
+		return (byte)(position * 31 + (position >> 8));
+	}
+
+	/**
+	 * Sends TOTAL bytes in blocks of random sizes, from its own thread,
+	 * never getting more than AHEAD bytes in front of the reader, until the
+	 * port is closed.
+	 */
+	static class Producer implements LoopbackSerialTransport.Device, Runnable {
+		final AtomicLong read = new AtomicLong();
+		volatile Throwable error = null;
+		private volatile boolean closed = false;
+		private LoopbackSerialTransport port;
+		private Thread thread;
+
+		public void connected(LoopbackSerialTransport port) {
+			this.port = port;
+			thread = new Thread(this, "Serial test producer");
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				Random random = new Random(6);
+				byte[] block = new byte[4096];
+				long sent = 0;
+				while (sent < TOTAL && !closed) {
+					int n = (int)Math.min(TOTAL - sent, 1 + random.nextInt(block.length));
+					while (sent + n - read.get() > AHEAD && !closed) {
+						Thread.yield();
+					}
+					for (int i = 0; i < n; i++) {
+						block[i] = at(sent + i);
+					}
+					port.send(block, 0, n);
+					sent += n;
+				}
+			} catch (Throwable t) {
+				error = t;
+			}
+		}
+
+		void join() throws InterruptedException {
+			thread.join();
+		}
+
+		public void received(byte[] data, int offset, int length) {}
+		public void reset() {}
+		public void disconnected() { closed = true; }
+	}
+
+	@Test
+	public void bytesArriveInOrderAcrossThreads() throws Exception {
+		Producer producer = new Producer();
+		Serial serial = new Serial(new LoopbackSerialTransport("loopback:serial", producer));
+		// a missed wakeup shows up as a timeout
+		serial.setTimeout(5000);
+		try {
+			Random random = new Random(7);
+			byte[] buffer = new byte[8192];
+			long position = 0;
+			while (position < TOTAL) {
+				int choice = random.nextInt(3);
+				int n;
+				if (choice == 0) {
+					int b = serial.read();
+					Assert.assertTrue(b >= 0, "timed out at " + position);
+					buffer[0] = (byte)b;
+					n = 1;
+				} else if (choice == 1) {
+					n = serial.read(buffer, 0, 1 + random.nextInt(buffer.length));
+					Assert.assertTrue(n > 0, "timed out at " + position);
+				} else {
+					int len = (int)Math.min(TOTAL - position, 1 + random.nextInt(buffer.length));
+					n = serial.readFully(buffer, 0, len);
+					Assert.assertEquals(n, len, "timed out at " + position);
+				}
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] != at(position + i)) {
+						Assert.fail("byte " + (position + i) + " is wrong");
+					}
+				}
+				position += n;
+				producer.read.set(position);
+			}
+			producer.join();
+			Assert.assertNull(producer.error);
+			Assert.assertFalse(serial.isDisconnected());
+		} finally {
+			serial.dispose();
+		}
+	}
+}
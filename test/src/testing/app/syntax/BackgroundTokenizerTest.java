@@ -0,0 +1,140 @@
+package testing.app.syntax;
+
+import java.util.Random;
+
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.syntax.CTokenMarker;
+import replicatorg.app.syntax.SyntaxDocument;
+import replicatorg.app.syntax.Token;
+import replicatorg.app.syntax.TokenMarker;
+
+/**
+ * Checks that the background tokenizer brings every line up to date after
+ * edits, matching a sequential pass, and that it stops on a marker once the
+ * document has been given another.
+ */
+public class BackgroundTokenizerTest {
+	/**
+	 * A C token marker that counts the lines it tokenizes.
+	 */
+	static class CountingMarker extends CTokenMarker {
+		private int marked = 0;
+
+		public byte markTokensImpl(byte token, Segment line, int lineIndex) {
+			synchronized(this) { marked++; }
+			return super.markTokensImpl(token, line, lineIndex);
+		}
+
+		synchronized int getMarked() { return marked; }
+	}
+
+	static String text(int lines) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			if (i % 97 == 0) {
+				// comments that run over several lines
+				text.append("/* block ").append(i).append('\n');
+			} else if (i % 97 == 5) {
+				text.append("end */ int x").append(i).append(";\n");
+			} else {
+				text.append("x = \"").append(i).append("\"; // line\n");
+			}
+		}
+		return text.toString();
+	}
+
+	static void awaitTokenized(SyntaxDocument doc) throws InterruptedException {
+		TokenMarker tm = doc.getTokenMarker();
+		long deadline = System.currentTimeMillis() + 20000;
+		while (tm.getFirstDirtyLine() < tm.getLineCount()) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline, "tokenizer never finished");
+			Thread.sleep(5);
+		}
+	}
+
+	static String describe(Token t) {
+		StringBuilder s = new StringBuilder();
+		for (; t != null && t.id != Token.END; t = t.next) {
+			s.append(t.id).append(':').append(t.length).append(' ');
+		}
+		return s.toString();
+	}
+
+	static String lineText(SyntaxDocument doc, int line, Segment segment) throws Exception {
+		Element e = doc.getDefaultRootElement().getElement(line);
+		doc.getText(e.getStartOffset(), e.getEndOffset() - e.getStartOffset() - 1, segment);
+		return segment.toString();
+	}
+
+	// Tokenize every line in order with a fresh marker, and compare.
+	static void assertMatchesSequential(SyntaxDocument doc, String when) throws Exception {
+		Element map = doc.getDefaultRootElement();
+		int lines = map.getElementCount();
+		TokenMarker fresh = new CTokenMarker();
+		fresh.insertLines(0, lines);
+		Segment segment = new Segment();
+		for (int line = 0; line < lines; line++) {
+			lineText(doc, line, segment);
+			String expected = describe(fresh.markTokens(segment, line));
+			lineText(doc, line, segment);
+			Token actual = doc.getLineTokens(line, segment);
+			Assert.assertNotNull(actual, when + ", line " + line + " not tokenized");
+			Assert.assertEquals(describe(actual), expected, when + ", line " + line);
+		}
+	}
+
+	@Test
+	public void editsAreTokenizedInOrder() throws Exception {
+		SyntaxDocument doc = new SyntaxDocument();
+		doc.insertString(0, text(5000), null);
+		doc.setTokenMarker(new CTokenMarker());
+		awaitTokenized(doc);
+		assertMatchesSequential(doc, "loaded");
+
+		Random random = new Random(24);
+		String[] inserts = { "/*", "*/", "\n", "\"", "int y;\n/* a\nb */\n" };
+		for (int n = 0; n < 200; n++) {
+			if (random.nextBoolean()) {
+				doc.insertString(random.nextInt(doc.getLength() + 1),
+						inserts[random.nextInt(inserts.length)], null);
+			} else {
+				int at = random.nextInt(doc.getLength());
+				doc.remove(at, Math.min(1 + random.nextInt(30), doc.getLength() - at));
+			}
+		}
+		awaitTokenized(doc);
+		assertMatchesSequential(doc, "after edits");
+	}
+
+	@Test
+	public void replacedMarkerIsAbandoned() throws Exception {
+		SyntaxDocument doc = new SyntaxDocument();
+		doc.insertString(0, text(200000), null);
+		CountingMarker first = new CountingMarker();
+		doc.setTokenMarker(first);
+		// let the background tokenizer get going on it
+		long deadline = System.currentTimeMillis() + 5000;
+		while (first.getMarked() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		CountingMarker second = new CountingMarker();
+		doc.setTokenMarker(second);
+		// a batch under way may finish, but none starts on the old marker
+		Thread.sleep(20);
+		int marked = first.getMarked();
+		Assert.assertTrue(first.getFirstDirtyLine() < first.getLineCount(),
+				"the first marker finished before it was replaced");
+
+		awaitTokenized(doc);
+		Assert.assertEquals(first.getMarked(), marked, "old marker still being tokenized");
+		Assert.assertTrue(second.getMarked() >= second.getLineCount());
+
+		doc.setTokenMarker(null);
+		Assert.assertNull(doc.getLineTokens(0, new Segment()));
+	}
+}
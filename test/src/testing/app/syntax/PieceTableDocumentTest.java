@@ -0,0 +1,201 @@
+package testing.app.syntax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.undo.UndoManager;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.syntax.PieceTableDocument;
+
+/**
+ * Checks that a piece table document holds the same text and lines as a
+ * PlainDocument through random edits, undos and redos, and that it saves
+ * what it holds.
+ */
+public class PieceTableDocumentTest {
+	private File file;
+
+	static String text(int lines) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			text.append("G1 X").append(i % 200).append(" Y").append(i % 13).append(" E").append(i).append('\n');
+		}
+		return text.toString();
+	}
+
+	static void write(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+	}
+
+	static String read(File file) throws IOException {
+		byte[] bytes = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < bytes.length) {
+				n += in.read(bytes, n, bytes.length - n);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(bytes, "ISO-8859-1");
+	}
+
+	@BeforeMethod
+	public void createFile() throws IOException {
+		file = File.createTempFile("piece", ".gcode");
+	}
+
+	@AfterMethod
+	public void deleteFile() {
+		file.delete();
+	}
+
+	static void assertSame(Document actual, Document expected, String when) throws Exception {
+		Assert.assertEquals(actual.getLength(), expected.getLength(), when);
+		Assert.assertEquals(actual.getText(0, actual.getLength()),
+				expected.getText(0, expected.getLength()), when);
+		Element a = actual.getDefaultRootElement(), e = expected.getDefaultRootElement();
+		Assert.assertEquals(a.getElementCount(), e.getElementCount(), when);
+		for (int i = 0; i < e.getElementCount(); i++) {
+			Assert.assertEquals(a.getElement(i).getStartOffset(), e.getElement(i).getStartOffset(),
+					when + ", start of line " + i);
+			Assert.assertEquals(a.getElement(i).getEndOffset(), e.getElement(i).getEndOffset(),
+					when + ", end of line " + i);
+		}
+		for (int offset = 0; offset <= expected.getLength(); offset += 1 + expected.getLength() / 50) {
+			Assert.assertEquals(a.getElementIndex(offset), e.getElementIndex(offset),
+					when + ", line of " + offset);
+		}
+	}
+
+	static final String[] INSERTS = { "\n", "G92 E0\n", "X", "\n\n", "M101\nG1 Z2\nM103", "" };
+
+	@Test
+	public void editsAndUndosMatchPlainDocument() throws Exception {
+		String text = text(300);
+		write(file, text);
+		PieceTableDocument doc = new PieceTableDocument(file);
+		PlainDocument plain = new PlainDocument();
+		plain.insertString(0, text, null);
+		UndoManager docUndo = new UndoManager(), plainUndo = new UndoManager();
+		docUndo.setLimit(-1);
+		plainUndo.setLimit(-1);
+		doc.addUndoableEditListener(docUndo);
+		plain.addUndoableEditListener(plainUndo);
+		assertSame(doc, plain, "opened");
+
+		Random random = new Random(21);
+		for (int n = 0; n < 500; n++) {
+			int choice = random.nextInt(10);
+			String when;
+			if (choice < 4) {
+				int at = random.nextInt(plain.getLength() + 1);
+				String s = INSERTS[random.nextInt(INSERTS.length)];
+				doc.insertString(at, s, null);
+				plain.insertString(at, s, null);
+				when = "insert at " + at;
+			} else if (choice < 7) {
+				int at = random.nextInt(plain.getLength() + 1);
+				int length = Math.min(random.nextInt(40), plain.getLength() - at);
+				doc.remove(at, length);
+				plain.remove(at, length);
+				when = "remove " + length + " at " + at;
+			} else if (choice < 9) {
+				Assert.assertEquals(docUndo.canUndo(), plainUndo.canUndo());
+				if (!plainUndo.canUndo()) { continue; }
+				docUndo.undo();
+				plainUndo.undo();
+				when = "undo";
+			} else {
+				Assert.assertEquals(docUndo.canRedo(), plainUndo.canRedo());
+				if (!plainUndo.canRedo()) { continue; }
+				docUndo.redo();
+				plainUndo.redo();
+				when = "redo";
+			}
+			assertSame(doc, plain, "edit " + n + ": " + when);
+		}
+
+		// undoing everything gives back the file
+		while (plainUndo.canUndo()) {
+			Assert.assertTrue(docUndo.canUndo());
+			docUndo.undo();
+			plainUndo.undo();
+		}
+		assertSame(doc, plain, "undone");
+		Assert.assertEquals(doc.getText(0, doc.getLength()), text);
+	}
+
+	@Test
+	public void savesOverItsOwnFile() throws Exception {
+		write(file, text(1000));
+		PieceTableDocument doc = new PieceTableDocument(file);
+		doc.insertString(0, "(header)\n", null);
+		doc.remove(doc.getLength() - 10, 5);
+		int middle = doc.getDefaultRootElement().getElement(500).getStartOffset();
+		doc.insertString(middle, "G92 E0\n", null);
+		String expected = doc.getText(0, doc.getLength());
+		Assert.assertTrue(doc.getPieceCount() > 1);
+
+		doc.save(file);
+		Assert.assertEquals(read(file), expected);
+		// the text is still there once the file it was mapped from is gone
+		Assert.assertEquals(doc.getText(0, doc.getLength()), expected);
+		Assert.assertFalse(new File(file.getPath() + ".bak").exists());
+		File[] left = file.getParentFile().listFiles();
+		for (File f : left) {
+			Assert.assertFalse(f.getName().startsWith("." + file.getName()), f.getName() + " left behind");
+		}
+	}
+
+	@Test
+	public void failedSaveKeepsTheText() throws Exception {
+		write(file, text(100));
+		PieceTableDocument doc = new PieceTableDocument(file);
+		doc.insertString(0, "(header)\n", null);
+		String expected = doc.getText(0, doc.getLength());
+		// a directory that can't be renamed over, nor moved aside
+		File target = new File(file.getPath() + ".dir");
+		File backup = new File(target.getPath() + ".bak");
+		File[] blockers = { new File(target, "x"), new File(backup, "x") };
+		target.mkdir();
+		backup.mkdir();
+		File temp = null;
+		try {
+			for (File b : blockers) { b.createNewFile(); }
+			try {
+				doc.save(target);
+				Assert.fail("save should fail");
+			} catch (IOException ioe) {
+				String message = ioe.getMessage();
+				int at = message.indexOf("the new text is in ");
+				Assert.assertTrue(at >= 0, message);
+				temp = new File(message.substring(at + "the new text is in ".length()));
+			}
+			Assert.assertEquals(read(temp), expected);
+			Assert.assertTrue(new File(target, "x").exists());
+		} finally {
+			for (File b : blockers) { b.delete(); }
+			target.delete();
+			backup.delete();
+			if (temp != null) { temp.delete(); }
+		}
+	}
+}
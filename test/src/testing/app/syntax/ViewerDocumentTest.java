@@ -0,0 +1,94 @@
+package testing.app.syntax;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.swing.text.Element;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import replicatorg.app.syntax.ViewerDocument;
+
+/**
+ * Checks that the read-only viewer shows the lines of its file, and that
+ * the heap it takes doesn't grow with the number of lines.
+ */
+public class ViewerDocumentTest {
+	static final int LINES = 2000000;
+
+	private File file;
+
+	static String line(int i) {
+		return "G1 X" + (i % 100) + "." + (i % 7) + " Y" + (i % 37) + " E" + i;
+	}
+
+	@BeforeClass
+	public void writeFile() throws IOException {
+		file = File.createTempFile("viewer", ".gcode");
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < LINES; i++) {
+				out.write(line(i));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@AfterClass
+	public void deleteFile() {
+		if (file != null) { file.delete(); }
+	}
+
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	static String text(ViewerDocument doc, int line) throws Exception {
+		Element e = doc.getDefaultRootElement().getElement(line);
+		String s = doc.getText(e.getStartOffset(), e.getEndOffset() - e.getStartOffset());
+		return s.endsWith("\n") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	@Test
+	public void showsLines() throws Exception {
+		ViewerDocument doc = new ViewerDocument(file);
+		// like any Swing document, an empty line follows the last newline
+		Assert.assertEquals(doc.getDefaultRootElement().getElementCount(), LINES + 1);
+		Random random = new Random(22);
+		for (int i = 0; i < 1000; i++) {
+			int line = random.nextInt(LINES);
+			Assert.assertEquals(text(doc, line), line(line), "line " + line);
+		}
+		Assert.assertEquals(text(doc, LINES - 1), line(LINES - 1));
+	}
+
+	@Test
+	public void heapDoesNotGrowWithLines() throws Exception {
+		long before = usedHeap();
+		ViewerDocument doc = new ViewerDocument(file);
+		// page through the file as the text area would
+		Random random = new Random(25);
+		for (int i = 0; i < 2000; i++) {
+			int first = random.nextInt(LINES - 60);
+			for (int line = first; line < first + 60; line += 10) {
+				text(doc, line);
+			}
+		}
+		long used = usedHeap() - before;
+		// an int per line would be 8MB
+		Assert.assertTrue(used < 4L * 1024 * 1024, "viewer holds " + used + " bytes");
+		Assert.assertNotNull(doc);
+	}
+}
@@ -0,0 +1,112 @@
+package testing.app.tools;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.gen3.PacketProcessor;
+
+/**
+ * Checks the table-driven CRC against the bit loop it replaced.
+ */
+public class IButtonCrcTest {
+	/**
+	 * The old IButtonCrc.update, a bit at a time.
+	 */
+	static int bitLoop(int crc, byte data) {
+		crc = (crc ^ data) & 0xff;
+		for (int i = 0; i < 8; i++) {
+			if ((crc & 0x01) != 0) {
+				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+			} else {
+				crc = (crc >>> 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+
+	static byte bitLoop(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = bitLoop(crc, data[i]);
+		}
+		return (byte) crc;
+	}
+
+	@Test
+	public void everyPairMatchesBitLoop() {
+		// the first byte takes the CRC through all 256 states
+		IButtonCrc crc = new IButtonCrc();
+		for (int a = 0; a < 256; a++) {
+			for (int b = 0; b < 256; b++) {
+				crc.reset();
+				crc.update((byte) a);
+				crc.update((byte) b);
+				Assert.assertEquals(crc.getCrc(), (byte) bitLoop(bitLoop(0, (byte) a), (byte) b),
+						a + ", " + b);
+			}
+		}
+	}
+
+	@Test
+	public void randomBuffersMatchBitLoop() {
+		Random random = new Random(9);
+		IButtonCrc crc = new IButtonCrc();
+		for (int n = 0; n < 20000; n++) {
+			byte[] data = new byte[random.nextInt(300)];
+			random.nextBytes(data);
+			int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+			int length = data.length - offset == 0 ? 0 : random.nextInt(data.length - offset);
+			byte expected = bitLoop(data, offset, length);
+
+			Assert.assertEquals(IButtonCrc.compute(data, offset, length), expected);
+
+			// a byte at a time, and in two bulk runs split at random
+			crc.reset();
+			for (int i = offset; i < offset + length; i++) {
+				crc.update(data[i]);
+			}
+			Assert.assertEquals(crc.getCrc(), expected);
+			crc.reset();
+			int split = length == 0 ? 0 : random.nextInt(length);
+			crc.update(data, offset, split);
+			crc.update(data, offset + split, length - split);
+			Assert.assertEquals(crc.getCrc(), expected);
+		}
+	}
+
+	@Test
+	public void processorChecksPackets() throws Exception {
+		Random random = new Random(25);
+		for (int n = 0; n < 1000; n++) {
+			byte[] payload = new byte[1 + random.nextInt(32)];
+			random.nextBytes(payload);
+			byte[] packet = new byte[payload.length + 3];
+			packet[0] = (byte) 0xD5;
+			packet[1] = (byte) payload.length;
+			System.arraycopy(payload, 0, packet, 2, payload.length);
+			packet[packet.length - 1] = bitLoop(payload, 0, payload.length);
+			boolean corrupt = random.nextBoolean();
+			if (corrupt) {
+				packet[packet.length - 1] ^= 1 << random.nextInt(8);
+			}
+
+			// the drivers use a fresh processor for every packet
+			PacketProcessor pp = new PacketProcessor();
+			boolean done = false;
+			try {
+				for (byte b : packet) {
+					done = pp.processByte(b);
+				}
+				Assert.assertFalse(corrupt, "corrupt packet accepted");
+			} catch (PacketProcessor.CRCException e) {
+				Assert.assertTrue(corrupt, "good packet refused");
+				continue;
+			}
+			Assert.assertTrue(done);
+			Assert.assertEquals(pp.getResponse().getPayload(), payload);
+		}
+	}
+}
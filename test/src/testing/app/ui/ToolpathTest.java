@@ -0,0 +1,94 @@
+package testing.app.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.vecmath.Point3d;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.ui.Toolpath;
+
+/**
+ * Checks the toolpath's layer index against the scan over every point that
+ * the simulation window used to make for each layer.
+ */
+public class ToolpathTest {
+	/**
+	 * The old SimulationWindow2D.getLayerPaths, as start and end indices.
+	 */
+	static int[] scan(Vector<Point3d> points, float layerZ) {
+		List<Integer> runs = new ArrayList<Integer>();
+		int start = -1;
+		for (int i = 0; i < points.size(); i++) {
+			if ((float)points.get(i).z == layerZ) {
+				if (start < 0) { start = i; }
+			} else if (start >= 0) {
+				runs.add(start);
+				runs.add(i);
+				start = -1;
+			}
+		}
+		if (start >= 0) {
+			runs.add(start);
+			runs.add(points.size());
+		}
+		int[] result = new int[runs.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = runs.get(i);
+		}
+		return result;
+	}
+
+	@Test
+	public void layerRunsMatchScan() {
+		Random random = new Random(25);
+		Toolpath toolpath = new Toolpath();
+		Vector<Point3d> points = new Vector<Point3d>();
+		double z = 0;
+		for (int i = 0; i < 100000; i++) {
+			int move = random.nextInt(100);
+			if (move == 0) {
+				// up a layer
+				z += 0.3;
+			} else if (move == 1) {
+				// hop up and back, or go back to an earlier layer
+				z = Math.max(0, z - 0.3 * random.nextInt(3));
+			} else if (move == 2 && z == 0) {
+				// a negative zero is still the first layer
+				z = -0.0;
+			}
+			Point3d p = new Point3d(random.nextDouble() * 200 - 100,
+					random.nextDouble() * 200 - 100, z);
+			points.add(p);
+			toolpath.add(p);
+		}
+
+		Assert.assertEquals(toolpath.size(), points.size());
+		for (int i = 0; i < points.size(); i++) {
+			Point3d p = points.get(i);
+			Assert.assertEquals(toolpath.getX(i), (float)p.x);
+			Assert.assertEquals(toolpath.getY(i), (float)p.y);
+			Assert.assertTrue(toolpath.getZ(i) == (float)p.z, "z of point " + i);
+		}
+		for (double layer = 0; layer <= z + 0.6; layer += 0.3) {
+			float height = (float)layer;
+			Assert.assertEquals(toolpath.getLayerRuns(height), scan(points, height), "layer " + height);
+		}
+		Assert.assertEquals(toolpath.getLayerRuns(-0f), scan(points, 0f));
+		Assert.assertEquals(toolpath.getLayerRuns(1234f).length, 0);
+	}
+
+	@Test
+	public void samePlace() {
+		Toolpath toolpath = new Toolpath();
+		toolpath.add(new Point3d(1, 2, 0.3));
+		toolpath.add(new Point3d(1, 2, 0.3));
+		toolpath.add(new Point3d(1, 2, 0.6));
+		Assert.assertTrue(toolpath.same(0, 1));
+		Assert.assertFalse(toolpath.same(1, 2));
+	}
+}
@@ -0,0 +1,121 @@
+package testing.drivers;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.Completion;
+import replicatorg.drivers.DriverBaseImplementation;
+
+/**
+ * Checks how often a Completion asks the machine whether it has finished,
+ * and how it ends.
+ */
+public class CompletionTest {
+	/**
+	 * A driver whose machine finishes at a set time.
+	 */
+	static class TimedDriver extends DriverBaseImplementation {
+		private long finishesAt;
+		private int asked = 0;
+		private RuntimeException failure = null;
+
+		TimedDriver(long queuedMillis, long finishesAfter) {
+			addQueuedMotion(queuedMillis);
+			finishesAt = System.currentTimeMillis() + finishesAfter;
+		}
+
+		public synchronized boolean isFinished() {
+			asked++;
+			if (failure != null) { throw failure; }
+			return System.currentTimeMillis() >= finishesAt;
+		}
+
+		synchronized int getAsked() { return asked; }
+
+		synchronized void fail(RuntimeException e) { failure = e; }
+	}
+
+	static class Counter implements Runnable {
+		int runs = 0;
+		public synchronized void run() { runs++; }
+		synchronized int getRuns() { return runs; }
+	}
+
+	@Test
+	public void waitsOutQueuedMotion() throws Exception {
+		TimedDriver driver = new TimedDriver(500, 500);
+		long start = System.currentTimeMillis();
+		Completion completion = driver.whenFinished();
+		completion.get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+		// polling every 100ms would have asked five times
+		Assert.assertTrue(driver.getAsked() <= 2, "asked " + driver.getAsked() + " times");
+		Assert.assertEquals(completion.getQueryCount(), driver.getAsked());
+	}
+
+	@Test
+	public void backsOffWhenMotionRunsLong() throws Exception {
+		// the machine takes 1.5s longer than its queued motion, as if heating
+		TimedDriver driver = new TimedDriver(200, 1700);
+		driver.whenFinished().get(10, TimeUnit.SECONDS);
+		// 25, 50, ... 800ms; polling every 100ms would have asked 15 times
+		Assert.assertTrue(driver.getAsked() <= 8, "asked " + driver.getAsked() + " times");
+	}
+
+	@Test
+	public void callbacksRunOnce() throws Exception {
+		TimedDriver driver = new TimedDriver(0, 100);
+		Completion completion = driver.whenFinished();
+		Counter before = new Counter(), after = new Counter();
+		completion.addCallback(before);
+		completion.get(5, TimeUnit.SECONDS);
+		// callbacks run after get() wakes up, so give them a moment
+		for (int i = 0; i < 100 && before.getRuns() == 0; i++) {
+			Thread.sleep(10);
+		}
+		completion.addCallback(after);
+		Assert.assertEquals(before.getRuns(), 1);
+		Assert.assertEquals(after.getRuns(), 1);
+		Assert.assertTrue(completion.isDone());
+		Assert.assertFalse(completion.isCancelled());
+	}
+
+	@Test
+	public void cancelStopsAsking() throws Exception {
+		TimedDriver driver = new TimedDriver(0, 60000);
+		Completion completion = driver.whenFinished();
+		Counter callback = new Counter();
+		completion.addCallback(callback);
+		Thread.sleep(100);
+		Assert.assertTrue(completion.cancel(true));
+		try {
+			completion.get(5, TimeUnit.SECONDS);
+			Assert.fail("get() should throw once cancelled");
+		} catch (CancellationException e) {
+			// expected
+		}
+		Assert.assertTrue(completion.isCancelled());
+		int asked = driver.getAsked();
+		Thread.sleep(300);
+		Assert.assertEquals(driver.getAsked(), asked);
+		Assert.assertEquals(callback.getRuns(), 1);
+		Assert.assertFalse(completion.cancel(true));
+	}
+
+	@Test
+	public void failureIsReported() throws Exception {
+		TimedDriver driver = new TimedDriver(0, 60000);
+		driver.fail(new IllegalStateException("port closed"));
+		Completion completion = driver.whenFinished();
+		try {
+			completion.get(5, TimeUnit.SECONDS);
+			Assert.fail("get() should throw when the driver fails");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package testing.drivers;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Point3d;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import replicatorg.drivers.MotionPlanner;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Runs paths through the planner and checks that the segments it hands out
+ * cover the path, never go faster than asked, and only slow the machine
+ * down where it has acceleration limits.
+ */
+public class MotionPlannerTest {
+	static final double FEEDRATE = 3000;
+
+	// A machine with the given limits on every axis; zero for none.
+	static MachineModel model(double acceleration, double jerk) throws Exception {
+		String limits = (acceleration > 0 ? " maxacceleration=\"" + acceleration + "\"" : "") +
+			(jerk > 0 ? " maxjerk=\"" + jerk + "\"" : "");
+		String xml = "<machine><geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" maxfeedrate=\"5000\" scale=\"1\"" + limits + "/>" +
+			"<axis id=\"y\" length=\"200\" maxfeedrate=\"5000\" scale=\"1\"" + limits + "/>" +
+			"<axis id=\"z\" length=\"200\" maxfeedrate=\"5000\" scale=\"1\"" + limits + "/>" +
+			"</geometry></machine>";
+		Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		MachineModel model = new MachineModel();
+		model.loadXML(dom.getDocumentElement());
+		return model;
+	}
+
+	static List<Point3d> randomPath(int moves) {
+		Random random = new Random(11);
+		List<Point3d> path = new ArrayList<Point3d>();
+		path.add(new Point3d(0, 0, 0));
+		for (int i = 0; i < moves; i++) {
+			path.add(new Point3d(random.nextDouble() * 100, random.nextDouble() * 100, (i / 10) * 0.3));
+		}
+		return path;
+	}
+
+	static List<MotionPlanner.Segment> plan(MotionPlanner planner, List<Point3d> path) {
+		List<MotionPlanner.Segment> segments = new ArrayList<MotionPlanner.Segment>();
+		for (int i = 1; i < path.size(); i++) {
+			planner.add(path.get(i - 1), path.get(i), FEEDRATE);
+			while (planner.hasSegments()) {
+				segments.add(planner.removeSegment());
+			}
+		}
+		planner.flush();
+		while (planner.hasSegments()) {
+			segments.add(planner.removeSegment());
+		}
+		Assert.assertTrue(planner.isEmpty());
+		return segments;
+	}
+
+	// in seconds
+	static double time(List<MotionPlanner.Segment> segments) {
+		double t = 0;
+		for (MotionPlanner.Segment s : segments) {
+			t += s.from.distance(s.to) / (s.feedrate / 60.0);
+		}
+		return t;
+	}
+
+	static double length(List<Point3d> path) {
+		double l = 0;
+		for (int i = 1; i < path.size(); i++) {
+			l += path.get(i - 1).distance(path.get(i));
+		}
+		return l;
+	}
+
+	@Test
+	public void withoutLimitsEveryMoveRunsAtItsFeedrate() throws Exception {
+		List<Point3d> path = randomPath(200);
+		List<MotionPlanner.Segment> segments = plan(new MotionPlanner(model(0, 0), 16), path);
+		Assert.assertEquals(segments.size(), path.size() - 1);
+		for (int i = 0; i < segments.size(); i++) {
+			MotionPlanner.Segment s = segments.get(i);
+			Assert.assertEquals(s.from, path.get(i));
+			Assert.assertEquals(s.to, path.get(i + 1));
+			Assert.assertEquals(s.feedrate, FEEDRATE);
+		}
+	}
+
+	@Test
+	public void withLimitsSegmentsCoverThePath() throws Exception {
+		List<Point3d> path = randomPath(200);
+		List<MotionPlanner.Segment> segments = plan(new MotionPlanner(model(1000, 10), 16), path);
+		Assert.assertTrue(segments.size() > path.size() - 1, "moves are ramped");
+		Point3d at = path.get(0);
+		for (MotionPlanner.Segment s : segments) {
+			Assert.assertTrue(s.from.epsilonEquals(at, 1e-9), s.from + " follows " + at);
+			Assert.assertTrue(s.feedrate <= FEEDRATE + 1e-9, "feedrate " + s.feedrate);
+			Assert.assertTrue(s.feedrate > 0);
+			at = s.to;
+		}
+		Assert.assertEquals(at, path.get(path.size() - 1));
+		Assert.assertTrue(time(segments) > length(path) / (FEEDRATE / 60.0));
+	}
+
+	@Test
+	public void straightRunsKeepTheirSpeed() throws Exception {
+		// ten moves along one line: only the ends ramp
+		List<Point3d> path = new ArrayList<Point3d>();
+		for (int i = 0; i <= 10; i++) {
+			path.add(new Point3d(i * 10, 0, 0));
+		}
+		List<MotionPlanner.Segment> segments = plan(new MotionPlanner(model(1000, 0), 16), path);
+		int cruising = 0;
+		for (MotionPlanner.Segment s : segments) {
+			if (s.feedrate == FEEDRATE) { cruising++; }
+		}
+		Assert.assertTrue(cruising >= 8, cruising + " moves cruise");
+		// a stop at each end: 50mm/s reached at 1000mm/s/s costs 0.05s each way
+		double nominal = length(path) / (FEEDRATE / 60.0);
+		Assert.assertTrue(time(segments) < nominal + 0.1, "took " + time(segments));
+	}
+
+	@Test
+	public void widerWindowIsNeverSlower() throws Exception {
+		MachineModel model = model(1000, 10);
+		List<Point3d> path = randomPath(200);
+		double previous = Double.POSITIVE_INFINITY;
+		for (int window : new int[] { 1, 2, 4, 16, 64 }) {
+			double t = time(plan(new MotionPlanner(model, window), path));
+			Assert.assertTrue(t <= previous + 1e-9, "window " + window + " took " + t + ", not under " + previous);
+			previous = t;
+		}
+	}
+}
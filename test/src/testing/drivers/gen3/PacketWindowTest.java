@@ -0,0 +1,453 @@
+package testing.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.app.Serial;
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.CommandPipeline;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketWindow;
+import replicatorg.drivers.gen3.S3GEmulator;
+
+/**
+ * Runs a PacketWindow against a scripted machine on a loopback port, which
+ * refuses, loses or garbles the responses to chosen packets, and checks the
+ * order the machine ends up running the commands in.  Also checks, on
+ * the emulator's clock, that a wider window gets moves to an emulated
+ * machine sooner.
+ */
+public class PacketWindowTest {
+	enum Reply { OK, OVERFLOW, CRC_MISMATCH, NONE, CORRUPT }
+
+	/** Decides the reply to each attempt at sending a command. */
+	interface Script {
+		Reply reply(int id, int attempt);
+	}
+
+	static final int RC_OK = 1;
+	static final int RC_BUFFER_OVERFLOW = 2;
+	static final int RC_CRC_MISMATCH = 3;
+
+	static final int GET_BUFFER_SIZE = 2;
+	// any buffered command will do; the machine only looks at the id
+	static final int QUEUE_POINT_ABS = 129;
+
+	static final int RETRIES = 3;
+
+	/**
+	 * A machine with room for 100000 bytes of commands, that answers each
+	 * packet as it is received unless told to hold its replies.
+	 */
+	static class ScriptedMachine implements LoopbackSerialTransport.Device {
+		private final Script script;
+		private LoopbackSerialTransport port;
+		private PacketProcessor pp = new PacketProcessor();
+		private boolean holding = false;
+		private final List<byte[]> held = new LinkedList<byte[]>();
+
+		final List<Integer> accepted = new ArrayList<Integer>();
+		final Map<Integer,Integer> attempts = new HashMap<Integer,Integer>();
+
+		ScriptedMachine(Script script) {
+			this.script = script;
+		}
+
+		public synchronized void connected(LoopbackSerialTransport port) {
+			this.port = port;
+		}
+
+		public synchronized void disconnected() {
+			port = null;
+		}
+
+		public void reset() {}
+
+		public synchronized void received(byte[] data, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				try {
+					if (!pp.processByte(data[i])) { continue; }
+				} catch (PacketProcessor.CRCException e) {
+					reply(packet(RC_CRC_MISMATCH));
+					pp = new PacketProcessor();
+					continue;
+				}
+				byte[] payload = pp.getResponse().getPayload();
+				pp = new PacketProcessor();
+				handle(payload);
+			}
+		}
+
+		private void handle(byte[] payload) {
+			if ((payload[0] & 0xff) == GET_BUFFER_SIZE) {
+				// answered straight away unless replies before it are held
+				byte[] p = packet(RC_OK, 0xa0, 0x86, 0x01, 0x00);
+				if (held.isEmpty() && port != null) {
+					port.send(p);
+				} else {
+					reply(p);
+				}
+				return;
+			}
+			int id = (payload[1] & 0xff) | ((payload[2] & 0xff) << 8);
+			Integer tries = attempts.get(id);
+			int attempt = (tries == null) ? 1 : tries + 1;
+			attempts.put(id, attempt);
+			switch (script.reply(id, attempt)) {
+			case OK:
+				accepted.add(id);
+				reply(packet(RC_OK));
+				break;
+			case OVERFLOW:
+				reply(packet(RC_BUFFER_OVERFLOW));
+				break;
+			case CRC_MISMATCH:
+				reply(packet(RC_CRC_MISMATCH));
+				break;
+			case NONE:
+				accepted.add(id);
+				break;
+			case CORRUPT:
+				accepted.add(id);
+				byte[] p = packet(RC_OK);
+				p[p.length - 1] ^= 0x55;
+				reply(p);
+				break;
+			}
+		}
+
+		private void reply(byte[] p) {
+			if (holding) {
+				held.add(p);
+			} else if (port != null) {
+				port.send(p);
+			}
+		}
+
+		synchronized void hold() {
+			holding = true;
+		}
+
+		/** Send the replies held so far, and stop holding them. */
+		void release() {
+			List<byte[]> replies;
+			LoopbackSerialTransport out;
+			synchronized(this) {
+				holding = false;
+				replies = new ArrayList<byte[]>(held);
+				held.clear();
+				out = port;
+			}
+			for (byte[] p : replies) {
+				out.send(p);
+			}
+		}
+
+		synchronized List<Integer> getAccepted() {
+			return new ArrayList<Integer>(accepted);
+		}
+
+		synchronized int getAttempts(int id) {
+			Integer tries = attempts.get(id);
+			return (tries == null) ? 0 : tries;
+		}
+	}
+
+	static byte[] packet(int... payload) {
+		byte[] p = new byte[payload.length + 3];
+		p[0] = (byte)0xd5;
+		p[1] = (byte)payload.length;
+		IButtonCrc crc = new IButtonCrc();
+		for (int i = 0; i < payload.length; i++) {
+			p[i + 2] = (byte)payload[i];
+			crc.update(p[i + 2]);
+		}
+		p[p.length - 1] = crc.getCrc();
+		return p;
+	}
+
+	static byte[] command(int id) {
+		return packet(QUEUE_POINT_ABS, id & 0xff, id >> 8);
+	}
+
+	// A short move, out and back along X, that takes less time to run
+	// than to send.
+	static byte[] move(int n) {
+		int x = (n % 2) * 10;
+		int stepMicros = 50;
+		return packet(QUEUE_POINT_ABS, x, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+				stepMicros, 0, 0, 0);
+	}
+
+	static List<Integer> range(int from, int to) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = from; i < to; i++) {
+			ids.add(i);
+		}
+		return ids;
+	}
+
+	private Serial serial;
+	private PacketWindow window;
+	private final List<String> errors = new ArrayList<String>();
+
+	private ScriptedMachine open(Script script, int size) throws Exception {
+		ScriptedMachine machine = new ScriptedMachine(script);
+		serial = new Serial(new LoopbackSerialTransport("loopback:test", machine));
+		serial.setTimeout(200);
+		window = new PacketWindow(serial, size, RETRIES, new CommandPipeline.ErrorHandler() {
+			public void pipelineError(String message) {
+				synchronized(errors) { errors.add(message); }
+			}
+		});
+		return machine;
+	}
+
+	@AfterMethod
+	public void close() {
+		if (window != null) { window.shutdown(); }
+		if (serial != null) { serial.dispose(); }
+		window = null;
+		serial = null;
+		synchronized(errors) { errors.clear(); }
+	}
+
+	// Wait until everything in flight has been answered.
+	private void settle() {
+		Assert.assertTrue(window.beginExclusive());
+		window.endExclusive();
+	}
+
+	// Send moves to an emulated machine through a window of the given size,
+	// and return how long they took on the emulator's clock.
+	private long emulatedRun(int size, int moves) throws Exception {
+		S3GEmulator emulator = new S3GEmulator(512, 38400, new S3GEmulator.VirtualClock());
+		serial = new Serial(new LoopbackSerialTransport("loopback:test", emulator));
+		serial.setTimeout(1000);
+		window = new PacketWindow(serial, size, RETRIES, null);
+		emulator.resetStatistics();
+		for (int i = 0; i < moves; i++) {
+			window.send(move(i));
+		}
+		settle();
+		Assert.assertNull(window.getFailure());
+		Assert.assertEquals(emulator.getCommandCount(), moves);
+		long elapsed = emulator.getElapsedTime();
+		close();
+		return elapsed;
+	}
+
+	private void awaitFailure() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (reported() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertNotNull(window.getFailure(), "window should have failed");
+		Assert.assertEquals(reported(), 1, "failure should be reported once");
+	}
+
+	private int reported() {
+		synchronized(errors) { return errors.size(); }
+	}
+
+	@Test
+	public void sendsInOrder() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) { return Reply.OK; }
+		}, 4);
+		for (int i = 0; i < 50; i++) {
+			window.send(command(i));
+		}
+		settle();
+		Assert.assertEquals(machine.getAccepted(), range(0, 50));
+		Assert.assertEquals(window.getPacketsResent(), 0);
+		Assert.assertNull(window.getFailure());
+	}
+
+	@Test
+	public void overflowGoesBackToRefusedPacket() throws Exception {
+		// the buffer fills at packet 10 and stays full until it comes again
+		ScriptedMachine machine = open(new Script() {
+			boolean full = false;
+			public Reply reply(int id, int attempt) {
+				if (id == 10 && attempt == 1) {
+					full = true;
+				} else if (id == 10) {
+					full = false;
+				}
+				return full ? Reply.OVERFLOW : Reply.OK;
+			}
+		}, 4);
+		for (int i = 0; i < 30; i++) {
+			window.send(command(i));
+		}
+		settle();
+		Assert.assertEquals(machine.getAccepted(), range(0, 30));
+		Assert.assertTrue(window.getPacketsResent() >= 1);
+		Assert.assertNull(window.getFailure());
+	}
+
+	@Test
+	public void heldOverflowsResentInOrder() throws Exception {
+		// four packets refused while in flight together
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id >= 2 && attempt == 1) ? Reply.OVERFLOW : Reply.OK;
+			}
+		}, 8);
+		window.send(command(0));
+		settle();
+		machine.hold();
+		for (int i = 1; i < 6; i++) {
+			window.send(command(i));
+		}
+		machine.release();
+		settle();
+		Assert.assertEquals(machine.getAccepted(), range(0, 6));
+		Assert.assertEquals(window.getPacketsResent(), 4);
+		Assert.assertNull(window.getFailure());
+	}
+
+	@Test
+	public void crcMismatchIsResent() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id == 9 && attempt == 1) ? Reply.CRC_MISMATCH : Reply.OK;
+			}
+		}, 4);
+		for (int i = 0; i < 10; i++) {
+			window.send(command(i));
+		}
+		settle();
+		Assert.assertEquals(machine.getAccepted(), range(0, 10));
+		Assert.assertEquals(machine.getAttempts(9), 2);
+		Assert.assertNull(window.getFailure());
+	}
+
+	@Test
+	public void acceptedOutOfOrderFails() throws Exception {
+		// 2 is refused but 3, behind it, is taken: 2 can't be put back
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id == 2) ? Reply.CRC_MISMATCH : Reply.OK;
+			}
+		}, 8);
+		window.send(command(0));
+		settle();
+		machine.hold();
+		for (int i = 1; i < 5; i++) {
+			window.send(command(i));
+		}
+		machine.release();
+		awaitFailure();
+		settle();
+		Assert.assertEquals(machine.getAttempts(2), 1, "refused packet must not be resent behind later ones");
+		try {
+			window.send(command(5));
+			Assert.fail("send should throw once the window has failed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		Assert.assertEquals(machine.getAttempts(5), 0);
+	}
+
+	@Test
+	public void retryLimitFails() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id == 3) ? Reply.CRC_MISMATCH : Reply.OK;
+			}
+		}, 4);
+		for (int i = 0; i < 4; i++) {
+			window.send(command(i));
+		}
+		// nothing more is sent, so the resends go out from here
+		settle();
+		awaitFailure();
+		Assert.assertEquals(machine.getAttempts(3), RETRIES);
+		Assert.assertEquals(machine.getAccepted(), range(0, 3));
+	}
+
+	@Test
+	public void lostResponseFailsWithoutResending() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id == 4) ? Reply.NONE : Reply.OK;
+			}
+		}, 4);
+		for (int i = 0; i < 5; i++) {
+			window.send(command(i));
+		}
+		awaitFailure();
+		Assert.assertEquals(machine.getAttempts(4), 1, "a packet that may have run must not be resent");
+		Assert.assertEquals(machine.getAccepted(), range(0, 5));
+	}
+
+	@Test
+	public void corruptResponseFailsUntilCleared() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) {
+				return (id == 4) ? Reply.CORRUPT : Reply.OK;
+			}
+		}, 4);
+		for (int i = 0; i < 5; i++) {
+			window.send(command(i));
+		}
+		awaitFailure();
+		Assert.assertEquals(machine.getAttempts(4), 1, "a packet that may have run must not be resent");
+		window.clear();
+		Assert.assertNull(window.getFailure());
+		window.send(command(5));
+		settle();
+		Assert.assertEquals(machine.getAccepted(), range(0, 6));
+	}
+
+	@Test
+	public void interruptLeavesWindowRunning() throws Exception {
+		ScriptedMachine machine = open(new Script() {
+			public Reply reply(int id, int attempt) { return Reply.OK; }
+		}, 2);
+		window.send(command(0));
+		settle();
+		machine.hold();
+		window.send(command(1));
+		window.send(command(2));
+		final boolean[] interrupted = { false };
+		Thread blocked = new Thread() {
+			public void run() {
+				window.send(command(3));
+				interrupted[0] = Thread.currentThread().isInterrupted();
+			}
+		};
+		blocked.start();
+		Thread.sleep(100);
+		blocked.interrupt();
+		blocked.join(5000);
+		Assert.assertFalse(blocked.isAlive());
+		Assert.assertTrue(interrupted[0], "the interrupt should be kept for the caller");
+		machine.release();
+		window.send(command(4));
+		settle();
+		Assert.assertEquals(machine.getAccepted(), Arrays.asList(0, 1, 2, 4));
+		Assert.assertNull(window.getFailure());
+	}
+
+	@Test
+	public void widerWindowFinishesSoonerOnEmulator() throws Exception {
+		long one = emulatedRun(1, 500);
+		long wide = emulatedRun(8, 500);
+		// one at a time, each move and its answer cross the line in turn
+		long byteNanos = 10L * 1000000000L / 38400;
+		Assert.assertTrue(one >= 500 * (move(0).length + 4) * byteNanos, one + "ns");
+		Assert.assertTrue(wide < one, "window of 8 took " + wide + "ns, window of 1 " + one + "ns");
+	}
+}
@@ -0,0 +1,90 @@
+package testing.drivers.gen3;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.app.Serial;
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.S3GEmulator;
+
+/**
+ * Checks the packets the emulator builds, one after another, in its single
+ * reused packet builder.
+ */
+public class S3GEmulatorTest {
+	static final int VERSION = 0;
+	static final int READ_EEPROM = 12;
+	static final int WRITE_EEPROM = 13;
+
+	private S3GEmulator emulator;
+	private Serial serial;
+
+	@BeforeMethod
+	public void open() throws Exception {
+		emulator = new S3GEmulator(512, 0);
+		serial = new Serial(new LoopbackSerialTransport("loopback:emulator", emulator));
+		serial.setTimeout(1000);
+	}
+
+	@AfterMethod
+	public void close() {
+		serial.dispose();
+	}
+
+	static byte[] packet(byte[] payload) {
+		byte[] p = new byte[payload.length + 3];
+		p[0] = (byte)0xd5;
+		p[1] = (byte)payload.length;
+		System.arraycopy(payload, 0, p, 2, payload.length);
+		p[p.length - 1] = IButtonCrc.compute(payload, 0, payload.length);
+		return p;
+	}
+
+	// Send a query and return the payload of the answer.
+	private byte[] query(byte... payload) throws Exception {
+		serial.write(packet(payload));
+		PacketProcessor pp = new PacketProcessor();
+		while (true) {
+			int b = serial.read();
+			Assert.assertTrue(b >= 0, "no answer");
+			if (pp.processByte((byte)b)) {
+				return pp.getResponse().getPayload();
+			}
+		}
+	}
+
+	@Test
+	public void answersCarryGoodCrcs() throws Exception {
+		Random random = new Random(9);
+		byte[] eeprom = new byte[512];
+		random.nextBytes(eeprom);
+		for (int offset = 0; offset < eeprom.length; offset += 32) {
+			byte[] write = new byte[4 + 32];
+			write[0] = WRITE_EEPROM;
+			write[1] = (byte)offset;
+			write[2] = (byte)(offset >> 8);
+			write[3] = 32;
+			System.arraycopy(eeprom, offset, write, 4, 32);
+			Assert.assertEquals(query(write), new byte[] { 1, 32 });
+		}
+		// long and short answers in turn, so each reuses a longer buffer
+		for (int n = 0; n < 200; n++) {
+			int offset = random.nextInt(eeprom.length - 64);
+			int length = 1 + random.nextInt(64);
+			byte[] answer = query((byte)READ_EEPROM, (byte)offset, (byte)(offset >> 8), (byte)length);
+			Assert.assertEquals(answer.length, length + 1);
+			Assert.assertEquals(answer[0], 1);
+			for (int i = 0; i < length; i++) {
+				Assert.assertEquals(answer[i + 1], eeprom[offset + i], "byte " + (offset + i));
+			}
+			Assert.assertEquals(query((byte)VERSION, (byte)0, (byte)0), new byte[] { 1, (byte)200, 0 });
+		}
+		Assert.assertEquals(emulator.getCRCErrorCount(), 0);
+	}
+}
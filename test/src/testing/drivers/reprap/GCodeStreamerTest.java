@@ -0,0 +1,135 @@
+package testing.drivers.reprap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.LoopbackSerialTransport;
+import replicatorg.app.Serial;
+import replicatorg.drivers.reprap.GCodeStreamer;
+
+/**
+ * Streams numbered lines to a scripted firmware that asks for one of them
+ * again while several more are in its buffer, and checks that every line
+ * is taken once, in order, without the buffer overflowing.
+ */
+public class GCodeStreamerTest {
+	static final int BUFFER = 128;
+	static final int LINES = 100;
+	// the line the firmware refuses the first time it sees it
+	static final int BAD_LINE = 20;
+
+	/**
+	 * Firmware that works through its buffer on its own thread, answering
+	 * each line with "ok", and that discards every line after a bad one,
+	 * asking for the bad one again, as Marlin does.
+	 */
+	static class Firmware implements LoopbackSerialTransport.Device, Runnable {
+		final List<String> taken = Collections.synchronizedList(new ArrayList<String>());
+		volatile int held = 0;
+		volatile int mostHeld = 0;
+		volatile int behindBadLine = 0;
+		private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+		private final StringBuilder partial = new StringBuilder();
+		private LoopbackSerialTransport port;
+		private Thread thread;
+
+		public void connected(LoopbackSerialTransport port) {
+			this.port = port;
+			thread = new Thread(this, "Scripted firmware");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public synchronized void received(byte[] data, int offset, int length) {
+			held += length;
+			mostHeld = Math.max(mostHeld, held);
+			for (int i = offset; i < offset + length; i++) {
+				partial.append((char)data[i]);
+				if (data[i] == '\n') {
+					lines.add(partial.toString());
+					partial.setLength(0);
+				}
+			}
+		}
+
+		private synchronized void consumed(String line) {
+			held -= line.length();
+		}
+
+		public void run() {
+			int expected = 1;
+			boolean refused = false;
+			try {
+				while (true) {
+					String line = lines.take();
+					int number = Integer.parseInt(line.substring(1, line.indexOf(' ')));
+					boolean good = (number == expected);
+					if (number == BAD_LINE && !refused) {
+						// wait until the host has sent more lines behind it
+						while (lines.size() < 3) {
+							Thread.sleep(1);
+						}
+						behindBadLine = lines.size();
+						refused = true;
+						good = false;
+					}
+					consumed(line);
+					if (good) {
+						taken.add(line.trim());
+						expected++;
+						port.send("ok\n".getBytes("US-ASCII"));
+					} else {
+						port.send(("Resend: " + expected + "\nok\n").getBytes("US-ASCII"));
+					}
+				}
+			} catch (InterruptedException ie) {
+				// disconnected
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void reset() {}
+		public void disconnected() {
+			thread.interrupt();
+		}
+	}
+
+	@Test
+	public void resendInTheMiddleOfAWindow() throws Exception {
+		Firmware firmware = new Firmware();
+		Serial serial = new Serial(new LoopbackSerialTransport("loopback:marlin", firmware));
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		GCodeStreamer streamer = new GCodeStreamer(serial, BUFFER, new GCodeStreamer.Listener() {
+			public void lineReceived(String line) {
+				received.add(line);
+			}
+		});
+		try {
+			List<String> sent = new ArrayList<String>();
+			for (int i = 1; i <= LINES; i++) {
+				String line = "N" + i + " G1 X" + i;
+				sent.add(line);
+				streamer.send(line);
+			}
+			long deadline = System.currentTimeMillis() + 20000;
+			while (!streamer.isEmpty()) {
+				Assert.assertTrue(System.currentTimeMillis() < deadline,
+					"stuck with " + firmware.taken.size() + " lines taken");
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(firmware.behindBadLine >= 3);
+			Assert.assertTrue(received.contains("Resend: " + BAD_LINE));
+			Assert.assertEquals(firmware.taken, sent);
+			Assert.assertTrue(firmware.mostHeld <= BUFFER, firmware.mostHeld + " characters held");
+		} finally {
+			streamer.shutdown();
+			serial.dispose();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package testing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.CoalescingGCodeSource;
+import replicatorg.model.StringListSource;
+
+/**
+ * Checks which runs of moves are merged, and that the lines merged away
+ * leave the line count as it was.
+ */
+public class CoalescingGCodeSourceTest {
+	static final String[] HEADER = { "G21", "G90", "G92 X0 Y0 Z0" };
+
+	static CoalescingGCodeSource source(String... moves) {
+		Vector<String> lines = new Vector<String>(Arrays.asList(HEADER));
+		lines.addAll(Arrays.asList(moves));
+		return new CoalescingGCodeSource(new StringListSource(lines), 0.01);
+	}
+
+	// The lines of the source after the header, blank lines left out.
+	static List<String> moves(CoalescingGCodeSource source) {
+		List<String> lines = new ArrayList<String>();
+		int n = 0;
+		for (String line : source) {
+			if (n++ >= HEADER.length && line.length() > 0) {
+				lines.add(line);
+			}
+		}
+		Assert.assertEquals(n, source.getLineCount());
+		return lines;
+	}
+
+	@Test
+	public void mergesWithinTolerance() {
+		CoalescingGCodeSource source = source(
+				"G1 X1 Y0 F1200",
+				"G1 X2 Y0.005",
+				"G1 X3 Y-0.005",
+				"G1 X4 Y0");
+		Assert.assertEquals(moves(source), Arrays.asList("G1 X4 Y0 Z0 F1200"));
+		Assert.assertEquals(source.getSavedMoves(), 3);
+	}
+
+	@Test
+	public void keepsPointsOutsideTolerance() {
+		CoalescingGCodeSource source = source(
+				"G1 X1 Y0 F1200",
+				"G1 X2 Y0.05",
+				"G1 X3 Y0");
+		List<String> moves = moves(source);
+		Assert.assertTrue(moves.size() > 1, moves.toString());
+		Assert.assertEquals(moves.get(moves.size() - 1), "G1 X3 Y0");
+	}
+
+	@Test
+	public void keepsPointsVisitedOutOfOrder() {
+		// all on the line from X0 to X4, but doubling back
+		CoalescingGCodeSource source = source(
+				"G1 X2 Y0 F1200",
+				"G1 X1 Y0",
+				"G1 X4 Y0");
+		Assert.assertEquals(moves(source), Arrays.asList(
+				"G1 X2 Y0 F1200", "G1 X1 Y0", "G1 X4 Y0"));
+		Assert.assertEquals(source.getSavedMoves(), 0);
+	}
+
+	@Test
+	public void feedrateChangeEndsRun() {
+		CoalescingGCodeSource source = source(
+				"G1 X1 Y0 F1200",
+				"G1 X2 Y0",
+				"G1 X3 Y0 F600",
+				"G1 X4 Y0");
+		Assert.assertEquals(moves(source), Arrays.asList(
+				"G1 X2 Y0 Z0 F1200", "G1 X4 Y0 Z0 F600"));
+		Assert.assertEquals(source.getSavedMoves(), 2);
+	}
+
+	@Test
+	public void extruderCommandEndsRun() {
+		CoalescingGCodeSource source = source(
+				"G1 X1 Y0 F1200",
+				"G1 X2 Y0",
+				"M101",
+				"G1 X3 Y0",
+				"G1 X4 Y0");
+		Assert.assertEquals(moves(source), Arrays.asList(
+				"G1 X2 Y0 Z0 F1200", "M101", "G1 X4 Y0 Z0 F1200"));
+	}
+
+	@Test
+	public void fiveDCodeIsNeverMerged() {
+		String[] moves = {
+				"G1 X1 Y0 E0.1 F1200",
+				"G1 X2 Y0 E0.2",
+				"G1 X3 Y0 E0.3",
+				"G1 X4 Y0 E0.4" };
+		CoalescingGCodeSource source = source(moves);
+		Assert.assertEquals(moves(source), Arrays.asList(moves));
+		Assert.assertEquals(source.getSavedMoves(), 0);
+	}
+
+	@Test
+	public void lineCountIsUnchanged() {
+		String[] moves = new String[250];
+		for (int i = 0; i < moves.length; i++) {
+			// long straight runs, broken by a feedrate change now and then
+			moves[i] = "G1 X" + (i + 1) + " Y0" + ((i % 70 == 0) ? " F" + (1000 + i) : "");
+		}
+		CoalescingGCodeSource source = source(moves);
+		Assert.assertEquals(source.getLineCount(), HEADER.length + moves.length);
+		List<String> merged = moves(source);
+		Assert.assertTrue(merged.size() < moves.length / 10, merged.toString());
+		Assert.assertEquals(merged.get(merged.size() - 1), "G1 X250 Y0 Z0 F1210");
+		Assert.assertEquals(source.getSavedMoves(), moves.length - merged.size());
+	}
+}
@@ -0,0 +1,196 @@
+package testing.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.CompiledGCode;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.LayerIndex;
+import replicatorg.model.MappedFileGCodeSource;
+import replicatorg.model.StringListSource;
+
+/**
+ * Checks which moves the layer index takes for layers, and the extruder
+ * state it restores when resuming.
+ */
+public class LayerIndexTest {
+	static LayerIndex index(String... lines) {
+		Vector<String> codes = new Vector<String>(Arrays.asList(lines));
+		return LayerIndex.build(CompiledGCode.compile(new StringListSource(codes)));
+	}
+
+	static double[] heights(LayerIndex index) {
+		double[] z = new double[index.size()];
+		for (int i = 0; i < z.length; i++) {
+			z[i] = index.get(i).z;
+		}
+		return z;
+	}
+
+	@Test
+	public void retractionsAreNotLayers() {
+		LayerIndex index = index(
+				"G21", "G90", "G92 E0",
+				"G1 Z0.2 F600",
+				"G1 X10 Y0 E1",
+				// retract, hop and travel at the same E
+				"G1 E0.5",
+				"G1 Z0.4",
+				"G1 X20 Y0 E0.5",
+				"G1 Z0.2",
+				"G1 X30 Y0 E2",
+				"G1 Z0.4",
+				"G1 X40 Y0 E3");
+		Assert.assertEquals(heights(index), new double[] { 0.2, 0.4 });
+		Assert.assertEquals(index.get(1).line, 10);
+		Assert.assertEquals(index.get(1).e, 2.0);
+	}
+
+	@Test
+	public void resetsFollowG92() {
+		LayerIndex index = index(
+				"G90", "G92 E0",
+				"G1 Z0.2", "G1 X10 Y0 E5",
+				"G92 E0",
+				// forward of the reset, though behind the E before it
+				"G1 Z0.4", "G1 X20 Y0 E1");
+		Assert.assertEquals(heights(index), new double[] { 0.2, 0.4 });
+		Assert.assertEquals(index.get(1).e, 0.0);
+	}
+
+	@Test
+	public void relativeExtrusion() {
+		LayerIndex index = index(
+				"G90", "M83",
+				"G1 Z0.2", "G1 X10 Y0 E1",
+				"G1 E-1", "G1 Z0.4", "G1 X20 Y0",
+				"G1 Z0.6", "G1 X30 Y0 E2");
+		Assert.assertEquals(heights(index), new double[] { 0.2, 0.6 });
+		Assert.assertTrue(index.get(1).relativeE);
+		List<String> restore = index.getRestoreCommands(1);
+		Assert.assertTrue(restore.contains("M83"), restore.toString());
+		Assert.assertTrue(restore.contains("G92 E0"), restore.toString());
+	}
+
+	@Test
+	public void restoresAbsoluteExtruderPosition() {
+		LayerIndex index = index(
+				"G90", "M82", "G92 E0",
+				"G1 Z0.2", "G1 X10 Y0 E1.5",
+				"G1 Z0.4", "G1 X20 Y0 E3.25");
+		List<String> restore = index.getRestoreCommands(1);
+		int mode = restore.indexOf("M82");
+		int reset = restore.indexOf("G92 E1.5");
+		Assert.assertTrue(mode >= 0 && reset > mode, restore.toString());
+	}
+
+	@Test
+	public void extruderOnWithoutE() {
+		LayerIndex index = index(
+				"G90", "G1 Z0.2", "M101", "G1 X10 Y0", "M103",
+				"G1 Z0.4", "G1 X20 Y0",
+				"G1 Z0.6", "M101", "G1 X30 Y0");
+		Assert.assertEquals(heights(index), new double[] { 0.2, 0.6 });
+		Assert.assertTrue(Double.isNaN(index.get(0).e));
+		for (String command : index.getRestoreCommands(1)) {
+			Assert.assertFalse(command.startsWith("G92"), command);
+		}
+	}
+
+	@Test
+	public void streamedFileMatchesCompiled() throws IOException {
+		File file = File.createTempFile("layers", ".gcode");
+		try {
+			StringBuilder text = new StringBuilder("(start)\r\nG21\nG90\rM82\nG92 E0\n");
+			double e = 0;
+			for (int layer = 1; layer <= 50; layer++) {
+				text.append("G1 Z").append(layer * 0.2).append(" F1200\r\n");
+				for (int i = 0; i < 20; i++) {
+					e += 0.5;
+					text.append("G1 X").append(i).append(" Y").append(layer)
+						.append(" E").append(e).append((i % 2 == 0) ? "\n" : "\r\n");
+				}
+				// retract and hop between layers
+				text.append("G1 E").append(e - 1).append("\nG1 Z").append(layer * 0.2 + 1).append("\n");
+				text.append("G92 E0\n");
+				e = 0;
+			}
+			text.append("M103");
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(text.toString().getBytes("US-ASCII"));
+			} finally {
+				out.close();
+			}
+
+			LayerIndex streamed = LayerIndex.forFile(file);
+			LayerIndex.getCacheFile(file).delete();
+			LayerIndex compiled = LayerIndex.forFile(file,
+					CompiledGCode.compile(new MappedFileGCodeSource(file.getPath())));
+			Assert.assertEquals(streamed.size(), 50);
+			Assert.assertEquals(streamed.size(), compiled.size());
+			for (int i = 0; i < streamed.size(); i++) {
+				LayerIndex.Layer a = streamed.get(i), b = compiled.get(i);
+				Assert.assertEquals(a.line, b.line);
+				Assert.assertEquals(a.textOffset, b.textOffset);
+				Assert.assertEquals(a.z, b.z);
+				Assert.assertEquals(a.e, b.e);
+				Assert.assertEquals(a.x, b.x);
+				Assert.assertEquals(a.feedrate, b.feedrate);
+				Assert.assertEquals(a.recordOffset, -1);
+			}
+			Assert.assertEquals(streamed.getRestoreCommands(10), compiled.getRestoreCommands(10));
+		} finally {
+			LayerIndex.getCacheFile(file).delete();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void resumesFileFromItsIndex() throws IOException {
+		File file = File.createTempFile("resume", ".gcode");
+		try {
+			String[] lines = {
+					"(start)", "G21", "G90", "M82", "G92 E0",
+					"G1 Z0.2 F1200", "G1 X10 Y0 E1",
+					"G1 Z0.4", "G1 X20 Y0 E2",
+					"G1 Z0.6", "G1 X30 Y0 E3", "M103" };
+			StringBuilder text = new StringBuilder();
+			for (String line : lines) {
+				text.append(line).append('\n');
+			}
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(text.toString().getBytes("US-ASCII"));
+			} finally {
+				out.close();
+			}
+			LayerIndex.forFile(file);
+			// as after a restart: only the saved index is left
+			LayerIndex index = LayerIndex.forFile(file);
+			Assert.assertEquals(index.size(), 3);
+
+			GCodeSource resumed = index.resumeFrom(file, 1);
+			List<String> expected = new ArrayList<String>(Arrays.asList(lines).subList(0, 5));
+			expected.addAll(index.getRestoreCommands(1));
+			expected.addAll(Arrays.asList(lines).subList(7, lines.length));
+			List<String> actual = new ArrayList<String>();
+			for (String line : resumed) {
+				actual.add(line);
+			}
+			Assert.assertEquals(actual, expected);
+			Assert.assertEquals(resumed.getLineCount(), expected.size());
+		} finally {
+			LayerIndex.getCacheFile(file).delete();
+			file.delete();
+		}
+	}
+}
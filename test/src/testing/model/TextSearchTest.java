@@ -0,0 +1,207 @@
+package testing.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.swing.text.PlainDocument;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.model.TextSearch;
+import replicatorg.model.TrigramIndex;
+
+/**
+ * Checks finding and replacing against String.indexOf, with and without
+ * case, on text where matches fall across the chunks of a document and the
+ * blocks of a file.
+ */
+public class TextSearchTest {
+	// a few letters in both cases, so that random text has many matches
+	static final String ALPHABET = "gGxX1 \n\u00e9\u00c9";
+
+	private File file;
+
+	static String randomText(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return text.toString();
+	}
+
+	static int indexOf(String text, String wanted, int from, boolean ignoreCase) {
+		if (ignoreCase) {
+			return text.toLowerCase(Locale.US).indexOf(wanted.toLowerCase(Locale.US), from);
+		}
+		return text.indexOf(wanted, from);
+	}
+
+	// Put the wanted text across every boundary of the given size, starting
+	// one character before it up to one character from its end.
+	static String plantAcross(String text, String wanted, int boundary) {
+		StringBuilder s = new StringBuilder(text);
+		int shift = 1;
+		for (int at = boundary; at + wanted.length() < s.length(); at += boundary) {
+			int start = at - shift;
+			s.replace(start, start + wanted.length(), wanted);
+			shift = 1 + shift % (wanted.length() - 1);
+		}
+		return s.toString();
+	}
+
+	static void write(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@BeforeMethod
+	public void createFile() throws IOException {
+		file = File.createTempFile("search", ".gcode");
+	}
+
+	@AfterMethod
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Test
+	public void documentMatchesAcrossChunks() throws Exception {
+		Random random = new Random(23);
+		String wanted = "G1 X\u00e9";
+		// the document is read in chunks of 64K, overlapping by the text
+		String text = plantAcross(randomText(random, 300000), wanted, 1 << 16);
+		PlainDocument doc = new PlainDocument();
+		doc.insertString(0, text, null);
+		for (boolean ignoreCase : new boolean[] { false, true }) {
+			TextSearch search = new TextSearch(wanted, ignoreCase);
+			int found = 0;
+			for (int from = 0; ; ) {
+				int expected = indexOf(text, wanted, from, ignoreCase);
+				Assert.assertEquals(search.find(doc, from, null), expected, "from " + from);
+				if (expected < 0) { break; }
+				found++;
+				from = expected + 1;
+			}
+			Assert.assertTrue(found >= 4, found + " found");
+		}
+	}
+
+	@Test
+	public void fileMatchesAcrossBlocks() throws Exception {
+		Random random = new Random(23);
+		String wanted = "x\u00c9 gG";
+		String text = plantAcross(randomText(random, 5 * TrigramIndex.BLOCK_SIZE + 1000),
+				wanted, TrigramIndex.BLOCK_SIZE);
+		write(file, text);
+		TrigramIndex index = TrigramIndex.build(file, null);
+		for (boolean ignoreCase : new boolean[] { false, true }) {
+			TextSearch search = new TextSearch(wanted, ignoreCase);
+			for (int from = 0; ; ) {
+				long expected = indexOf(text, wanted, from, ignoreCase);
+				Assert.assertEquals(search.find(file, from, null, null), expected, "from " + from);
+				Assert.assertEquals(search.find(file, from, index, null), expected, "indexed, from " + from);
+				if (expected < 0) { break; }
+				from = (int)expected + 1;
+			}
+		}
+	}
+
+	@Test
+	public void randomSearchesMatchIndexOf() throws Exception {
+		Random random = new Random(23);
+		String text = randomText(random, 3 * TrigramIndex.BLOCK_SIZE + 77);
+		write(file, text);
+		TrigramIndex index = TrigramIndex.build(file, null);
+		PlainDocument doc = new PlainDocument();
+		doc.insertString(0, text, null);
+		for (int n = 0; n < 200; n++) {
+			String wanted;
+			if (random.nextBoolean()) {
+				// something that is there, maybe in another case
+				int at = random.nextInt(text.length() - 12);
+				wanted = text.substring(at, at + 1 + random.nextInt(12));
+			} else {
+				wanted = randomText(random, 1 + random.nextInt(12));
+			}
+			boolean ignoreCase = random.nextBoolean();
+			int from = random.nextInt(text.length());
+			TextSearch search = new TextSearch(wanted, ignoreCase);
+			int expected = indexOf(text, wanted, from, ignoreCase);
+			String when = "'" + wanted + "' from " + from + (ignoreCase ? ", ignoring case" : "");
+			Assert.assertEquals(search.find(doc, from, null), expected, when);
+			Assert.assertEquals(search.find(file, from, index, null), (long)expected, when);
+		}
+	}
+
+	@Test
+	public void caseFolding() throws Exception {
+		PlainDocument doc = new PlainDocument();
+		doc.insertString(0, "M101\ng1 x10 y\u00e9\nG1 X10 Y\u00c9\n", null);
+		Assert.assertEquals(new TextSearch("G1 X10 Y\u00c9", false).find(doc, 0, null), 15);
+		Assert.assertEquals(new TextSearch("G1 X10 Y\u00c9", true).find(doc, 0, null), 5);
+		Assert.assertEquals(new TextSearch("g1 X10 y\u00c9", true).find(doc, 6, null), 15);
+		Assert.assertEquals(new TextSearch("g1 X10", false).find(doc, 0, null), -1);
+		// a character that can't be in the file matches nothing
+		write(file, "G1 X10\n");
+		Assert.assertEquals(new TextSearch("X\u20ac", true).find(file, 0, null, null), -1L);
+	}
+
+	// Hands out text a few characters at a time.
+	static class TrickleReader extends Reader {
+		private final String text;
+		private final Random random;
+		private int at = 0;
+
+		TrickleReader(String text, Random random) {
+			this.text = text;
+			this.random = random;
+		}
+
+		public int read(char[] cbuf, int off, int len) {
+			if (at == text.length()) { return -1; }
+			int n = Math.min(Math.min(len, 1 + random.nextInt(7)), text.length() - at);
+			text.getChars(at, at + n, cbuf, off);
+			at += n;
+			return n;
+		}
+
+		public void close() {
+		}
+	}
+
+	@Test
+	public void replaceAllMatchesStringReplace() throws Exception {
+		Random random = new Random(23);
+		String wanted = "gX1";
+		String text = plantAcross(randomText(random, 200000), wanted, 1 << 16);
+		String expected = text.replace(wanted, "[G1]");
+		TextSearch search = new TextSearch(wanted, false);
+
+		StringWriter out = new StringWriter();
+		long replaced = search.replaceAll(new StringReader(text), out, "[G1]", text.length(), null);
+		Assert.assertEquals(out.toString(), expected);
+		// each replacement is a character longer than the match
+		Assert.assertEquals(replaced, expected.length() - text.length());
+
+		out = new StringWriter();
+		search.replaceAll(new TrickleReader(text, random), out, "[G1]", text.length(), null);
+		Assert.assertEquals(out.toString(), expected);
+
+		out = new StringWriter();
+		new TextSearch("GX1", true).replaceAll(new StringReader("gx1GX1 gX1g"), out, "-", 11, null);
+		Assert.assertEquals(out.toString(), "-- -g");
+	}
+}
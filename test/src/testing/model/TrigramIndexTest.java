@@ -0,0 +1,100 @@
+package testing.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.model.TrigramIndex;
+
+/**
+ * Checks that the trigram index never rules out a block that holds the
+ * start of a match, in either case, and that it does rule out blocks that
+ * can't.
+ */
+public class TrigramIndexTest {
+	private File file;
+
+	@BeforeMethod
+	public void createFile() throws IOException {
+		file = File.createTempFile("trigrams", ".gcode");
+	}
+
+	@AfterMethod
+	public void deleteFile() {
+		file.delete();
+	}
+
+	static String flipCase(Random random, String s) {
+		StringBuilder flipped = new StringBuilder(s);
+		for (int i = 0; i < flipped.length(); i++) {
+			if (random.nextBoolean()) {
+				char c = flipped.charAt(i);
+				flipped.setCharAt(i, Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+			}
+		}
+		return flipped.toString();
+	}
+
+	@Test
+	public void neverRulesOutAMatch() throws Exception {
+		Random random = new Random(23);
+		// G-code like text, with a wider alphabet than the search tests
+		StringBuilder s = new StringBuilder();
+		while (s.length() < 6 * TrigramIndex.BLOCK_SIZE) {
+			s.append("G1 X").append(random.nextInt(2000) / 10.0).append(" Y")
+				.append(random.nextInt(2000) / 10.0).append(random.nextInt(5) == 0 ? " (Caf\u00e9)" : "")
+				.append('\n');
+		}
+		String text = s.toString();
+		String folded = text.toLowerCase(Locale.US);
+		TextSearchTest.write(file, text);
+		TrigramIndex index = TrigramIndex.build(file, null);
+		Assert.assertTrue(index.isCurrent(file));
+
+		int checked = 0;
+		for (int n = 0; n < 2000; n++) {
+			// half the time, a match that runs over a block boundary
+			int at = (n % 2 == 0) ? random.nextInt(text.length() - 20)
+				: (1 + random.nextInt(5)) * TrigramIndex.BLOCK_SIZE - 1 - random.nextInt(10);
+			String wanted = flipCase(random, text.substring(at, at + 3 + random.nextInt(15)));
+			int[] trigrams = TrigramIndex.trigramsOf(wanted);
+			String w = wanted.toLowerCase(Locale.US);
+			for (int i = folded.indexOf(w); i >= 0; i = folded.indexOf(w, i + 1)) {
+				int block = i >> TrigramIndex.BLOCK_BITS;
+				Assert.assertTrue(index.mayStartIn(block, trigrams),
+						"'" + wanted + "' at " + i + " ruled out of block " + block);
+				checked++;
+			}
+		}
+		Assert.assertTrue(checked >= 2000);
+	}
+
+	@Test
+	public void rulesOutBlocksWithoutTheText() throws Exception {
+		StringBuilder s = new StringBuilder();
+		while (s.length() < 3 * TrigramIndex.BLOCK_SIZE) {
+			s.append("G1 X1 Y1\n");
+		}
+		// only in the last block
+		s.append("M101 (needle)\n");
+		TextSearchTest.write(file, s.toString());
+		TrigramIndex index = TrigramIndex.build(file, null);
+		int[] trigrams = TrigramIndex.trigramsOf("NEEDLE");
+		Assert.assertFalse(index.mayStartIn(0, trigrams));
+		Assert.assertFalse(index.mayStartIn(1, trigrams));
+		Assert.assertTrue(index.mayStartIn(2, trigrams));
+		Assert.assertTrue(index.mayStartIn(3, trigrams));
+		// too short to have trigrams
+		Assert.assertNull(TrigramIndex.trigramsOf("ne"));
+		Assert.assertTrue(index.mayStartIn(0, null));
+
+		TextSearchTest.write(file, "G1 X2\n");
+		Assert.assertFalse(index.isCurrent(file));
+	}
+}
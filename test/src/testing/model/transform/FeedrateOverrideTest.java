@@ -0,0 +1,37 @@
+package testing.model.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.StringListSource;
+import replicatorg.model.transform.FeedrateOverride;
+import replicatorg.model.transform.TransformedGCodeSource;
+
+public class FeedrateOverrideTest {
+	static List<String> override(double factor, String... lines) {
+		Vector<String> codes = new Vector<String>(Arrays.asList(lines));
+		List<String> out = new ArrayList<String>();
+		for (String line : new TransformedGCodeSource(new StringListSource(codes),
+				new FeedrateOverride(factor))) {
+			out.add(line);
+		}
+		return out;
+	}
+
+	@Test
+	public void scalesFeedrates() {
+		List<String> out = override(0.5, "G1 X10 F3000", "G1 X20", "G0 Y5 F1200.5");
+		Assert.assertEquals(out, Arrays.asList("G1 X10 F1500", "G1 X20", "G0 Y5 F600.25"));
+	}
+
+	@Test
+	public void factorOfOneChangesNothing() {
+		List<String> out = override(1, "G1 X10 F3000.0 (fast)");
+		Assert.assertEquals(out.get(0), "G1 X10 F3000.0 (fast)");
+	}
+}
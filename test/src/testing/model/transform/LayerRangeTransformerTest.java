@@ -0,0 +1,83 @@
+package testing.model.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.StringListSource;
+import replicatorg.model.transform.FeedrateOverride;
+import replicatorg.model.transform.LayerRangeTransformer;
+import replicatorg.model.transform.TransformedGCodeSource;
+
+public class LayerRangeTransformerTest {
+	static TransformedGCodeSource source(double minZ, double maxZ, String... lines) {
+		Vector<String> codes = new Vector<String>(Arrays.asList(lines));
+		return new TransformedGCodeSource(new StringListSource(codes),
+				new LayerRangeTransformer(minZ, maxZ));
+	}
+
+	static List<String> lines(TransformedGCodeSource source) {
+		List<String> out = new ArrayList<String>();
+		for (String line : source) {
+			out.add(line);
+		}
+		return out;
+	}
+
+	@Test
+	public void dropsLayersBelowTheRange() {
+		List<String> out = lines(source(0.4, 10,
+				"G21", "G90", "M104 S220", "G1 Z0.2", "M101", "G1 X10 Y0", "G4 P100",
+				"G1 Z0.4", "G1 X20 Y5", "M103"));
+		Assert.assertTrue(out.contains("M104 S220"), out.toString());
+		Assert.assertFalse(out.contains("G1 X10 Y0"), out.toString());
+		Assert.assertFalse(out.contains("G4 P100"), out.toString());
+		Assert.assertTrue(out.contains("G1 X20 Y5"), out.toString());
+		// the extruder comes back on for the layer that is kept
+		int on = out.lastIndexOf("M101");
+		Assert.assertTrue(on >= 0 && on < out.indexOf("G1 X20 Y5"), out.toString());
+	}
+
+	@Test
+	public void absoluteExtrusionResumesFromDroppedE() {
+		List<String> out = lines(source(0.4, 10,
+				"G21", "G90", "M82", "G92 E0",
+				"G1 Z0.2", "G1 X10 Y0 E5", "G1 X10 Y10 E9.5",
+				"G1 Z0.4", "G1 X20 Y10 E11"));
+		int reset = out.indexOf("G92 E9.5");
+		int move = out.indexOf("G1 X20 Y10 E11");
+		Assert.assertTrue(reset >= 0 && reset < move, out.toString());
+		Assert.assertFalse(out.contains("G1 X10 Y0 E5"), out.toString());
+	}
+
+	@Test
+	public void relativeExtrusionNeedsNoReset() {
+		List<String> out = lines(source(0.4, 10,
+				"G21", "G90", "M83",
+				"G1 Z0.2", "G1 X10 Y0 E5",
+				"G1 Z0.4", "G1 X20 Y10 E1.5"));
+		for (String line : out) {
+			Assert.assertFalse(line.startsWith("G92"), out.toString());
+		}
+		Assert.assertTrue(out.contains("G1 X20 Y10 E1.5"), out.toString());
+	}
+
+	@Test
+	public void lineCountFollowsDroppedLines() {
+		TransformedGCodeSource source = source(0.4, 10,
+				"G21", "G90", "G1 Z0.2", "G1 X10 Y0", "G1 X20 Y0", "G1 X30 Y0",
+				"G1 Z0.4", "G1 X40 Y0");
+		Assert.assertEquals(source.getLineCount(), lines(source).size());
+		Assert.assertTrue(source.getLineCount() != 8);
+
+		// transformers that keep every line keep the source's count
+		TransformedGCodeSource same = new TransformedGCodeSource(
+				new StringListSource(new Vector<String>(Arrays.asList("G1 X1 F100", "G1 X2"))),
+				new FeedrateOverride(2));
+		Assert.assertEquals(same.getLineCount(), 2);
+	}
+}
@@ -0,0 +1,42 @@
+package testing.model.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import javax.vecmath.Point3d;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.StringListSource;
+import replicatorg.model.transform.OffsetTransformer;
+import replicatorg.model.transform.TransformedGCodeSource;
+
+public class OffsetTransformerTest {
+	static List<String> offset(Point3d offset, String... lines) {
+		Vector<String> codes = new Vector<String>(Arrays.asList(lines));
+		List<String> out = new ArrayList<String>();
+		for (String line : new TransformedGCodeSource(new StringListSource(codes),
+				new OffsetTransformer(offset))) {
+			out.add(line);
+		}
+		return out;
+	}
+
+	@Test
+	public void leavesG92Alone() {
+		List<String> out = offset(new Point3d(5, 10, 0),
+				"G21", "G90", "G92 X0 Y0 Z0", "G1 X10 Y10 Z0.2");
+		Assert.assertEquals(out.get(2), "G92 X0 Y0 Z0");
+		Assert.assertTrue(out.get(3).contains("X15") && out.get(3).contains("Y20"), out.get(3));
+	}
+
+	@Test
+	public void relativeMovesAreNotOffset() {
+		List<String> out = offset(new Point3d(5, 10, 0),
+				"G21", "G91", "G1 X10 Y10");
+		Assert.assertEquals(out.get(2), "G1 X10 Y10");
+	}
+}
@@ -0,0 +1,46 @@
+package testing.model.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.StringListSource;
+import replicatorg.model.transform.TemperatureOverride;
+import replicatorg.model.transform.TransformedGCodeSource;
+
+public class TemperatureOverrideTest {
+	static List<String> override(int tool, double temperature, String... lines) {
+		Vector<String> codes = new Vector<String>(Arrays.asList(lines));
+		List<String> out = new ArrayList<String>();
+		for (String line : new TransformedGCodeSource(new StringListSource(codes),
+				new TemperatureOverride(tool, temperature))) {
+			out.add(line);
+		}
+		return out;
+	}
+
+	@Test
+	public void overridesTheCurrentTool() {
+		List<String> out = override(1, 230,
+				"M104 S200", "T1", "M104 S200", "M104 S0", "M109 S110");
+		Assert.assertEquals(out, Arrays.asList(
+				"M104 S200", "T1", "M104 S230", "M104 S0", "M109 S110"));
+	}
+
+	@Test
+	public void toolOnTheLineWins() {
+		List<String> out = override(0, 215, "T1", "M104 S200 T0", "T0", "M104 S200 T1");
+		Assert.assertEquals(out.get(1), "M104 S215 T0");
+		Assert.assertEquals(out.get(3), "M104 S200 T1");
+	}
+
+	@Test
+	public void overridesThePlatform() {
+		List<String> out = override(TemperatureOverride.PLATFORM, 60, "M109 S110", "M104 S200", "M109 S0");
+		Assert.assertEquals(out, Arrays.asList("M109 S60", "M104 S200", "M109 S0"));
+	}
+}